@@ -0,0 +1,204 @@
+//
+// Batch driver for IR1 programs.
+// Assignment by Ian Aldrighetti
+//
+// Runs many IR1 programs in parallel, each on its own IR1Machine, and
+// compares their output against the .out.ref files the way the 'run'
+// script does (diff -w), without writing any files:
+//
+//   java IR1Batch [options] [-threads=N] tst
+//   java IR1Batch -closure tst/test01.ir tst/test02.ir
+//
+// A directory stands for all the .ir files in it. The options are those
+// of IR1Interp; -threads defaults to the number of processors. Results
+// are printed in the order the programs were given, followed by a
+// summary.
+//
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class IR1Batch
+{
+	public static void main(String[] args) throws Exception
+	{
+		IR1Machine.Options options = new IR1Machine.Options();
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<File> files = new ArrayList<File>();
+
+		for (String arg : args)
+		{
+			if (options.parse(arg))
+			{
+				continue;
+			}
+			else if (arg.startsWith("-threads="))
+			{
+				threads = Integer.parseInt(arg.substring("-threads=".length()));
+			}
+			else if (arg.startsWith("-"))
+			{
+				System.out.println("Unknown option: " + arg);
+				return;
+			}
+			else
+			{
+				addFiles(new File(arg), files);
+			}
+		}
+
+		if (files.isEmpty())
+		{
+			System.out.println("You must provide input files or directories.");
+			return;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Result>> results = new ArrayList<Future<Result>>();
+
+		for (File file : files)
+		{
+			results.add(pool.submit(() -> run(file, options)));
+		}
+
+		int matched = 0;
+		for (Future<Result> f : results)
+		{
+			Result r = f.get();
+			System.out.print(r.text);
+			if (r.matched)
+			{
+				matched++;
+			}
+		}
+		pool.shutdown();
+
+		System.out.println(matched + " of " + files.size() + " programs match ref");
+	}
+
+	static void addFiles(File f, List<File> files)
+	{
+		if (f.isDirectory())
+		{
+			File[] irs = f.listFiles((dir, name) -> name.endsWith(".ir"));
+			Arrays.sort(irs);
+			files.addAll(Arrays.asList(irs));
+		}
+		else
+		{
+			files.add(f);
+		}
+	}
+
+	static class Result
+	{
+		final String text;
+		final boolean matched;
+
+		Result(String text, boolean matched)
+		{
+			this.text = text;
+			this.matched = matched;
+		}
+	}
+
+	// Runs one program and reports on it in the run script's format.
+	//
+	static Result run(File file, IR1Machine.Options options)
+	{
+		String name = file.getPath().replaceAll("\\.ir$", "");
+		StringBuilder text = new StringBuilder(name + ": ");
+		IR1Output.Capture out = new IR1Output.Capture();
+		String error = null;
+		IR1Machine machine = null;
+
+		try
+		{
+			machine = IR1Interp.load(file, out, options);
+			machine.run();
+		}
+		catch (Throwable e)
+		{
+			error = e.toString();
+		}
+
+		boolean matched = false;
+		File ref = new File(name + ".out.ref");
+		if (ref.canRead())
+		{
+			try
+			{
+				matched = sameOutput(out.toString(), new String(Files.readAllBytes(ref.toPath())));
+				text.append(matched ? "matches ref" : "differs from ref");
+			}
+			catch (IOException e)
+			{
+				text.append("cannot read " + ref.getPath());
+			}
+		}
+		else
+		{
+			text.append("no ref to compare");
+		}
+		text.append('\n');
+
+		if (error != null)
+		{
+			text.append(error).append('\n');
+		}
+
+		if (options.heapStats && machine != null)
+		{
+			ByteArrayOutputStream stats = new ByteArrayOutputStream();
+			PrintStream err = new PrintStream(stats);
+			machine.report(err);
+			err.flush();
+			text.append(stats.toString());
+		}
+
+		// Each program's profile goes in its report; the folded stacks
+		// would all go to the same file, so they are not written.
+		if (machine != null && machine.profiler != null)
+		{
+			ByteArrayOutputStream profile = new ByteArrayOutputStream();
+			PrintStream err = new PrintStream(profile);
+			machine.profiler.report(err);
+			err.flush();
+			text.append(profile.toString());
+		}
+
+		return new Result(text.toString(), matched);
+	}
+
+	// Compares line by line, ignoring white space within lines, like
+	// diff -w.
+	//
+	static boolean sameOutput(String actual, String expected)
+	{
+		String[] a = actual.split("\r?\n", -1);
+		String[] e = expected.split("\r?\n", -1);
+
+		if (a.length != e.length)
+		{
+			return false;
+		}
+
+		for (int i = 0; i < a.length; i++)
+		{
+			if (!a[i].replaceAll("\\s+", "").equals(e[i].replaceAll("\\s+", "")))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
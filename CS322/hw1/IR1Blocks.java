@@ -0,0 +1,75 @@
+//
+// Control flow of an IR1 function.
+// Assignment by Ian Aldrighetti
+//
+// Successors are computed as in Liveness.calculateSuccessors (hw4): a
+// Jump goes to its label, a CJump to its label and the next instruction,
+// and anything else falls through. Here indices are 0-based, labels are
+// the indices IR1Interp.resolve() gave them, a Return has no successor,
+// and the end of the code (code.length) stands for the implicit return.
+//
+// entries() then marks where control can enter other than by falling
+// through. Between two entries the code is an extended basic block: it
+// is only entered at the top, so IR1Closure can fuse neighbouring
+// instructions there.
+//
+import ir1.IR1;
+
+class IR1Blocks
+{
+	static final int[] NONE = new int[0];
+
+	static int[][] successors(IR1.Func func)
+	{
+		IR1.Inst[] code = func.code;
+		int[][] succs = new int[code.length][];
+
+		for (int i = 0; i < code.length; i++)
+		{
+			IR1.Inst inst = code[i];
+
+			if (inst instanceof IR1.CJump)
+			{
+				int target = ((IR1.CJump) inst).target;
+				succs[i] = target >= 0 ? new int[] { target, i + 1 } : new int[] { i + 1 };
+			}
+			else if (inst instanceof IR1.Jump)
+			{
+				int target = ((IR1.Jump) inst).target;
+				succs[i] = target >= 0 ? new int[] { target } : NONE;
+			}
+			else if (inst instanceof IR1.Return)
+			{
+				succs[i] = NONE;
+			}
+			else
+			{
+				succs[i] = new int[] { i + 1 };
+			}
+		}
+
+		return succs;
+	}
+
+	// entries[k] is true if instruction k can be reached other than by
+	// falling through from k - 1 (or is the first instruction).
+	//
+	static boolean[] entries(int[][] succs)
+	{
+		boolean[] entries = new boolean[succs.length + 1];
+		entries[0] = true;
+
+		for (int i = 0; i < succs.length; i++)
+		{
+			for (int s : succs[i])
+			{
+				if (s != i + 1)
+				{
+					entries[s] = true;
+				}
+			}
+		}
+
+		return entries;
+	}
+}
@@ -0,0 +1,1650 @@
+//
+// Closure-compiling execution mode for IR1 programs.
+// Assignment by Ian Aldrighetti
+//
+// Each IR1.Func is translated once, before the program starts, into an
+// array of pre-specialized Node objects (one per instruction). A node
+// works directly on the frame laid out by IR1Interp.resolve() and
+// returns the index of the next node to run, so the per-instruction
+// instanceof chains of the reference interpreter are paid only once, at
+// compile time.
+//
+// Values, the heap and the builtins are those of the IR1Machine the
+// program runs on, so the output of every mode is identical.
+//
+// Nodes skip over labels: a jump goes straight to the first instruction
+// after its label. Unless -nosuper is given, some common runs of
+// instructions are also fused into superinstructions (see fuse()), so a
+// typical loop iteration takes fewer dispatches.
+//
+import ir1.IR1;
+import ir1.IR1.AOP;
+import ir1.IR1.ROP;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+public class IR1Closure
+{
+	static final int RETURN = IR1Machine.RETURN;
+
+	final IR1Machine machine;
+
+	IR1Closure(IR1Machine machine)
+	{
+		this.machine = machine;
+	}
+
+	// -----------------------------------------------------------------
+	// Compiled functions
+	// -----------------------------------------------------------------
+	//
+
+	/**
+	 * A function compiled to closures. The code array has one node per
+	 * IR1 instruction, plus a final node that returns when control falls
+	 * off the end of the function. With -tiered it is null until the
+	 * function gets hot.
+	 *
+	 * @author Ian
+	 */
+	static class CompiledFunc
+	{
+		final IR1Interp.ResolvedFunc rf;
+		Node[] code;
+
+		// Calls and loop back-edges run by the interpreter, for IR1Tiered
+		int count = 0;
+
+		CompiledFunc(IR1Interp.ResolvedFunc rf)
+		{
+			this.rf = rf;
+		}
+	}
+
+	// Function lookup table
+	// - maps function names to their compiled code
+	//
+	final HashMap<String, CompiledFunc> funcMap = new HashMap<String, CompiledFunc>();
+
+	// Return value
+	// - set by a Return node, read by the caller
+	//
+	long returnVal;
+
+	// Frames of the calls in progress: they are the roots, in this mode,
+	// of the collector and of the string table (see
+	// IR1Machine.gatherRoots).
+	//
+	final ArrayList<long[]> frames = new ArrayList<long[]>();
+
+	// Program ---
+	// Func[] funcs;
+	//
+	// 1. Compile every function the machine has loaded (all of them are
+	// created first, so that call nodes can refer to their targets
+	// directly)
+	// 2. Run main
+	//
+	void execute() throws Exception
+	{
+		for (Map.Entry<String, IR1Interp.ResolvedFunc> me : machine.funcMap.entrySet())
+		{
+			funcMap.put(me.getKey(), new CompiledFunc(me.getValue()));
+		}
+
+		for (CompiledFunc cf : funcMap.values())
+		{
+			compile(cf);
+		}
+
+		call(funcMap.get("main"), null);
+	}
+
+	// The named function, or null if the program has none. It is added
+	// to funcMap, uncompiled, the first time it is asked for.
+	//
+	CompiledFunc function(String name) throws Exception
+	{
+		CompiledFunc cf = funcMap.get(name);
+
+		if (cf == null)
+		{
+			IR1Interp.ResolvedFunc rf = machine.function(name);
+			if (rf != null)
+			{
+				cf = new CompiledFunc(rf);
+				funcMap.put(name, cf);
+			}
+		}
+
+		return cf;
+	}
+
+	// Runs cf with the given arguments and returns its return value. A
+	// function that is not compiled yet is run by the tier manager.
+	//
+	long call(CompiledFunc cf, long[] args) throws Exception
+	{
+		if (cf.code == null)
+		{
+			return machine.tiered.call(cf, args);
+		}
+
+		IR1Interp.checkArgs(cf.rf.func, args);
+
+		long[] f = IR1Interp.newFrame(cf.rf);
+
+		if (args != null)
+		{
+			for (int index = 0; index < args.length; index++)
+			{
+				f[cf.rf.paramSlots[index]] = args[index];
+			}
+		}
+
+		return run(cf, f, 0);
+	}
+
+	// Runs cf's code from node pc, on frame f, until it returns. pc is 0
+	// except for an on-stack replacement (see IR1Tiered).
+	//
+	long run(CompiledFunc cf, long[] f, int pc) throws Exception
+	{
+		frames.add(f);
+
+		Node[] code = cf.code;
+		while (pc != RETURN)
+		{
+			pc = code[pc].exec(f);
+		}
+
+		frames.remove(frames.size() - 1);
+
+		long val = returnVal;
+		returnVal = IR1Interp.UNDEF;
+
+		return val;
+	}
+
+	// -----------------------------------------------------------------
+	// Compiler
+	// -----------------------------------------------------------------
+	//
+
+	// The first instruction at or after each index that is not a
+	// LabelDec, for the function being compiled
+	int[] resume;
+
+	void compile(CompiledFunc cf) throws Exception
+	{
+		IR1.Inst[] insts = cf.rf.func.code;
+		Node[] code = new Node[insts.length + 1];
+
+		resume = new int[insts.length + 1];
+		resume[insts.length] = insts.length;
+		for (int idx = insts.length - 1; idx >= 0; idx--)
+		{
+			resume[idx] = insts[idx] instanceof IR1.LabelDec ? resume[idx + 1] : idx;
+		}
+
+		for (int idx = 0; idx < insts.length; idx++)
+		{
+			code[idx] = compile(cf.rf, insts[idx], resume[idx + 1]);
+		}
+
+		code[insts.length] = new ReturnNode(null);
+
+		if (machine.options.superinstructions)
+		{
+			fuse(cf.rf, code);
+		}
+
+		cf.code = code;
+	}
+
+	// Where a jump to 'target' continues (negative if the label is
+	// undefined).
+	//
+	int target(int target)
+	{
+		return target < 0 ? target : resume[target];
+	}
+
+	// Compile one instruction. 'next' is the index of the following node.
+	//
+	Node compile(IR1Interp.ResolvedFunc rf, IR1.Inst n, int next) throws Exception
+	{
+		if (n instanceof IR1.Binop)
+			return compile(rf, (IR1.Binop) n, next);
+		if (n instanceof IR1.Unop)
+		{
+			IR1.Unop u = (IR1.Unop) n;
+			return checkDest(rf, u.dst, new UnopNode(next, u.op, operand(rf, u.src), u.dst));
+		}
+		if (n instanceof IR1.Move)
+			return compile(rf, (IR1.Move) n, next);
+		if (n instanceof IR1.Load)
+		{
+			IR1.Load l = (IR1.Load) n;
+			return checkDest(rf, l.dst, new LoadNode(next, operand(rf, l.addr.base), l.addr.offset, l.dst));
+		}
+		if (n instanceof IR1.Store)
+		{
+			IR1.Store s = (IR1.Store) n;
+			return new StoreNode(next, operand(rf, s.addr.base), s.addr.offset, operand(rf, s.src));
+		}
+		if (n instanceof IR1.Jump)
+		{
+			IR1.Jump j = (IR1.Jump) n;
+			if (j.target < 0)
+				return new ThrowNode("The label is not defined: " + j.lab.name + ".");
+			return new GotoNode(target(j.target));
+		}
+		if (n instanceof IR1.CJump)
+			return compile(rf, (IR1.CJump) n, next);
+		if (n instanceof IR1.Call)
+			return compile(rf, (IR1.Call) n, next);
+		if (n instanceof IR1.Return)
+		{
+			IR1.Return r = (IR1.Return) n;
+			return new ReturnNode(r.val != null ? operand(rf, r.val) : null);
+		}
+		if (n instanceof IR1.LabelDec)
+			return new GotoNode(next);
+		throw new IR1Interp.IntException("Unknown Inst: " + n);
+	}
+
+	// Binop ---
+	// Integer +, - and * on a slot and a slot or literal get their own
+	// nodes; everything else goes through IR1Interp's value operations.
+	//
+	Node compile(IR1Interp.ResolvedFunc rf, IR1.Binop n, int next) throws Exception
+	{
+		Operand src1 = operand(rf, n.src1);
+		Operand src2 = operand(rf, n.src2);
+		int dst = slot(n.dst);
+		Node node = null;
+
+		if (src1 instanceof SlotOperand && n.op instanceof AOP)
+		{
+			int s1 = ((SlotOperand) src1).slot;
+
+			if (src2 instanceof SlotOperand)
+			{
+				int s2 = ((SlotOperand) src2).slot;
+
+				if (n.op == AOP.ADD)
+					node = new AddSS(next, s1, s2, dst);
+				else if (n.op == AOP.SUB)
+					node = new SubSS(next, s1, s2, dst);
+				else if (n.op == AOP.MUL)
+					node = new MulSS(next, s1, s2, dst);
+			}
+			else if (n.src2 instanceof IR1.IntLit)
+			{
+				int k = ((IR1.IntLit) n.src2).i;
+
+				if (n.op == AOP.ADD)
+					node = new AddSC(next, s1, k, dst);
+				else if (n.op == AOP.SUB)
+					node = new AddSC(next, s1, -k, dst);
+				else if (n.op == AOP.MUL)
+					node = new MulSC(next, s1, k, dst);
+			}
+		}
+
+		if (node == null)
+		{
+			if (n.op instanceof AOP)
+				node = new ArithNode(next, (AOP) n.op, src1, src2, dst);
+			else
+				node = new CompareNode(next, (ROP) n.op, src1, src2, dst);
+		}
+
+		return checkDest(rf, n.dst, node);
+	}
+
+	// Move ---
+	//
+	Node compile(IR1Interp.ResolvedFunc rf, IR1.Move n, int next) throws Exception
+	{
+		Operand src = operand(rf, n.src);
+		Node node;
+
+		if (src instanceof SlotOperand)
+			node = new MoveSS(next, ((SlotOperand) src).slot, slot(n.dst));
+		else if (src instanceof ConstOperand)
+			node = new MoveCS(next, ((ConstOperand) src).val, slot(n.dst));
+		else
+			node = new MoveNode(next, src, slot(n.dst));
+
+		return checkDest(rf, n.dst, node);
+	}
+
+	// CJump ---
+	// Integer comparisons of a slot against a slot or literal get a
+	// node per operator.
+	//
+	Node compile(IR1Interp.ResolvedFunc rf, IR1.CJump n, int next) throws Exception
+	{
+		Operand src1 = operand(rf, n.src1);
+		Operand src2 = operand(rf, n.src2);
+		int target = target(n.target);
+
+		if (target >= 0 && src1 instanceof SlotOperand)
+		{
+			int s1 = ((SlotOperand) src1).slot;
+
+			if (src2 instanceof SlotOperand)
+			{
+				int s2 = ((SlotOperand) src2).slot;
+
+				switch (n.op)
+				{
+					case EQ: return new IfEqSS(next, target, s1, s2);
+					case NE: return new IfNeSS(next, target, s1, s2);
+					case LT: return new IfLtSS(next, target, s1, s2);
+					case LE: return new IfLeSS(next, target, s1, s2);
+					case GT: return new IfGtSS(next, target, s1, s2);
+					case GE: return new IfGeSS(next, target, s1, s2);
+				}
+			}
+			else if (n.src2 instanceof IR1.IntLit)
+			{
+				int k = ((IR1.IntLit) n.src2).i;
+
+				switch (n.op)
+				{
+					case EQ: return new IfEqSC(next, target, s1, k);
+					case NE: return new IfNeSC(next, target, s1, k);
+					case LT: return new IfLtSC(next, target, s1, k);
+					case LE: return new IfLeSC(next, target, s1, k);
+					case GT: return new IfGtSC(next, target, s1, k);
+					case GE: return new IfGeSC(next, target, s1, k);
+				}
+			}
+		}
+
+		return new CJumpNode(next, target, n.op, src1, src2, n.lab.name);
+	}
+
+	// Call ---
+	// Builtins get their own nodes; calls to user functions are bound to
+	// the callee's CompiledFunc at compile time.
+	//
+	Node compile(IR1Interp.ResolvedFunc rf, IR1.Call n, int next) throws Exception
+	{
+		Operand[] args = new Operand[n.args.length];
+		for (int index = 0; index < args.length; index++)
+		{
+			args[index] = operand(rf, n.args[index]);
+		}
+
+		int rdst = n.rdst != null ? slot(n.rdst) : -1;
+		Node node;
+
+		if (n.name.equals("malloc"))
+		{
+			if (args.length != 1)
+				return new ThrowNode("_malloc requires 1 parameter.");
+			node = new MallocNode(next, args[0], rdst);
+		}
+		else if (n.name.equals("printStr") || n.name.equals("printBool") || n.name.equals("printInt"))
+		{
+			if (args.length == 0 && n.name.equals("printStr"))
+				return new PrintNode(next, null);
+			if (args.length != 1)
+				return new ThrowNode("_" + n.name + " requires 1 parameter.");
+			return new PrintNode(next, args[0]);
+		}
+		else
+		{
+			CompiledFunc target = function(n.name);
+
+			if (target == null)
+				return new ThrowNode("Call to undefined function: " + n.name + ".");
+			node = new CallNode(next, target, args, rdst);
+		}
+
+		return n.rdst != null ? checkDest(rf, n.rdst, node) : node;
+	}
+
+	// An Id that was never declared has no value; writing it is an error
+	// once the instruction has run, as in the reference interpreter.
+	//
+	Node checkDest(IR1Interp.ResolvedFunc rf, IR1.Dest dst, Node node)
+	{
+		if (dst instanceof IR1.Id && slot(dst) >= rf.undeclaredStart)
+		{
+			return new UndefinedDest(node, ((IR1.Id) dst).name);
+		}
+
+		return node;
+	}
+
+	int slot(IR1.Dest n)
+	{
+		return n instanceof IR1.Temp ? ((IR1.Temp) n).slot : ((IR1.Id) n).slot;
+	}
+
+	Operand operand(IR1Interp.ResolvedFunc rf, IR1.Src n) throws Exception
+	{
+		if (n instanceof IR1.Temp)
+		{
+			return new SlotOperand(((IR1.Temp) n).slot);
+		}
+		else if (n instanceof IR1.Id)
+		{
+			IR1.Id id = (IR1.Id) n;
+
+			if (id.slot >= rf.undeclaredStart)
+			{
+				return new UndefinedOperand(id.name);
+			}
+
+			return new SlotOperand(id.slot);
+		}
+		else if (n instanceof IR1.IntLit)
+		{
+			return new ConstOperand(IR1Interp.intVal(((IR1.IntLit) n).i));
+		}
+		else if (n instanceof IR1.BoolLit)
+		{
+			return new ConstOperand(IR1Interp.boolVal(((IR1.BoolLit) n).b));
+		}
+		else if (n instanceof IR1.StrLit)
+		{
+			return new ConstOperand(IR1Interp.strVal(((IR1.StrLit) n).index));
+		}
+
+		throw new IR1Interp.IntException("Unhandled operand: " + n + ".");
+	}
+
+	// -----------------------------------------------------------------
+	// Superinstructions
+	// -----------------------------------------------------------------
+	//
+	// Within an extended basic block (IR1Blocks), these runs are compiled
+	// to one node, which does the work of the whole run in order:
+	//
+	// - t = a op b; if t == true goto L       compare and branch
+	// - t = true; if a op b goto L; t = false; L:
+	//                                         materialize a comparison
+	// - t1 = s * k; t2 = b + t1; t3 = n[t2]   indexed load (or store)
+	// - t1 = n[b]; t2 = t1 op x; n[b] = t2    load-op-store
+	// - t = a op b; x = t                     arithmetic and move
+	//
+	// Only plain slots and constants are fused. The nodes of the rest of
+	// a run stay in the code array but are not reached, since no jump
+	// lands inside a run.
+	//
+
+	void fuse(IR1Interp.ResolvedFunc rf, Node[] code) throws Exception
+	{
+		IR1.Inst[] insts = rf.func.code;
+		boolean[] entries = IR1Blocks.entries(IR1Blocks.successors(rf.func));
+
+		for (int i = 0; i < insts.length; i++)
+		{
+			Node node = fuse(rf, insts, entries, i);
+			if (node != null)
+			{
+				code[i] = node;
+			}
+		}
+	}
+
+	// The superinstruction for the run starting at i, or null.
+	//
+	Node fuse(IR1Interp.ResolvedFunc rf, IR1.Inst[] insts, boolean[] entries, int i) throws Exception
+	{
+		IR1.Inst first = insts[i];
+
+		if (first instanceof IR1.Move && inRun(insts, entries, i, 4))
+		{
+			return fuseSetCompare(rf, (IR1.Move) first, insts, i);
+		}
+
+		if (first instanceof IR1.Load && inRun(insts, entries, i, 3))
+		{
+			return fuseLoadOpStore(rf, (IR1.Load) first, insts, i);
+		}
+
+		if (!(first instanceof IR1.Binop))
+		{
+			return null;
+		}
+
+		IR1.Binop b = (IR1.Binop) first;
+		Node node = null;
+
+		if (b.op instanceof ROP && inRun(insts, entries, i, 2))
+		{
+			node = fuseCompareBranch(rf, b, insts, i);
+		}
+		else if (b.op == AOP.MUL && inRun(insts, entries, i, 2))
+		{
+			node = fuseIndex(rf, b, insts, entries, i);
+		}
+
+		if (node == null && b.op instanceof AOP && inRun(insts, entries, i, 2))
+		{
+			node = fuseArithMove(rf, b, insts, i);
+		}
+
+		return node;
+	}
+
+	// Instructions i .. i + length - 1 exist and only i is entered
+	// other than by falling through. (For a run ending in a label, that
+	// label may be a jump target.)
+	//
+	boolean inRun(IR1.Inst[] insts, boolean[] entries, int i, int length)
+	{
+		if (i + length > insts.length)
+		{
+			return false;
+		}
+
+		int last = i + length - 1;
+		for (int k = i + 1; k <= last; k++)
+		{
+			if (entries[k] && !(k == last && insts[k] instanceof IR1.LabelDec))
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	// The operand for n if it is a declared slot or a constant, else null.
+	//
+	Operand plain(IR1Interp.ResolvedFunc rf, IR1.Src n) throws Exception
+	{
+		Operand op = operand(rf, n);
+		return op instanceof UndefinedOperand ? null : op;
+	}
+
+	// The slot of a declared dest, or -1.
+	//
+	int plainSlot(IR1Interp.ResolvedFunc rf, IR1.Dest n)
+	{
+		int slot = slot(n);
+		return n instanceof IR1.Id && slot >= rf.undeclaredStart ? -1 : slot;
+	}
+
+	// The slot read by n if it is a declared Temp or Id, else -1.
+	//
+	int srcSlot(IR1Interp.ResolvedFunc rf, IR1.Src n)
+	{
+		return n instanceof IR1.Dest ? plainSlot(rf, (IR1.Dest) n) : -1;
+	}
+
+	// t = a op b; if t == true goto L ---
+	// (also != and false) as IR0Gen emits for while and if conditions
+	//
+	Node fuseCompareBranch(IR1Interp.ResolvedFunc rf, IR1.Binop b, IR1.Inst[] insts, int i) throws Exception
+	{
+		if (!(insts[i + 1] instanceof IR1.CJump))
+		{
+			return null;
+		}
+
+		IR1.CJump cj = (IR1.CJump) insts[i + 1];
+		Operand src1 = plain(rf, b.src1);
+		Operand src2 = plain(rf, b.src2);
+		int dst = plainSlot(rf, b.dst);
+
+		if (src1 == null || src2 == null || dst < 0 || cj.target < 0
+				|| (cj.op != ROP.EQ && cj.op != ROP.NE)
+				|| srcSlot(rf, cj.src1) != dst || !(cj.src2 instanceof IR1.BoolLit))
+		{
+			return null;
+		}
+
+		boolean branchOn = ((IR1.BoolLit) cj.src2).b == (cj.op == ROP.EQ);
+		return new CompareBranch(resume[i + 2], target(cj.target), (ROP) b.op, src1, src2, dst, branchOn);
+	}
+
+	// t = true; if a op b goto L; t = false; L: ---
+	// (or false, then true) as IR0Gen emits for a relational expression
+	//
+	Node fuseSetCompare(IR1Interp.ResolvedFunc rf, IR1.Move first, IR1.Inst[] insts, int i) throws Exception
+	{
+		if (!(insts[i + 1] instanceof IR1.CJump && insts[i + 2] instanceof IR1.Move
+				&& insts[i + 3] instanceof IR1.LabelDec))
+		{
+			return null;
+		}
+
+		IR1.CJump cj = (IR1.CJump) insts[i + 1];
+		IR1.Move second = (IR1.Move) insts[i + 2];
+		int dst = plainSlot(rf, first.dst);
+		Operand src1 = plain(rf, cj.src1);
+		Operand src2 = plain(rf, cj.src2);
+
+		if (cj.target != i + 3 || dst < 0 || plainSlot(rf, second.dst) != dst
+				|| !(first.src instanceof IR1.BoolLit) || !(second.src instanceof IR1.BoolLit)
+				|| ((IR1.BoolLit) first.src).b == ((IR1.BoolLit) second.src).b
+				|| src1 == null || src2 == null)
+		{
+			return null;
+		}
+
+		// The comparison reads the operands after t is set
+		if (srcSlot(rf, cj.src1) == dst || srcSlot(rf, cj.src2) == dst)
+		{
+			return null;
+		}
+
+		return new SetCompare(resume[i + 3], cj.op, src1, src2, dst, ((IR1.BoolLit) first.src).b);
+	}
+
+	// t1 = s * k; t2 = b + t1 [; t3 = n[t2] | n[t2] = v] ---
+	// IR0Gen's array element address, and the access that uses it
+	//
+	Node fuseIndex(IR1Interp.ResolvedFunc rf, IR1.Binop mul, IR1.Inst[] insts, boolean[] entries, int i) throws Exception
+	{
+		if (!(insts[i + 1] instanceof IR1.Binop && mul.src2 instanceof IR1.IntLit))
+		{
+			return null;
+		}
+
+		IR1.Binop add = (IR1.Binop) insts[i + 1];
+		Operand scaled = plain(rf, mul.src1);
+		Operand base = plain(rf, add.src1);
+		int t1 = plainSlot(rf, mul.dst);
+		int t2 = plainSlot(rf, add.dst);
+
+		if (add.op != AOP.ADD || scaled == null || base == null || t1 < 0 || t2 < 0
+				|| srcSlot(rf, add.src2) != t1)
+		{
+			return null;
+		}
+
+		int k = ((IR1.IntLit) mul.src2).i;
+
+		if (inRun(insts, entries, i, 3))
+		{
+			IR1.Inst third = insts[i + 2];
+
+			if (third instanceof IR1.Load && srcSlot(rf, ((IR1.Load) third).addr.base) == t2)
+			{
+				IR1.Load l = (IR1.Load) third;
+				int t3 = plainSlot(rf, l.dst);
+				if (t3 >= 0)
+				{
+					return new IndexLoad(resume[i + 3], scaled, k, t1, base, t2, l.addr.offset, t3);
+				}
+			}
+			else if (third instanceof IR1.Store && srcSlot(rf, ((IR1.Store) third).addr.base) == t2)
+			{
+				IR1.Store s = (IR1.Store) third;
+				Operand val = plain(rf, s.src);
+				if (val != null)
+				{
+					return new IndexStore(resume[i + 3], scaled, k, t1, base, t2, s.addr.offset, val);
+				}
+			}
+		}
+
+		return new IndexAddr(resume[i + 2], scaled, k, t1, base, t2);
+	}
+
+	// t1 = n[b]; t2 = t1 op x; n[b] = t2 ---
+	//
+	Node fuseLoadOpStore(IR1Interp.ResolvedFunc rf, IR1.Load load, IR1.Inst[] insts, int i) throws Exception
+	{
+		if (!(insts[i + 1] instanceof IR1.Binop && insts[i + 2] instanceof IR1.Store))
+		{
+			return null;
+		}
+
+		IR1.Binop op = (IR1.Binop) insts[i + 1];
+		IR1.Store store = (IR1.Store) insts[i + 2];
+		int base = srcSlot(rf, load.addr.base);
+		int t1 = plainSlot(rf, load.dst);
+		int t2 = plainSlot(rf, op.dst);
+		Operand x = plain(rf, op.src2);
+
+		if (!(op.op instanceof AOP) || base < 0 || t1 < 0 || t2 < 0 || x == null
+				|| srcSlot(rf, op.src1) != t1 || srcSlot(rf, store.src) != t2
+				|| srcSlot(rf, store.addr.base) != base || store.addr.offset != load.addr.offset)
+		{
+			return null;
+		}
+
+		// The store must go to the address that was loaded
+		if (base == t1 || base == t2)
+		{
+			return null;
+		}
+
+		return new LoadOpStore(resume[i + 3], base, load.addr.offset, t1, (AOP) op.op, x, t2);
+	}
+
+	// t = a op b; x = t ---
+	//
+	Node fuseArithMove(IR1Interp.ResolvedFunc rf, IR1.Binop b, IR1.Inst[] insts, int i) throws Exception
+	{
+		if (!(insts[i + 1] instanceof IR1.Move))
+		{
+			return null;
+		}
+
+		IR1.Move move = (IR1.Move) insts[i + 1];
+		Operand src1 = plain(rf, b.src1);
+		Operand src2 = plain(rf, b.src2);
+		int t = plainSlot(rf, b.dst);
+		int x = plainSlot(rf, move.dst);
+
+		if (src1 == null || src2 == null || t < 0 || x < 0 || srcSlot(rf, move.src) != t)
+		{
+			return null;
+		}
+
+		return new ArithMove(resume[i + 2], (AOP) b.op, src1, src2, t, x);
+	}
+
+	// -----------------------------------------------------------------
+	// Operands
+	// -----------------------------------------------------------------
+	//
+
+	abstract static class Operand
+	{
+		abstract long get(long[] f) throws Exception;
+	}
+
+	static final class SlotOperand extends Operand
+	{
+		final int slot;
+
+		SlotOperand(int slot)
+		{
+			this.slot = slot;
+		}
+
+		long get(long[] f)
+		{
+			return f[slot];
+		}
+	}
+
+	static final class ConstOperand extends Operand
+	{
+		final long val;
+
+		ConstOperand(long val)
+		{
+			this.val = val;
+		}
+
+		long get(long[] f)
+		{
+			return val;
+		}
+	}
+
+	static final class UndefinedOperand extends Operand
+	{
+		final String name;
+
+		UndefinedOperand(String name)
+		{
+			this.name = name;
+		}
+
+		long get(long[] f) throws Exception
+		{
+			throw new IR1Interp.IntException("The variable is not defined: " + name + ".");
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Nodes
+	// -----------------------------------------------------------------
+	//
+	// - exec() returns the index of the next node, or RETURN.
+	//
+
+	abstract class Node
+	{
+		abstract int exec(long[] f) throws Exception;
+	}
+
+	// A node that falls through to 'next'.
+	//
+	abstract class SeqNode extends Node
+	{
+		final int next;
+
+		SeqNode(int next)
+		{
+			this.next = next;
+		}
+	}
+
+	final class GotoNode extends Node
+	{
+		final int target;
+
+		GotoNode(int target)
+		{
+			this.target = target;
+		}
+
+		int exec(long[] f)
+		{
+			return target;
+		}
+	}
+
+	final class ThrowNode extends Node
+	{
+		final String msg;
+
+		ThrowNode(String msg)
+		{
+			this.msg = msg;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			throw new IR1Interp.IntException(msg);
+		}
+	}
+
+	final class UndefinedDest extends Node
+	{
+		final Node node;
+		final String name;
+
+		UndefinedDest(Node node, String name)
+		{
+			this.node = node;
+			this.name = name;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			node.exec(f);
+			throw new IR1Interp.IntException("The variable is not defined: " + name + ".");
+		}
+	}
+
+	final class MoveSS extends SeqNode
+	{
+		final int src, dst;
+
+		MoveSS(int next, int src, int dst)
+		{
+			super(next);
+			this.src = src;
+			this.dst = dst;
+		}
+
+		int exec(long[] f)
+		{
+			f[dst] = f[src];
+			return next;
+		}
+	}
+
+	final class MoveCS extends SeqNode
+	{
+		final long val;
+		final int dst;
+
+		MoveCS(int next, long val, int dst)
+		{
+			super(next);
+			this.val = val;
+			this.dst = dst;
+		}
+
+		int exec(long[] f)
+		{
+			f[dst] = val;
+			return next;
+		}
+	}
+
+	final class MoveNode extends SeqNode
+	{
+		final Operand src;
+		final int dst;
+
+		MoveNode(int next, Operand src, int dst)
+		{
+			super(next);
+			this.src = src;
+			this.dst = dst;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			f[dst] = src.get(f);
+			return next;
+		}
+	}
+
+	final class AddSS extends SeqNode
+	{
+		final int s1, s2, dst;
+
+		AddSS(int next, int s1, int s2, int dst)
+		{
+			super(next);
+			this.s1 = s1;
+			this.s2 = s2;
+			this.dst = dst;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			long a = f[s1], b = f[s2];
+			if (IR1Interp.tag(a) == IR1Interp.INT_TAG && IR1Interp.tag(b) == IR1Interp.INT_TAG)
+				f[dst] = IR1Interp.intVal((int) a + (int) b);
+			else
+				f[dst] = machine.arith(AOP.ADD, a, b);
+			return next;
+		}
+	}
+
+	final class SubSS extends SeqNode
+	{
+		final int s1, s2, dst;
+
+		SubSS(int next, int s1, int s2, int dst)
+		{
+			super(next);
+			this.s1 = s1;
+			this.s2 = s2;
+			this.dst = dst;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			long a = f[s1], b = f[s2];
+			if (IR1Interp.tag(a) == IR1Interp.INT_TAG && IR1Interp.tag(b) == IR1Interp.INT_TAG)
+				f[dst] = IR1Interp.intVal((int) a - (int) b);
+			else
+				f[dst] = machine.arith(AOP.SUB, a, b);
+			return next;
+		}
+	}
+
+	final class MulSS extends SeqNode
+	{
+		final int s1, s2, dst;
+
+		MulSS(int next, int s1, int s2, int dst)
+		{
+			super(next);
+			this.s1 = s1;
+			this.s2 = s2;
+			this.dst = dst;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			long a = f[s1], b = f[s2];
+			if (IR1Interp.tag(a) == IR1Interp.INT_TAG && IR1Interp.tag(b) == IR1Interp.INT_TAG)
+				f[dst] = IR1Interp.intVal((int) a * (int) b);
+			else
+				f[dst] = machine.arith(AOP.MUL, a, b);
+			return next;
+		}
+	}
+
+	// Also used for subtraction of a literal (with k negated).
+	//
+	final class AddSC extends SeqNode
+	{
+		final int s1, k, dst;
+
+		AddSC(int next, int s1, int k, int dst)
+		{
+			super(next);
+			this.s1 = s1;
+			this.k = k;
+			this.dst = dst;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			long a = f[s1];
+			if (IR1Interp.tag(a) == IR1Interp.INT_TAG)
+				f[dst] = IR1Interp.intVal((int) a + k);
+			else
+				f[dst] = machine.arith(AOP.ADD, a, IR1Interp.intVal(k));
+			return next;
+		}
+	}
+
+	final class MulSC extends SeqNode
+	{
+		final int s1, k, dst;
+
+		MulSC(int next, int s1, int k, int dst)
+		{
+			super(next);
+			this.s1 = s1;
+			this.k = k;
+			this.dst = dst;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			long a = f[s1];
+			if (IR1Interp.tag(a) == IR1Interp.INT_TAG)
+				f[dst] = IR1Interp.intVal((int) a * k);
+			else
+				f[dst] = machine.arith(AOP.MUL, a, IR1Interp.intVal(k));
+			return next;
+		}
+	}
+
+	final class ArithNode extends SeqNode
+	{
+		final AOP op;
+		final Operand src1, src2;
+		final int dst;
+
+		ArithNode(int next, AOP op, Operand src1, Operand src2, int dst)
+		{
+			super(next);
+			this.op = op;
+			this.src1 = src1;
+			this.src2 = src2;
+			this.dst = dst;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			f[dst] = machine.arith(op, src1.get(f), src2.get(f));
+			return next;
+		}
+	}
+
+	final class CompareNode extends SeqNode
+	{
+		final ROP op;
+		final Operand src1, src2;
+		final int dst;
+
+		CompareNode(int next, ROP op, Operand src1, Operand src2, int dst)
+		{
+			super(next);
+			this.op = op;
+			this.src1 = src1;
+			this.src2 = src2;
+			this.dst = dst;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			f[dst] = IR1Interp.boolVal(machine.compare(op, src1.get(f), src2.get(f)));
+			return next;
+		}
+	}
+
+	final class UnopNode extends SeqNode
+	{
+		final IR1.UOP op;
+		final Operand src;
+		final int dst;
+
+		UnopNode(int next, IR1.UOP op, Operand src, IR1.Dest dst)
+		{
+			super(next);
+			this.op = op;
+			this.src = src;
+			this.dst = slot(dst);
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			f[dst] = machine.unop(op, src.get(f));
+			return next;
+		}
+	}
+
+	final class LoadNode extends SeqNode
+	{
+		final Operand base;
+		final int offset, dst;
+
+		LoadNode(int next, Operand base, int offset, IR1.Dest dst)
+		{
+			super(next);
+			this.base = base;
+			this.offset = offset;
+			this.dst = slot(dst);
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			f[dst] = machine.heap.get(machine.address(base.get(f), offset));
+			return next;
+		}
+	}
+
+	final class StoreNode extends SeqNode
+	{
+		final Operand base, src;
+		final int offset;
+
+		StoreNode(int next, Operand base, int offset, Operand src)
+		{
+			super(next);
+			this.base = base;
+			this.offset = offset;
+			this.src = src;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			long val = src.get(f);
+			machine.heap.set(machine.address(base.get(f), offset), val);
+			return next;
+		}
+	}
+
+	final class CJumpNode extends SeqNode
+	{
+		final int target;
+		final ROP op;
+		final Operand src1, src2;
+		final String label;
+
+		CJumpNode(int next, int target, ROP op, Operand src1, Operand src2, String label)
+		{
+			super(next);
+			this.target = target;
+			this.op = op;
+			this.src1 = src1;
+			this.src2 = src2;
+			this.label = label;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			if (!machine.compare(op, src1.get(f), src2.get(f)))
+				return next;
+			if (target < 0)
+				throw new IR1Interp.IntException("The label is not defined: " + label + ".");
+			return target;
+		}
+	}
+
+	// Integer compare-and-branch nodes. If either operand is not an
+	// integer they defer to machine.compare() for the same semantics
+	// (and errors) as the reference interpreter.
+	//
+	abstract class IfSS extends SeqNode
+	{
+		final int target, s1, s2;
+
+		IfSS(int next, int target, int s1, int s2)
+		{
+			super(next);
+			this.target = target;
+			this.s1 = s1;
+			this.s2 = s2;
+		}
+
+		final boolean slow(ROP op, long a, long b) throws Exception
+		{
+			return machine.compare(op, a, b);
+		}
+	}
+
+	abstract class IfSC extends SeqNode
+	{
+		final int target, s1, k;
+
+		IfSC(int next, int target, int s1, int k)
+		{
+			super(next);
+			this.target = target;
+			this.s1 = s1;
+			this.k = k;
+		}
+
+		final boolean slow(ROP op, long a) throws Exception
+		{
+			return machine.compare(op, a, IR1Interp.intVal(k));
+		}
+	}
+
+	static boolean ints(long a, long b)
+	{
+		return IR1Interp.tag(a) == IR1Interp.INT_TAG && IR1Interp.tag(b) == IR1Interp.INT_TAG;
+	}
+
+	static boolean isInt(long a)
+	{
+		return IR1Interp.tag(a) == IR1Interp.INT_TAG;
+	}
+
+	final class IfEqSS extends IfSS
+	{
+		IfEqSS(int next, int target, int s1, int s2) { super(next, target, s1, s2); }
+
+		int exec(long[] f) throws Exception
+		{
+			long a = f[s1], b = f[s2];
+			return (ints(a, b) ? (int) a == (int) b : slow(ROP.EQ, a, b)) ? target : next;
+		}
+	}
+
+	final class IfNeSS extends IfSS
+	{
+		IfNeSS(int next, int target, int s1, int s2) { super(next, target, s1, s2); }
+
+		int exec(long[] f) throws Exception
+		{
+			long a = f[s1], b = f[s2];
+			return (ints(a, b) ? (int) a != (int) b : slow(ROP.NE, a, b)) ? target : next;
+		}
+	}
+
+	final class IfLtSS extends IfSS
+	{
+		IfLtSS(int next, int target, int s1, int s2) { super(next, target, s1, s2); }
+
+		int exec(long[] f) throws Exception
+		{
+			long a = f[s1], b = f[s2];
+			return (ints(a, b) ? (int) a < (int) b : slow(ROP.LT, a, b)) ? target : next;
+		}
+	}
+
+	final class IfLeSS extends IfSS
+	{
+		IfLeSS(int next, int target, int s1, int s2) { super(next, target, s1, s2); }
+
+		int exec(long[] f) throws Exception
+		{
+			long a = f[s1], b = f[s2];
+			return (ints(a, b) ? (int) a <= (int) b : slow(ROP.LE, a, b)) ? target : next;
+		}
+	}
+
+	final class IfGtSS extends IfSS
+	{
+		IfGtSS(int next, int target, int s1, int s2) { super(next, target, s1, s2); }
+
+		int exec(long[] f) throws Exception
+		{
+			long a = f[s1], b = f[s2];
+			return (ints(a, b) ? (int) a > (int) b : slow(ROP.GT, a, b)) ? target : next;
+		}
+	}
+
+	final class IfGeSS extends IfSS
+	{
+		IfGeSS(int next, int target, int s1, int s2) { super(next, target, s1, s2); }
+
+		int exec(long[] f) throws Exception
+		{
+			long a = f[s1], b = f[s2];
+			return (ints(a, b) ? (int) a >= (int) b : slow(ROP.GE, a, b)) ? target : next;
+		}
+	}
+
+	final class IfEqSC extends IfSC
+	{
+		IfEqSC(int next, int target, int s1, int k) { super(next, target, s1, k); }
+
+		int exec(long[] f) throws Exception
+		{
+			long a = f[s1];
+			return (isInt(a) ? (int) a == k : slow(ROP.EQ, a)) ? target : next;
+		}
+	}
+
+	final class IfNeSC extends IfSC
+	{
+		IfNeSC(int next, int target, int s1, int k) { super(next, target, s1, k); }
+
+		int exec(long[] f) throws Exception
+		{
+			long a = f[s1];
+			return (isInt(a) ? (int) a != k : slow(ROP.NE, a)) ? target : next;
+		}
+	}
+
+	final class IfLtSC extends IfSC
+	{
+		IfLtSC(int next, int target, int s1, int k) { super(next, target, s1, k); }
+
+		int exec(long[] f) throws Exception
+		{
+			long a = f[s1];
+			return (isInt(a) ? (int) a < k : slow(ROP.LT, a)) ? target : next;
+		}
+	}
+
+	final class IfLeSC extends IfSC
+	{
+		IfLeSC(int next, int target, int s1, int k) { super(next, target, s1, k); }
+
+		int exec(long[] f) throws Exception
+		{
+			long a = f[s1];
+			return (isInt(a) ? (int) a <= k : slow(ROP.LE, a)) ? target : next;
+		}
+	}
+
+	final class IfGtSC extends IfSC
+	{
+		IfGtSC(int next, int target, int s1, int k) { super(next, target, s1, k); }
+
+		int exec(long[] f) throws Exception
+		{
+			long a = f[s1];
+			return (isInt(a) ? (int) a > k : slow(ROP.GT, a)) ? target : next;
+		}
+	}
+
+	final class IfGeSC extends IfSC
+	{
+		IfGeSC(int next, int target, int s1, int k) { super(next, target, s1, k); }
+
+		int exec(long[] f) throws Exception
+		{
+			long a = f[s1];
+			return (isInt(a) ? (int) a >= k : slow(ROP.GE, a)) ? target : next;
+		}
+	}
+
+	final class CallNode extends SeqNode
+	{
+		final CompiledFunc target;
+		final Operand[] args;
+		final int rdst;
+
+		CallNode(int next, CompiledFunc target, Operand[] args, int rdst)
+		{
+			super(next);
+			this.target = target;
+			this.args = args;
+			this.rdst = rdst;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			long[] vals = new long[args.length];
+			for (int index = 0; index < vals.length; index++)
+			{
+				vals[index] = args[index].get(f);
+			}
+
+			long val = call(target, vals);
+
+			if (rdst >= 0)
+				f[rdst] = val;
+			return next;
+		}
+	}
+
+	final class MallocNode extends SeqNode
+	{
+		final Operand size;
+		final int rdst;
+
+		MallocNode(int next, Operand size, int rdst)
+		{
+			super(next);
+			this.size = size;
+			this.rdst = rdst;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			long val = machine.malloc(size.get(f));
+
+			if (rdst >= 0)
+				f[rdst] = val;
+			return next;
+		}
+	}
+
+	final class PrintNode extends SeqNode
+	{
+		final Operand arg;	// null for an empty printStr
+
+		PrintNode(int next, Operand arg)
+		{
+			super(next);
+			this.arg = arg;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			if (arg == null)
+				machine.out.println();
+			else
+				machine.print(arg.get(f));
+			return next;
+		}
+	}
+
+	final class ReturnNode extends Node
+	{
+		final Operand val;	// could be null
+
+		ReturnNode(Operand val)
+		{
+			this.val = val;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			returnVal = val != null ? val.get(f) : IR1Interp.UNDEF;
+			return RETURN;
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Superinstruction nodes
+	// -----------------------------------------------------------------
+	//
+	// Each writes every slot its run writes, in the same order, so a
+	// later read or an error sees the same frame as the unfused run.
+	//
+
+	long arith(AOP op, long a, long b) throws Exception
+	{
+		if (ints(a, b))
+		{
+			if (op == AOP.ADD)
+				return IR1Interp.intVal((int) a + (int) b);
+			if (op == AOP.SUB)
+				return IR1Interp.intVal((int) a - (int) b);
+			if (op == AOP.MUL)
+				return IR1Interp.intVal((int) a * (int) b);
+		}
+		return machine.arith(op, a, b);
+	}
+
+	final class CompareBranch extends SeqNode
+	{
+		final int target;
+		final ROP op;
+		final Operand src1, src2;
+		final int dst;
+		final boolean branchOn;
+
+		CompareBranch(int next, int target, ROP op, Operand src1, Operand src2, int dst, boolean branchOn)
+		{
+			super(next);
+			this.target = target;
+			this.op = op;
+			this.src1 = src1;
+			this.src2 = src2;
+			this.dst = dst;
+			this.branchOn = branchOn;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			boolean r = machine.compare(op, src1.get(f), src2.get(f));
+			f[dst] = IR1Interp.boolVal(r);
+			return r == branchOn ? target : next;
+		}
+	}
+
+	final class SetCompare extends SeqNode
+	{
+		final ROP op;
+		final Operand src1, src2;
+		final int dst;
+		final boolean ifTrue;
+
+		SetCompare(int next, ROP op, Operand src1, Operand src2, int dst, boolean ifTrue)
+		{
+			super(next);
+			this.op = op;
+			this.src1 = src1;
+			this.src2 = src2;
+			this.dst = dst;
+			this.ifTrue = ifTrue;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			f[dst] = IR1Interp.boolVal(ifTrue);
+			if (!machine.compare(op, src1.get(f), src2.get(f)))
+				f[dst] = IR1Interp.boolVal(!ifTrue);
+			return next;
+		}
+	}
+
+	class IndexAddr extends SeqNode
+	{
+		final Operand scaled, base;
+		final int k, t1, t2;
+
+		IndexAddr(int next, Operand scaled, int k, int t1, Operand base, int t2)
+		{
+			super(next);
+			this.scaled = scaled;
+			this.k = k;
+			this.t1 = t1;
+			this.base = base;
+			this.t2 = t2;
+		}
+
+		// Runs the multiply and the add, and returns t2.
+		//
+		final long address(long[] f) throws Exception
+		{
+			long s = scaled.get(f);
+			f[t1] = isInt(s) ? IR1Interp.intVal((int) s * k) : machine.arith(AOP.MUL, s, IR1Interp.intVal(k));
+			return f[t2] = arith(AOP.ADD, base.get(f), f[t1]);
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			address(f);
+			return next;
+		}
+	}
+
+	final class IndexLoad extends IndexAddr
+	{
+		final int offset, dst;
+
+		IndexLoad(int next, Operand scaled, int k, int t1, Operand base, int t2, int offset, int dst)
+		{
+			super(next, scaled, k, t1, base, t2);
+			this.offset = offset;
+			this.dst = dst;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			long addr = address(f);
+			f[dst] = machine.heap.get(machine.address(addr, offset));
+			return next;
+		}
+	}
+
+	final class IndexStore extends IndexAddr
+	{
+		final int offset;
+		final Operand src;
+
+		IndexStore(int next, Operand scaled, int k, int t1, Operand base, int t2, int offset, Operand src)
+		{
+			super(next, scaled, k, t1, base, t2);
+			this.offset = offset;
+			this.src = src;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			long addr = address(f);
+			long val = src.get(f);
+			machine.heap.set(machine.address(addr, offset), val);
+			return next;
+		}
+	}
+
+	final class LoadOpStore extends SeqNode
+	{
+		final int base, offset, t1, t2;
+		final AOP op;
+		final Operand x;
+
+		LoadOpStore(int next, int base, int offset, int t1, AOP op, Operand x, int t2)
+		{
+			super(next);
+			this.base = base;
+			this.offset = offset;
+			this.t1 = t1;
+			this.op = op;
+			this.x = x;
+			this.t2 = t2;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			int addr = machine.address(f[base], offset);
+			f[t1] = machine.heap.get(addr);
+			f[t2] = arith(op, f[t1], x.get(f));
+			machine.heap.set(addr, f[t2]);
+			return next;
+		}
+	}
+
+	final class ArithMove extends SeqNode
+	{
+		final AOP op;
+		final Operand src1, src2;
+		final int t, dst;
+
+		ArithMove(int next, AOP op, Operand src1, Operand src2, int t, int dst)
+		{
+			super(next);
+			this.op = op;
+			this.src1 = src1;
+			this.src2 = src2;
+			this.t = t;
+			this.dst = dst;
+		}
+
+		int exec(long[] f) throws Exception
+		{
+			f[dst] = f[t] = arith(op, src1.get(f), src2.get(f));
+			return next;
+		}
+	}
+}
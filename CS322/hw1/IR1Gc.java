@@ -0,0 +1,253 @@
+//
+// Mark-compact garbage collector for the IR1 interpreter heap.
+// Assignment by Ian Aldrighetti
+//
+// Enabled with -gc. malloc then returns pointer-tagged values (PTR_TAG)
+// instead of plain ints, and pointer arithmetic keeps the tag (see
+// IR1Machine.arith), so the collector can tell pointers from ints
+// exactly. Everything else treats a pointer as the int it holds.
+//
+// The heap has no object headers; IR1Heap records where each allocation
+// starts, and a pointer belongs to the last object starting at or
+// before it, so interior pointers keep their object alive.
+//
+// A collection runs when an allocation would take the heap past the
+// threshold:
+//
+// 1. Mark from the roots (the live frames, see IR1Machine.gatherRoots)
+// 2. Assign each live object its new address, in address order
+// 3. Rewrite every pointer in the roots and in live objects
+// 4. Slide live objects down and clear the freed tail
+//
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+class IR1Gc
+{
+	static final int MIN_THRESHOLD = 64 * 1024;	// words
+
+	final IR1Machine machine;
+	final IR1Heap heap;
+
+	// Statistics
+	//
+	int collections = 0;
+	long totalPauseNanos = 0;
+	long maxPauseNanos = 0;
+
+	int threshold = MIN_THRESHOLD;
+
+	// Collects the machine's heap, which must be empty so far.
+	IR1Gc(IR1Machine machine)
+	{
+		this.machine = machine;
+		heap = machine.heap;
+		heap.starts = new BitSet();
+	}
+
+	// Called by malloc before allocating 'words' words.
+	//
+	void beforeAlloc(int words) throws Exception
+	{
+		if ((long) heap.size() + words > threshold)
+		{
+			collect();
+			threshold = (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_THRESHOLD, 2L * ((long) heap.size() + words)));
+		}
+	}
+
+	// A run of frame slots to scan and update: slots[from, to)
+	//
+	static class Root
+	{
+		final long[] slots;
+		final int from, to;
+
+		Root(long[] slots, int from, int to)
+		{
+			this.slots = slots;
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	void collect() throws Exception
+	{
+		long start = System.nanoTime();
+
+		List<Root> roots = new ArrayList<Root>();
+		machine.gatherRoots(roots);
+
+		new Collection(heap).run(roots);
+
+		long pause = System.nanoTime() - start;
+		collections++;
+		totalPauseNanos += pause;
+		maxPauseNanos = Math.max(maxPauseNanos, pause);
+	}
+
+	void report(PrintStream out)
+	{
+		out.println("gc: " + collections + " collections"
+				+ ", total pause " + millis(totalPauseNanos) + " ms"
+				+ ", max pause " + millis(maxPauseNanos) + " ms");
+	}
+
+	static String millis(long nanos)
+	{
+		return String.format("%.3f", nanos / 1e6);
+	}
+
+	/**
+	 * The state of a single collection.
+	 *
+	 * @author Ian
+	 */
+	static class Collection
+	{
+		final IR1Heap heap;
+		final BitSet marked = new BitSet();
+
+		int[] worklist = new int[64];
+		int worklistSize = 0;
+
+		// Old and new start of each live object, in address order
+		int[] oldStarts;
+		int[] newStarts;
+
+		Collection(IR1Heap heap)
+		{
+			this.heap = heap;
+		}
+
+		void run(List<Root> roots)
+		{
+			// 1. Mark
+			for (Root r : roots)
+			{
+				for (int slot = r.from; slot < r.to; slot++)
+				{
+					mark(r.slots[slot]);
+				}
+			}
+
+			while (worklistSize > 0)
+			{
+				int s = worklist[--worklistSize];
+				int end = objectEnd(s);
+				for (int addr = s; addr < end; addr++)
+				{
+					mark(heap.get(addr));
+				}
+			}
+
+			// 2. Forwarding addresses
+			int count = marked.cardinality();
+			oldStarts = new int[count];
+			newStarts = new int[count];
+
+			int free = 0;
+			int index = 0;
+			for (int s = marked.nextSetBit(0); s >= 0; s = marked.nextSetBit(s + 1))
+			{
+				oldStarts[index] = s;
+				newStarts[index] = free;
+				free += objectEnd(s) - s;
+				index++;
+			}
+
+			// 3. Update pointers, while objects are still at their old
+			// addresses
+			for (Root r : roots)
+			{
+				for (int slot = r.from; slot < r.to; slot++)
+				{
+					r.slots[slot] = relocate(r.slots[slot]);
+				}
+			}
+
+			for (int s : oldStarts)
+			{
+				int end = objectEnd(s);
+				for (int addr = s; addr < end; addr++)
+				{
+					heap.set(addr, relocate(heap.get(addr)));
+				}
+			}
+
+			// 4. Slide objects down; new addresses never exceed old ones,
+			// so copying in address order is safe.
+			for (int i = 0; i < count; i++)
+			{
+				int s = oldStarts[i];
+				int length = objectEnd(s) - s;
+				if (newStarts[i] != s)
+				{
+					for (int w = 0; w < length; w++)
+					{
+						heap.set(newStarts[i] + w, heap.get(s + w));
+					}
+				}
+			}
+
+			heap.starts.clear();
+			for (int s : newStarts)
+			{
+				heap.starts.set(s);
+			}
+			heap.truncate(free);
+		}
+
+		// The start of the object p points into, or -1 if none.
+		int objectOf(int p)
+		{
+			return p < 0 ? -1 : heap.starts.previousSetBit(p);
+		}
+
+		int objectEnd(int s)
+		{
+			int next = heap.starts.nextSetBit(s + 1);
+			return next < 0 ? heap.size() : next;
+		}
+
+		void mark(long v)
+		{
+			if (IR1Interp.tag(v) != IR1Interp.PTR_TAG)
+			{
+				return;
+			}
+
+			int s = objectOf(IR1Interp.intOf(v));
+			if (s >= 0 && !marked.get(s))
+			{
+				marked.set(s);
+				if (worklistSize == worklist.length)
+				{
+					worklist = Arrays.copyOf(worklist, worklistSize * 2);
+				}
+				worklist[worklistSize++] = s;
+			}
+		}
+
+		long relocate(long v)
+		{
+			if (IR1Interp.tag(v) != IR1Interp.PTR_TAG)
+			{
+				return v;
+			}
+
+			int p = IR1Interp.intOf(v);
+			int s = objectOf(p);
+			int index = s < 0 ? -1 : Arrays.binarySearch(oldStarts, s);
+			if (index < 0)
+			{
+				return v;
+			}
+
+			return IR1Interp.ptrVal(newStarts[index] + (p - s));
+		}
+	}
+}
@@ -0,0 +1,277 @@
+//
+// Heap memory for the IR1 interpreter.
+// Assignment by Ian Aldrighetti
+//
+// The heap is a run of words, each holding one encoded value (see
+// IR1Interp). Words [0, size()) are allocated; malloc hands out the next
+// free words, which always start out undefined (all zeros). There are
+// no per-word objects. Three layouts are available:
+//
+// - array   a growable long[] (the default)
+// - direct  a direct ByteBuffer, kept outside the Java heap
+// - mapped  a memory-mapped temporary file, for very large programs
+//
+// Bounds checks stay in IR1Machine.address(), which checks against size().
+//
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+abstract class IR1Heap
+{
+	static final int WORD_BYTES = 8;
+	static final int INITIAL_WORDS = 1024;
+
+	// Largest heap a ByteBuffer can address.
+	static final int MAX_BUFFER_WORDS = Integer.MAX_VALUE / WORD_BYTES;
+
+	// Words in use, and statistics for report()
+	//
+	int size = 0;
+	long allocatedWords = 0;
+	int highWater = 0;
+
+	// Where each allocation starts; only kept when IR1Gc is enabled.
+	BitSet starts = null;
+
+	abstract long get(int addr);
+
+	abstract void set(int addr, long val);
+
+	abstract String kind();
+
+	// Makes room for at least 'words' words; new words must read as zero.
+	abstract void ensureCapacity(int words) throws Exception;
+
+	// Releases anything held outside the Java heap. IR1Machine calls it
+	// when the program stops; only the statistics are usable after.
+	void close() throws IOException
+	{
+	}
+
+	static IR1Heap create(String kind) throws Exception
+	{
+		if (kind.equals("array"))
+		{
+			return new ArrayHeap();
+		}
+		else if (kind.equals("direct"))
+		{
+			return new DirectHeap();
+		}
+		else if (kind.equals("mapped"))
+		{
+			return new MappedHeap();
+		}
+
+		throw new IR1Interp.IntException("Unknown heap: " + kind + ".");
+	}
+
+	final int size()
+	{
+		return size;
+	}
+
+	// Allocates 'words' words and returns the address of the first one.
+	// A non-positive size allocates nothing.
+	//
+	final int alloc(int words) throws Exception
+	{
+		int offset = size;
+
+		if (words > 0)
+		{
+			if ((long) size + words > Integer.MAX_VALUE)
+			{
+				throw new IR1Interp.IntException("Out of heap memory.");
+			}
+
+			ensureCapacity(size + words);
+			if (starts != null)
+			{
+				starts.set(size);
+			}
+			size += words;
+			allocatedWords += words;
+			highWater = Math.max(highWater, size);
+		}
+
+		return offset;
+	}
+
+	// Frees the words [newSize, size()), which read as zero when they
+	// are allocated again. Used by IR1Gc after compacting.
+	//
+	final void truncate(int newSize)
+	{
+		for (int addr = newSize; addr < size; addr++)
+		{
+			set(addr, 0L);
+		}
+		size = newSize;
+	}
+
+	// Next capacity when growing from 'capacity' to hold 'words' words.
+	static int grow(int capacity, int words, int max) throws Exception
+	{
+		if (words > max)
+		{
+			throw new IR1Interp.IntException("Out of heap memory.");
+		}
+		return (int) Math.min(max, Math.max((long) capacity * 2, words));
+	}
+
+	void report(PrintStream out)
+	{
+		out.println("heap: " + kind()
+				+ ", allocated " + allocatedWords * WORD_BYTES + " bytes"
+				+ ", high-water mark " + (long) highWater * WORD_BYTES + " bytes");
+	}
+
+	/**
+	 * A heap backed by a growable long[].
+	 *
+	 * @author Ian
+	 */
+	static class ArrayHeap extends IR1Heap
+	{
+		long[] words = new long[INITIAL_WORDS];
+
+		long get(int addr)
+		{
+			return words[addr];
+		}
+
+		void set(int addr, long val)
+		{
+			words[addr] = val;
+		}
+
+		String kind()
+		{
+			return "array";
+		}
+
+		void ensureCapacity(int needed) throws Exception
+		{
+			if (needed > words.length)
+			{
+				words = Arrays.copyOf(words, grow(words.length, needed, Integer.MAX_VALUE - 8));
+			}
+		}
+	}
+
+	/**
+	 * A heap backed by a ByteBuffer holding one long per word.
+	 *
+	 * @author Ian
+	 */
+	static abstract class BufferHeap extends IR1Heap
+	{
+		ByteBuffer buffer;
+
+		long get(int addr)
+		{
+			return buffer.getLong(addr * WORD_BYTES);
+		}
+
+		void set(int addr, long val)
+		{
+			buffer.putLong(addr * WORD_BYTES, val);
+		}
+
+		int capacity()
+		{
+			return buffer == null ? 0 : buffer.capacity() / WORD_BYTES;
+		}
+
+		void ensureCapacity(int needed) throws Exception
+		{
+			if (needed > capacity())
+			{
+				buffer = resize(grow(Math.max(capacity(), INITIAL_WORDS / 2), needed, MAX_BUFFER_WORDS) * WORD_BYTES);
+				buffer.order(ByteOrder.nativeOrder());
+			}
+		}
+
+		// Returns a buffer of 'bytes' bytes holding the current contents.
+		abstract ByteBuffer resize(int bytes) throws Exception;
+	}
+
+	static class DirectHeap extends BufferHeap
+	{
+		String kind()
+		{
+			return "direct";
+		}
+
+		ByteBuffer resize(int bytes)
+		{
+			ByteBuffer b = ByteBuffer.allocateDirect(bytes);
+
+			if (buffer != null)
+			{
+				ByteBuffer old = buffer.duplicate();
+				old.clear();
+				b.put(old);
+				b.clear();
+			}
+
+			return b;
+		}
+	}
+
+	// The file is extended with zeros as it grows, and a larger mapping
+	// of the same file already holds the old contents. close() closes
+	// the channel and deletes the file, so a batch of machines does not
+	// pile them up.
+	//
+	static class MappedHeap extends BufferHeap
+	{
+		File file;
+		FileChannel channel;
+
+		String kind()
+		{
+			return "mapped";
+		}
+
+		ByteBuffer resize(int bytes) throws IOException
+		{
+			if (channel == null)
+			{
+				file = File.createTempFile("ir1heap", ".bin");
+				channel = new RandomAccessFile(file, "rw").getChannel();
+			}
+
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+		}
+
+		void close() throws IOException
+		{
+			buffer = null;
+			try
+			{
+				if (channel != null)
+				{
+					channel.close();
+				}
+			}
+			finally
+			{
+				channel = null;
+				if (file != null && !file.delete())
+				{
+					file.deleteOnExit();
+				}
+				file = null;
+			}
+		}
+	}
+}
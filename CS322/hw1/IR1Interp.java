@@ -3,26 +3,21 @@
 // Assignment by Ian Aldrighetti
 //
 import ir1.IR1;
-import ir1.IR1.AOP;
-import ir1.IR1.BoolLit;
-import ir1.IR1.Dest;
-import ir1.IR1.Id;
 import ir1.IR1.Inst;
-import ir1.IR1.IntLit;
 import ir1.IR1.LabelDec;
-import ir1.IR1.ROP;
 import ir1.IR1.Src;
-import ir1.IR1.StrLit;
-import ir1.IR1.Temp;
-import ir1.IR1.UOP;
+import ir1.IR1Binary;
+import ir1.IR1Opt;
 import ir1.ir1Parser;
 
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 
 public class IR1Interp
 {
@@ -41,68 +36,93 @@ public class IR1Interp
 	// Value representation
 	// -----------------------------------------------------------------
 	//
-	abstract static class Val
+	// Values are unboxed: each one is a long whose upper 32 bits hold a
+	// type tag and whose lower 32 bits hold the payload. Frames are plain
+	// long[]s and the heap stores raw longs (IR1Heap), so arithmetic,
+	// moves and branches never allocate.
+	//
+	// - Integers carry the int itself.
+	// - Booleans carry 0 or 1.
+	// - Strings carry an index into the machine's 'strings' table (see
+	// IR1Machine). String literals are interned there once by
+	// resolve(); only concatenation adds new entries at run time.
+	// - The undefined value is all zeros, so a freshly allocated frame or
+	// heap word is already undefined.
+	// - NONE marks a slot that holds no value at all (an Id that was
+	// never declared).
+	// - Pointers carry a heap address. They are only produced with -gc,
+	// so the collector can find them (see IR1Gc); everywhere else a
+	// pointer behaves exactly like the int it holds.
+	//
+	static final int UND_TAG = 0;
+	static final int INT_TAG = 1;
+	static final int BOOL_TAG = 2;
+	static final int STR_TAG = 3;
+	static final int PTR_TAG = 4;
+	static final int NONE_TAG = 15;
+	
+	static final long UNDEF = 0L;
+	static final long NONE = (long) NONE_TAG << 32;
+	
+	static long intVal(int i)
 	{
+		return ((long) INT_TAG << 32) | (i & 0xffffffffL);
 	}
 	
-	// Integer values
-	//
-	static class IntVal extends Val
+	static long boolVal(boolean b)
 	{
-		int i;
-		
-		IntVal(int i)
-		{
-			this.i = i;
-		}
-		
-		public String toString()
-		{
-			return "" + i;
-		}
+		return ((long) BOOL_TAG << 32) | (b ? 1 : 0);
 	}
 	
-	// Boolean values
-	//
-	static class BoolVal extends Val
+	static long ptrVal(int addr)
 	{
-		boolean b;
-		
-		BoolVal(boolean b)
-		{
-			this.b = b;
-		}
-		
-		public String toString()
-		{
-			return "" + b;
-		}
+		return ((long) PTR_TAG << 32) | (addr & 0xffffffffL);
 	}
 	
-	// String values
+	// A pointer as a plain int; any other value is returned unchanged.
 	//
-	static class StrVal extends Val
+	static long asInt(long v)
 	{
-		String s;
-		
-		StrVal(String s)
-		{
-			this.s = s;
-		}
-		
-		public String toString()
-		{
-			return s;
-		}
+		return tag(v) == PTR_TAG ? intVal(intOf(v)) : v;
+	}
+	
+	static long strVal(int index)
+	{
+		return ((long) STR_TAG << 32) | index;
+	}
+	
+	static int tag(long v)
+	{
+		return (int) (v >>> 32);
+	}
+	
+	static int intOf(long v)
+	{
+		return (int) v;
+	}
+	
+	static boolean boolOf(long v)
+	{
+		return (int) v != 0;
 	}
 	
-	// A special "undefined" value
+	// The name of a value's type, for error messages.
 	//
-	static class UndVal extends Val
+	static String typeName(long v)
 	{
-		public String toString()
-		{
-			return "UndVal";
+		switch (tag(v))
+		{
+			case UND_TAG:
+				return "UndVal";
+			case INT_TAG:
+			case PTR_TAG:
+				return "IntVal";
+			case BOOL_TAG:
+				return "BoolVal";
+			case STR_TAG:
+				return "StrVal";
+			default:
+				return "tag " + tag(v);
 		}
 	}
 	
@@ -123,871 +143,416 @@ public class IR1Interp
 	//
 	
 	/**
-	 * Represents an Environment.
+	 * A function whose Ids and Temps have been assigned dense frame slots.
+	 *
+	 * Slots are laid out as: params and locals, then temps, then any Ids
+	 * that were never declared. The last group starts out as NONE so that
+	 * using them still reports an undefined variable.
 	 *
 	 * @author Ian
 	 */
-	static class Environment
+	static class ResolvedFunc
 	{
-		private String funcName;
-		private Map<String, Integer> labelMap;
-		private Map<Integer, Val> tempMap;
-		private Map<String, Val> varMap;
-		
-		public Environment(String funcName)
+		final IR1.Func func;
+		final int[] paramSlots;
+		int frameSize;
+		int undeclaredStart;
+		
+		// By instruction index: a Call whose result the next instruction
+		// returns (see IR1Machine.execute(ResolvedFunc))
+		boolean[] tailCall;
+
+		private ResolvedFunc(IR1.Func func)
 		{
-			this.funcName = funcName;
-			labelMap = new HashMap<String, Integer>();
-			tempMap = new HashMap<Integer, IR1Interp.Val>();
-			varMap = new HashMap<String, IR1Interp.Val>();
+			this.func = func;
+			paramSlots = new int[func.params.length];
 		}
-		
-		public String getFuncName()
+	}
+
+	/**
+	 * Assigns a frame slot to every Id and Temp in the function, interns
+	 * its string literals into 'strings', and resolves every Jump/CJump to the index of
+	 * its label. This is done once when the program is loaded, so the
+	 * interpreter never has to look an operand or a label up by name.
+	 */
+	static ResolvedFunc resolve(IR1.Func n, List<String> strings) throws Exception
+	{
+		ResolvedFunc rf = new ResolvedFunc(n);
+		Map<String, Integer> varSlots = new HashMap<String, Integer>();
+		Map<Integer, Integer> tempSlots = new HashMap<Integer, Integer>();
+		List<IR1.Id> undeclared = new ArrayList<IR1.Id>();
+
+		for (String param : n.params)
 		{
-			return funcName;
+			if (!varSlots.containsKey(param))
+			{
+				varSlots.put(param, varSlots.size());
+			}
 		}
-		
-		public Integer getLabelLocation(String label)
+
+		for (String local : n.locals)
 		{
-				return labelMap.get(label);
+			if (!varSlots.containsKey(local))
+			{
+				varSlots.put(local, varSlots.size());
+			}
 		}
-		
-		public void setLabelLocation(String label, Integer location)
+
+		for (int index = 0; index < n.params.length; index++)
 		{
-			labelMap.put(label, location);
+			rf.paramSlots[index] = varSlots.get(n.params[index]);
 		}
-		
-		public Val getTempVal(Integer identifier)
+
+		List<Object> operands = new ArrayList<Object>();
+		for (Inst inst : n.code)
 		{
-			if (!tempMap.containsKey(identifier))
+			operands.clear();
+			collectOperands(inst, operands);
+
+			for (Object operand : operands)
 			{
-				tempMap.put(identifier, new UndVal());
+				if (operand instanceof IR1.Temp)
+				{
+					IR1.Temp temp = (IR1.Temp) operand;
+					Integer slot = tempSlots.get(temp.num);
+
+					if (slot == null)
+					{
+						slot = varSlots.size() + tempSlots.size();
+						tempSlots.put(temp.num, slot);
+					}
+
+					temp.slot = slot;
+				}
+				else if (operand instanceof IR1.Id)
+				{
+					IR1.Id id = (IR1.Id) operand;
+					Integer slot = varSlots.get(id.name);
+
+					if (slot != null)
+					{
+						id.slot = slot;
+					}
+					else
+					{
+						undeclared.add(id);
+					}
+				}
+				else if (operand instanceof IR1.StrLit)
+				{
+					IR1.StrLit lit = (IR1.StrLit) operand;
+					lit.index = strings.size();
+					strings.add(lit.s);
+				}
 			}
-			
-			return tempMap.get(identifier);
-		}
-		
-		public void setTempVal(Integer identifier, Val value)
-		{
-			tempMap.put(identifier, value);
 		}
-		
-		public Val getVarVal(String variable)
+
+		// Undeclared Ids go last; they share a slot per name.
+		rf.undeclaredStart = varSlots.size() + tempSlots.size();
+		Map<String, Integer> undeclaredSlots = new HashMap<String, Integer>();
+		for (IR1.Id id : undeclared)
 		{
-				return varMap.get(variable);
+			Integer slot = undeclaredSlots.get(id.name);
+
+			if (slot == null)
+			{
+				slot = rf.undeclaredStart + undeclaredSlots.size();
+				undeclaredSlots.put(id.name, slot);
+			}
+
+			id.slot = slot;
 		}
+
+		rf.frameSize = rf.undeclaredStart + undeclaredSlots.size();
 		
-		public void setVarVal(String variable, Val value)
+		// A tail call: t = call f(...) then return t, with t a Temp or a
+		// declared Id (assigning or reading an undeclared one fails).
+		rf.tailCall = new boolean[n.code.length];
+		for (int index = 0; index + 1 < n.code.length; index++)
 		{
-			varMap.put(variable, value);
+			if (n.code[index] instanceof IR1.Call && n.code[index + 1] instanceof IR1.Return)
+			{
+				IR1.Dest dst = ((IR1.Call) n.code[index]).rdst;
+				IR1.Src val = ((IR1.Return) n.code[index + 1]).val;
+				
+				rf.tailCall[index] = dst != null && val instanceof IR1.Dest && slotOf(dst) == slotOf((IR1.Dest) val)
+						&& (dst instanceof IR1.Temp || varSlots.containsKey(((IR1.Id) dst).name));
+			}
 		}
-	}
-	
-	// The current environment.
-	static Environment env;
 
-	
-	// -----------------------------------------------------------------
-	// Global variables and constants
-	// -----------------------------------------------------------------
-	//
-	// These variables and constants are for your reference only.
-	// You may decide to use all of them, some of these, or not at all.
-	//
-	
-	// Function lookup table
-	// - maps function names to their AST nodes
-	//
-	static HashMap<String, IR1.Func> funcMap;
-	
-	// Heap memory
-	// - for handling 'malloc'ed data
-	// - you need to define allocation and access methods for it
-	//
-	static ArrayList<Val> heap;
-	
-	// Return value
-	// - for passing return value from callee to caller
-	//
-	static Val returnVal;
-	
-	static Stack<Environment> callStack = new Stack<Environment>();
-	
-	static List<Val> funcArgs = null; 
-	
-	// Execution status
-	// - tells whether to continue with the nest inst, to jump to
-	// a new target inst, or to return to the caller
-	//
-	static final int CONTINUE = 0;
-	static final int RETURN = -1;
-	
-	// -----------------------------------------------------------------
-	// The main method
-	// -----------------------------------------------------------------
-	//
-	// 1. Open an IR1 program file.
-	// 2. Call the IR1 AST parser to read in the program and
-	// convert it to an AST (rooted at an IR1.Program node).
-	// 3. Invoke the interpretation process on the root node.
-	//
-	@SuppressWarnings ("static-access")
-	public static void main(String[] args) throws Exception
-	{
-		if (args.length == 1)
-		{
-			FileInputStream stream = new FileInputStream(args[0]);
-			IR1.Program p = new ir1Parser(stream).Program();
-			stream.close();
-			IR1Interp.execute(p);
-		}
-		else
-		{
-			System.out.println("You must provide an input file name.");
-		}
+		resolveLabels(n);
+
+		return rf;
 	}
-	
-	// -----------------------------------------------------------------
-	// Top-level IR nodes
-	// -----------------------------------------------------------------
-	//
-	
-	// Program ---
-	// Func[] funcs;
-	//
-	// 1. Establish the function lookup map
-	// 2. Lookup 'main' in funcMap, and
-	// 3. start interpreting from main's AST node
+
+	// The frame slot resolve() gave an Id or Temp. (hw1's Id and Temp do
+	// not define equals, and each use is its own object, so the same
+	// variable is the same slot.)
 	//
-	public static void execute(IR1.Program n) throws Exception
+	static int slotOf(IR1.Dest d)
 	{
-		funcMap = new HashMap<String, IR1.Func>();
-		heap = new ArrayList<Val>();
-		returnVal = new UndVal();
-		
-		for (IR1.Func f : n.funcs)
-		{
-			funcMap.put(f.name, f);
-		}
-		
-		execute(funcMap.get("main"));
+		return d instanceof IR1.Temp ? ((IR1.Temp) d).slot : ((IR1.Id) d).slot;
 	}
-	
-	// Func ---
-	// String name;
-	// Var[] params;
-	// Var[] locals;
-	// Inst[] code;
-	//
-	// 1. Collect label decls information and store them in
-	// a label-lookup table for later use.
-	// 2. Execute the fetch-and-execute loop.
+
+	// Points every Jump/CJump at the instruction index of its label.
+	// Jumps to undefined labels are left at -1 and reported when taken.
 	//
-	static void execute(IR1.Func n) throws Exception
+	static void resolveLabels(IR1.Func n)
 	{
-		// Push the current environment onto the stack, if any.
-		if (env != null)
-		{
-			callStack.push(env);
-		}
-		
-		// Regardless, make a new environment.
-		env = new Environment(n.name);
-		
-		// Gather all the labels in this function, if any.
+		Map<String, Integer> labelMap = new HashMap<String, Integer>();
+
 		for (int offset = 0; offset < n.code.length; offset++)
 		{
-			Inst instr = n.code[offset];
-			
-			if (!(instr instanceof LabelDec))
-			{
-				continue;
-			}
-			
-			LabelDec labelDecl = (LabelDec) instr;
-			env.setLabelLocation(labelDecl.name, offset);
-		}
-		
-		// If any arguments were not passed and there should be, throw an error.
-		if (n.params.length > 0 && (funcArgs == null || funcArgs.isEmpty()))
-		{
-			throw new IntException("The function defined with parameters was invoked with none: " + n.name + ".");
-		}
-		else if (funcArgs != null && n.params.length != funcArgs.size())
-		{
-			throw new IntException("The function " + n.name + " expected " + n.params.length + " arguments, but got " + funcArgs.size() + ".");
-		}
-		else if (funcArgs != null && !funcArgs.isEmpty())
-		{
-			for (int index = 0; index < n.params.length; index++)
+			if (n.code[offset] instanceof LabelDec)
 			{
-				String param = n.params[index];
-				Val value = funcArgs.get(index);
-				
-				env.setVarVal(param, value);
+				labelMap.put(((LabelDec) n.code[offset]).name, offset);
 			}
 		}
-		
-		// Always reset funcArgs, just in case.
-		funcArgs = null;
-		
-		// Define the variables.
-		for (String variable : n.locals)
-		{
-			env.setVarVal(variable, new UndVal());
-		}
-		
-		// The fetch-and-execute loop
-		int idx = 0;
-		while (idx < n.code.length)
+
+		for (Inst inst : n.code)
 		{
-			int next = execute(n.code[idx]);
-			
-			if (next == CONTINUE)
+			if (inst instanceof IR1.Jump)
 			{
-				idx++;
+				IR1.Jump jump = (IR1.Jump) inst;
+				Integer target = labelMap.get(jump.lab.name);
+				jump.target = target != null ? target : -1;
 			}
-			else if (next == RETURN)
+			else if (inst instanceof IR1.CJump)
 			{
-				break;
+				IR1.CJump cjump = (IR1.CJump) inst;
+				Integer target = labelMap.get(cjump.lab.name);
+				cjump.target = target != null ? target : -1;
 			}
-			else
-			{
-				idx = next;
-			}
-		}
-		
-		if (callStack.isEmpty())
-		{
-			env = null;
-		}
-		else
-		{
-			// Restore the environment.
-			env = callStack.pop();
 		}
 	}
-	
-	// Dispatch execution to an individual Inst node.
+
+	// Gathers every Src/Dest operand referenced by an instruction.
 	//
-	static int execute(IR1.Inst n) throws Exception
+	static void collectOperands(IR1.Inst n, List<Object> operands)
 	{
 		if (n instanceof IR1.Binop)
-			return execute((IR1.Binop) n);
-		if (n instanceof IR1.Unop)
-			return execute((IR1.Unop) n);
-		if (n instanceof IR1.Move)
-			return execute((IR1.Move) n);
-		if (n instanceof IR1.Load)
-			return execute((IR1.Load) n);
-		if (n instanceof IR1.Store)
-			return execute((IR1.Store) n);
-		if (n instanceof IR1.Jump)
-			return execute((IR1.Jump) n);
-		if (n instanceof IR1.CJump)
-			return execute((IR1.CJump) n);
-		if (n instanceof IR1.Call)
-			return execute((IR1.Call) n);
-		if (n instanceof IR1.Return)
-			return execute((IR1.Return) n);
-		if (n instanceof IR1.LabelDec)
-			return CONTINUE;
-		throw new IntException("Unknown Inst: " + n);
-	}
-	
-	// -----------------------------------------------------------------
-	// Execution routines for individual Inst nodes
-	// -----------------------------------------------------------------
-	//
-	// - Each execute() routine returns CONTINUE, RETURN, or a new idx
-	// (target of jump).
-	//
-	
-	// Binop ---
-	// BOP op;
-	// Dest dst;
-	// Src src1, src2;
-	//
-	static int execute(IR1.Binop n) throws Exception
-	{
-		Val res;
-		
-		if (n.op instanceof AOP)
 		{
-			res = evaluate((AOP) n.op, n.src1, n.src2);
+			IR1.Binop b = (IR1.Binop) n;
+			operands.add(b.dst);
+			operands.add(b.src1);
+			operands.add(b.src2);
 		}
-		else if (n.op instanceof ROP)
+		else if (n instanceof IR1.Unop)
 		{
-			boolean result = evaluate((ROP) n.op, n.src1, n.src2);
-			res = new BoolVal(result);
+			operands.add(((IR1.Unop) n).dst);
+			operands.add(((IR1.Unop) n).src);
 		}
-		else
+		else if (n instanceof IR1.Move)
 		{
-			throw new IntException("Unhandled operator: " + n.op.getClass().getName() + ".");
+			operands.add(((IR1.Move) n).dst);
+			operands.add(((IR1.Move) n).src);
 		}
-		
-		assign(n.dst, res);
-		
-		return CONTINUE;
-	}
-	
-	// Unop ---
-	// UOP op;
-	// Dest dst;
-	// Src src;
-	//
-	static int execute(IR1.Unop n) throws Exception
-	{
-		Val val = evaluate(n.src);
-		Val res;
-		
-		if (n.op == IR1.UOP.NEG)
+		else if (n instanceof IR1.Load)
 		{
-			res = new IntVal(-((IntVal) val).i);
+			operands.add(((IR1.Load) n).dst);
+			operands.add(((IR1.Load) n).addr.base);
 		}
-		else if (n.op == UOP.NOT)
+		else if (n instanceof IR1.Store)
 		{
-			res = new BoolVal(!((BoolVal) val).b);
+			operands.add(((IR1.Store) n).addr.base);
+			operands.add(((IR1.Store) n).src);
 		}
-		else
+		else if (n instanceof IR1.CJump)
 		{
-			throw new IntException("Wrong op in Unop inst: " + n.op);
+			operands.add(((IR1.CJump) n).src1);
+			operands.add(((IR1.CJump) n).src2);
 		}
-		
-		assign(n.dst, res);
-		
-		return CONTINUE;
-	}
-	
-	// Move ---
-	// Dest dst;
-	// Src src;
-	//
-	static int execute(IR1.Move n) throws Exception
-	{
-		Val val = evaluate(n.src);
-		
-		assign(n.dst, val);
-		
-		return CONTINUE;
-	}
-	
-	// Load ---
-	// Dest dst;
-	// Addr addr;
-	//
-	static int execute(IR1.Load n) throws Exception
-	{
-		int src = evalute(n.addr);
-		
-		assign(n.dst, heap.get(src));
-		
-		return CONTINUE;
-	}
-	
-	// Store ---
-	// Addr addr;
-	// Src src;
-	//
-	static int execute(IR1.Store n) throws Exception
-	{
-		
-		Val val = evaluate(n.src);
-		int dest = evalute(n.addr);
-		
-		heap.set(dest, val);
-		
-		return CONTINUE;
-		
-	}
-	
-	// CJump ---
-	// ROP op;
-	// Src src1, src2;
-	// Label lab;
-	//
-	static int execute(IR1.CJump n) throws Exception
-	{
-		boolean result = evaluate(n.op, n.src1, n.src2);
-		
-		if (!result)
-		{
-			return CONTINUE;
-		}
-		
-		if (env != null && env.getLabelLocation(n.lab.name) != null)
-		{
-			return env.getLabelLocation(n.lab.name);
-		}
-		
-		throw new IntException("The label is not defined: " + n.lab.name + ".");
-	}
-	
-	// Jump ---
-	// Label lab;
-	//
-	static int execute(IR1.Jump n) throws Exception
-	{
-		if (env != null && env.getLabelLocation(n.lab.name) != null)
-		{
-			return env.getLabelLocation(n.lab.name);
-		}
-		
-		throw new IntException("The label is not defined: " + n.lab.name + ".");
-	}
-	
-	// Call ---
-	// String name;
-	// Src[] args;
-	// Dest rdst;
-	//
-	static int execute(IR1.Call n) throws Exception
-	{
-		// Deal with pre-defined functions.
-		if (n.name.equals("malloc"))
+		else if (n instanceof IR1.Call)
 		{
-			if (n.args.length != 1)
+			IR1.Call c = (IR1.Call) n;
+			for (Src arg : c.args)
 			{
-				throw new IntException("_malloc requires 1 parameter.");
+				operands.add(arg);
 			}
-			
-			if (n.rdst == null)
+
+			if (c.rdst != null)
 			{
-				malloc(n.args[0]);
-				
-				return CONTINUE;
+				operands.add(c.rdst);
 			}
-			
-			assign(n.rdst, malloc(n.args[0]));
-			
-			return CONTINUE;
 		}
-		else if (n.name.equals("printStr") || n.name.equals("printBool") || n.name.equals("printInt"))
+		else if (n instanceof IR1.Return)
 		{
-			if (n.args.length == 0 && n.name.equals("printStr"))
-			{
-				System.out.println();
-				return CONTINUE;
-			}
-			
-			if (n.args.length != 1)
-			{
-				throw new IntException("_" + n.name + " requires 1 parameter.");
-			}
-			
-			Val out = evaluate(n.args[0]);
-			
-			if (out instanceof StrVal)
-			{
-				// TODO check type
-				System.out.println(((StrVal) out).s);
-			}
-			else if (out instanceof IntVal)
-			{
-				System.out.println(((IntVal) out).i);
-			}
-			else if (out instanceof BoolVal)
+			if (((IR1.Return) n).val != null)
 			{
-				System.out.println(((BoolVal) out).b);
+				operands.add(((IR1.Return) n).val);
 			}
-			else if (out instanceof UndVal)
-			{
-				System.out.println("UndVal");
-			}
-			else
-			{
-				throw new IntException("Unhandled type: " + out.getClass().getName() + ".");
-			}
-			
-			return CONTINUE;
-		}
-		
-		// TODO execute function definition, also pass arguments.
-		
-		IR1.Func funcDef = funcMap.get(n.name);
-		
-		if (funcDef == null)
-		{
-			throw new IntException("Call to undefined function: " + n.name + ".");
 		}
-		
-		funcArgs = new ArrayList<Val>();
-		
-		for (Src arg : n.args)
-		{
-			funcArgs.add(evaluate(arg));
-		}
-		
-		execute(funcDef);
-		
-		if (n.rdst != null)
-		{
-			assign(n.rdst, returnVal);
-			returnVal = new UndVal();
-		}
-		
-		return CONTINUE;
-		
 	}
-	
-	static Val malloc(Src src) throws Exception
-	{
-		Val val = evaluate(src);
-		
-		if (!(val instanceof IntVal))
-		{
-			throw new IntException("_malloc requires the parameter to be an integer.");
-		}
 
-		int offset = heap.size();
+	// A fresh frame for a call to rf: everything undefined, except the
+	// slots of undeclared Ids, which hold no value at all.
+	//
+	static long[] newFrame(ResolvedFunc rf)
+	{
+		long[] frame = new long[rf.frameSize];
 		
-		for (int i = 0; i < ((IntVal) val).i; i++)
-		{
-			heap.add(new UndVal());
-		}
+		Arrays.fill(frame, rf.undeclaredStart, rf.frameSize, NONE);
 		
-		return new IntVal(offset);
+		return frame;
 	}
 	
-	// Return ---
-	// Src val;
+	// Checks that a call passes as many arguments as n declares. args is
+	// null for the initial call to main.
 	//
-	static int execute(IR1.Return n) throws Exception
+	static void checkArgs(IR1.Func n, long[] args) throws IntException
 	{
-		returnVal = evaluate(n.val);
-		
-		return RETURN;
+		checkArgs(n, args == null ? -1 : args.length);
 	}
 	
-	// -----------------------------------------------------------------
-	// Evaluation routines for address
-	// -----------------------------------------------------------------
-	//
-	// - Returns an integer (representing index to the heap memory).
+	// The same check by count; argc is -1 for the initial call to main.
 	//
-	// Address ---
-	// Src base;
-	// int offset;
-	//
-	static int evalute(IR1.Addr n) throws Exception
+	static void checkArgs(IR1.Func n, int argc) throws IntException
 	{
-		
-		Val base = evaluate(n.base);
-		
-		if (!(base instanceof IntVal))
+		if (n.params.length > 0 && argc <= 0)
 		{
-			throw new IntException("The location specified must be an integer.");
+			throw new IntException("The function defined with parameters was invoked with none: " + n.name + ".");
 		}
-		
-		int offset = ((IntVal) base).i + n.offset;
-		
-		if (offset < 0 || offset >= heap.size())
+		else if (argc >= 0 && n.params.length != argc)
 		{
-			throw new IntException("The offset is out of bounds (" + (offset < 0 ? "below 0" : "larger than heap") + ").");
+			throw new IntException("The function " + n.name + " expected " + n.params.length + " arguments, but got " + argc + ".");
 		}
-		
-		return offset;
 	}
 	
-	// -----------------------------------------------------------------
-	// Evaluation routines for operands
-	// -----------------------------------------------------------------
+	// Parses an IR1 program. The generated parser is static, so it is
+	// re-initialized after the first use, and only one thread may parse
+	// at a time.
 	//
-	// - Each evaluate() routine returns a Val object.
-	//
-	static Val evaluate(IR1.Src n) throws Exception
-	{
-		Val val = null;
-		
-		if (n instanceof IntLit)
-		{
-			return new IntVal(((IntLit) n).i);
-		}
-		else if (n instanceof BoolLit)
-		{
-			return new BoolVal(((BoolLit) n).b);
-		}
-		else if (n instanceof StrLit)
-		{
-			return new StrVal(((StrLit) n).s);
-		}
-		
-		if (n instanceof IR1.Temp)
-		{
-			IR1.Temp temp = (IR1.Temp) n;
-			val = env != null && env.getTempVal(temp.num) != null ? env
-					.getTempVal(temp.num) : null;
-			
-			if (val == null)
-			{
-				throw new IntException(
-						"The temporary variable is not defined: " + temp.num
-								+ ".");
-			}
-		}
-		else if (n instanceof IR1.Id)
-		{
-			IR1.Id id = (IR1.Id) n;
-			val = env != null && env.getVarVal(id.name) != null ? env
-					.getVarVal(id.name) : null;
-			
-			if (val == null)
-			{
-				throw new IntException("The variable is not defined: "
-						+ id.name + ".");
-			}
-		}
-		
-		return val;
-	}
+	private static boolean parserCreated = false;
 	
-	static Val evaluate(IR1.Dest n) throws Exception
+	static synchronized IR1.Program parse(InputStream stream) throws Exception
 	{
-		Val val = null;
-		
-		if (n instanceof IR1.Temp)
+		if (!parserCreated)
 		{
-			IR1.Temp temp = (IR1.Temp) n;
-			val = env != null && env.getTempVal(temp.num) != null ? env
-					.getTempVal(temp.num) : null;
-			
-			if (val == null)
-			{
-				throw new IntException(
-						"The temporary variable is not defined: " + temp.num
-								+ ".");
-			}
+			new ir1Parser(stream);
+			parserCreated = true;
 		}
-		else if (n instanceof IR1.Id)
+		else
 		{
-			IR1.Id id = (IR1.Id) n;
-			val = env != null && env.getVarVal(id.name) != null ? env
-					.getVarVal(id.name) : null;
-			
-			if (val == null)
-			{
-				throw new IntException("The variable is not defined: "
-						+ id.name + ".");
-			}
+			ir1Parser.ReInit(stream);
 		}
 		
-		return val;
+		return ir1Parser.Program();
 	}
 	
-	static boolean evaluate(ROP op, Src src1, Src src2) throws Exception
+	// A machine for an IR1 file, text or binary (see ir1.IR1Binary).
+	//
+	static IR1Machine load(File file, IR1Output out, IR1Machine.Options options) throws Exception
 	{
-		Val lhs = evaluate(src1);
-		Val rhs = evaluate(src2);
-		
-		if (!lhs.getClass().getName().equals(rhs.getClass().getName()))
-		{
-			throw new IntException(
-					"The left and right hand operands do not match types.");
-		}
-		
-		if (lhs instanceof BoolVal)
+		if (IR1Binary.isBinary(file))
 		{
-			if (ROP.EQ == op)
-			{
-				return ((BoolVal) lhs).b == ((BoolVal) rhs).b;
-			}
-			else if (ROP.NE == op)
+			IR1Binary.Reader reader = new IR1Binary.Reader(file);
+			if (options.optimize)
 			{
-				return ((BoolVal) lhs).b == ((BoolVal) rhs).b;
+				// The optimizer needs every function, so none is left
+				// to decode lazily.
+				return new IR1Machine(optimizer(options).optimize(reader.program()), out, options);
 			}
-			
-			throw new IntException(
-					"The following operator cannot be performed on booleans: "
-							+ op + ".");
-		}
-		
-		int result = 0;
-		if (lhs instanceof StrVal)
-		{
-			result = ((StrVal) lhs).s.compareTo(((StrVal) rhs).s);
-		}
-		else if (lhs instanceof IntVal)
-		{
-			result = Integer.compare(((IntVal) lhs).i, ((IntVal) rhs).i);
-		}
-		else
-		{
-			throw new IntException("The following value type was not handled: "
-					+ lhs.getClass().getName() + ".");
+			return new IR1Machine(reader, out, options);
 		}
 		
-		if (op == ROP.EQ)
+		FileInputStream stream = new FileInputStream(file);
+		IR1.Program p;
+		try
 		{
-			return result == 0;
+			p = parse(stream);
 		}
-		else if (op == ROP.NE)
+		finally
 		{
-			return result != 0;
-		}
-		else if (op == ROP.LT)
-		{
-			return result < 0;
-		}
-		else if (op == ROP.GT)
-		{
-			return result > 0;
-		}
-		else if (op == ROP.LE)
-		{
-			return result <= 0;
-		}
-		else if (op == ROP.GE)
-		{
-			return result >= 0;
+			stream.close();
 		}
 		
-		throw new IntException("Unhandled ROP: " + op + ".");
+		return new IR1Machine(options.optimize ? optimizer(options).optimize(p) : p, out, options);
 	}
 	
-	static Val evaluate(AOP op, Src src1, Src src2) throws Exception
+	static IR1Opt optimizer(IR1Machine.Options options)
 	{
-		Val lhs = evaluate(src1);
-		Val rhs = evaluate(src2);
-		
-		if (!lhs.getClass().getName().equals(rhs.getClass().getName()))
-		{
-			throw new IntException("The left and right hand side must be of the same type.");
-		}
-		
-		if (lhs instanceof StrVal)
-		{
-			if (op == AOP.ADD)
-			{
-				StrVal s1 = (StrVal) lhs;
-				StrVal s2 = (StrVal) rhs;
-				
-				return new StrVal(s1.s + s2.s);
-			}
-			
-			throw new IntException("The following operator cannnot be applied to strings: " + op + ".");
-		}
-		
-		if (lhs instanceof IntVal)
-		{
-			int i1 = ((IntVal) lhs).i;
-			int i2 = ((IntVal) rhs).i;
-			int result = -1;
-			
-			if (op == AOP.ADD)
-			{
-				result = i1 + i2;
-			}
-			else if (op == AOP.SUB)
-			{
-				result = i1 - i2;
-			}
-			else if (op == AOP.MUL)
-			{
-				result = i1 * i2;
-			}
-			else if (op == AOP.DIV)
-			{
-				result = i1 / i2;
-			}
-			else
-			{
-				throw new IntException("The following operator cannot be applied to integers: " + op + ".");
-			}
-			
-			return new IntVal(result);
-		}
+		IR1Opt opt = new IR1Opt();
+		opt.inlineBudget = options.inlineBudget;
+		return opt;
+	}
+	
+	// -----------------------------------------------------------------
+	// The main method
+	// -----------------------------------------------------------------
+	//
+	// 1. Open an IR1 program file.
+	// 2. Call the IR1 AST parser to read in the program and
+	// convert it to an AST (rooted at an IR1.Program node), or map it
+	// if it is a binary IR1 file (made by IR1Pack).
+	// 3. Run it on a new IR1Machine.
+	//
+	// Options (see IR1Machine.Options):
+	// -closure  compile each function to a closure tree (IR1Closure)
+	// before running it, instead of interpreting the AST
+	// -jvm      compile the program to a JVM class (IR1Jvm) and run it
+	// -tiered   interpret, and compile functions to closures once they
+	// get hot (IR1Tiered)
+	// -tier=N   -tiered, compiling after N calls and loop iterations
+	// -tierlog  print each tier transition to stderr
+	// -heap=K   heap layout: array (default), direct or mapped (IR1Heap)
+	// -heapstats  print allocated bytes and the heap's high-water mark
+	// to stderr on exit, and collector statistics with -gc
+	// -gc       collect garbage in the heap (IR1Gc); not with -jvm
+	// -stack=N  limit the interpreter's frame stack to N words
+	// -flush=N  write output once N chars are buffered (0: every line)
+	// -profile[=FILE]  count instructions, calls and allocation per
+	// function (IR1Profiler); prints a report to stderr on exit and
+	// writes folded stacks to FILE (ir1.folded); interpreter only
+	// -nosuper  with -closure, compile one node per instruction
+	// (no superinstructions)
+	// -notail   give every call a frame of its own (by default the
+	// interpreter reuses the caller's frame for a tail call)
+	// -O        optimize the program first (ir1.IR1Opt)
+	// -inline=N with -O, inline calls to functions of at most N
+	// instructions (ir1.IR1Inline; 0: none)
+	//
+	public static void main(String[] args) throws Exception
+	{
+		String fileName = null;
+		IR1Machine.Options options = new IR1Machine.Options();
 		
-		if (lhs instanceof BoolVal)
+		for (String arg : args)
 		{
-			// TODO handle BoolLit
-			boolean b1 = ((BoolVal) lhs).b;
-			boolean b2 = ((BoolVal) rhs).b;
-			boolean result = false;
-			
-			if (op == AOP.AND)
+			if (options.parse(arg))
 			{
-				result = b1 && b2;
+				continue;
 			}
-			else if (op == AOP.OR)
+			else if (arg.startsWith("-") || fileName != null)
 			{
-				result = b1 || b2;
+				System.out.println("Unknown option: " + arg);
+				return;
 			}
 			else
 			{
-				throw new IntException("The following operator cannot be applied to integers: " + op + ".");
+				fileName = arg;
 			}
-			
-			return new BoolVal(result);
 		}
 		
-		throw new IntException("The following value type is not handled: " + lhs.getClass().getName() + ".");
-	}
-	
-	static void assign(Dest dest, Val value) throws Exception
-	{
-		Val destVal = evaluate(dest);
-		
-		// If the tyes are identical, it's much easier.
-		/*if (destVal.getClass().getName().equals(value.getClass().getName()))
+		if (fileName != null)
 		{
-			// TODO UndVal
-			if (destVal instanceof IntVal)
-			{
-				((IntVal) destVal).i = ((IntVal) value).i;
-			}
-			else if (destVal instanceof BoolVal)
+			IR1Output out = IR1Output.Buffered.stdout(options.flushThreshold);
+			IR1Machine machine = load(new File(fileName), out, options);
+			try
 			{
-				((BoolVal) destVal).b = ((BoolVal) value).b;
+				machine.run();
 			}
-			else if (destVal instanceof StrVal)
-			{
-				((StrVal) destVal).s = ((StrVal) value).s;
-			}
-			else
+			finally
 			{
-				throw new IntException("Unhandled assign type: " + destVal.getClass().getName());
+				if (options.heapStats)
+				{
+					machine.report(System.err);
+				}
+				machine.reportProfile(System.err);
 			}
-			
-			return;
-		}*/
-		
-		if (dest instanceof Temp)
-		{
-			Temp temp = (Temp) dest;
-			
-			env.setTempVal(temp.num, duplicate(value));
-			return;
-		}
-		else if (dest instanceof Id)
-		{
-			Id id = (Id) dest;
-			
-			env.setVarVal(id.name, duplicate(value));
-			return;
 		}
-		
-		throw new IntException("Unhandled assignment case: " + dest.getClass().getName() + ".");
-	}
-	
-	static Val duplicate(Val value) throws Exception
-	{
-		if (value instanceof IntVal)
-		{
-			return new IntVal(((IntVal) value).i);
-		}
-		else if (value instanceof StrVal)
-		{
-			return new StrVal(((StrVal) value).s);
-		}
-		else if (value instanceof BoolVal)
-		{
-			return new BoolVal(((BoolVal) value).b);
-		}
-		else if (value instanceof UndVal)
+		else
 		{
-			return new UndVal();
+			System.out.println("You must provide an input file name.");
 		}
-		
-		throw new IntException("Unhandled type: " + value.getClass().getName());
 	}
 }
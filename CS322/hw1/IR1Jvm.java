@@ -0,0 +1,774 @@
+//
+// JVM bytecode backend for IR1 programs.
+// Assignment by Ian Aldrighetti
+//
+// Each IR1.Func becomes a static method 'f_<name>' of a class generated
+// in memory and loaded with its own class loader, so the JIT compiles
+// IR1 code like any other Java method:
+//
+// - every frame slot assigned by IR1Interp.resolve() becomes a pair of
+// JVM locals holding an encoded (long) value, after the parameters
+// - operators, memory and builtins call methods of an IR1Runtime held
+// in the generated class's static 'rt' field, which belongs to the
+// IR1Machine running the program
+//
+// Class files are written by hand (version 49, which needs no stack map
+// frames), so there are no dependencies beyond the JDK.
+//
+import ir1.IR1;
+import ir1.IR1.AOP;
+import ir1.IR1.ROP;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class IR1Jvm
+{
+	static final String CLASS_NAME = "IR1Program";
+	static final String RUNTIME = "IR1Runtime";
+
+	// Program ---
+	// Func[] funcs;
+	//
+	// 1. Generate and load a class with one method per function the
+	// machine has loaded
+	// 2. Run main
+	//
+	static void execute(IR1Machine machine) throws Exception
+	{
+		// Values live in JVM locals, which the collector cannot scan.
+		if (machine.gc != null)
+		{
+			throw new IR1Interp.IntException("-gc is not supported with -jvm.");
+		}
+
+		Class<?> c = new Loader().define(generate(machine.funcMap));
+		c.getField("rt").set(null, new IR1Runtime(machine));
+
+		IR1Interp.ResolvedFunc main = machine.funcMap.get("main");
+		IR1Interp.checkArgs(main.func, null);
+
+		Method m = c.getMethod("f_main");
+		try
+		{
+			m.invoke(null);
+		}
+		catch (InvocationTargetException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception)
+			{
+				throw (Exception) cause;
+			}
+			throw (Error) cause;
+		}
+	}
+
+	static class Loader extends ClassLoader
+	{
+		Loader()
+		{
+			super(IR1Jvm.class.getClassLoader());
+		}
+
+		Class<?> define(byte[] b)
+		{
+			return defineClass(CLASS_NAME, b, 0, b.length);
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Class generation
+	// -----------------------------------------------------------------
+	//
+
+	static byte[] generate(Map<String, IR1Interp.ResolvedFunc> funcMap) throws Exception
+	{
+		ClassWriter cw = new ClassWriter(CLASS_NAME);
+		cw.addField(ACC_PUBLIC | ACC_STATIC, "rt", "L" + RUNTIME + ";");
+
+		for (IR1Interp.ResolvedFunc rf : funcMap.values())
+		{
+			MethodGen mg = new MethodGen(cw, rf, funcMap);
+			mg.gen();
+			cw.addMethod(ACC_PUBLIC | ACC_STATIC, "f_" + rf.func.name,
+					descriptor(rf.func.params.length), mg.maxStack, mg.maxLocals, mg.code.toByteArray());
+		}
+
+		return cw.toByteArray();
+	}
+
+	static String descriptor(int paramCount)
+	{
+		StringBuilder sb = new StringBuilder("(");
+		for (int i = 0; i < paramCount; i++)
+		{
+			sb.append('J');
+		}
+		return sb.append(")J").toString();
+	}
+
+	/**
+	 * Generates the body of one function.
+	 *
+	 * @author Ian
+	 */
+	static class MethodGen
+	{
+		final ClassWriter cw;
+		final IR1Interp.ResolvedFunc rf;
+		final Map<String, IR1Interp.ResolvedFunc> funcMap;
+		final ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+		// Bytecode offset of each IR1 instruction, and branches waiting
+		// for their target's offset.
+		final int[] instOffsets;
+		final List<int[]> fixups = new ArrayList<int[]>();
+
+		// Parameters occupy the first locals, then the frame slots, then
+		// one scratch long.
+		final int base;
+		final int scratch;
+		int maxStack = 6;
+		int maxLocals;
+
+		MethodGen(ClassWriter cw, IR1Interp.ResolvedFunc rf, Map<String, IR1Interp.ResolvedFunc> funcMap)
+		{
+			this.cw = cw;
+			this.rf = rf;
+			this.funcMap = funcMap;
+			instOffsets = new int[rf.func.code.length];
+			base = 2 * rf.func.params.length;
+			scratch = base + 2 * rf.frameSize;
+			maxLocals = scratch + 2;
+		}
+
+		void gen() throws Exception
+		{
+			// Prologue: initialize the frame, then copy in the parameters.
+			for (int slot = 0; slot < rf.frameSize; slot++)
+			{
+				pushLong(slot < rf.undeclaredStart ? IR1Interp.UNDEF : IR1Interp.NONE);
+				op2(LSTORE, local(slot));
+			}
+
+			for (int index = 0; index < rf.paramSlots.length; index++)
+			{
+				op2(LLOAD, 2 * index);
+				op2(LSTORE, local(rf.paramSlots[index]));
+			}
+
+			IR1.Inst[] insts = rf.func.code;
+			for (int idx = 0; idx < insts.length; idx++)
+			{
+				instOffsets[idx] = code.size();
+				gen(insts[idx]);
+			}
+
+			// Falling off the end returns the undefined value.
+			pushLong(IR1Interp.UNDEF);
+			op(LRETURN);
+
+			byte[] b = code.toByteArray();
+			for (int[] fixup : fixups)
+			{
+				int at = fixup[0];
+				int delta = instOffsets[fixup[1]] - at;
+				if (delta != (short) delta)
+				{
+					throw new IR1Interp.IntException("Function too large for the JVM backend: " + rf.func.name + ".");
+				}
+				b[at + 1] = (byte) (delta >> 8);
+				b[at + 2] = (byte) delta;
+			}
+			code.reset();
+			code.write(b, 0, b.length);
+
+			if (code.size() > 65535)
+			{
+				throw new IR1Interp.IntException("Function too large for the JVM backend: " + rf.func.name + ".");
+			}
+		}
+
+		void gen(IR1.Inst n) throws Exception
+		{
+			if (n instanceof IR1.Binop)
+			{
+				IR1.Binop b = (IR1.Binop) n;
+				getRuntime();
+				load(b.src1);
+				load(b.src2);
+				if (b.op instanceof AOP)
+				{
+					invokeVirtual(RUNTIME, aopName((AOP) b.op), "(JJ)J");
+				}
+				else
+				{
+					invokeVirtual(RUNTIME, ropName((ROP) b.op), "(JJ)Z");
+					invokeStatic(RUNTIME, "bool", "(Z)J");
+				}
+				store(b.dst);
+			}
+			else if (n instanceof IR1.Unop)
+			{
+				IR1.Unop u = (IR1.Unop) n;
+				getRuntime();
+				load(u.src);
+				invokeVirtual(RUNTIME, u.op == IR1.UOP.NEG ? "neg" : "not", "(J)J");
+				store(u.dst);
+			}
+			else if (n instanceof IR1.Move)
+			{
+				IR1.Move m = (IR1.Move) n;
+				load(m.src);
+				store(m.dst);
+			}
+			else if (n instanceof IR1.Load)
+			{
+				IR1.Load l = (IR1.Load) n;
+				getRuntime();
+				load(l.addr.base);
+				pushInt(l.addr.offset);
+				invokeVirtual(RUNTIME, "load", "(JI)J");
+				store(l.dst);
+			}
+			else if (n instanceof IR1.Store)
+			{
+				IR1.Store s = (IR1.Store) n;
+				load(s.src);	// evaluated before the address, as in IR1Interp
+				op2(LSTORE, scratch);
+				getRuntime();
+				load(s.addr.base);
+				pushInt(s.addr.offset);
+				op2(LLOAD, scratch);
+				invokeVirtual(RUNTIME, "store", "(JIJ)V");
+			}
+			else if (n instanceof IR1.Jump)
+			{
+				IR1.Jump j = (IR1.Jump) n;
+				if (j.target < 0)
+				{
+					error("The label is not defined: " + j.lab.name + ".");
+				}
+				else
+				{
+					branch(GOTO, j.target);
+				}
+			}
+			else if (n instanceof IR1.CJump)
+			{
+				IR1.CJump c = (IR1.CJump) n;
+				getRuntime();
+				load(c.src1);
+				load(c.src2);
+				invokeVirtual(RUNTIME, ropName(c.op), "(JJ)Z");
+				if (c.target < 0)
+				{
+					// Only an error if the branch is taken.
+					int skip = code.size();
+					op(IFEQ);
+					u2(0);
+					error("The label is not defined: " + c.lab.name + ".");
+					patch(skip, code.size());
+				}
+				else
+				{
+					branch(IFNE, c.target);
+				}
+			}
+			else if (n instanceof IR1.Call)
+			{
+				gen((IR1.Call) n);
+			}
+			else if (n instanceof IR1.Return)
+			{
+				IR1.Return r = (IR1.Return) n;
+				if (r.val != null)
+				{
+					load(r.val);
+				}
+				else
+				{
+					pushLong(IR1Interp.UNDEF);
+				}
+				op(LRETURN);
+			}
+			else if (!(n instanceof IR1.LabelDec))
+			{
+				throw new IR1Interp.IntException("Unknown Inst: " + n);
+			}
+		}
+
+		// Call ---
+		//
+		void gen(IR1.Call n) throws Exception
+		{
+			if (n.name.equals("malloc"))
+			{
+				if (n.args.length != 1)
+				{
+					error("_malloc requires 1 parameter.");
+					return;
+				}
+				getRuntime();
+				load(n.args[0]);
+				invokeVirtual(RUNTIME, "malloc", "(J)J");
+			}
+			else if (n.name.equals("printStr") || n.name.equals("printBool") || n.name.equals("printInt"))
+			{
+				if (n.args.length == 0 && n.name.equals("printStr"))
+				{
+					getRuntime();
+					invokeVirtual(RUNTIME, "println", "()V");
+					return;
+				}
+				if (n.args.length != 1)
+				{
+					error("_" + n.name + " requires 1 parameter.");
+					return;
+				}
+				getRuntime();
+				load(n.args[0]);
+				invokeVirtual(RUNTIME, "print", "(J)V");
+				return;
+			}
+			else
+			{
+				IR1Interp.ResolvedFunc target = funcMap.get(n.name);
+				if (target == null)
+				{
+					error("Call to undefined function: " + n.name + ".");
+					return;
+				}
+
+				for (IR1.Src arg : n.args)
+				{
+					load(arg);
+				}
+				maxStack = Math.max(maxStack, 2 * n.args.length + 2);
+
+				try
+				{
+					IR1Interp.checkArgs(target.func, new long[n.args.length]);
+				}
+				catch (IR1Interp.IntException e)
+				{
+					error(e.getMessage());
+					return;
+				}
+
+				invokeStatic(CLASS_NAME, "f_" + n.name, descriptor(n.args.length));
+			}
+
+			if (n.rdst != null)
+			{
+				store(n.rdst);
+			}
+			else
+			{
+				op(POP2);
+			}
+		}
+
+		// Operands
+
+		int local(int slot)
+		{
+			return base + 2 * slot;
+		}
+
+		void load(IR1.Src n) throws Exception
+		{
+			if (n instanceof IR1.Temp)
+			{
+				op2(LLOAD, local(((IR1.Temp) n).slot));
+			}
+			else if (n instanceof IR1.Id)
+			{
+				IR1.Id id = (IR1.Id) n;
+				if (id.slot >= rf.undeclaredStart)
+				{
+					error("The variable is not defined: " + id.name + ".");
+					pushLong(IR1Interp.UNDEF);	// unreachable; keeps the stack shape
+				}
+				else
+				{
+					op2(LLOAD, local(id.slot));
+				}
+			}
+			else if (n instanceof IR1.IntLit)
+			{
+				pushLong(IR1Interp.intVal(((IR1.IntLit) n).i));
+			}
+			else if (n instanceof IR1.BoolLit)
+			{
+				pushLong(IR1Interp.boolVal(((IR1.BoolLit) n).b));
+			}
+			else if (n instanceof IR1.StrLit)
+			{
+				pushLong(IR1Interp.strVal(((IR1.StrLit) n).index));
+			}
+			else
+			{
+				throw new IR1Interp.IntException("Unhandled operand: " + n + ".");
+			}
+		}
+
+		void store(IR1.Dest n) throws Exception
+		{
+			int slot = n instanceof IR1.Temp ? ((IR1.Temp) n).slot : ((IR1.Id) n).slot;
+			op2(LSTORE, local(slot));
+
+			if (n instanceof IR1.Id && slot >= rf.undeclaredStart)
+			{
+				error("The variable is not defined: " + ((IR1.Id) n).name + ".");
+			}
+		}
+
+		// Emission helpers
+
+		void op(int opcode)
+		{
+			code.write(opcode);
+		}
+
+		void u2(int v)
+		{
+			code.write(v >> 8);
+			code.write(v);
+		}
+
+		// An instruction with a local variable index operand.
+		void op2(int opcode, int index)
+		{
+			if (index > 255)
+			{
+				op(WIDE);
+				op(opcode);
+				u2(index);
+			}
+			else
+			{
+				op(opcode);
+				code.write(index);
+			}
+		}
+
+		void pushLong(long v)
+		{
+			if (v == 0)
+			{
+				op(LCONST_0);
+			}
+			else
+			{
+				op(LDC2_W);
+				u2(cw.longConst(v));
+			}
+		}
+
+		void pushInt(int v)
+		{
+			if (v >= -1 && v <= 5)
+			{
+				op(ICONST_0 + v);
+			}
+			else if (v == (byte) v)
+			{
+				op(BIPUSH);
+				code.write(v);
+			}
+			else if (v == (short) v)
+			{
+				op(SIPUSH);
+				u2(v);
+			}
+			else
+			{
+				op(LDC_W);
+				u2(cw.intConst(v));
+			}
+		}
+
+		void getRuntime()
+		{
+			op(GETSTATIC);
+			u2(cw.fieldRef(CLASS_NAME, "rt", "L" + RUNTIME + ";"));
+		}
+
+		void invokeStatic(String owner, String name, String desc)
+		{
+			op(INVOKESTATIC);
+			u2(cw.methodRef(owner, name, desc));
+		}
+
+		void invokeVirtual(String owner, String name, String desc)
+		{
+			op(INVOKEVIRTUAL);
+			u2(cw.methodRef(owner, name, desc));
+		}
+
+		void branch(int opcode, int target)
+		{
+			fixups.add(new int[] { code.size(), target });
+			op(opcode);
+			u2(0);
+		}
+
+		// Patch a forward branch emitted at 'at' to jump to 'to'.
+		void patch(int at, int to)
+		{
+			byte[] b = code.toByteArray();
+			int delta = to - at;
+			b[at + 1] = (byte) (delta >> 8);
+			b[at + 2] = (byte) delta;
+			code.reset();
+			code.write(b, 0, b.length);
+		}
+
+		void error(String msg)
+		{
+			op(LDC_W);
+			u2(cw.stringConst(msg));
+			invokeStatic(RUNTIME, "error", "(Ljava/lang/String;)Ljava/lang/Exception;");
+			op(ATHROW);
+		}
+	}
+
+	static String aopName(AOP op)
+	{
+		switch (op)
+		{
+			case ADD:
+				return "add";
+			case SUB:
+				return "sub";
+			case MUL:
+				return "mul";
+			case DIV:
+				return "div";
+			case AND:
+				return "and";
+			default:
+				return "or";
+		}
+	}
+
+	static String ropName(ROP op)
+	{
+		switch (op)
+		{
+			case EQ:
+				return "eq";
+			case NE:
+				return "ne";
+			case LT:
+				return "lt";
+			case LE:
+				return "le";
+			case GT:
+				return "gt";
+			default:
+				return "ge";
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Class file writer
+	// -----------------------------------------------------------------
+	//
+	// Just enough of the class file format for IR1Jvm: a constant pool,
+	// static fields, and static methods with a Code attribute.
+	//
+
+	static final int ACC_PUBLIC = 0x0001;
+	static final int ACC_STATIC = 0x0008;
+	static final int ACC_SUPER = 0x0020;
+
+	static final int ICONST_0 = 0x03;
+	static final int LCONST_0 = 0x09;
+	static final int BIPUSH = 0x10;
+	static final int SIPUSH = 0x11;
+	static final int LDC_W = 0x13;
+	static final int LDC2_W = 0x14;
+	static final int LLOAD = 0x16;
+	static final int LSTORE = 0x37;
+	static final int POP2 = 0x58;
+	static final int IFEQ = 0x99;
+	static final int IFNE = 0x9a;
+	static final int GOTO = 0xa7;
+	static final int LRETURN = 0xad;
+	static final int GETSTATIC = 0xb2;
+	static final int INVOKEVIRTUAL = 0xb6;
+	static final int INVOKESTATIC = 0xb8;
+	static final int ATHROW = 0xbf;
+	static final int WIDE = 0xc4;
+
+	/**
+	 * Accumulates a constant pool, fields and methods, and writes them out
+	 * as a class file.
+	 *
+	 * @author Ian
+	 */
+	static class ClassWriter
+	{
+		private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+		private final DataOutputStream poolOut = new DataOutputStream(pool);
+		private final Map<String, Integer> poolIndex = new HashMap<String, Integer>();
+		private int poolCount = 1;
+
+		private final ByteArrayOutputStream fields = new ByteArrayOutputStream();
+		private final DataOutputStream fieldsOut = new DataOutputStream(fields);
+		private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+		private final DataOutputStream methodsOut = new DataOutputStream(methods);
+		private int fieldCount = 0;
+		private int methodCount = 0;
+
+		private final int thisClass;
+		private final int superClass;
+
+		ClassWriter(String name)
+		{
+			thisClass = classConst(name);
+			superClass = classConst("java/lang/Object");
+		}
+
+		// Constant pool entries are shared by key.
+		private int constant(String key, int tag, Object a, Object b)
+		{
+			Integer index = poolIndex.get(key);
+			if (index != null)
+			{
+				return index;
+			}
+
+			try
+			{
+				poolOut.writeByte(tag);
+				switch (tag)
+				{
+					case 1:
+						poolOut.writeUTF((String) a);
+						break;
+					case 3:
+						poolOut.writeInt((Integer) a);
+						break;
+					case 5:
+						poolOut.writeLong((Long) a);
+						break;
+					default:
+						poolOut.writeShort((Integer) a);
+						if (b != null)
+						{
+							poolOut.writeShort((Integer) b);
+						}
+				}
+			}
+			catch (IOException e)
+			{
+				throw new RuntimeException(e);
+			}
+
+			index = poolCount;
+			poolCount += tag == 5 ? 2 : 1;	// longs take two entries
+			poolIndex.put(key, index);
+			return index;
+		}
+
+		int utf8(String s)
+		{
+			return constant("U" + s, 1, s, null);
+		}
+
+		int intConst(int v)
+		{
+			return constant("I" + v, 3, v, null);
+		}
+
+		int longConst(long v)
+		{
+			return constant("J" + v, 5, v, null);
+		}
+
+		int classConst(String name)
+		{
+			return constant("C" + name, 7, utf8(name), null);
+		}
+
+		int stringConst(String s)
+		{
+			return constant("S" + s, 8, utf8(s), null);
+		}
+
+		int nameAndType(String name, String desc)
+		{
+			return constant("N" + name + ":" + desc, 12, utf8(name), utf8(desc));
+		}
+
+		int fieldRef(String owner, String name, String desc)
+		{
+			return constant("F" + owner + "." + name + ":" + desc, 9, classConst(owner), nameAndType(name, desc));
+		}
+
+		int methodRef(String owner, String name, String desc)
+		{
+			return constant("M" + owner + "." + name + ":" + desc, 10, classConst(owner), nameAndType(name, desc));
+		}
+
+		void addField(int access, String name, String desc) throws IOException
+		{
+			fieldsOut.writeShort(access);
+			fieldsOut.writeShort(utf8(name));
+			fieldsOut.writeShort(utf8(desc));
+			fieldsOut.writeShort(0);
+			fieldCount++;
+		}
+
+		void addMethod(int access, String name, String desc, int maxStack, int maxLocals, byte[] code) throws IOException
+		{
+			methodsOut.writeShort(access);
+			methodsOut.writeShort(utf8(name));
+			methodsOut.writeShort(utf8(desc));
+			methodsOut.writeShort(1);
+			methodsOut.writeShort(utf8("Code"));
+			methodsOut.writeInt(12 + code.length);
+			methodsOut.writeShort(maxStack);
+			methodsOut.writeShort(maxLocals);
+			methodsOut.writeInt(code.length);
+			methodsOut.write(code);
+			methodsOut.writeShort(0);	// exception table
+			methodsOut.writeShort(0);	// attributes
+			methodCount++;
+		}
+
+		byte[] toByteArray() throws IOException
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49);
+			out.writeShort(poolCount);
+			out.write(pool.toByteArray());
+			out.writeShort(ACC_PUBLIC | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(0);
+			out.writeShort(fieldCount);
+			out.write(fields.toByteArray());
+			out.writeShort(methodCount);
+			out.write(methods.toByteArray());
+			out.writeShort(0);
+
+			return bytes.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,1245 @@
+//
+// A single run of an IR1 program.
+// Assignment by Ian Aldrighetti
+//
+// All interpreter state (functions, string table, heap, frame stack)
+// belongs to an IR1Machine rather than to static fields, so any number
+// of programs can run at once, one machine each:
+//
+//   new IR1Machine(program, out, options).run();
+//
+// A machine can also run a binary IR1 file (see ir1.IR1Binary). The
+// interpreter then decodes and resolves each function the first time
+// it is called, so a large program starts without reading all of it.
+//
+// The reference interpreter lives here; IR1Closure and IR1Jvm compile
+// a machine's program and share its values, heap and builtins.
+//
+import ir1.IR1;
+import ir1.IR1.AOP;
+import ir1.IR1Binary;
+import ir1.IR1Inline;
+import ir1.IR1.BoolLit;
+import ir1.IR1.Dest;
+import ir1.IR1.Id;
+import ir1.IR1.IntLit;
+import ir1.IR1.ROP;
+import ir1.IR1.Src;
+import ir1.IR1.StrLit;
+import ir1.IR1.Temp;
+import ir1.IR1.UOP;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+public class IR1Machine
+{
+	enum Mode
+	{
+		INTERP, CLOSURE, JVM, TIERED
+	}
+	
+	/**
+	 * Settings for a machine, parsed from the command-line options
+	 * described in IR1Interp.main. One Options can configure any
+	 * number of machines.
+	 *
+	 * @author Ian
+	 */
+	static class Options
+	{
+		Mode mode = Mode.INTERP;
+		String heapKind = "array";	// see IR1Heap
+		boolean gcEnabled = false;	// see IR1Gc
+		boolean heapStats = false;
+		int maxStackWords = 64 * 1024 * 1024;
+		int flushThreshold = IR1Output.Buffered.DEFAULT_THRESHOLD;
+		String profileFile = null;	// folded stacks, with -profile
+		boolean superinstructions = true;	// see IR1Closure.fuse()
+		boolean tailCalls = true;	// see execute(ResolvedFunc)
+		int tierThreshold = IR1Tiered.DEFAULT_THRESHOLD;
+		boolean tierLog = false;
+		boolean optimize = false;	// see ir1.IR1Opt
+		int inlineBudget = IR1Inline.DEFAULT_BUDGET;
+		
+		// Applies one option; false if arg is not one.
+		//
+		boolean parse(String arg)
+		{
+			if (arg.equals("-closure"))
+			{
+				mode = Mode.CLOSURE;
+			}
+			else if (arg.equals("-jvm"))
+			{
+				mode = Mode.JVM;
+			}
+			else if (arg.equals("-tiered"))
+			{
+				mode = Mode.TIERED;
+			}
+			else if (arg.startsWith("-tier="))
+			{
+				mode = Mode.TIERED;
+				tierThreshold = Integer.parseInt(arg.substring("-tier=".length()));
+			}
+			else if (arg.equals("-tierlog"))
+			{
+				tierLog = true;
+			}
+			else if (arg.startsWith("-heap="))
+			{
+				heapKind = arg.substring("-heap=".length());
+			}
+			else if (arg.equals("-heapstats"))
+			{
+				heapStats = true;
+			}
+			else if (arg.equals("-gc"))
+			{
+				gcEnabled = true;
+			}
+			else if (arg.startsWith("-stack="))
+			{
+				maxStackWords = Integer.parseInt(arg.substring("-stack=".length()));
+			}
+			else if (arg.startsWith("-flush="))
+			{
+				flushThreshold = Integer.parseInt(arg.substring("-flush=".length()));
+			}
+			else if (arg.equals("-profile"))
+			{
+				profileFile = IR1Profiler.DEFAULT_FOLDED;
+			}
+			else if (arg.startsWith("-profile="))
+			{
+				profileFile = arg.substring("-profile=".length());
+			}
+			else if (arg.equals("-nosuper"))
+			{
+				superinstructions = false;
+			}
+			else if (arg.equals("-notail"))
+			{
+				tailCalls = false;
+			}
+			else if (arg.equals("-O"))
+			{
+				optimize = true;
+			}
+			else if (arg.startsWith("-inline="))
+			{
+				inlineBudget = Integer.parseInt(arg.substring("-inline=".length()));
+			}
+			else
+			{
+				return false;
+			}
+			
+			return true;
+		}
+	}
+	
+	// The program, or the binary file it is read from (one is null)
+	final IR1.Program program;
+	final IR1Binary.Reader binary;
+	final Options options;
+	final int maxStackWords;
+	
+	// Where the print builtins write (see IR1Output)
+	final IR1Output out;
+	
+	// The collector (with -gc) and the closure compiler (with -closure
+	// or -tiered), if any
+	IR1Gc gc;
+	IR1Closure closure;
+	
+	// The tier manager, with -tiered
+	IR1Tiered tiered;
+	
+	// The profiler, with -profile
+	IR1Profiler profiler;
+	
+	public IR1Machine(IR1.Program program, IR1Output out)
+	{
+		this(program, out, new Options());
+	}
+	
+	public IR1Machine(IR1.Program program, IR1Output out, Options options)
+	{
+		this(program, null, out, options);
+	}
+	
+	public IR1Machine(IR1Binary.Reader binary, IR1Output out, Options options)
+	{
+		this(null, binary, out, options);
+	}
+	
+	IR1Machine(IR1.Program program, IR1Binary.Reader binary, IR1Output out, Options options)
+	{
+		this.program = program;
+		this.binary = binary;
+		this.out = out;
+		this.options = options;
+		maxStackWords = options.maxStackWords;
+	}
+	
+	// -----------------------------------------------------------------
+	// Global variables and constants
+	// -----------------------------------------------------------------
+	//
+	
+	// String table, indexed by the payload of string values
+	//
+	ArrayList<String> strings;
+	
+	// Function lookup table
+	// - maps function names to their resolved AST nodes
+	// - filled in by function() as they are called, when the interpreter
+	// runs a binary file
+	//
+	HashMap<String, IR1Interp.ResolvedFunc> funcMap;
+	
+	// Heap memory
+	// - for handling 'malloc'ed data
+	// - words [0, heap.size()) are allocated; see IR1Heap for the layouts
+	//
+	IR1Heap heap;
+	
+	// Return value
+	// - for passing return value from callee to caller
+	//
+	long returnVal;
+	
+	// Execution status
+	// - tells whether to continue with the nest inst, to jump to
+	// a new target inst, to return to the caller, or that a call has
+	// pushed a new frame
+	//
+	static final int CONTINUE = 0;
+	static final int RETURN = -1;
+	static final int CALL = -2;
+	
+	// -----------------------------------------------------------------
+	// Strings
+	// -----------------------------------------------------------------
+	//
+	
+	// A string made at run time (by +) gets an entry of its own in
+	// 'strings', which equal strings share. Once there are
+	// 'strThreshold' such entries, the ones no value refers to any more
+	// are reclaimed and reused (see sweepStrings()). The literals'
+	// entries are never reclaimed.
+	//
+	static final int MIN_STR_THRESHOLD = 4096;
+	
+	HashMap<String, Integer> interned;
+	BitSet runtimeStrings;				// entries made at run time
+	ArrayDeque<Integer> freeStrings;	// reclaimed entries
+	int runtimeStringCount;
+	int strThreshold;
+	
+	long strVal(String s)
+	{
+		Integer index = interned.get(s);
+		
+		if (index == null)
+		{
+			if (runtimeStringCount >= strThreshold && canSweepStrings())
+			{
+				sweepStrings();
+				strThreshold = Math.max(MIN_STR_THRESHOLD, 2 * runtimeStringCount);
+			}
+			
+			if (freeStrings.isEmpty())
+			{
+				index = strings.size();
+				strings.add(s);
+			}
+			else
+			{
+				index = freeStrings.pop();
+				strings.set(index, s);
+			}
+			interned.put(s, index);
+			runtimeStrings.set(index);
+			runtimeStringCount++;
+		}
+		
+		return IR1Interp.strVal(index);
+	}
+	
+	// Every value is in a frame, the heap or a return value, except
+	// with -jvm, whose values are in JVM locals; there, equal strings
+	// still share an entry, but none is reclaimed.
+	//
+	boolean canSweepStrings()
+	{
+		return options.mode != Mode.JVM;
+	}
+	
+	// Frees the run-time entries that no value in the roots (see
+	// gatherRoots()), the heap or returnVal refers to.
+	//
+	void sweepStrings()
+	{
+		BitSet live = new BitSet();
+		List<IR1Gc.Root> roots = new ArrayList<IR1Gc.Root>();
+		gatherRoots(roots);
+		for (IR1Gc.Root root : roots)
+		{
+			for (int index = root.from; index < root.to; index++)
+			{
+				markString(root.slots[index], live);
+			}
+		}
+		for (int addr = 0; addr < heap.size(); addr++)
+		{
+			markString(heap.get(addr), live);
+		}
+		markString(returnVal, live);
+		if (closure != null)
+		{
+			markString(closure.returnVal, live);
+		}
+		
+		for (int index = runtimeStrings.nextSetBit(0); index >= 0; index = runtimeStrings.nextSetBit(index + 1))
+		{
+			if (!live.get(index))
+			{
+				interned.remove(strings.get(index));
+				strings.set(index, null);
+				runtimeStrings.clear(index);
+				freeStrings.push(index);
+				runtimeStringCount--;
+			}
+		}
+	}
+	
+	static void markString(long v, BitSet live)
+	{
+		if (IR1Interp.tag(v) == IR1Interp.STR_TAG)
+		{
+			live.set((int) v);
+		}
+	}
+	
+	String strOf(long v)
+	{
+		return strings.get((int) v);
+	}
+	
+	// How a value prints.
+	//
+	String toString(long v)
+	{
+		switch (IR1Interp.tag(v))
+		{
+			case IR1Interp.INT_TAG:
+			case IR1Interp.PTR_TAG:
+				return "" + IR1Interp.intOf(v);
+			case IR1Interp.BOOL_TAG:
+				return "" + IR1Interp.boolOf(v);
+			case IR1Interp.STR_TAG:
+				return strOf(v);
+			default:
+				return "UndVal";
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Frame stack
+	// -----------------------------------------------------------------
+	//
+	// Calls do not recurse in Java. Every frame lives in one long[],
+	// 'stack': the running function's slots are stack[fp, fp + frameSize)
+	// and 'sp' is the first free word. For each suspended caller, the
+	// control stack keeps its function, its frame pointer and the index
+	// of the Call it is executing (which also names the return
+	// destination), so a call or a return is a few array writes.
+	//
+	// Both stacks grow by doubling, up to maxStackWords words (-stack=N);
+	// going past that is a stack overflow in the interpreted program.
+	//
+	long[] stack;
+	int fp;
+	int sp;
+	IR1Interp.ResolvedFunc cur;
+	
+	IR1Interp.ResolvedFunc[] ctlFunc;
+	int[] ctlFp;
+	int[] ctlPc;
+	int depth;
+	
+	// Arguments of the call being made, evaluated in the caller's frame
+	long[] argBuf = new long[16];
+	
+	// Empty stacks, for a run from the start.
+	//
+	void newStacks()
+	{
+		stack = new long[1024];
+		ctlFunc = new IR1Interp.ResolvedFunc[64];
+		ctlFp = new int[64];
+		ctlPc = new int[64];
+		depth = 0;
+		fp = 0;
+		sp = 0;
+		cur = null;
+	}
+	
+	// Pushes a frame for a call to rf with args[0, argc), and makes it
+	// current. argc is -1 for the initial call to main.
+	//
+	void enter(IR1Interp.ResolvedFunc rf, long[] args, int argc) throws Exception
+	{
+		IR1Interp.checkArgs(rf.func, argc);
+		
+		int newFp = sp;
+		int newSp = newFp + rf.frameSize;
+		
+		if (newSp > maxStackWords || depth >= maxStackWords)
+		{
+			throw new IR1Interp.IntException("Stack overflow at call depth " + depth + ": " + rf.func.name + ".");
+		}
+		
+		if (newSp > stack.length)
+		{
+			stack = Arrays.copyOf(stack, (int) Math.min(maxStackWords, Math.max(2L * stack.length, newSp)));
+		}
+		
+		if (depth == ctlFp.length)
+		{
+			ctlFunc = Arrays.copyOf(ctlFunc, depth * 2);
+			ctlFp = Arrays.copyOf(ctlFp, depth * 2);
+			ctlPc = Arrays.copyOf(ctlPc, depth * 2);
+		}
+		
+		ctlFunc[depth] = cur;
+		ctlFp[depth] = fp;
+		depth++;
+		
+		// Words above sp may hold a dead frame's values.
+		Arrays.fill(stack, newFp, newFp + rf.undeclaredStart, IR1Interp.UNDEF);
+		Arrays.fill(stack, newFp + rf.undeclaredStart, newSp, IR1Interp.NONE);
+		
+		for (int index = 0; index < argc; index++)
+		{
+			stack[newFp + rf.paramSlots[index]] = args[index];
+		}
+		
+		cur = rf;
+		fp = newFp;
+		sp = newSp;
+	}
+
+	
+	// -----------------------------------------------------------------
+	// Top-level IR nodes
+	// -----------------------------------------------------------------
+	//
+	
+	// Program ---
+	// Func[] funcs;
+	//
+	// 1. Establish the function lookup map
+	// 2. Lookup 'main' in funcMap, and
+	// 3. start running from main, in the chosen mode
+	//
+	// Buffered output is flushed, and the heap closed (see
+	// IR1Heap.close()), when the program stops, even on error.
+	//
+	public void run() throws Exception
+	{
+		try
+		{
+			load();
+			
+			if (options.mode == Mode.JVM)
+			{
+				IR1Jvm.execute(this);
+			}
+			else if (options.mode == Mode.CLOSURE)
+			{
+				closure = new IR1Closure(this);
+				closure.execute();
+			}
+			else if (options.mode == Mode.TIERED)
+			{
+				closure = new IR1Closure(this);
+				tiered = new IR1Tiered(this, closure);
+				tiered.execute();
+			}
+			else if (profiler != null)
+			{
+				profiler.execute(function("main"));
+			}
+			else
+			{
+				execute(function("main"));
+			}
+		}
+		finally
+		{
+			try
+			{
+				out.flush();
+			}
+			finally
+			{
+				if (heap != null)
+				{
+					heap.close();
+				}
+			}
+		}
+	}
+	
+	// Prints heap (and collector) statistics, for -heapstats.
+	//
+	public void report(PrintStream err)
+	{
+		if (heap != null)
+		{
+			heap.report(err);
+		}
+		
+		if (gc != null)
+		{
+			gc.report(err);
+		}
+	}
+	
+	// Prints the profile and writes the folded stacks, for -profile.
+	//
+	public void reportProfile(PrintStream err) throws IOException
+	{
+		if (profiler != null)
+		{
+			profiler.report(err);
+			profiler.writeFolded(options.profileFile);
+		}
+	}
+	
+	// Resolves every function of the program, and sets up an empty heap.
+	// Shared by all execution modes.
+	//
+	void load() throws Exception
+	{
+		funcMap = new HashMap<String, IR1Interp.ResolvedFunc>();
+		strings = new ArrayList<String>();
+		interned = new HashMap<String, Integer>();
+		runtimeStrings = new BitSet();
+		freeStrings = new ArrayDeque<Integer>();
+		runtimeStringCount = 0;
+		strThreshold = MIN_STR_THRESHOLD;
+		heap = IR1Heap.create(options.heapKind);
+		if (options.gcEnabled)
+		{
+			gc = new IR1Gc(this);
+		}
+		if (options.profileFile != null)
+		{
+			if (options.mode != Mode.INTERP)
+			{
+				throw new IR1Interp.IntException("-profile is only supported by the interpreter.");
+			}
+			profiler = new IR1Profiler(this);
+		}
+		
+		// The compiled modes need every function up front.
+		if (binary != null && (options.mode == Mode.INTERP || options.mode == Mode.TIERED))
+		{
+			return;
+		}
+		
+		for (IR1.Func f : (program != null ? program : binary.program()).funcs)
+		{
+			funcMap.put(f.name, IR1Interp.resolve(f, strings));
+		}
+	}
+	
+	// The named function, or null if the program has none.
+	//
+	IR1Interp.ResolvedFunc function(String name) throws Exception
+	{
+		IR1Interp.ResolvedFunc rf = funcMap.get(name);
+		
+		if (rf == null && binary != null)
+		{
+			IR1.Func f = binary.func(name);
+			if (f != null)
+			{
+				rf = IR1Interp.resolve(f, strings);
+				funcMap.put(name, rf);
+			}
+		}
+		
+		return rf;
+	}
+	
+	// Func ---
+	// String name;
+	// Var[] params;
+	// Var[] locals;
+	// Inst[] code;
+	//
+	// 1. Set up a fresh frame stack and push rf's frame.
+	// 2. Execute the fetch-and-execute loop until rf returns. Calls and
+	// returns switch frames in the loop itself (see enter()).
+	//
+	// Labels were resolved to instruction indices by resolve(), so
+	// there is no per-call label table to build.
+	//
+	// A tail call (ResolvedFunc.tailCall) reuses the caller's frame, so
+	// a loop written as tail recursion runs in constant stack. Only this
+	// loop does that: the other modes, and -profile, which attributes
+	// time to each caller, keep one frame per call.
+	//
+	// IR1Profiler.execute is a copy of this loop that also counts; keep
+	// the two in step.
+	//
+	void execute(IR1Interp.ResolvedFunc rf) throws Exception
+	{
+		newStacks();
+		enter(rf, null, -1);
+		
+		boolean tailCalls = options.tailCalls;
+		
+		// The fetch-and-execute loop
+		IR1.Inst[] code = rf.func.code;
+		int idx = 0;
+		while (true)
+		{
+			// Falling off the end of a function returns.
+			int next = idx < code.length ? execute(code[idx]) : RETURN;
+			
+			if (next == CONTINUE)
+			{
+				idx++;
+			}
+			else if (next == CALL)
+			{
+				if (tailCalls && ctlFunc[depth - 1].tailCall[idx])
+				{
+					// The caller would only return what the callee
+					// returns, so the callee's frame replaces the
+					// caller's and returns to the caller's caller.
+					int callerFp = ctlFp[depth - 1];
+					System.arraycopy(stack, fp, stack, callerFp, cur.frameSize);
+					depth--;
+					fp = callerFp;
+					sp = fp + cur.frameSize;
+				}
+				else
+				{
+					ctlPc[depth - 1] = idx;
+				}
+				
+				code = cur.func.code;
+				idx = 0;
+			}
+			else if (next == RETURN)
+			{
+				depth--;
+				sp = fp;
+				cur = ctlFunc[depth];
+				fp = ctlFp[depth];
+				
+				if (depth == 0)
+				{
+					break;
+				}
+				
+				code = cur.func.code;
+				idx = ctlPc[depth];
+				
+				IR1.Call call = (IR1.Call) code[idx];
+				if (call.rdst != null)
+				{
+					assign(call.rdst, returnVal);
+					returnVal = IR1Interp.UNDEF;
+				}
+				
+				idx++;
+			}
+			else
+			{
+				idx = next;
+			}
+		}
+	}
+	
+	// Dispatch execution to an individual Inst node.
+	//
+	int execute(IR1.Inst n) throws Exception
+	{
+		if (n instanceof IR1.Binop)
+			return execute((IR1.Binop) n);
+		if (n instanceof IR1.Unop)
+			return execute((IR1.Unop) n);
+		if (n instanceof IR1.Move)
+			return execute((IR1.Move) n);
+		if (n instanceof IR1.Load)
+			return execute((IR1.Load) n);
+		if (n instanceof IR1.Store)
+			return execute((IR1.Store) n);
+		if (n instanceof IR1.Jump)
+			return execute((IR1.Jump) n);
+		if (n instanceof IR1.CJump)
+			return execute((IR1.CJump) n);
+		if (n instanceof IR1.Call)
+			return execute((IR1.Call) n);
+		if (n instanceof IR1.Return)
+			return execute((IR1.Return) n);
+		if (n instanceof IR1.LabelDec)
+			return CONTINUE;
+		throw new IR1Interp.IntException("Unknown Inst: " + n);
+	}
+	
+	// -----------------------------------------------------------------
+	// Execution routines for individual Inst nodes
+	// -----------------------------------------------------------------
+	//
+	// - Each execute() routine returns CONTINUE, RETURN, or a new idx
+	// (the instruction after the target label of a jump, so it is never
+	// 0, which would read as CONTINUE).
+	//
+	
+	// Binop ---
+	// BOP op;
+	// Dest dst;
+	// Src src1, src2;
+	//
+	int execute(IR1.Binop n) throws Exception
+	{
+		long res;
+		
+		if (n.op instanceof AOP)
+		{
+			res = evaluate((AOP) n.op, n.src1, n.src2);
+		}
+		else if (n.op instanceof ROP)
+		{
+			res = IR1Interp.boolVal(evaluate((ROP) n.op, n.src1, n.src2));
+		}
+		else
+		{
+			throw new IR1Interp.IntException("Unhandled operator: " + n.op.getClass().getName() + ".");
+		}
+		
+		assign(n.dst, res);
+		
+		return CONTINUE;
+	}
+	
+	// Unop ---
+	// UOP op;
+	// Dest dst;
+	// Src src;
+	//
+	int execute(IR1.Unop n) throws Exception
+	{
+		assign(n.dst, unop(n.op, evaluate(n.src)));
+		
+		return CONTINUE;
+	}
+	
+	// Move ---
+	// Dest dst;
+	// Src src;
+	//
+	int execute(IR1.Move n) throws Exception
+	{
+		long val = evaluate(n.src);
+		
+		assign(n.dst, val);
+		
+		return CONTINUE;
+	}
+	
+	// Load ---
+	// Dest dst;
+	// Addr addr;
+	//
+	int execute(IR1.Load n) throws Exception
+	{
+		int src = evalute(n.addr);
+		
+		assign(n.dst, heap.get(src));
+		
+		return CONTINUE;
+	}
+	
+	// Store ---
+	// Addr addr;
+	// Src src;
+	//
+	int execute(IR1.Store n) throws Exception
+	{
+		
+		long val = evaluate(n.src);
+		int dest = evalute(n.addr);
+		
+		heap.set(dest, val);
+		
+		return CONTINUE;
+		
+	}
+	
+	// CJump ---
+	// ROP op;
+	// Src src1, src2;
+	// Label lab;
+	//
+	int execute(IR1.CJump n) throws Exception
+	{
+		boolean result = evaluate(n.op, n.src1, n.src2);
+		
+		if (!result)
+		{
+			return CONTINUE;
+		}
+		
+		if (n.target >= 0)
+		{
+			return n.target + 1;
+		}
+		
+		throw new IR1Interp.IntException("The label is not defined: " + n.lab.name + ".");
+	}
+	
+	// Jump ---
+	// Label lab;
+	//
+	int execute(IR1.Jump n) throws Exception
+	{
+		if (n.target >= 0)
+		{
+			return n.target + 1;
+		}
+		
+		throw new IR1Interp.IntException("The label is not defined: " + n.lab.name + ".");
+	}
+	
+	// Call ---
+	// String name;
+	// Src[] args;
+	// Dest rdst;
+	//
+	int execute(IR1.Call n) throws Exception
+	{
+		// Deal with pre-defined functions.
+		if (n.name.equals("malloc"))
+		{
+			if (n.args.length != 1)
+			{
+				throw new IR1Interp.IntException("_malloc requires 1 parameter.");
+			}
+			
+			if (n.rdst == null)
+			{
+				malloc(evaluate(n.args[0]));
+				
+				return CONTINUE;
+			}
+			
+			assign(n.rdst, malloc(evaluate(n.args[0])));
+			
+			return CONTINUE;
+		}
+		else if (n.name.equals("printStr") || n.name.equals("printBool") || n.name.equals("printInt"))
+		{
+			if (n.args.length == 0 && n.name.equals("printStr"))
+			{
+				out.println();
+				return CONTINUE;
+			}
+			
+			if (n.args.length != 1)
+			{
+				throw new IR1Interp.IntException("_" + n.name + " requires 1 parameter.");
+			}
+			
+			print(evaluate(n.args[0]));
+			
+			return CONTINUE;
+		}
+		
+		IR1Interp.ResolvedFunc funcDef = function(n.name);
+		
+		if (funcDef == null)
+		{
+			throw new IR1Interp.IntException("Call to undefined function: " + n.name + ".");
+		}
+		
+		int argc = n.args.length;
+		
+		if (argBuf.length < argc)
+		{
+			argBuf = new long[argc];
+		}
+		
+		for (int index = 0; index < argc; index++)
+		{
+			argBuf[index] = evaluate(n.args[index]);
+		}
+		
+		// The loop in execute(ResolvedFunc) runs the callee, and assigns
+		// rdst when it returns.
+		enter(funcDef, argBuf, argc);
+		
+		return CALL;
+	}
+	
+	void print(long val) throws IOException
+	{
+		out.println(toString(val));
+	}
+	
+	long malloc(long val) throws Exception
+	{
+		val = IR1Interp.asInt(val);
+		
+		if (IR1Interp.tag(val) != IR1Interp.INT_TAG)
+		{
+			throw new IR1Interp.IntException("_malloc requires the parameter to be an integer.");
+		}
+
+		if (gc != null)
+		{
+			gc.beforeAlloc(IR1Interp.intOf(val));
+			
+			return IR1Interp.ptrVal(heap.alloc(IR1Interp.intOf(val)));
+		}
+		
+		return IR1Interp.intVal(heap.alloc(IR1Interp.intOf(val)));
+	}
+	
+	// Adds every live frame to roots, for IR1Gc.
+	//
+	void gatherRoots(List<IR1Gc.Root> roots)
+	{
+		if (stack != null)
+		{
+			roots.add(new IR1Gc.Root(stack, 0, sp));
+		}
+		
+		if (closure != null)
+		{
+			for (long[] f : closure.frames)
+			{
+				roots.add(new IR1Gc.Root(f, 0, f.length));
+			}
+		}
+	}
+	
+	// Return ---
+	// Src val;
+	//
+	int execute(IR1.Return n) throws Exception
+	{
+		returnVal = n.val != null ? evaluate(n.val) : IR1Interp.UNDEF;
+		
+		return RETURN;
+	}
+	
+	// -----------------------------------------------------------------
+	// Evaluation routines for address
+	// -----------------------------------------------------------------
+	//
+	// - Returns an integer (representing index to the heap memory).
+	//
+	// Address ---
+	// Src base;
+	// int offset;
+	//
+	int evalute(IR1.Addr n) throws Exception
+	{
+		return address(evaluate(n.base), n.offset);
+	}
+	
+	int address(long base, int addrOffset) throws Exception
+	{
+		if (IR1Interp.tag(base) != IR1Interp.INT_TAG && IR1Interp.tag(base) != IR1Interp.PTR_TAG)
+		{
+			throw new IR1Interp.IntException("The location specified must be an integer.");
+		}
+		
+		int offset = IR1Interp.intOf(base) + addrOffset;
+		
+		if (offset < 0 || offset >= heap.size())
+		{
+			throw new IR1Interp.IntException("The offset is out of bounds (" + (offset < 0 ? "below 0" : "larger than heap") + ").");
+		}
+		
+		return offset;
+	}
+	
+	// -----------------------------------------------------------------
+	// Evaluation routines for operands
+	// -----------------------------------------------------------------
+	//
+	// - Each evaluate() routine returns an encoded value.
+	//
+	long evaluate(IR1.Src n) throws Exception
+	{
+		if (n instanceof IR1.Temp)
+		{
+			return stack[fp + ((IR1.Temp) n).slot];
+		}
+		else if (n instanceof IR1.Id)
+		{
+			IR1.Id id = (IR1.Id) n;
+			long val = stack[fp + id.slot];
+			
+			if (val == IR1Interp.NONE)
+			{
+				throw new IR1Interp.IntException("The variable is not defined: "
+						+ id.name + ".");
+			}
+			
+			return val;
+		}
+		else if (n instanceof IntLit)
+		{
+			return IR1Interp.intVal(((IntLit) n).i);
+		}
+		else if (n instanceof BoolLit)
+		{
+			return IR1Interp.boolVal(((BoolLit) n).b);
+		}
+		else if (n instanceof StrLit)
+		{
+			return IR1Interp.strVal(((StrLit) n).index);
+		}
+		
+		throw new IR1Interp.IntException("Unhandled operand: " + n + ".");
+	}
+	
+	boolean evaluate(ROP op, Src src1, Src src2) throws Exception
+	{
+		return compare(op, evaluate(src1), evaluate(src2));
+	}
+	
+	long evaluate(AOP op, Src src1, Src src2) throws Exception
+	{
+		return arith(op, evaluate(src1), evaluate(src2));
+	}
+	
+	// -----------------------------------------------------------------
+	// Operations on values
+	// -----------------------------------------------------------------
+	//
+	// - Shared by every execution mode.
+	//
+	boolean compare(ROP op, long lhs, long rhs) throws Exception
+	{
+		lhs = IR1Interp.asInt(lhs);
+		rhs = IR1Interp.asInt(rhs);
+		
+		if (IR1Interp.tag(lhs) != IR1Interp.tag(rhs))
+		{
+			throw new IR1Interp.IntException(
+					"The left and right hand operands do not match types.");
+		}
+		
+		if (IR1Interp.tag(lhs) == IR1Interp.BOOL_TAG)
+		{
+			if (ROP.EQ == op)
+			{
+				return IR1Interp.boolOf(lhs) == IR1Interp.boolOf(rhs);
+			}
+			else if (ROP.NE == op)
+			{
+				return IR1Interp.boolOf(lhs) != IR1Interp.boolOf(rhs);
+			}
+			
+			throw new IR1Interp.IntException(
+					"The following operator cannot be performed on booleans: "
+							+ op + ".");
+		}
+		
+		int result = 0;
+		if (IR1Interp.tag(lhs) == IR1Interp.STR_TAG)
+		{
+			result = strOf(lhs).compareTo(strOf(rhs));
+		}
+		else if (IR1Interp.tag(lhs) == IR1Interp.INT_TAG)
+		{
+			result = Integer.compare(IR1Interp.intOf(lhs), IR1Interp.intOf(rhs));
+		}
+		else
+		{
+			throw new IR1Interp.IntException("The following value type was not handled: "
+					+ IR1Interp.typeName(lhs) + ".");
+		}
+		
+		if (op == ROP.EQ)
+		{
+			return result == 0;
+		}
+		else if (op == ROP.NE)
+		{
+			return result != 0;
+		}
+		else if (op == ROP.LT)
+		{
+			return result < 0;
+		}
+		else if (op == ROP.GT)
+		{
+			return result > 0;
+		}
+		else if (op == ROP.LE)
+		{
+			return result <= 0;
+		}
+		else if (op == ROP.GE)
+		{
+			return result >= 0;
+		}
+		
+		throw new IR1Interp.IntException("Unhandled ROP: " + op + ".");
+	}
+	
+	long arith(AOP op, long lhs, long rhs) throws Exception
+	{
+		if (IR1Interp.tag(lhs) == IR1Interp.PTR_TAG || IR1Interp.tag(rhs) == IR1Interp.PTR_TAG)
+		{
+			return pointerArith(op, lhs, rhs);
+		}
+		
+		if (IR1Interp.tag(lhs) != IR1Interp.tag(rhs))
+		{
+			throw new IR1Interp.IntException("The left and right hand side must be of the same type.");
+		}
+		
+		if (IR1Interp.tag(lhs) == IR1Interp.STR_TAG)
+		{
+			if (op == AOP.ADD)
+			{
+				return strVal(strOf(lhs) + strOf(rhs));
+			}
+			
+			throw new IR1Interp.IntException("The following operator cannnot be applied to strings: " + op + ".");
+		}
+		
+		if (IR1Interp.tag(lhs) == IR1Interp.INT_TAG)
+		{
+			int i1 = IR1Interp.intOf(lhs);
+			int i2 = IR1Interp.intOf(rhs);
+			int result = -1;
+			
+			if (op == AOP.ADD)
+			{
+				result = i1 + i2;
+			}
+			else if (op == AOP.SUB)
+			{
+				result = i1 - i2;
+			}
+			else if (op == AOP.MUL)
+			{
+				result = i1 * i2;
+			}
+			else if (op == AOP.DIV)
+			{
+				result = i1 / i2;
+			}
+			else
+			{
+				throw new IR1Interp.IntException("The following operator cannot be applied to integers: " + op + ".");
+			}
+			
+			return IR1Interp.intVal(result);
+		}
+		
+		if (IR1Interp.tag(lhs) == IR1Interp.BOOL_TAG)
+		{
+			boolean b1 = IR1Interp.boolOf(lhs);
+			boolean b2 = IR1Interp.boolOf(rhs);
+			boolean result = false;
+			
+			if (op == AOP.AND)
+			{
+				result = b1 && b2;
+			}
+			else if (op == AOP.OR)
+			{
+				result = b1 || b2;
+			}
+			else
+			{
+				throw new IR1Interp.IntException("The following operator cannot be applied to booleans: " + op + ".");
+			}
+			
+			return IR1Interp.boolVal(result);
+		}
+		
+		throw new IR1Interp.IntException("The following value type is not handled: " + IR1Interp.typeName(lhs) + ".");
+	}
+	
+	// pointer + int, int + pointer and pointer - int give a pointer into
+	// the same object; anything else treats pointers as ints.
+	//
+	long pointerArith(AOP op, long lhs, long rhs) throws Exception
+	{
+		long result = arith(op, IR1Interp.asInt(lhs), IR1Interp.asInt(rhs));
+		
+		if ((op == AOP.ADD && IR1Interp.tag(lhs) != IR1Interp.tag(rhs)) || (op == AOP.SUB && IR1Interp.tag(rhs) == IR1Interp.INT_TAG))
+		{
+			return IR1Interp.ptrVal(IR1Interp.intOf(result));
+		}
+		
+		return result;
+	}
+	
+	long unop(UOP op, long val) throws Exception
+	{
+		val = IR1Interp.asInt(val);
+		
+		if (op == UOP.NEG && IR1Interp.tag(val) == IR1Interp.INT_TAG)
+		{
+			return IR1Interp.intVal(-IR1Interp.intOf(val));
+		}
+		else if (op == UOP.NOT && IR1Interp.tag(val) == IR1Interp.BOOL_TAG)
+		{
+			return IR1Interp.boolVal(!IR1Interp.boolOf(val));
+		}
+		
+		throw new IR1Interp.IntException("Wrong op in Unop inst: " + op + " (" + IR1Interp.typeName(val) + ")");
+	}
+	
+	// Values are immutable longs, so assignment is a plain slot store.
+	//
+	void assign(Dest dest, long value) throws Exception
+	{
+		if (dest instanceof Temp)
+		{
+			stack[fp + ((Temp) dest).slot] = value;
+			return;
+		}
+		else if (dest instanceof Id)
+		{
+			Id id = (Id) dest;
+			
+			if (stack[fp + id.slot] == IR1Interp.NONE)
+			{
+				throw new IR1Interp.IntException("The variable is not defined: "
+						+ id.name + ".");
+			}
+			
+			stack[fp + id.slot] = value;
+			return;
+		}
+		
+		throw new IR1Interp.IntException("Unhandled assignment case: " + dest.getClass().getName() + ".");
+	}
+}
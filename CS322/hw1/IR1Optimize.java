@@ -0,0 +1,71 @@
+//
+// Driver for the IR1 optimizer.
+// Assignment by Ian Aldrighetti
+//
+//   java IR1Optimize [-report] [-inline=N] prog.ir
+//
+// Prints the optimized program (see ir1.IR1Opt) on stdout, as IR1 text
+// that IR1Interp runs and CodeGen compiles. With -report, each
+// function's instruction counts before and after, and what each pass
+// removed, go to stderr. -inline=N inlines calls to functions of at most
+// N instructions (ir1.IR1Inline; 0: none).
+//
+import ir1.IR1;
+import ir1.IR1Opt;
+
+import java.io.FileInputStream;
+
+public class IR1Optimize
+{
+	public static void main(String[] args) throws Exception
+	{
+		IR1Opt opt = new IR1Opt();
+		boolean report = false;
+		String fileName = null;
+		
+		for (String arg : args)
+		{
+			if (arg.equals("-report"))
+			{
+				report = true;
+			}
+			else if (arg.startsWith("-inline="))
+			{
+				opt.inlineBudget = Integer.parseInt(arg.substring("-inline=".length()));
+			}
+			else if (arg.startsWith("-") || fileName != null)
+			{
+				fileName = null;
+				break;
+			}
+			else
+			{
+				fileName = arg;
+			}
+		}
+		
+		if (fileName == null)
+		{
+			System.out.println("Usage: java IR1Optimize [-report] [-inline=N] prog.ir");
+			return;
+		}
+		
+		FileInputStream stream = new FileInputStream(fileName);
+		IR1.Program p;
+		try
+		{
+			p = IR1Interp.parse(stream);
+		}
+		finally
+		{
+			stream.close();
+		}
+		
+		System.out.print(opt.optimize(p));
+		
+		if (report)
+		{
+			opt.report(System.err);
+		}
+	}
+}
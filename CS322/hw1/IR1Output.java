@@ -0,0 +1,116 @@
+//
+// Output sinks for the IR1 print builtins.
+// Assignment by Ian Aldrighetti
+//
+// A machine writes through an IR1Output instead of System.out, whose
+// println synchronizes and flushes on every line:
+//
+// - Buffered collects lines in an unsynchronized buffer and writes them
+// out once it reaches a threshold, and when the machine stops
+// - Capture keeps everything in memory, for IR1Batch
+//
+// A sink belongs to one machine; neither is thread-safe.
+//
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+abstract class IR1Output
+{
+	static final String NEWLINE = System.lineSeparator();
+
+	abstract void print(String s) throws IOException;
+
+	void println(String s) throws IOException
+	{
+		print(s);
+		print(NEWLINE);
+	}
+
+	void println() throws IOException
+	{
+		print(NEWLINE);
+	}
+
+	// Writes out anything still buffered.
+	void flush() throws IOException
+	{
+	}
+
+	/**
+	 * Buffers output for an OutputStream, writing it out whenever at
+	 * least 'threshold' chars are waiting (so 0 writes every line).
+	 *
+	 * @author Ian
+	 */
+	static class Buffered extends IR1Output
+	{
+		static final int DEFAULT_THRESHOLD = 64 * 1024;
+
+		final OutputStream out;
+		final int threshold;
+		final StringBuilder buffer = new StringBuilder();
+
+		Buffered(OutputStream out, int threshold)
+		{
+			this.out = out;
+			this.threshold = threshold;
+		}
+
+		// Standard output, bypassing System.out's locking
+		static Buffered stdout(int threshold)
+		{
+			return new Buffered(new FileOutputStream(FileDescriptor.out), threshold);
+		}
+
+		void print(String s)
+		{
+			buffer.append(s);
+		}
+
+		void println(String s) throws IOException
+		{
+			buffer.append(s).append(NEWLINE);
+			if (buffer.length() >= threshold)
+			{
+				flush();
+			}
+		}
+
+		void println() throws IOException
+		{
+			println("");
+		}
+
+		void flush() throws IOException
+		{
+			if (buffer.length() > 0)
+			{
+				out.write(buffer.toString().getBytes());
+				buffer.setLength(0);
+			}
+			out.flush();
+		}
+	}
+
+	/**
+	 * Keeps all output in memory.
+	 *
+	 * @author Ian
+	 */
+	static class Capture extends IR1Output
+	{
+		final StringBuilder text = new StringBuilder();
+
+		void print(String s)
+		{
+			text.append(s);
+		}
+
+		public String toString()
+		{
+			return text.toString();
+		}
+	}
+}
@@ -0,0 +1,48 @@
+//
+// Converter between the text and binary forms of IR1.
+// Assignment by Ian Aldrighetti
+//
+//   java IR1Pack prog.ir [prog.ir1b]   text to binary
+//   java IR1Pack -text prog.ir1b       binary to text, on stdout
+//
+// The binary file (see ir1.IR1Binary) defaults to the input's name with
+// .ir1b in place of .ir. IR1Interp runs either form. The text printed by
+// -text is exactly what the parsed text program prints.
+//
+import ir1.IR1;
+import ir1.IR1Binary;
+
+import java.io.File;
+import java.io.FileInputStream;
+
+public class IR1Pack
+{
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length == 2 && args[0].equals("-text"))
+		{
+			System.out.print(new IR1Binary.Reader(new File(args[1])).program());
+		}
+		else if ((args.length == 1 || args.length == 2) && !args[0].startsWith("-"))
+		{
+			String output = args.length == 2 ? args[1] : args[0].replaceAll("\\.ir$", "") + ".ir1b";
+			
+			FileInputStream stream = new FileInputStream(args[0]);
+			IR1.Program p;
+			try
+			{
+				p = IR1Interp.parse(stream);
+			}
+			finally
+			{
+				stream.close();
+			}
+			
+			IR1Binary.write(p, new File(output));
+		}
+		else
+		{
+			System.out.println("Usage: java IR1Pack prog.ir [prog.ir1b] | java IR1Pack -text prog.ir1b");
+		}
+	}
+}
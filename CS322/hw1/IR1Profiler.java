@@ -0,0 +1,363 @@
+//
+// Instruction-level profiler for the IR1 interpreter.
+// Assignment by Ian Aldrighetti
+//
+// Enabled with -profile[=FILE]. The profiled run uses its own copy of
+// the fetch-and-execute loop (execute() below) instead of
+// IR1Machine.execute(ResolvedFunc), so an ordinary run does no counting
+// at all. For each function it records:
+//
+// - how often each instruction ran, by its index in Func.code
+// - how often the function was called
+// - exclusive instructions (run in the function itself) and inclusive
+// instructions (run while the function was on the stack; recursive
+// calls are counted once, at the outermost one)
+// - heap bytes allocated by its _malloc calls
+//
+// On exit, report() prints the functions sorted by exclusive count and
+// the hottest instructions, and writeFolded() writes the call tree in
+// the folded-stacks format read by flamegraph.pl, one line per call path
+// weighted by instructions:
+//
+//   main;fib;fib 1234
+//
+import ir1.IR1;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+class IR1Profiler
+{
+	static final String DEFAULT_FOLDED = "ir1.folded";
+	static final int HOT_INSTRUCTIONS = 20;
+
+	// Calls nested deeper than this are folded into the call-tree node
+	// at this depth, so a deep recursion does not make a deep tree.
+	static final int MAX_TREE_DEPTH = 512;
+
+	final IR1Machine machine;
+
+	/**
+	 * Counters for one function.
+	 *
+	 * @author Ian
+	 */
+	static class FuncProfile
+	{
+		final IR1Interp.ResolvedFunc rf;
+		final long[] counts;	// by instruction index
+		long calls = 0;
+		long exclusive = 0;
+		long inclusive = 0;
+		long allocWords = 0;
+
+		// Number of activations on the stack
+		int active = 0;
+
+		FuncProfile(IR1Interp.ResolvedFunc rf)
+		{
+			this.rf = rf;
+			counts = new long[rf.func.code.length];
+		}
+	}
+
+	/**
+	 * A node of the call tree: one call path from main.
+	 *
+	 * @author Ian
+	 */
+	static class Node
+	{
+		final String name;
+		final Map<IR1Interp.ResolvedFunc, Node> children = new HashMap<IR1Interp.ResolvedFunc, Node>();
+		long self = 0;
+
+		Node(String name)
+		{
+			this.name = name;
+		}
+
+		Node child(IR1Interp.ResolvedFunc rf)
+		{
+			Node n = children.get(rf);
+			if (n == null)
+			{
+				n = new Node(rf.func.name);
+				children.put(rf, n);
+			}
+			return n;
+		}
+	}
+
+	final Map<IR1Interp.ResolvedFunc, FuncProfile> profiles = new IdentityHashMap<IR1Interp.ResolvedFunc, FuncProfile>();
+	final Node root = new Node(null);
+	long total = 0;
+
+	// Per activation, parallel to the machine's control stack: its
+	// profile, its call-tree node, and 'total' when it was entered
+	FuncProfile[] frameProfile = new FuncProfile[64];
+	Node[] frameNode = new Node[64];
+	long[] frameStart = new long[64];
+	int frames = 0;
+
+	IR1Profiler(IR1Machine machine)
+	{
+		this.machine = machine;
+	}
+
+	FuncProfile profileOf(IR1Interp.ResolvedFunc rf)
+	{
+		FuncProfile p = profiles.get(rf);
+		if (p == null)
+		{
+			p = new FuncProfile(rf);
+			profiles.put(rf, p);
+		}
+		return p;
+	}
+
+	// Records an activation of rf, entered from 'caller'.
+	//
+	void push(IR1Interp.ResolvedFunc rf, Node caller)
+	{
+		if (frames == frameProfile.length)
+		{
+			frameProfile = Arrays.copyOf(frameProfile, frames * 2);
+			frameNode = Arrays.copyOf(frameNode, frames * 2);
+			frameStart = Arrays.copyOf(frameStart, frames * 2);
+		}
+
+		FuncProfile p = profileOf(rf);
+		p.calls++;
+		p.active++;
+
+		frameProfile[frames] = p;
+		frameNode[frames] = frames < MAX_TREE_DEPTH ? caller.child(rf) : caller;
+		frameStart[frames] = total;
+		frames++;
+	}
+
+	void pop()
+	{
+		frames--;
+		FuncProfile p = frameProfile[frames];
+		if (--p.active == 0)
+		{
+			p.inclusive += total - frameStart[frames];
+		}
+	}
+
+	// The instrumented version of IR1Machine.execute(ResolvedFunc);
+	// keep the two in step.
+	//
+	void execute(IR1Interp.ResolvedFunc rf) throws Exception
+	{
+		IR1Machine m = machine;
+		IR1Heap heap = m.heap;
+
+		m.newStacks();
+		m.enter(rf, null, -1);
+		push(rf, root);
+
+		FuncProfile prof = frameProfile[0];
+		Node node = frameNode[0];
+		IR1.Inst[] code = rf.func.code;
+		int idx = 0;
+		try
+		{
+			while (true)
+			{
+				int next;
+				if (idx < code.length)
+				{
+					prof.counts[idx]++;
+					node.self++;
+					total++;
+
+					long allocated = heap.allocatedWords;
+					next = m.execute(code[idx]);
+					prof.allocWords += heap.allocatedWords - allocated;
+				}
+				else
+				{
+					next = IR1Machine.RETURN;
+				}
+
+				if (next == IR1Machine.CONTINUE)
+				{
+					idx++;
+				}
+				else if (next == IR1Machine.CALL)
+				{
+					m.ctlPc[m.depth - 1] = idx;
+					push(m.cur, node);
+					prof = frameProfile[frames - 1];
+					node = frameNode[frames - 1];
+					code = m.cur.func.code;
+					idx = 0;
+				}
+				else if (next == IR1Machine.RETURN)
+				{
+					pop();
+					m.depth--;
+					m.sp = m.fp;
+					m.cur = m.ctlFunc[m.depth];
+					m.fp = m.ctlFp[m.depth];
+
+					if (m.depth == 0)
+					{
+						break;
+					}
+
+					prof = frameProfile[frames - 1];
+					node = frameNode[frames - 1];
+					code = m.cur.func.code;
+					idx = m.ctlPc[m.depth];
+
+					IR1.Call call = (IR1.Call) code[idx];
+					if (call.rdst != null)
+					{
+						m.assign(call.rdst, m.returnVal);
+						m.returnVal = IR1Interp.UNDEF;
+					}
+
+					idx++;
+				}
+				else
+				{
+					idx = next;
+				}
+			}
+		}
+		finally
+		{
+			// On an error, close the activations still open so the
+			// inclusive counts cover them.
+			while (frames > 0)
+			{
+				pop();
+			}
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Output
+	// -----------------------------------------------------------------
+	//
+
+	void report(PrintStream err)
+	{
+		List<FuncProfile> funcs = new ArrayList<FuncProfile>(profiles.values());
+		long calls = 0;
+		for (FuncProfile p : funcs)
+		{
+			p.exclusive = 0;
+			for (long c : p.counts)
+			{
+				p.exclusive += c;
+			}
+			calls += p.calls;
+		}
+		Collections.sort(funcs, (a, b) -> Long.compare(b.exclusive, a.exclusive));
+
+		err.println("profile: " + total + " instructions, " + calls + " calls");
+		err.println(String.format("%-20s %12s %14s %6s %14s %6s %14s",
+				"function", "calls", "exclusive", "%", "inclusive", "%", "heap bytes"));
+		for (FuncProfile p : funcs)
+		{
+			err.println(String.format("%-20s %12d %14d %6s %14d %6s %14d",
+					p.rf.func.name, p.calls, p.exclusive, percent(p.exclusive),
+					p.inclusive, percent(p.inclusive), p.allocWords * IR1Heap.WORD_BYTES));
+		}
+
+		// The hottest instructions over all functions
+		List<long[]> hot = new ArrayList<long[]>();	// {count, function, index}
+		for (int f = 0; f < funcs.size(); f++)
+		{
+			long[] counts = funcs.get(f).counts;
+			for (int i = 0; i < counts.length; i++)
+			{
+				if (counts[i] > 0)
+				{
+					hot.add(new long[] { counts[i], f, i });
+				}
+			}
+		}
+		Collections.sort(hot, (a, b) -> Long.compare(b[0], a[0]));
+
+		err.println("hottest instructions:");
+		for (int h = 0; h < Math.min(HOT_INSTRUCTIONS, hot.size()); h++)
+		{
+			long[] e = hot.get(h);
+			IR1Interp.ResolvedFunc rf = funcs.get((int) e[1]).rf;
+			int i = (int) e[2];
+			err.println(String.format("%14d %6s  %-20s %s", e[0], percent(e[0]),
+					rf.func.name + ":" + i, rf.func.code[i].toString().trim()));
+		}
+	}
+
+	String percent(long count)
+	{
+		return total == 0 ? "-" : String.format("%.1f", 100.0 * count / total);
+	}
+
+	// Writes one line per call path that ran any instructions itself.
+	// The tree is walked with an explicit stack, since it is as deep as
+	// the program's deepest recursion.
+	//
+	void writeFolded(String fileName) throws IOException
+	{
+		PrintWriter w = new PrintWriter(new FileWriter(fileName));
+		try
+		{
+			StringBuilder path = new StringBuilder();
+			ArrayDeque<Node> nodes = new ArrayDeque<Node>();
+			ArrayDeque<Integer> lengths = new ArrayDeque<Integer>();	// of the parent's path
+
+			for (Node n : root.children.values())
+			{
+				nodes.push(n);
+				lengths.push(0);
+			}
+
+			while (!nodes.isEmpty())
+			{
+				Node n = nodes.pop();
+				int length = lengths.pop();
+
+				path.setLength(length);
+				if (length > 0)
+				{
+					path.append(';');
+				}
+				path.append(n.name);
+
+				if (n.self > 0)
+				{
+					w.print(path);
+					w.println(" " + n.self);
+				}
+
+				for (Node c : n.children.values())
+				{
+					nodes.push(c);
+					lengths.push(path.length());
+				}
+			}
+		}
+		finally
+		{
+			w.close();
+		}
+	}
+}
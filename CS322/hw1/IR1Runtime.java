@@ -0,0 +1,150 @@
+//
+// Runtime support for IR1 programs compiled to JVM classes by IR1Jvm.
+// Assignment by Ian Aldrighetti
+//
+// Generated code keeps every IR1 value in a long local, encoded as in
+// IR1Interp, and calls into this class for operators and builtins. The
+// int fast paths are small enough for the JIT to inline; anything else
+// falls back to the machine's value operations, so results and errors
+// match the reference interpreter exactly.
+//
+// The class and its members are public because generated classes live
+// in their own class loader.
+//
+import ir1.IR1.AOP;
+import ir1.IR1.ROP;
+import ir1.IR1.UOP;
+
+public class IR1Runtime
+{
+	final IR1Machine machine;
+
+	IR1Runtime(IR1Machine machine)
+	{
+		this.machine = machine;
+	}
+
+	// -----------------------------------------------------------------
+	// Builtins and memory (reached through the generated class's
+	// static 'rt' field, like everything but bool() and error())
+	// -----------------------------------------------------------------
+	//
+
+	public long malloc(long size) throws Exception
+	{
+		return machine.malloc(size);
+	}
+
+	public void print(long val) throws Exception
+	{
+		machine.print(val);
+	}
+
+	public void println() throws Exception
+	{
+		machine.out.println();
+	}
+
+	public long load(long base, int offset) throws Exception
+	{
+		return machine.heap.get(machine.address(base, offset));
+	}
+
+	public void store(long base, int offset, long val) throws Exception
+	{
+		machine.heap.set(machine.address(base, offset), val);
+	}
+
+	// -----------------------------------------------------------------
+	// Operators
+	// -----------------------------------------------------------------
+	//
+
+	static boolean ints(long a, long b)
+	{
+		return IR1Interp.tag(a) == IR1Interp.INT_TAG && IR1Interp.tag(b) == IR1Interp.INT_TAG;
+	}
+
+	public long add(long a, long b) throws Exception
+	{
+		return ints(a, b) ? IR1Interp.intVal((int) a + (int) b) : machine.arith(AOP.ADD, a, b);
+	}
+
+	public long sub(long a, long b) throws Exception
+	{
+		return ints(a, b) ? IR1Interp.intVal((int) a - (int) b) : machine.arith(AOP.SUB, a, b);
+	}
+
+	public long mul(long a, long b) throws Exception
+	{
+		return ints(a, b) ? IR1Interp.intVal((int) a * (int) b) : machine.arith(AOP.MUL, a, b);
+	}
+
+	public long div(long a, long b) throws Exception
+	{
+		return machine.arith(AOP.DIV, a, b);
+	}
+
+	public long and(long a, long b) throws Exception
+	{
+		return machine.arith(AOP.AND, a, b);
+	}
+
+	public long or(long a, long b) throws Exception
+	{
+		return machine.arith(AOP.OR, a, b);
+	}
+
+	public boolean eq(long a, long b) throws Exception
+	{
+		return ints(a, b) ? (int) a == (int) b : machine.compare(ROP.EQ, a, b);
+	}
+
+	public boolean ne(long a, long b) throws Exception
+	{
+		return ints(a, b) ? (int) a != (int) b : machine.compare(ROP.NE, a, b);
+	}
+
+	public boolean lt(long a, long b) throws Exception
+	{
+		return ints(a, b) ? (int) a < (int) b : machine.compare(ROP.LT, a, b);
+	}
+
+	public boolean le(long a, long b) throws Exception
+	{
+		return ints(a, b) ? (int) a <= (int) b : machine.compare(ROP.LE, a, b);
+	}
+
+	public boolean gt(long a, long b) throws Exception
+	{
+		return ints(a, b) ? (int) a > (int) b : machine.compare(ROP.GT, a, b);
+	}
+
+	public boolean ge(long a, long b) throws Exception
+	{
+		return ints(a, b) ? (int) a >= (int) b : machine.compare(ROP.GE, a, b);
+	}
+
+	public static long bool(boolean b)
+	{
+		return IR1Interp.boolVal(b);
+	}
+
+	public long neg(long a) throws Exception
+	{
+		return machine.unop(UOP.NEG, a);
+	}
+
+	public long not(long a) throws Exception
+	{
+		return machine.unop(UOP.NOT, a);
+	}
+
+	// Builds the exception for a runtime error detected at compile time
+	// (undefined label, variable or function); the caller throws it.
+	//
+	public static Exception error(String msg)
+	{
+		return new IR1Interp.IntException(msg);
+	}
+}
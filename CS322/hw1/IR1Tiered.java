@@ -0,0 +1,208 @@
+//
+// Tiered execution of IR1 programs.
+// Assignment by Ian Aldrighetti
+//
+// With -tiered a program starts out in the interpreter, so a short run
+// pays for no compilation. The interpreter counts the calls and loop
+// back-edges of each function, and once a function reaches the
+// threshold (-tier=N) it is compiled to closures (IR1Closure):
+//
+// - Every later call to it runs the compiled code.
+// - A call that is still in the interpreter moves over at its next
+// back-edge: its frame is copied out of the interpreter's stack and the
+// compiled code carries on from the loop header (on-stack replacement),
+// so a long loop in main does not stay interpreted.
+//
+// Compiled code that calls a function which is not compiled yet comes
+// back through call(), so a cold function stays interpreted whoever
+// calls it. The two tiers share the machine's values, heap and
+// builtins, so the output is that of any other mode.
+//
+// -tierlog prints each transition to stderr.
+//
+import ir1.IR1;
+
+import java.util.Arrays;
+
+class IR1Tiered
+{
+	static final int DEFAULT_THRESHOLD = 1000;
+
+	final IR1Machine machine;
+	final IR1Closure closure;
+	final int threshold;
+	final boolean log;
+
+	IR1Tiered(IR1Machine machine, IR1Closure closure)
+	{
+		this.machine = machine;
+		this.closure = closure;
+		threshold = machine.options.tierThreshold;
+		log = machine.options.tierLog;
+	}
+
+	// Program ---
+	// Runs main, in whichever tier its count puts it.
+	//
+	void execute() throws Exception
+	{
+		machine.newStacks();
+		call(closure.function("main"), null);
+	}
+
+	// Runs cf with the given arguments (null for main) and returns its
+	// return value.
+	//
+	long call(IR1Closure.CompiledFunc cf, long[] args) throws Exception
+	{
+		if (hot(cf))
+		{
+			return closure.call(cf, args);
+		}
+
+		return interpret(cf, args, args == null ? -1 : args.length);
+	}
+
+	// Counts one call or back-edge of cf. True if cf is compiled, which
+	// happens here once the count reaches the threshold.
+	//
+	boolean hot(IR1Closure.CompiledFunc cf) throws Exception
+	{
+		if (cf.code != null)
+		{
+			return true;
+		}
+
+		if (++cf.count < threshold)
+		{
+			return false;
+		}
+
+		closure.compile(cf);
+		if (log)
+		{
+			System.err.println("tier: compiled _" + cf.rf.func.name + " after " + cf.count + " calls and loop iterations");
+		}
+
+		return true;
+	}
+
+	// The interpreter's fetch-and-execute loop, as in
+	// IR1Machine.execute(ResolvedFunc), with the counting and the calls
+	// into compiled code added. It runs on the machine's frame stack
+	// above any calls already there, so it can be entered from compiled
+	// code, and returns when cf returns.
+	//
+	long interpret(IR1Closure.CompiledFunc cf, long[] args, int argc) throws Exception
+	{
+		IR1Machine m = machine;
+		int base = m.depth;
+
+		m.enter(cf.rf, args, argc);
+
+		IR1.Inst[] code = cf.rf.func.code;
+		int idx = 0;
+		while (true)
+		{
+			int next = idx < code.length ? m.execute(code[idx]) : IR1Machine.RETURN;
+
+			// A jump to an earlier instruction closes a loop. A hot
+			// function finishes this call in compiled code; for the
+			// interpreter, that is a return.
+			if (next > 0 && next <= idx && hot(cf))
+			{
+				if (log)
+				{
+					System.err.println("tier: _" + cf.rf.func.name + " continues compiled at "
+							+ ((IR1.LabelDec) code[next - 1]).name + " (on-stack replacement)");
+				}
+
+				long[] f = Arrays.copyOfRange(m.stack, m.fp, m.fp + m.cur.frameSize);
+				m.returnVal = closure.run(cf, f, next);
+				next = IR1Machine.RETURN;
+			}
+
+			if (next == IR1Machine.CONTINUE)
+			{
+				idx++;
+			}
+			else if (next == IR1Machine.CALL)
+			{
+				IR1Closure.CompiledFunc callee = closure.function(m.cur.func.name);
+
+				if (hot(callee))
+				{
+					// execute(Call) has pushed an interpreter frame for
+					// the callee; take the arguments back off it.
+					int[] params = callee.rf.paramSlots;
+					long[] calleeArgs = new long[params.length];
+					for (int index = 0; index < params.length; index++)
+					{
+						calleeArgs[index] = m.stack[m.fp + params[index]];
+					}
+					pop();
+
+					long val = closure.call(callee, calleeArgs);
+					returnTo((IR1.Call) code[idx], val);
+					idx++;
+				}
+				else
+				{
+					m.ctlPc[m.depth - 1] = idx;
+					cf = callee;
+					code = cf.rf.func.code;
+					idx = 0;
+				}
+			}
+			else if (next == IR1Machine.RETURN)
+			{
+				pop();
+
+				if (m.depth == base)
+				{
+					break;
+				}
+
+				cf = closure.function(m.cur.func.name);
+				code = cf.rf.func.code;
+				idx = m.ctlPc[m.depth];
+
+				long val = m.returnVal;
+				m.returnVal = IR1Interp.UNDEF;
+				returnTo((IR1.Call) code[idx], val);
+				idx++;
+			}
+			else
+			{
+				idx = next;
+			}
+		}
+
+		long val = m.returnVal;
+		m.returnVal = IR1Interp.UNDEF;
+
+		return val;
+	}
+
+	// Pops the running interpreter frame.
+	//
+	void pop()
+	{
+		IR1Machine m = machine;
+
+		m.depth--;
+		m.sp = m.fp;
+		m.cur = m.ctlFunc[m.depth];
+		m.fp = m.ctlFp[m.depth];
+	}
+
+	// Assigns the value a call returned, if the Call has a destination.
+	//
+	void returnTo(IR1.Call call, long val) throws Exception
+	{
+		if (call.rdst != null)
+		{
+			machine.assign(call.rdst, val);
+		}
+	}
+}
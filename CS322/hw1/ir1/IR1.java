@@ -179,6 +179,7 @@ public class IR1 {
     public final ROP op;
     public final Src src1, src2;
     public final Label lab;
+    public int target = -1;	// index of lab's LabelDec, set by the interpreter
 
     CJump(ROP o, Src s1, Src s2, Label l) { 
       op=o; src1=s1; src2=s2; lab=l; 
@@ -193,6 +194,7 @@ public class IR1 {
   //
   public static class Jump extends Inst {
     public final Label lab;
+    public int target = -1;	// index of lab's LabelDec, set by the interpreter
 
     Jump(Label l) { lab=l; }
     public String toString() { 
@@ -255,6 +257,7 @@ public class IR1 {
 
   public static class Id implements Src, Dest  {
     public final String name;
+    public int slot = -1;	// frame slot, set by the interpreter
 
     Id(String s) { name=s; }
     public String toString() { return name; }
@@ -263,6 +266,7 @@ public class IR1 {
   public static class Temp implements Src, Dest  {
     private static int cnt=0;
     public final int num;
+    public int slot = -1;	// frame slot, set by the interpreter
 
     Temp() { num = ++Temp.cnt; }
     Temp(int n) { num=n; }
@@ -285,6 +289,7 @@ public class IR1 {
 
   public static class StrLit implements Src {
     public final String s;
+    public int index = -1;	// string table index, set by the interpreter
 
     StrLit(String v) { s=v; }
     public String toString() { return "\"" + s + "\""; }
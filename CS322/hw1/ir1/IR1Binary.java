@@ -0,0 +1,634 @@
+//
+// Binary form of IR1 programs.
+// Assignment by Ian Aldrighetti
+//
+// A compact alternative to the text format that loads without the
+// parser. Writing a program and reading it back gives a Program whose
+// toString() is identical to the original's.
+//
+// Layout (all integers are unsigned LEB128 varints; signed ones are
+// zigzag-encoded first):
+//
+//   magic "IR1B", version
+//   constant pool: count, then per entry its UTF-8 length and bytes
+//   function table: count, then per function its name and code length
+//   code: each function's code, in table order
+//
+// Names, labels, callees and string literals are constant-pool indices.
+// A function's code is its params, its locals and its instructions, each
+// instruction an opcode byte followed by its operands. An
+// operand is one varint, (payload << 3) | kind.
+//
+// Reader maps the file and decodes nothing but the tables up front;
+// each Func (and each pool string) is decoded the first time it is
+// asked for.
+//
+package ir1;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class IR1Binary
+{
+	public static final byte[] MAGIC = { 'I', 'R', '1', 'B' };
+	public static final int VERSION = 1;
+
+	// Opcodes
+	//
+	static final int LABEL = 0;
+	static final int MOVE = 1;
+	static final int BINOP = 2;		// op: AOP ordinal, or 8 + ROP ordinal
+	static final int UNOP = 3;
+	static final int LOAD = 4;
+	static final int STORE = 5;
+	static final int CALL = 6;
+	static final int RETURN = 7;
+	static final int CJUMP = 8;
+	static final int JUMP = 9;
+
+	static final int ROP_BASE = 8;
+
+	// Operand kinds
+	//
+	static final int ID = 0;
+	static final int TEMP = 1;
+	static final int INT = 2;
+	static final int BOOL = 3;
+	static final int STR = 4;
+	static final int NONE = 5;		// no rdst, or a bare return
+
+	// True if the file starts with MAGIC.
+	//
+	public static boolean isBinary(File file) throws IOException
+	{
+		byte[] head = new byte[MAGIC.length];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try
+		{
+			in.readFully(head);
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+		finally
+		{
+			in.close();
+		}
+		return Arrays.equals(head, MAGIC);
+	}
+
+	// -----------------------------------------------------------------
+	// Writing
+	// -----------------------------------------------------------------
+	//
+
+	public static void write(IR1.Program p, File file) throws IOException
+	{
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try
+		{
+			write(p, out);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	public static void write(IR1.Program p, OutputStream out) throws IOException
+	{
+		Encoder enc = new Encoder();
+		for (IR1.Func f : p.funcs)
+		{
+			enc.constant(f.name);
+		}
+
+		// Code before the header, so the pool holds everything it refers
+		// to
+		Encoder code = new Encoder();
+		int[] lengths = new int[p.funcs.length];
+		for (int f = 0; f < p.funcs.length; f++)
+		{
+			int start = code.size;
+			code.func(p.funcs[f], enc);
+			lengths[f] = code.size - start;
+		}
+
+		Encoder head = new Encoder();
+		head.bytes(MAGIC, MAGIC.length);
+		head.uint(VERSION);
+
+		head.uint(enc.pool.size());
+		for (String s : enc.pool.keySet())
+		{
+			byte[] utf = s.getBytes(StandardCharsets.UTF_8);
+			head.uint(utf.length);
+			head.bytes(utf, utf.length);
+		}
+
+		head.uint(p.funcs.length);
+		for (int f = 0; f < p.funcs.length; f++)
+		{
+			head.uint(enc.constant(p.funcs[f].name));
+			head.uint(lengths[f]);
+		}
+
+		out.write(head.buf, 0, head.size);
+		out.write(code.buf, 0, code.size);
+	}
+
+	/**
+	 * A growable byte buffer with varint encoding, and the constant pool
+	 * being built.
+	 *
+	 * @author Ian
+	 */
+	static class Encoder
+	{
+		byte[] buf = new byte[256];
+		int size = 0;
+
+		final Map<String, Integer> pool = new LinkedHashMap<String, Integer>();
+
+		int constant(String s)
+		{
+			Integer index = pool.get(s);
+			if (index == null)
+			{
+				index = pool.size();
+				pool.put(s, index);
+			}
+			return index;
+		}
+
+		void bytes(byte[] b, int length)
+		{
+			ensure(length);
+			System.arraycopy(b, 0, buf, size, length);
+			size += length;
+		}
+
+		void ensure(int more)
+		{
+			if (size + more > buf.length)
+			{
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + more));
+			}
+		}
+
+		void uint(long v)
+		{
+			ensure(10);
+			while ((v & ~0x7FL) != 0)
+			{
+				buf[size++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[size++] = (byte) v;
+		}
+
+		void sint(long v)
+		{
+			uint(zigzag(v));
+		}
+
+		void op(int opcode)
+		{
+			ensure(1);
+			buf[size++] = (byte) opcode;
+		}
+
+		void names(String[] names, Encoder pool)
+		{
+			uint(names.length);
+			for (String n : names)
+			{
+				uint(pool.constant(n));
+			}
+		}
+
+		void func(IR1.Func f, Encoder pool)
+		{
+			names(f.params, pool);
+			names(f.locals, pool);
+			uint(f.code.length);
+			for (IR1.Inst n : f.code)
+			{
+				inst(n, pool);
+			}
+		}
+
+		void operand(Object n, Encoder pool)
+		{
+			if (n == null)
+				uint(NONE);
+			else if (n instanceof IR1.Id)
+				uint(((long) pool.constant(((IR1.Id) n).name) << 3) | ID);
+			else if (n instanceof IR1.Temp)
+				uint(((long) ((IR1.Temp) n).num << 3) | TEMP);
+			else if (n instanceof IR1.IntLit)
+				uint(zigzag(((IR1.IntLit) n).i) << 3 | INT);
+			else if (n instanceof IR1.BoolLit)
+				uint((((IR1.BoolLit) n).b ? 1L << 3 : 0) | BOOL);
+			else if (n instanceof IR1.StrLit)
+				uint(((long) pool.constant(((IR1.StrLit) n).s) << 3) | STR);
+			else
+				throw new IllegalArgumentException("Unknown operand: " + n);
+		}
+
+		void inst(IR1.Inst n, Encoder pool)
+		{
+			if (n instanceof IR1.LabelDec)
+			{
+				op(LABEL);
+				uint(pool.constant(((IR1.LabelDec) n).name));
+			}
+			else if (n instanceof IR1.Move)
+			{
+				IR1.Move m = (IR1.Move) n;
+				op(MOVE);
+				operand(m.dst, pool);
+				operand(m.src, pool);
+			}
+			else if (n instanceof IR1.Binop)
+			{
+				IR1.Binop b = (IR1.Binop) n;
+				op(BINOP);
+				op(b.op instanceof IR1.AOP ? ((IR1.AOP) b.op).ordinal() : ROP_BASE + ((IR1.ROP) b.op).ordinal());
+				operand(b.dst, pool);
+				operand(b.src1, pool);
+				operand(b.src2, pool);
+			}
+			else if (n instanceof IR1.Unop)
+			{
+				IR1.Unop u = (IR1.Unop) n;
+				op(UNOP);
+				op(u.op.ordinal());
+				operand(u.dst, pool);
+				operand(u.src, pool);
+			}
+			else if (n instanceof IR1.Load)
+			{
+				IR1.Load l = (IR1.Load) n;
+				op(LOAD);
+				operand(l.dst, pool);
+				sint(l.addr.offset);
+				operand(l.addr.base, pool);
+			}
+			else if (n instanceof IR1.Store)
+			{
+				IR1.Store s = (IR1.Store) n;
+				op(STORE);
+				sint(s.addr.offset);
+				operand(s.addr.base, pool);
+				operand(s.src, pool);
+			}
+			else if (n instanceof IR1.Call)
+			{
+				IR1.Call c = (IR1.Call) n;
+				op(CALL);
+				uint(pool.constant(c.name));
+				operand(c.rdst, pool);
+				uint(c.args.length);
+				for (IR1.Src a : c.args)
+				{
+					operand(a, pool);
+				}
+			}
+			else if (n instanceof IR1.Return)
+			{
+				op(RETURN);
+				operand(((IR1.Return) n).val, pool);
+			}
+			else if (n instanceof IR1.CJump)
+			{
+				IR1.CJump c = (IR1.CJump) n;
+				op(CJUMP);
+				op(c.op.ordinal());
+				operand(c.src1, pool);
+				operand(c.src2, pool);
+				uint(pool.constant(c.lab.name));
+			}
+			else if (n instanceof IR1.Jump)
+			{
+				op(JUMP);
+				uint(pool.constant(((IR1.Jump) n).lab.name));
+			}
+			else
+			{
+				throw new IllegalArgumentException("Unknown Inst: " + n);
+			}
+		}
+	}
+
+	static long zigzag(long v)
+	{
+		return (v << 1) ^ (v >> 63);
+	}
+
+	static long unzigzag(long v)
+	{
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	// -----------------------------------------------------------------
+	// Reading
+	// -----------------------------------------------------------------
+	//
+
+	/**
+	 * A mapped binary IR1 file. Funcs are decoded on first use, and
+	 * cached.
+	 *
+	 * @author Ian
+	 */
+	public static class Reader
+	{
+		final ByteBuffer buf;
+
+		// Constant pool: where each entry's bytes start, their length, and
+		// the entry once decoded
+		final int[] poolStart;
+		final int[] poolLength;
+		final String[] poolCache;
+
+		// Function table, in program order
+		final String[] names;
+		final int[] codeStart;
+		final IR1.Func[] funcs;
+		final Map<String, Integer> index = new HashMap<String, Integer>();
+
+		int pos;
+
+		public Reader(File file) throws IOException
+		{
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try
+			{
+				buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			finally
+			{
+				// The mapping stays valid after the channel is closed.
+				channel.close();
+			}
+
+			for (int i = 0; i < MAGIC.length; i++)
+			{
+				if (buf.limit() <= i || buf.get(i) != MAGIC[i])
+				{
+					throw new IOException(file + " is not a binary IR1 file");
+				}
+			}
+			pos = MAGIC.length;
+
+			int version = uint();
+			if (version != VERSION)
+			{
+				throw new IOException(file + ": unsupported version " + version);
+			}
+
+			int count = uint();
+			poolStart = new int[count];
+			poolLength = new int[count];
+			poolCache = new String[count];
+			for (int i = 0; i < count; i++)
+			{
+				poolLength[i] = uint();
+				poolStart[i] = pos;
+				pos += poolLength[i];
+			}
+
+			int funcCount = uint();
+			names = new String[funcCount];
+			codeStart = new int[funcCount];
+			funcs = new IR1.Func[funcCount];
+			int[] lengths = new int[funcCount];
+			for (int f = 0; f < funcCount; f++)
+			{
+				names[f] = constant(uint());
+				lengths[f] = uint();
+				index.put(names[f], f);
+			}
+
+			int start = pos;
+			for (int f = 0; f < funcCount; f++)
+			{
+				codeStart[f] = start;
+				start += lengths[f];
+			}
+			if (start > buf.limit())
+			{
+				throw new IOException(file + " is truncated");
+			}
+		}
+
+		// The names of the functions, in program order.
+		//
+		public String[] funcNames()
+		{
+			return names.clone();
+		}
+
+		// The named function, or null if there is none.
+		//
+		public IR1.Func func(String name)
+		{
+			Integer f = index.get(name);
+			return f == null ? null : func(f);
+		}
+
+		// Decodes every function.
+		//
+		public IR1.Program program()
+		{
+			IR1.Func[] all = new IR1.Func[names.length];
+			for (int f = 0; f < names.length; f++)
+			{
+				all[f] = func(f);
+			}
+			return new IR1.Program(all);
+		}
+
+		synchronized IR1.Func func(int f)
+		{
+			if (funcs[f] == null)
+			{
+				pos = codeStart[f];
+				String[] params = names();
+				String[] locals = names();
+				IR1.Inst[] code = new IR1.Inst[uint()];
+				for (int i = 0; i < code.length; i++)
+				{
+					code[i] = inst();
+				}
+				funcs[f] = new IR1.Func(names[f], params, locals, code);
+			}
+			return funcs[f];
+		}
+
+		String constant(int i)
+		{
+			if (poolCache[i] == null)
+			{
+				byte[] utf = new byte[poolLength[i]];
+				for (int b = 0; b < utf.length; b++)
+				{
+					utf[b] = buf.get(poolStart[i] + b);
+				}
+				poolCache[i] = new String(utf, StandardCharsets.UTF_8);
+			}
+			return poolCache[i];
+		}
+
+		long ulong()
+		{
+			long v = 0;
+			int shift = 0;
+			while (true)
+			{
+				byte b = buf.get(pos++);
+				v |= (long) (b & 0x7F) << shift;
+				if (b >= 0)
+				{
+					return v;
+				}
+				shift += 7;
+			}
+		}
+
+		int uint()
+		{
+			return (int) ulong();
+		}
+
+		int op()
+		{
+			return buf.get(pos++);
+		}
+
+		String[] names()
+		{
+			String[] names = new String[uint()];
+			for (int i = 0; i < names.length; i++)
+			{
+				names[i] = constant(uint());
+			}
+			return names;
+		}
+
+		// Returns an IR1.Src (every Dest is one too), or null for NONE.
+		//
+		IR1.Src operand()
+		{
+			long v = ulong();
+			long payload = v >>> 3;
+			switch ((int) (v & 7))
+			{
+				case ID:
+					return new IR1.Id(constant((int) payload));
+				case TEMP:
+					return new IR1.Temp((int) payload);
+				case INT:
+					return new IR1.IntLit((int) unzigzag(payload));
+				case BOOL:
+					return payload != 0 ? IR1.TRUE : IR1.FALSE;
+				case STR:
+					return new IR1.StrLit(constant((int) payload));
+				case NONE:
+					return null;
+				default:
+					throw new IllegalStateException("Bad operand kind at " + (pos - 1));
+			}
+		}
+
+		IR1.Dest dest()
+		{
+			return (IR1.Dest) operand();
+		}
+
+		IR1.Inst inst()
+		{
+			int opcode = op();
+			switch (opcode)
+			{
+				case LABEL:
+					return new IR1.LabelDec(constant(uint()));
+				case MOVE:
+				{
+					IR1.Dest dst = dest();
+					return new IR1.Move(dst, operand());
+				}
+				case BINOP:
+				{
+					int o = op();
+					IR1.BOP bop = o >= ROP_BASE ? IR1.ROP.values()[o - ROP_BASE] : IR1.AOP.values()[o];
+					IR1.Dest dst = dest();
+					IR1.Src src1 = operand();
+					return new IR1.Binop(bop, dst, src1, operand());
+				}
+				case UNOP:
+				{
+					IR1.UOP uop = IR1.UOP.values()[op()];
+					IR1.Dest dst = dest();
+					return new IR1.Unop(uop, dst, operand());
+				}
+				case LOAD:
+				{
+					IR1.Dest dst = dest();
+					int offset = (int) unzigzag(ulong());
+					return new IR1.Load(dst, new IR1.Addr(operand(), offset));
+				}
+				case STORE:
+				{
+					int offset = (int) unzigzag(ulong());
+					IR1.Addr addr = new IR1.Addr(operand(), offset);
+					return new IR1.Store(addr, operand());
+				}
+				case CALL:
+				{
+					String name = constant(uint());
+					IR1.Dest rdst = dest();
+					List<IR1.Src> args = new ArrayList<IR1.Src>();
+					for (int a = uint(); a > 0; a--)
+					{
+						args.add(operand());
+					}
+					return new IR1.Call(name, args, rdst);
+				}
+				case RETURN:
+				{
+					IR1.Src val = operand();
+					return val == null ? new IR1.Return() : new IR1.Return(val);
+				}
+				case CJUMP:
+				{
+					IR1.ROP rop = IR1.ROP.values()[op()];
+					IR1.Src src1 = operand();
+					IR1.Src src2 = operand();
+					return new IR1.CJump(rop, src1, src2, new IR1.Label(constant(uint())));
+				}
+				case JUMP:
+					return new IR1.Jump(new IR1.Label(constant(uint())));
+				default:
+					throw new IllegalStateException("Bad opcode " + opcode + " at " + (pos - 1));
+			}
+		}
+	}
+}
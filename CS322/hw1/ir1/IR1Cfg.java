@@ -0,0 +1,1023 @@
+//
+// Control-flow graph of an IR1 function, for the optimizer (IR1Opt).
+// Assignment by Ian Aldrighetti
+//
+// build() splits a Func into basic blocks of Stmts. A Stmt's operands
+// are Vars (one per Id or Temp, or per SSA version of one) and Consts
+// instead of IR1 nodes, and its fields can be changed, so a pass can
+// rewrite the code in place. toFunc() lays the blocks out again as an
+// IR1.Func, adding the gotos and labels the edges need.
+//
+// Edges are explicit. A block whose last Stmt is a CJUMP has two
+// successors, succs[0] when the jump is taken and succs[1] when it is
+// not; a block ending in a RETURN has none; any other block has one,
+// which it falls through or jumps to. Falling off the end of a function
+// is an implicit RETURN.
+//
+// Block 0 is an empty entry block with no predecessors, so the first
+// real block can be a loop header like any other.
+//
+package ir1;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class IR1Cfg
+{
+	public enum Kind
+	{
+		BINOP, UNOP, MOVE, LOAD, STORE, CALL, RETURN, CJUMP, PHI
+	}
+
+	// -----------------------------------------------------------------
+	// Operands and statements
+	// -----------------------------------------------------------------
+	//
+
+	public abstract static class Operand
+	{
+	}
+
+	/**
+	 * An IntLit, BoolLit or StrLit.
+	 *
+	 * @author Ian
+	 */
+	public static final class Const extends Operand
+	{
+		public final IR1.Src lit;
+
+		public Const(IR1.Src lit)
+		{
+			this.lit = lit;
+		}
+
+		// An Integer or Boolean; null for a string.
+		//
+		public Object value()
+		{
+			if (lit instanceof IR1.IntLit)
+				return ((IR1.IntLit) lit).i;
+			if (lit instanceof IR1.BoolLit)
+				return ((IR1.BoolLit) lit).b;
+			return null;
+		}
+
+		public static Const of(Object value)
+		{
+			if (value instanceof Integer)
+				return new Const(new IR1.IntLit((Integer) value));
+			return new Const((Boolean) value ? IR1.TRUE : IR1.FALSE);
+		}
+
+		public boolean same(Operand o)
+		{
+			return o instanceof Const && (o == this || (value() != null && value().equals(((Const) o).value())));
+		}
+
+		public String toString()
+		{
+			return lit.toString();
+		}
+	}
+
+	/**
+	 * A variable: an Id or a Temp of the function or, in SSA form, one
+	 * version of one. 'orig' is the Id or Temp a version belongs to (the
+	 * Var itself, outside SSA form).
+	 *
+	 * @author Ian
+	 */
+	public static final class Var extends Operand
+	{
+		public final String name;	// an Id's name; null for a Temp
+		public final int num;		// a Temp's number
+		public final Var orig;
+		public final int version;
+
+		// The Stmt that assigns it, or null if it is set on entry (a
+		// parameter, or an undefined local or temp)
+		public Stmt def;
+
+		// Scratch index for a pass
+		public int id;
+
+		Var(String name, int num)
+		{
+			this.name = name;
+			this.num = num;
+			this.orig = this;
+			this.version = 0;
+		}
+
+		public Var(Var orig, int version)
+		{
+			this.name = orig.name;
+			this.num = orig.num;
+			this.orig = orig;
+			this.version = version;
+		}
+
+		IR1.Src toSrc()
+		{
+			return name != null ? new IR1.Id(name) : new IR1.Temp(num);
+		}
+
+		public String toString()
+		{
+			String s = name != null ? name : "t" + num;
+			return orig != this ? s + "." + version : s;
+		}
+	}
+
+	/**
+	 * One instruction. Jumps are not Stmts; they are a block's edges.
+	 *
+	 * - BINOP, UNOP: dst = args[0] op args[1]
+	 * - MOVE: dst = args[0]
+	 * - LOAD: dst = offset[args[0]]
+	 * - STORE: offset[args[0]] = args[1]
+	 * - CALL: [dst =] call callee(args)
+	 * - RETURN: return [args[0]]
+	 * - CJUMP: if args[0] op args[1] goto succs[0]
+	 * - PHI: dst = args[i] when entered from preds[i]
+	 *
+	 * @author Ian
+	 */
+	public static final class Stmt
+	{
+		public Kind kind;
+		public Object op;		// BOP, UOP or ROP
+		public Var dst;			// could be null
+		public Operand[] args;
+		public int offset;
+		public String callee;
+		public Block block;
+
+		// A RETURN standing for the end of the function
+		boolean implicit = false;
+
+		public Stmt(Kind kind, Object op, Var dst, Operand... args)
+		{
+			this.kind = kind;
+			this.op = op;
+			this.dst = dst;
+			this.args = args;
+		}
+
+		// The instruction computes a value from its operands alone, so
+		// it can be removed when the value is not used.
+		//
+		public boolean isPure()
+		{
+			if (kind == Kind.MOVE || kind == Kind.UNOP || kind == Kind.PHI)
+				return true;
+			if (kind != Kind.BINOP)
+				return false;
+
+			// A division by zero fails at run time.
+			if (op == IR1.AOP.DIV)
+				return args[1] instanceof Const && !Integer.valueOf(0).equals(((Const) args[1]).value());
+			return true;
+		}
+
+		public String toString()
+		{
+			switch (kind)
+			{
+				case BINOP:
+					return dst + " = " + args[0] + " " + op + " " + args[1];
+				case UNOP:
+					return dst + " = " + op + args[0];
+				case MOVE:
+					return dst + " = " + args[0];
+				case LOAD:
+					return dst + " = " + offset + "[" + args[0] + "]";
+				case STORE:
+					return offset + "[" + args[0] + "] = " + args[1];
+				case CALL:
+					return (dst != null ? dst + " = " : "") + "call _" + callee + Arrays.toString(args);
+				case RETURN:
+					return "return " + (args.length > 0 ? args[0] : "");
+				case CJUMP:
+					return "if " + args[0] + " " + op + " " + args[1];
+				default:
+					return dst + " = phi" + Arrays.toString(args);
+			}
+		}
+	}
+
+	/**
+	 * A basic block.
+	 *
+	 * @author Ian
+	 */
+	public static final class Block
+	{
+		public String label;	// could be null
+		public final List<Stmt> phis = new ArrayList<Stmt>();
+		public final List<Stmt> stmts = new ArrayList<Stmt>();
+		public final List<Block> succs = new ArrayList<Block>();
+		public final List<Block> preds = new ArrayList<Block>();
+
+		// Set by dominators()
+		public Block idom;
+		public final List<Block> children = new ArrayList<Block>();
+		public final List<Block> frontier = new ArrayList<Block>();
+		public int rpo = -1;
+
+		Block(String label)
+		{
+			this.label = label;
+		}
+
+		public Stmt last()
+		{
+			return stmts.isEmpty() ? null : stmts.get(stmts.size() - 1);
+		}
+
+		public boolean endsIn(Kind kind)
+		{
+			return last() != null && last().kind == kind;
+		}
+
+		public String toString()
+		{
+			return label != null ? label : "B" + Integer.toHexString(hashCode());
+		}
+	}
+
+	/**
+	 * Fresh label names, not used anywhere in the program (IR0Gen
+	 * numbers its labels program-wide too).
+	 *
+	 * @author Ian
+	 */
+	public static final class Labels
+	{
+		final Set<String> used = new HashSet<String>();
+		int next = 0;
+
+		public Labels(IR1.Program p)
+		{
+			for (IR1.Func f : p.funcs)
+			{
+				for (IR1.Inst inst : f.code)
+				{
+					if (inst instanceof IR1.LabelDec)
+						used.add(((IR1.LabelDec) inst).name);
+				}
+			}
+		}
+
+		public String fresh()
+		{
+			String name;
+			do
+			{
+				name = "L" + next++;
+			}
+			while (!used.add(name));
+			return name;
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// The graph
+	// -----------------------------------------------------------------
+	//
+
+	public final IR1.Func func;
+
+	// In layout order; blocks.get(0) is the entry
+	public final List<Block> blocks = new ArrayList<Block>();
+
+	// The function's Ids and Temps, by name ("x", "t3")
+	public final Map<String, Var> vars = new LinkedHashMap<String, Var>();
+	public final List<Var> params = new ArrayList<Var>();
+
+	int maxTemp = 0;
+
+	IR1Cfg(IR1.Func func)
+	{
+		this.func = func;
+	}
+
+	public Block entry()
+	{
+		return blocks.get(0);
+	}
+
+	// A Temp that the function does not use yet.
+	//
+	public Var newTemp()
+	{
+		Var v = new Var((String) null, ++maxTemp);
+		vars.put(v.toString(), v);
+		return v;
+	}
+
+	// A value that belongs to no variable of the function (in SSA form,
+	// where a pass adds a computation of its own). It ends up in a new
+	// Temp.
+	//
+	public Var newValue(Stmt def)
+	{
+		Var v = new Var(newTemp(), 1);
+		v.def = def;
+		if (def != null)
+			def.dst = v;
+		return v;
+	}
+
+	// A new block, placed at the end of the layout.
+	//
+	public Block newBlock()
+	{
+		Block b = new Block(null);
+		blocks.add(b);
+		return b;
+	}
+
+	// Adds the edge from -> to.
+	//
+	public static void addEdge(Block from, Block to)
+	{
+		from.succs.add(to);
+		to.preds.add(from);
+	}
+
+	// Removes the index'th predecessor edge of b, and the phi operands
+	// for it.
+	//
+	public static void removePred(Block b, int index)
+	{
+		b.preds.remove(index);
+		for (Stmt phi : b.phis)
+		{
+			Operand[] args = new Operand[phi.args.length - 1];
+			System.arraycopy(phi.args, 0, args, 0, index);
+			System.arraycopy(phi.args, index + 1, args, index, args.length - index);
+			phi.args = args;
+		}
+	}
+
+	// Replaces the edge from -> to with from -> mid -> to, where mid is
+	// a new, empty block (phis in 'to' keep their operand order).
+	//
+	public Block splitEdge(Block from, int succIndex)
+	{
+		Block to = from.succs.get(succIndex);
+		Block mid = newBlock();
+
+		from.succs.set(succIndex, mid);
+		mid.preds.add(from);
+		mid.succs.add(to);
+		to.preds.set(to.preds.indexOf(from), mid);
+
+		return mid;
+	}
+
+	// The block that all edges into h from outside 'loop' come through,
+	// and that goes only to h: the one such predecessor if it already
+	// is one, otherwise a new block placed just before h. In SSA form,
+	// h's phis get one operand for it, and the new block gets phis for
+	// the operands they had from outside.
+	//
+	public Block preheader(Block h, Set<Block> loop)
+	{
+		List<Integer> outside = new ArrayList<Integer>();
+		for (int j = 0; j < h.preds.size(); j++)
+		{
+			if (!loop.contains(h.preds.get(j)))
+				outside.add(j);
+		}
+
+		if (outside.size() == 1)
+		{
+			Block p = h.preds.get(outside.get(0));
+			if (p.succs.size() == 1)
+				return p;
+		}
+
+		Block pre = new Block(null);
+		blocks.add(blocks.indexOf(h), pre);
+
+		// Phis in pre merge what came from outside.
+		Operand[] fromPre = new Operand[h.phis.size()];
+		for (int k = 0; k < fromPre.length; k++)
+		{
+			Stmt phi = h.phis.get(k);
+			Operand[] args = new Operand[outside.size()];
+			for (int i = 0; i < args.length; i++)
+				args[i] = phi.args[outside.get(i)];
+
+			if (args.length == 1)
+			{
+				fromPre[k] = args[0];
+				continue;
+			}
+
+			Stmt merge = new Stmt(Kind.PHI, null, null, args);
+			merge.block = pre;
+			pre.phis.add(merge);
+			fromPre[k] = newValue(merge);
+		}
+
+		List<Block> from = new ArrayList<Block>();
+		for (int j : outside)
+			from.add(h.preds.get(j));
+		for (int i = outside.size() - 1; i >= 0; i--)
+			removePred(h, outside.get(i));
+
+		// (A block with two edges to h is in 'from' twice.)
+		for (Block p : from)
+		{
+			p.succs.set(p.succs.indexOf(h), pre);
+			pre.preds.add(p);
+		}
+
+		pre.succs.add(h);
+		h.preds.add(pre);
+		for (int k = 0; k < fromPre.length; k++)
+		{
+			Stmt phi = h.phis.get(k);
+			phi.args = Arrays.copyOf(phi.args, phi.args.length + 1);
+			phi.args[phi.args.length - 1] = fromPre[k];
+		}
+
+		return pre;
+	}
+
+	// Removes the blocks that cannot be reached from the entry. Returns
+	// how many there were.
+	//
+	public int removeUnreachable()
+	{
+		Set<Block> reached = new HashSet<Block>();
+		ArrayDeque<Block> work = new ArrayDeque<Block>();
+		reached.add(entry());
+		work.push(entry());
+		while (!work.isEmpty())
+		{
+			for (Block s : work.pop().succs)
+			{
+				if (reached.add(s))
+					work.push(s);
+			}
+		}
+
+		int removed = 0;
+		for (int i = blocks.size() - 1; i >= 0; i--)
+		{
+			Block b = blocks.get(i);
+			if (reached.contains(b))
+				continue;
+
+			for (Block s : b.succs)
+			{
+				int index;
+				while ((index = s.preds.indexOf(b)) >= 0)
+					removePred(s, index);
+			}
+			blocks.remove(i);
+			removed++;
+		}
+		return removed;
+	}
+
+	// Every Stmt of the function, phis included.
+	//
+	public List<Stmt> allStmts()
+	{
+		List<Stmt> all = new ArrayList<Stmt>();
+		for (Block b : blocks)
+		{
+			all.addAll(b.phis);
+			all.addAll(b.stmts);
+		}
+		return all;
+	}
+
+	// The number of IR1 instructions the blocks hold (not counting
+	// jumps and labels), for reports.
+	//
+	public int size()
+	{
+		int n = 0;
+		for (Block b : blocks)
+			n += b.phis.size() + b.stmts.size();
+		return n;
+	}
+
+	// -----------------------------------------------------------------
+	// Building
+	// -----------------------------------------------------------------
+	//
+
+	// The graph of f, or null if f cannot be optimized: it uses an Id it
+	// does not declare, or jumps to a label it does not have. (Such a
+	// function fails when it gets there, and is left as it is.)
+	//
+	public static IR1Cfg build(IR1.Func f)
+	{
+		IR1Cfg cfg = new IR1Cfg(f);
+		for (String p : f.params)
+		{
+			Var v = cfg.var(p);
+			cfg.params.add(v);
+		}
+		for (String l : f.locals)
+			cfg.var(l);
+
+		Map<String, Block> labels = new HashMap<String, Block>();
+		for (IR1.Inst inst : f.code)
+		{
+			if (inst instanceof IR1.LabelDec)
+			{
+				String name = ((IR1.LabelDec) inst).name;
+				if (labels.containsKey(name))
+					return null;
+				labels.put(name, new Block(name));
+			}
+		}
+
+		Block entry = new Block(null);
+		cfg.blocks.add(entry);
+
+		// The block being filled, and whether control can fall into the
+		// next one
+		Block cur = new Block(null);
+		cfg.blocks.add(cur);
+		addEdge(entry, cur);
+		boolean open = true;
+
+		for (IR1.Inst inst : f.code)
+		{
+			if (inst instanceof IR1.LabelDec)
+			{
+				Block next = labels.get(((IR1.LabelDec) inst).name);
+				if (open)
+					addEdge(cur, next);
+				cur = next;
+				cfg.blocks.add(cur);
+				open = true;
+				continue;
+			}
+
+			if (!open)
+			{
+				// Code after a jump that no label leads to
+				cur = new Block(null);
+				cfg.blocks.add(cur);
+				open = true;
+			}
+
+			if (inst instanceof IR1.Jump)
+			{
+				Block target = labels.get(((IR1.Jump) inst).lab.name);
+				if (target == null)
+					return null;
+				addEdge(cur, target);
+				open = false;
+				continue;
+			}
+
+			Stmt s = cfg.stmt(inst);
+			if (s == null)
+				return null;
+			s.block = cur;
+			cur.stmts.add(s);
+
+			if (inst instanceof IR1.CJump)
+			{
+				Block target = labels.get(((IR1.CJump) inst).lab.name);
+				if (target == null)
+					return null;
+				addEdge(cur, target);
+
+				// The fall-through edge goes to a new block
+				Block next = new Block(null);
+				addEdge(cur, next);
+				cur = next;
+				cfg.blocks.add(cur);
+			}
+			else if (inst instanceof IR1.Return)
+			{
+				open = false;
+			}
+		}
+
+		if (open)
+		{
+			Stmt ret = new Stmt(Kind.RETURN, null, null);
+			ret.implicit = true;
+			ret.block = cur;
+			cur.stmts.add(ret);
+		}
+
+		return cfg;
+	}
+
+	Var var(String name)
+	{
+		Var v = vars.get(name);
+		if (v == null)
+		{
+			v = new Var(name, 0);
+			vars.put(name, v);
+		}
+		return v;
+	}
+
+	Var temp(int num)
+	{
+		String key = "t" + num;
+		Var v = vars.get(key);
+		if (v == null)
+		{
+			v = new Var((String) null, num);
+			vars.put(key, v);
+			maxTemp = Math.max(maxTemp, num);
+		}
+		return v;
+	}
+
+	// The operand for n; null for an undeclared Id.
+	//
+	Operand operand(IR1.Src n)
+	{
+		if (n instanceof IR1.Temp)
+			return temp(((IR1.Temp) n).num);
+		if (n instanceof IR1.Id)
+			return vars.get(((IR1.Id) n).name);
+		return new Const(n);
+	}
+
+	// The Stmt for an instruction other than a label or a jump; null if
+	// it uses an undeclared Id.
+	//
+	Stmt stmt(IR1.Inst n)
+	{
+		Stmt s;
+		Operand[] args;
+		IR1.Dest dst;
+
+		if (n instanceof IR1.Binop)
+		{
+			IR1.Binop b = (IR1.Binop) n;
+			s = new Stmt(Kind.BINOP, b.op, null, operand(b.src1), operand(b.src2));
+			dst = b.dst;
+		}
+		else if (n instanceof IR1.Unop)
+		{
+			IR1.Unop u = (IR1.Unop) n;
+			s = new Stmt(Kind.UNOP, u.op, null, operand(u.src));
+			dst = u.dst;
+		}
+		else if (n instanceof IR1.Move)
+		{
+			IR1.Move m = (IR1.Move) n;
+			s = new Stmt(Kind.MOVE, null, null, operand(m.src));
+			dst = m.dst;
+		}
+		else if (n instanceof IR1.Load)
+		{
+			IR1.Load l = (IR1.Load) n;
+			s = new Stmt(Kind.LOAD, null, null, operand(l.addr.base));
+			s.offset = l.addr.offset;
+			dst = l.dst;
+		}
+		else if (n instanceof IR1.Store)
+		{
+			IR1.Store st = (IR1.Store) n;
+			s = new Stmt(Kind.STORE, null, null, operand(st.addr.base), operand(st.src));
+			s.offset = st.addr.offset;
+			dst = null;
+		}
+		else if (n instanceof IR1.Call)
+		{
+			IR1.Call c = (IR1.Call) n;
+			args = new Operand[c.args.length];
+			for (int i = 0; i < args.length; i++)
+				args[i] = operand(c.args[i]);
+			s = new Stmt(Kind.CALL, null, null, args);
+			s.callee = c.name;
+			dst = c.rdst;
+		}
+		else if (n instanceof IR1.Return)
+		{
+			IR1.Return r = (IR1.Return) n;
+			s = r.val != null ? new Stmt(Kind.RETURN, null, null, operand(r.val)) : new Stmt(Kind.RETURN, null, null);
+			dst = null;
+		}
+		else
+		{
+			IR1.CJump c = (IR1.CJump) n;
+			s = new Stmt(Kind.CJUMP, c.op, null, operand(c.src1), operand(c.src2));
+			dst = null;
+		}
+
+		for (Operand a : s.args)
+		{
+			if (a == null)
+				return null;
+		}
+		if (dst != null)
+		{
+			s.dst = (Var) operand((IR1.Src) dst);
+			if (s.dst == null)
+				return null;
+		}
+		return s;
+	}
+
+	// -----------------------------------------------------------------
+	// Dominators
+	// -----------------------------------------------------------------
+	//
+
+	// Blocks in reverse postorder from the entry (only reachable ones).
+	//
+	public List<Block> reversePostorder()
+	{
+		List<Block> post = new ArrayList<Block>();
+		Set<Block> seen = new HashSet<Block>();
+		ArrayDeque<Block> stack = new ArrayDeque<Block>();
+		ArrayDeque<Integer> next = new ArrayDeque<Integer>();
+
+		seen.add(entry());
+		stack.push(entry());
+		next.push(0);
+		while (!stack.isEmpty())
+		{
+			Block b = stack.peek();
+			int i = next.pop();
+			if (i < b.succs.size())
+			{
+				next.push(i + 1);
+				Block s = b.succs.get(i);
+				if (seen.add(s))
+				{
+					stack.push(s);
+					next.push(0);
+				}
+			}
+			else
+			{
+				stack.pop();
+				post.add(b);
+			}
+		}
+
+		List<Block> rpo = new ArrayList<Block>(post.size());
+		for (int i = post.size() - 1; i >= 0; i--)
+			rpo.add(post.get(i));
+		return rpo;
+	}
+
+	// Sets every reachable block's idom, children, frontier and rpo.
+	//
+	public void dominators()
+	{
+		List<Block> rpo = reversePostorder();
+		for (Block b : blocks)
+		{
+			b.idom = null;
+			b.rpo = -1;
+			b.children.clear();
+			b.frontier.clear();
+		}
+		for (int i = 0; i < rpo.size(); i++)
+			rpo.get(i).rpo = i;
+
+		Block entry = entry();
+		entry.idom = entry;
+		boolean changed = true;
+		while (changed)
+		{
+			changed = false;
+			for (int i = 1; i < rpo.size(); i++)
+			{
+				Block b = rpo.get(i);
+				Block idom = null;
+				for (Block p : b.preds)
+				{
+					if (p.idom == null)
+						continue;
+					idom = idom == null ? p : intersect(p, idom);
+				}
+				if (idom != b.idom)
+				{
+					b.idom = idom;
+					changed = true;
+				}
+			}
+		}
+
+		for (int i = 1; i < rpo.size(); i++)
+		{
+			Block b = rpo.get(i);
+			b.idom.children.add(b);
+		}
+
+		for (Block b : rpo)
+		{
+			if (b.preds.size() < 2)
+				continue;
+
+			Set<Block> preds = new LinkedHashSet<Block>(b.preds);
+			for (Block p : preds)
+			{
+				if (p.rpo < 0)
+					continue;
+				for (Block runner = p; runner != b.idom; runner = runner.idom)
+				{
+					if (!runner.frontier.contains(b))
+						runner.frontier.add(b);
+				}
+			}
+		}
+		entry.idom = null;
+	}
+
+	static Block intersect(Block a, Block b)
+	{
+		while (a != b)
+		{
+			while (a.rpo > b.rpo)
+				a = a.idom;
+			while (b.rpo > a.rpo)
+				b = b.idom;
+		}
+		return a;
+	}
+
+	// True if a dominates b (dominators() must be current).
+	//
+	public static boolean dominates(Block a, Block b)
+	{
+		for (Block x = b; x != null; x = x.idom)
+		{
+			if (x == a)
+				return true;
+		}
+		return false;
+	}
+
+	// -----------------------------------------------------------------
+	// Back to IR1
+	// -----------------------------------------------------------------
+	//
+
+	// The function's code, with the blocks in layout order. Every edge
+	// that does not go to the next block in the layout becomes a jump,
+	// straight past any empty blocks it would land in; the blocks that
+	// are jumped to get labels (new ones from 'labels' if they had
+	// none). Locals the code no longer mentions (the passes may have
+	// removed every use, of an inlined callee's locals say) are dropped.
+	// The graph must be out of SSA form.
+	//
+	public IR1.Func toFunc(Labels labels)
+	{
+		// Where each block's edges jump to (null for a fall-through),
+		// and the blocks that need a label
+		Map<Block, Block> taken = new HashMap<Block, Block>();
+		Map<Block, Block> jump = new HashMap<Block, Block>();
+		Set<Block> targets = new HashSet<Block>();
+		for (int i = 0; i < blocks.size(); i++)
+		{
+			Block b = blocks.get(i);
+			Block next = i + 1 < blocks.size() ? blocks.get(i + 1) : null;
+
+			if (b.endsIn(Kind.CJUMP))
+			{
+				taken.put(b, skipEmpty(b.succs.get(0)));
+				targets.add(taken.get(b));
+			}
+			if (b.endsIn(Kind.CJUMP) || b.succs.size() == 1)
+			{
+				Block s = b.succs.get(b.succs.size() - 1);
+				if (s != next)
+				{
+					jump.put(b, skipEmpty(s));
+					targets.add(jump.get(b));
+				}
+			}
+		}
+
+		for (Block b : targets)
+		{
+			if (b.label == null)
+				b.label = labels.fresh();
+		}
+
+		List<IR1.Inst> code = new ArrayList<IR1.Inst>();
+		for (int i = 0; i < blocks.size(); i++)
+		{
+			Block b = blocks.get(i);
+			Block next = i + 1 < blocks.size() ? blocks.get(i + 1) : null;
+
+			// An empty block that edges now jump past, and that the
+			// block before does not fall into, is left out.
+			Block prev = i > 0 ? blocks.get(i - 1) : null;
+			boolean fallsIn = prev != null && !prev.succs.isEmpty() && !jump.containsKey(prev);
+			if (!targets.contains(b) && !fallsIn && i > 0 && b.stmts.isEmpty())
+				continue;
+
+			if (targets.contains(b))
+				code.add(new IR1.LabelDec(b.label));
+
+			for (Stmt s : b.stmts)
+			{
+				if (s.implicit && next == null)
+					continue;
+				code.add(inst(s, b, taken.get(b)));
+			}
+
+			if (jump.containsKey(b))
+				code.add(new IR1.Jump(new IR1.Label(jump.get(b).label)));
+		}
+
+		return new IR1.Func(func.name, func.params, usedLocals(), code.toArray(new IR1.Inst[0]));
+	}
+
+	// The function's locals that some Stmt still reads or writes, in
+	// their declared order.
+	//
+	String[] usedLocals()
+	{
+		Set<String> used = new HashSet<String>();
+		for (Stmt s : allStmts())
+		{
+			if (s.dst != null && s.dst.name != null)
+				used.add(s.dst.name);
+			for (Operand a : s.args)
+			{
+				if (a instanceof Var && ((Var) a).name != null)
+					used.add(((Var) a).name);
+			}
+		}
+
+		List<String> locals = new ArrayList<String>();
+		for (String l : func.locals)
+		{
+			if (used.contains(l))
+				locals.add(l);
+		}
+		return locals.toArray(new String[0]);
+	}
+
+	// The first block from b, following edges out of empty blocks (in a
+	// cycle of them, any one will do).
+	//
+	Block skipEmpty(Block b)
+	{
+		for (int n = 0; n < blocks.size() && b.stmts.isEmpty() && b.succs.size() == 1; n++)
+			b = b.succs.get(0);
+		return b;
+	}
+
+	IR1.Inst inst(Stmt s, Block b, Block taken)
+	{
+		IR1.Dest dst = s.dst != null ? (IR1.Dest) s.dst.toSrc() : null;
+
+		switch (s.kind)
+		{
+			case BINOP:
+				return new IR1.Binop((IR1.BOP) s.op, dst, src(s.args[0]), src(s.args[1]));
+			case UNOP:
+				return new IR1.Unop((IR1.UOP) s.op, dst, src(s.args[0]));
+			case MOVE:
+				return new IR1.Move(dst, src(s.args[0]));
+			case LOAD:
+				return new IR1.Load(dst, new IR1.Addr(src(s.args[0]), s.offset));
+			case STORE:
+				return new IR1.Store(new IR1.Addr(src(s.args[0]), s.offset), src(s.args[1]));
+			case CALL:
+				IR1.Src[] args = new IR1.Src[s.args.length];
+				for (int i = 0; i < args.length; i++)
+					args[i] = src(s.args[i]);
+				return new IR1.Call(s.callee, args, dst);
+			case RETURN:
+				return s.args.length > 0 ? new IR1.Return(src(s.args[0])) : new IR1.Return();
+			case CJUMP:
+				return new IR1.CJump((IR1.ROP) s.op, src(s.args[0]), src(s.args[1]), new IR1.Label(taken.label));
+			default:
+				throw new IllegalStateException("phi outside SSA form: " + s);
+		}
+	}
+
+	static IR1.Src src(Operand o)
+	{
+		return o instanceof Var ? ((Var) o).toSrc() : ((Const) o).lit;
+	}
+}
@@ -0,0 +1,443 @@
+//
+// Inliner for IR1 programs.
+// Assignment by Ian Aldrighetti
+//
+// inline() replaces each direct call to a small function (at most
+// 'budget' instructions, labels not counted) by a copy of its body:
+//
+//   p' = arg             for each parameter
+//   ...body...           Ids, Temps and labels renamed
+//   dst = v; goto End    for each return v
+//   End:
+//
+// The callee's Ids become new locals of the caller (x becomes x_f1 and
+// so on), its Temps new Temps, and its labels new labels, so nothing
+// collides with the caller or another copy. Functions are done callees
+// first, so a copy already has its own small calls inlined.
+//
+// A call is left alone if:
+// - the callee is recursive (it is in a cycle of the call graph), or
+// is the caller itself; unrolling a recursion a bounded number of times
+// would still need the call at the bottom,
+// - the argument count is wrong (the call fails, as it should),
+// - the callee reads a local or Temp it may not have set: in its own
+// frame that is undefined on every call, but an inlined copy would see
+// the previous copy's value, or
+// - the call assigns the result and the callee can return no value.
+//
+package ir1;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class IR1Inline
+{
+	public static final int DEFAULT_BUDGET = 30;
+
+	final int budget;
+
+	// Calls inlined, by caller name
+	public final Map<String, Integer> inlined = new LinkedHashMap<String, Integer>();
+
+	// setBeforeRead() of each callee asked about
+	final Map<IR1.Func, Boolean> safe = new HashMap<IR1.Func, Boolean>();
+
+	public IR1Inline(int budget)
+	{
+		this.budget = budget;
+	}
+
+	public IR1.Program inline(IR1.Program p)
+	{
+		Map<String, IR1.Func> funcs = new LinkedHashMap<String, IR1.Func>();
+		for (IR1.Func f : p.funcs)
+			funcs.put(f.name, f);
+
+		Set<String> recursive = new HashSet<String>();
+		List<String> order = callOrder(funcs, recursive);
+
+		IR1Cfg.Labels labels = new IR1Cfg.Labels(p);
+		for (String name : order)
+			funcs.put(name, inline(funcs.get(name), funcs, recursive, labels));
+
+		IR1.Func[] out = new IR1.Func[p.funcs.length];
+		for (int i = 0; i < out.length; i++)
+			out[i] = funcs.get(p.funcs[i].name);
+		return new IR1.Program(out);
+	}
+
+	// -----------------------------------------------------------------
+	// The call graph
+	// -----------------------------------------------------------------
+	//
+
+	// The functions, callees before callers (Tarjan's strongly connected
+	// components come out in that order). The members of a cycle are
+	// added to 'recursive'.
+	//
+	static List<String> callOrder(Map<String, IR1.Func> funcs, Set<String> recursive)
+	{
+		Tarjan t = new Tarjan(funcs, recursive);
+		for (String name : funcs.keySet())
+		{
+			if (!t.index.containsKey(name))
+				t.visit(name);
+		}
+		return t.order;
+	}
+
+	static class Tarjan
+	{
+		final Map<String, IR1.Func> funcs;
+		final Set<String> recursive;
+		final Map<String, Integer> index = new HashMap<String, Integer>();
+		final Map<String, Integer> low = new HashMap<String, Integer>();
+		final List<String> stack = new ArrayList<String>();
+		final Set<String> onStack = new HashSet<String>();
+		final List<String> order = new ArrayList<String>();
+
+		Tarjan(Map<String, IR1.Func> funcs, Set<String> recursive)
+		{
+			this.funcs = funcs;
+			this.recursive = recursive;
+		}
+
+		// (Recursive, but the depth is bounded by the number of
+		// functions, not by the program's input.)
+		void visit(String name)
+		{
+			index.put(name, index.size());
+			low.put(name, index.get(name));
+			stack.add(name);
+			onStack.add(name);
+
+			for (IR1.Inst inst : funcs.get(name).code)
+			{
+				if (!(inst instanceof IR1.Call))
+					continue;
+				String callee = ((IR1.Call) inst).name;
+				if (!funcs.containsKey(callee))
+					continue;
+
+				if (callee.equals(name))
+				{
+					recursive.add(name);
+				}
+				else if (!index.containsKey(callee))
+				{
+					visit(callee);
+					low.put(name, Math.min(low.get(name), low.get(callee)));
+				}
+				else if (onStack.contains(callee))
+				{
+					low.put(name, Math.min(low.get(name), index.get(callee)));
+				}
+			}
+
+			if (low.get(name).equals(index.get(name)))
+			{
+				List<String> scc = new ArrayList<String>();
+				String member;
+				do
+				{
+					member = stack.remove(stack.size() - 1);
+					onStack.remove(member);
+					scc.add(member);
+				}
+				while (!member.equals(name));
+
+				if (scc.size() > 1)
+					recursive.addAll(scc);
+				order.addAll(scc);
+			}
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Inlining
+	// -----------------------------------------------------------------
+	//
+
+	IR1.Func inline(IR1.Func f, Map<String, IR1.Func> funcs, Set<String> recursive, IR1Cfg.Labels labels)
+	{
+		Set<String> names = new HashSet<String>();
+		for (String s : f.params)
+			names.add(s);
+		for (String s : f.locals)
+			names.add(s);
+		List<String> locals = new ArrayList<String>(Arrays.asList(f.locals));
+
+		int maxTemp = maxTemp(f);
+		int copies = 0;
+		List<IR1.Inst> code = new ArrayList<IR1.Inst>();
+
+		for (IR1.Inst inst : f.code)
+		{
+			IR1.Func callee = inst instanceof IR1.Call ? funcs.get(((IR1.Call) inst).name) : null;
+			IR1.Call call = (IR1.Call) (callee != null ? inst : null);
+			if (callee == null || callee == f || recursive.contains(callee.name) || !inlinable(call, callee))
+			{
+				code.add(inst);
+				continue;
+			}
+
+			// The callee's names in this copy
+			copies++;
+			Map<String, String> ids = new HashMap<String, String>();
+			for (String[] list : new String[][] { callee.params, callee.locals })
+			{
+				for (String s : list)
+				{
+					String name = s + "_" + callee.name;
+					for (int n = 1; names.contains(name); n++)
+						name = s + "_" + callee.name + n;
+					names.add(name);
+					locals.add(name);
+					ids.put(s, name);
+				}
+			}
+			Map<String, String> labs = new HashMap<String, String>();
+			for (IR1.Inst c : callee.code)
+			{
+				if (c instanceof IR1.LabelDec)
+					labs.put(((IR1.LabelDec) c).name, labels.fresh());
+			}
+			Copier copier = new Copier(ids, labs, maxTemp);
+			maxTemp += maxTemp(callee);
+
+			for (int i = 0; i < callee.params.length; i++)
+				code.add(new IR1.Move(new IR1.Id(ids.get(callee.params[i])), copier.caller(call.args[i])));
+
+			String end = labels.fresh();
+			IR1.Inst[] body = callee.code;
+			for (int i = 0; i < body.length; i++)
+			{
+				if (body[i] instanceof IR1.Return)
+				{
+					IR1.Return r = (IR1.Return) body[i];
+					if (call.rdst != null)
+						code.add(new IR1.Move(copier.dest(call.rdst, false), copier.src(r.val)));
+					if (i < body.length - 1)
+						code.add(new IR1.Jump(new IR1.Label(end)));
+				}
+				else
+				{
+					code.add(copier.inst(body[i]));
+				}
+			}
+			code.add(new IR1.LabelDec(end));
+		}
+
+		if (copies == 0)
+			return f;
+
+		inlined.put(f.name, copies);
+		return new IR1.Func(f.name, f.params, locals.toArray(new String[0]), code.toArray(new IR1.Inst[0]));
+	}
+
+	// The checks in the header, other than recursion.
+	//
+	boolean inlinable(IR1.Call call, IR1.Func callee)
+	{
+		if (call.args.length != callee.params.length || size(callee) > budget)
+			return false;
+
+		if (call.rdst != null)
+		{
+			// Every return has a value, and the end cannot be reached.
+			IR1.Inst last = callee.code.length > 0 ? callee.code[callee.code.length - 1] : null;
+			if (!(last instanceof IR1.Return || last instanceof IR1.Jump))
+				return false;
+			for (IR1.Inst inst : callee.code)
+			{
+				if (inst instanceof IR1.Return && ((IR1.Return) inst).val == null)
+					return false;
+			}
+		}
+
+		if (!safe.containsKey(callee))
+			safe.put(callee, setBeforeRead(callee));
+		return safe.get(callee);
+	}
+
+	// True if the function reads only parameters and variables it has
+	// certainly assigned (in SSA form: no version 0 of anything else is
+	// used). False too if it cannot be analyzed.
+	//
+	static boolean setBeforeRead(IR1.Func f)
+	{
+		IR1Cfg cfg = IR1Cfg.build(f);
+		if (cfg == null)
+			return false;
+		IR1Ssa.build(cfg);
+
+		for (IR1Cfg.Stmt s : cfg.allStmts())
+		{
+			for (IR1Cfg.Operand a : s.args)
+			{
+				if (a instanceof IR1Cfg.Var && ((IR1Cfg.Var) a).def == null && !cfg.params.contains(((IR1Cfg.Var) a).orig))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	static int size(IR1.Func f)
+	{
+		int n = 0;
+		for (IR1.Inst inst : f.code)
+		{
+			if (!(inst instanceof IR1.LabelDec))
+				n++;
+		}
+		return n;
+	}
+
+	// The highest Temp number f uses.
+	//
+	static int maxTemp(IR1.Func f)
+	{
+		int max = 0;
+		for (IR1.Inst inst : f.code)
+		{
+			List<IR1.Src> ops = new ArrayList<IR1.Src>();
+			if (inst instanceof IR1.Binop)
+				ops.addAll(Arrays.asList((IR1.Src) ((IR1.Binop) inst).dst, ((IR1.Binop) inst).src1, ((IR1.Binop) inst).src2));
+			else if (inst instanceof IR1.Unop)
+				ops.addAll(Arrays.asList((IR1.Src) ((IR1.Unop) inst).dst, ((IR1.Unop) inst).src));
+			else if (inst instanceof IR1.Move)
+				ops.addAll(Arrays.asList((IR1.Src) ((IR1.Move) inst).dst, ((IR1.Move) inst).src));
+			else if (inst instanceof IR1.Load)
+				ops.addAll(Arrays.asList((IR1.Src) ((IR1.Load) inst).dst, ((IR1.Load) inst).addr.base));
+			else if (inst instanceof IR1.Store)
+				ops.addAll(Arrays.asList(((IR1.Store) inst).addr.base, ((IR1.Store) inst).src));
+			else if (inst instanceof IR1.Call)
+			{
+				ops.addAll(Arrays.asList(((IR1.Call) inst).args));
+				ops.add((IR1.Src) ((IR1.Call) inst).rdst);
+			}
+			else if (inst instanceof IR1.CJump)
+				ops.addAll(Arrays.asList(((IR1.CJump) inst).src1, ((IR1.CJump) inst).src2));
+			else if (inst instanceof IR1.Return)
+				ops.add(((IR1.Return) inst).val);
+
+			for (IR1.Src o : ops)
+			{
+				if (o instanceof IR1.Temp)
+					max = Math.max(max, ((IR1.Temp) o).num);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Copies a callee's instructions with its names replaced: Ids and
+	 * labels by the maps, Temps by adding an offset to their numbers.
+	 * Every node is new (IR1Interp resolves an Id's slot in the node).
+	 *
+	 * @author Ian
+	 */
+	static final class Copier
+	{
+		final Map<String, String> ids, labs;
+		final int tempBase;
+
+		Copier(Map<String, String> ids, Map<String, String> labs, int tempBase)
+		{
+			this.ids = ids;
+			this.labs = labs;
+			this.tempBase = tempBase;
+		}
+
+		IR1.Src src(IR1.Src n)
+		{
+			if (n instanceof IR1.Id || n instanceof IR1.Temp)
+				return (IR1.Src) dest((IR1.Dest) n, true);
+			return n;
+		}
+
+		// A caller's operand, as it is.
+		//
+		IR1.Src caller(IR1.Src n)
+		{
+			if (n instanceof IR1.Id || n instanceof IR1.Temp)
+				return (IR1.Src) dest((IR1.Dest) n, false);
+			return n;
+		}
+
+		// A callee's Id or Temp renamed, or (with rename false) a
+		// caller's copied as it is.
+		//
+		IR1.Dest dest(IR1.Dest n, boolean rename)
+		{
+			if (n instanceof IR1.Temp)
+				return new IR1.Temp(((IR1.Temp) n).num + (rename ? tempBase : 0));
+
+			String name = ((IR1.Id) n).name;
+			if (rename && ids.containsKey(name))
+				name = ids.get(name);
+			return new IR1.Id(name);
+		}
+
+		IR1.Label label(IR1.Label l)
+		{
+			return new IR1.Label(labs.get(l.name));
+		}
+
+		IR1.Addr addr(IR1.Addr a)
+		{
+			return new IR1.Addr(src(a.base), a.offset);
+		}
+
+		IR1.Inst inst(IR1.Inst n)
+		{
+			if (n instanceof IR1.Binop)
+			{
+				IR1.Binop b = (IR1.Binop) n;
+				return new IR1.Binop(b.op, dest(b.dst, true), src(b.src1), src(b.src2));
+			}
+			if (n instanceof IR1.Unop)
+			{
+				IR1.Unop u = (IR1.Unop) n;
+				return new IR1.Unop(u.op, dest(u.dst, true), src(u.src));
+			}
+			if (n instanceof IR1.Move)
+			{
+				IR1.Move m = (IR1.Move) n;
+				return new IR1.Move(dest(m.dst, true), src(m.src));
+			}
+			if (n instanceof IR1.Load)
+			{
+				IR1.Load l = (IR1.Load) n;
+				return new IR1.Load(dest(l.dst, true), addr(l.addr));
+			}
+			if (n instanceof IR1.Store)
+			{
+				IR1.Store s = (IR1.Store) n;
+				return new IR1.Store(addr(s.addr), src(s.src));
+			}
+			if (n instanceof IR1.Call)
+			{
+				IR1.Call c = (IR1.Call) n;
+				IR1.Src[] args = new IR1.Src[c.args.length];
+				for (int i = 0; i < args.length; i++)
+					args[i] = src(c.args[i]);
+				return new IR1.Call(c.name, args, c.rdst != null ? dest(c.rdst, true) : null);
+			}
+			if (n instanceof IR1.CJump)
+			{
+				IR1.CJump c = (IR1.CJump) n;
+				return new IR1.CJump(c.op, src(c.src1), src(c.src2), label(c.lab));
+			}
+			if (n instanceof IR1.Jump)
+				return new IR1.Jump(label(((IR1.Jump) n).lab));
+			return new IR1.LabelDec(labs.get(((IR1.LabelDec) n).name));
+		}
+	}
+}
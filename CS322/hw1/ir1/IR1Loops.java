@@ -0,0 +1,412 @@
+//
+// Loop optimizations for IR1Opt, on a graph in SSA form.
+// Assignment by Ian Aldrighetti
+//
+// find() gives the natural loops of the graph: for each back-edge (an
+// edge to a block that dominates its source) the header and the blocks
+// that reach the back-edge without passing the header, with the loops
+// of one header merged. Each loop gets a preheader (IR1Cfg.preheader).
+//
+// - hoist(): loop-invariant code motion. A Binop or Unop whose operands
+// do not change in the loop moves to the preheader. It may then run
+// when the loop body would not have, so it must not be able to fail:
+// no division by a non-constant, and no operand that could be
+// undefined. A Load also moves if its block runs on every iteration
+// that can leave the loop and nothing in the loop could write what it
+// reads: no call, and every store is to the same base with a different
+// offset (t2 = a + 4; [t2] writes 4[a], so a store through any other
+// base could).
+// - reduce(): strength reduction. For a basic induction variable i (a
+// header phi stepped by a constant c on every back-edge), i * k becomes
+// a new induction variable that starts at init * k and steps by c * k,
+// so the multiplication in the loop turns into an addition. Ints wrap
+// the same either way.
+//
+// Loops are taken inner first, so code hoisted out of an inner loop can
+// move again out of the loop around it.
+//
+package ir1;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ir1.IR1Cfg.Block;
+import ir1.IR1Cfg.Const;
+import ir1.IR1Cfg.Kind;
+import ir1.IR1Cfg.Operand;
+import ir1.IR1Cfg.Stmt;
+import ir1.IR1Cfg.Var;
+
+public class IR1Loops
+{
+	/**
+	 * A natural loop.
+	 *
+	 * @author Ian
+	 */
+	public static final class Loop
+	{
+		public final Block header;
+		public final Set<Block> blocks = new HashSet<Block>();
+		public Block preheader;
+
+		Loop(Block header)
+		{
+			this.header = header;
+		}
+
+		public String toString()
+		{
+			return "loop at " + header + " (" + blocks.size() + " blocks)";
+		}
+	}
+
+	final IR1Cfg cfg;
+	final List<Loop> loops;
+
+	// Memo for defined(): versions known to hold a value, or not
+	final Map<Var, Boolean> defined = new HashMap<Var, Boolean>();
+
+	public int hoisted = 0, reduced = 0;
+
+	public IR1Loops(IR1Cfg cfg)
+	{
+		this.cfg = cfg;
+
+		// Preheaders change the graph, and a new one belongs to the
+		// loops around its own loop, so the loops are found again after.
+		cfg.dominators();
+		for (Loop l : find(cfg))
+			cfg.preheader(l.header, l.blocks);
+
+		cfg.dominators();
+		loops = find(cfg);
+		for (Loop l : loops)
+			l.preheader = cfg.preheader(l.header, l.blocks);
+	}
+
+	public void run()
+	{
+		for (Loop l : loops)
+		{
+			hoist(l);
+			reduce(l);
+		}
+	}
+
+	// -----------------------------------------------------------------
+	// Finding loops
+	// -----------------------------------------------------------------
+	//
+
+	// The natural loops, smallest (so innermost) first. dominators()
+	// must be current.
+	//
+	public static List<Loop> find(IR1Cfg cfg)
+	{
+		Map<Block, Loop> byHeader = new LinkedHashMap<Block, Loop>();
+
+		for (Block b : cfg.blocks)
+		{
+			for (Block h : b.succs)
+			{
+				if (!IR1Cfg.dominates(h, b))
+					continue;
+
+				Loop l = byHeader.get(h);
+				if (l == null)
+				{
+					l = new Loop(h);
+					l.blocks.add(h);
+					byHeader.put(h, l);
+				}
+
+				ArrayDeque<Block> work = new ArrayDeque<Block>();
+				if (l.blocks.add(b))
+					work.push(b);
+				while (!work.isEmpty())
+				{
+					for (Block p : work.pop().preds)
+					{
+						if (l.blocks.add(p))
+							work.push(p);
+					}
+				}
+			}
+		}
+
+		List<Loop> loops = new ArrayList<Loop>(byHeader.values());
+		loops.sort((a, b) -> Integer.compare(a.blocks.size(), b.blocks.size()));
+		return loops;
+	}
+
+	// The loop's blocks in reverse postorder, so a definition comes
+	// before the uses it dominates.
+	//
+	static List<Block> ordered(Loop l)
+	{
+		List<Block> list = new ArrayList<Block>(l.blocks);
+		list.sort((a, b) -> Integer.compare(a.rpo, b.rpo));
+		return list;
+	}
+
+	// True if v certainly holds a value (it is not a local or temp that
+	// may still be undefined), so an operation on it cannot fail for
+	// that reason.
+	//
+	boolean defined(Var v)
+	{
+		Boolean known = defined.get(v);
+		if (known != null)
+			return known;
+
+		Stmt def = v.def;
+		if (def == null)
+			return cfg.params.contains(v.orig);
+
+		// A phi in a cycle is taken to be defined while it is checked;
+		// it is if everything coming into the cycle is.
+		defined.put(v, true);
+		boolean d = true;
+		if (def.kind == Kind.PHI || def.kind == Kind.MOVE)
+		{
+			for (Operand a : def.args)
+			{
+				if (a instanceof Var && !defined((Var) a))
+					d = false;
+			}
+		}
+		defined.put(v, d);
+		return d;
+	}
+
+	// -----------------------------------------------------------------
+	// Loop-invariant code motion
+	// -----------------------------------------------------------------
+	//
+
+	// The load's address differs from every store's: same base,
+	// different offset.
+	//
+	static boolean disjoint(Stmt load, List<Stmt> stores)
+	{
+		for (Stmt st : stores)
+		{
+			if (!IR1Opt.sameOperand(st.args[0], load.args[0]) || st.offset == load.offset)
+				return false;
+		}
+		return true;
+	}
+
+	void hoist(Loop l)
+	{
+		boolean calls = false;
+		List<Stmt> stores = new ArrayList<Stmt>();
+		List<Block> exits = new ArrayList<Block>();
+		for (Block b : l.blocks)
+		{
+			for (Stmt s : b.stmts)
+			{
+				if (s.kind == Kind.CALL)
+					calls = true;
+				else if (s.kind == Kind.STORE)
+					stores.add(s);
+			}
+			for (Block s : b.succs)
+			{
+				if (!l.blocks.contains(s) && !exits.contains(b))
+					exits.add(b);
+			}
+		}
+
+		for (Block b : ordered(l))
+		{
+			boolean everyTrip = true;
+			for (Block e : exits)
+				everyTrip &= IR1Cfg.dominates(b, e);
+
+			for (int i = 0; i < b.stmts.size(); i++)
+			{
+				Stmt s = b.stmts.get(i);
+				boolean movable;
+				if (s.kind == Kind.LOAD)
+					movable = everyTrip && !calls && disjoint(s, stores);
+				else
+					movable = (s.kind == Kind.BINOP || s.kind == Kind.UNOP) && s.isPure();
+
+				if (!movable || !invariant(s, l))
+					continue;
+
+				b.stmts.remove(i--);
+				s.block = l.preheader;
+				l.preheader.stmts.add(s);
+				hoisted++;
+			}
+		}
+	}
+
+	// The operands are set before the loop, and hold values.
+	//
+	boolean invariant(Stmt s, Loop l)
+	{
+		for (Operand a : s.args)
+		{
+			if (!(a instanceof Var))
+				continue;
+			Var v = (Var) a;
+			if (v.def != null && l.blocks.contains(v.def.block))
+				return false;
+			if (!defined(v))
+				return false;
+		}
+		return true;
+	}
+
+	// -----------------------------------------------------------------
+	// Strength reduction
+	// -----------------------------------------------------------------
+	//
+
+	void reduce(Loop l)
+	{
+		Block h = l.header;
+		int pre = h.preds.indexOf(l.preheader);
+
+		for (Stmt phi : new ArrayList<Stmt>(h.phis))
+		{
+			// i = phi(init from the preheader, next from the loop), and
+			// next = i + c or i - c
+			Var i = phi.dst;
+			Operand init = phi.args[pre];
+			Operand next = null;
+			for (int j = 0; j < phi.args.length; j++)
+			{
+				if (j == pre)
+					continue;
+				if (next == null)
+					next = phi.args[j];
+				else if (next != phi.args[j])
+					next = null;
+				if (next == null)
+					break;
+			}
+			if (!(next instanceof Var) || !(init instanceof Const || defined((Var) init)))
+				continue;
+
+			Var step = (Var) next;
+			Integer c = increment(step.def, i);
+			if (c == null || !l.blocks.contains(step.def.block))
+				continue;
+
+			// Scaled copies of i and step, by factor
+			Map<Integer, Var[]> scaled = new HashMap<Integer, Var[]>();
+
+			List<Stmt> muls = new ArrayList<Stmt>();
+			for (Block b : ordered(l))
+			{
+				for (Stmt s : b.stmts)
+				{
+					if (s.kind == Kind.BINOP && s.op == IR1.AOP.MUL)
+						muls.add(s);
+				}
+			}
+
+			for (Stmt s : muls)
+			{
+				Operand x;
+				Integer k;
+				if (s.args[1] instanceof Const && ((Const) s.args[1]).value() instanceof Integer)
+				{
+					x = s.args[0];
+					k = (Integer) ((Const) s.args[1]).value();
+				}
+				else if (s.args[0] instanceof Const && ((Const) s.args[0]).value() instanceof Integer)
+				{
+					x = s.args[1];
+					k = (Integer) ((Const) s.args[0]).value();
+				}
+				else
+				{
+					continue;
+				}
+				if (x != i && x != step)
+					continue;
+
+				Var[] iv = scaled.get(k);
+				if (iv == null)
+				{
+					iv = scale(l, phi, init, step, c, k);
+					scaled.put(k, iv);
+				}
+
+				s.kind = Kind.MOVE;
+				s.op = null;
+				s.args = new Operand[] { x == i ? iv[0] : iv[1] };
+				reduced++;
+			}
+		}
+	}
+
+	// c if s is next = i + c, -c if it is next = i - c (for an int
+	// constant c); otherwise null.
+	//
+	static Integer increment(Stmt s, Var i)
+	{
+		if (s == null || s.kind != Kind.BINOP)
+			return null;
+
+		Operand a = s.args[0], b = s.args[1];
+		if (s.op == IR1.AOP.ADD && a == i && b instanceof Const && ((Const) b).value() instanceof Integer)
+			return (Integer) ((Const) b).value();
+		if (s.op == IR1.AOP.ADD && b == i && a instanceof Const && ((Const) a).value() instanceof Integer)
+			return (Integer) ((Const) a).value();
+		if (s.op == IR1.AOP.SUB && a == i && b instanceof Const && ((Const) b).value() instanceof Integer)
+			return -(Integer) ((Const) b).value();
+		return null;
+	}
+
+	// Adds j = phi(init * k, j + c * k) to the header, with init * k
+	// computed in the preheader and j + c * k just after step = i + c.
+	// Returns { j, j + c * k }.
+	//
+	Var[] scale(Loop l, Stmt phi, Operand init, Var step, int c, int k)
+	{
+		Block h = l.header;
+		int pre = h.preds.indexOf(l.preheader);
+
+		Operand start;
+		if (init instanceof Const)
+		{
+			start = Const.of((Integer) ((Const) init).value() * k);
+		}
+		else
+		{
+			Stmt mul = new Stmt(Kind.BINOP, IR1.AOP.MUL, null, init, Const.of(k));
+			mul.block = l.preheader;
+			l.preheader.stmts.add(mul);
+			start = cfg.newValue(mul);
+		}
+
+		Stmt jPhi = new Stmt(Kind.PHI, null, null, new Operand[phi.args.length]);
+		jPhi.block = h;
+		h.phis.add(jPhi);
+		Var j = cfg.newValue(jPhi);
+
+		Stmt add = new Stmt(Kind.BINOP, IR1.AOP.ADD, null, j, Const.of(c * k));
+		Block b = step.def.block;
+		add.block = b;
+		b.stmts.add(b.stmts.indexOf(step.def) + 1, add);
+		Var jNext = cfg.newValue(add);
+
+		for (int x = 0; x < jPhi.args.length; x++)
+			jPhi.args[x] = x == pre ? start : jNext;
+
+		return new Var[] { j, jNext };
+	}
+}
@@ -0,0 +1,919 @@
+//
+// SSA-based optimizer for IR1 programs.
+// Assignment by Ian Aldrighetti
+//
+// optimize() first inlines small functions into their callers (see
+// IR1Inline), then takes each function through
+//
+//   IR1Cfg.build -> IR1Ssa.build -> sccp -> copies -> gvn -> loops
+//     -> copies -> dce -> IR1Ssa.destroy -> negatives
+//
+// and returns an ordinary IR1.Program, which IR1Interp runs and
+// CodeGen compiles like any other. The passes assume the program is
+// well typed (as IR0Gen's output is), but keep every instruction that
+// can fail on good input (loads, calls, divisions by a non-constant)
+// unless the same instruction has already run, so a program that fails
+// still fails.
+//
+// - sccp(): sparse conditional constant propagation (Wegman and
+// Zadeck). Versions with a constant value are replaced by it, branches
+// on a constant go one way, and blocks it never reaches are removed.
+// - copies(): copy propagation. A copy, or a phi whose operands are all
+// the same, is removed and its uses read the source.
+// - gvn(): global value numbering. An operation, or a load, that repeats
+// one which dominates it (with no store or call between, for a load)
+// becomes a copy of the earlier result.
+// - loops(): loop-invariant code motion and strength reduction of
+// induction variables (see IR1Loops).
+// - dce(): removes the pure instructions (and phis) whose results are
+// never used.
+//
+// IR1 text has no negative literals, so negatives() rewrites the ones
+// the passes made into something CodeGen can read back.
+//
+// A function with an undeclared Id or an undefined label is left alone.
+//
+package ir1;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ir1.IR1Cfg.Block;
+import ir1.IR1Cfg.Const;
+import ir1.IR1Cfg.Kind;
+import ir1.IR1Cfg.Operand;
+import ir1.IR1Cfg.Stmt;
+import ir1.IR1Cfg.Var;
+
+public class IR1Opt
+{
+	/**
+	 * What the passes did to one function, for the report.
+	 *
+	 * @author Ian
+	 */
+	public static class Stats
+	{
+		public final String func;
+		public int before, after;
+		public boolean skipped = false;
+
+		// Counter name to count, in the order the passes add them
+		public final Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+
+		Stats(String func)
+		{
+			this.func = func;
+		}
+
+		void add(String counter, int n)
+		{
+			Integer old = counts.get(counter);
+			counts.put(counter, (old == null ? 0 : old) + n);
+		}
+	}
+
+	public final List<Stats> stats = new ArrayList<Stats>();
+
+	// -----------------------------------------------------------------
+	// Pipeline
+	// -----------------------------------------------------------------
+	//
+
+	// Calls to functions of at most this many instructions are inlined
+	// first (see IR1Inline); 0 for none.
+	public int inlineBudget = IR1Inline.DEFAULT_BUDGET;
+
+	// Calls inlined, by caller
+	Map<String, Integer> inlined = new HashMap<String, Integer>();
+
+	public IR1.Program optimize(IR1.Program p)
+	{
+		if (inlineBudget > 0)
+		{
+			IR1Inline inliner = new IR1Inline(inlineBudget);
+			p = inliner.inline(p);
+			inlined = inliner.inlined;
+		}
+
+		IR1Cfg.Labels labels = new IR1Cfg.Labels(p);
+		IR1.Func[] funcs = new IR1.Func[p.funcs.length];
+
+		for (int i = 0; i < funcs.length; i++)
+		{
+			funcs[i] = optimize(p.funcs[i], labels);
+		}
+
+		return new IR1.Program(funcs);
+	}
+
+	IR1.Func optimize(IR1.Func f, IR1Cfg.Labels labels)
+	{
+		Stats st = new Stats(f.name);
+		stats.add(st);
+		st.before = st.after = count(f);
+		if (inlined.containsKey(f.name))
+			st.add("inlined", inlined.get(f.name));
+
+		IR1Cfg cfg = IR1Cfg.build(f);
+		if (cfg == null)
+		{
+			st.skipped = true;
+			return f;
+		}
+
+		IR1Ssa.build(cfg);
+		sccp(cfg, st);
+		copies(cfg, st);
+		gvn(cfg, st);
+		loops(cfg, st);
+		copies(cfg, st);
+		dce(cfg, st);
+		IR1Ssa.destroy(cfg);
+		negatives(cfg);
+
+		IR1.Func g = cfg.toFunc(labels);
+		st.after = count(g);
+		return g;
+	}
+
+	// Instructions other than labels.
+	//
+	static int count(IR1.Func f)
+	{
+		int n = 0;
+		for (IR1.Inst inst : f.code)
+		{
+			if (!(inst instanceof IR1.LabelDec))
+				n++;
+		}
+		return n;
+	}
+
+	public void report(PrintStream err)
+	{
+		for (Stats st : stats)
+		{
+			StringBuilder line = new StringBuilder();
+			line.append(String.format("%-20s %5d -> %5d", st.func, st.before, st.after));
+			if (st.skipped)
+			{
+				line.append("  (not optimized)");
+			}
+			for (Map.Entry<String, Integer> me : st.counts.entrySet())
+			{
+				if (me.getValue() > 0)
+					line.append("  " + me.getKey() + " " + me.getValue());
+			}
+			err.println(line);
+		}
+	}
+
+	// The Stmts that read each version.
+	//
+	static Map<Var, List<Stmt>> uses(IR1Cfg cfg)
+	{
+		Map<Var, List<Stmt>> uses = new HashMap<Var, List<Stmt>>();
+		for (Stmt s : cfg.allStmts())
+		{
+			for (Operand a : s.args)
+			{
+				if (!(a instanceof Var))
+					continue;
+				List<Stmt> list = uses.get(a);
+				if (list == null)
+				{
+					list = new ArrayList<Stmt>();
+					uses.put((Var) a, list);
+				}
+				list.add(s);
+			}
+		}
+		return uses;
+	}
+
+	// -----------------------------------------------------------------
+	// Sparse conditional constant propagation
+	// -----------------------------------------------------------------
+	//
+	// A version's lattice value is missing from 'values' (not known yet),
+	// an Integer or Boolean (constant), or BOTTOM (varies).
+	//
+
+	static final Object BOTTOM = new Object();
+
+	static class Sccp
+	{
+		final Map<Var, Object> values = new HashMap<Var, Object>();
+		final Map<Var, List<Stmt>> uses;
+
+		// Executable edges, by block: one flag per predecessor
+		final Map<Block, boolean[]> edges = new HashMap<Block, boolean[]>();
+		final Set<Block> reached = new HashSet<Block>();
+
+		final ArrayDeque<Block> blockWork = new ArrayDeque<Block>();
+		final ArrayDeque<Var> varWork = new ArrayDeque<Var>();
+
+		Sccp(IR1Cfg cfg)
+		{
+			uses = uses(cfg);
+			for (Block b : cfg.blocks)
+				edges.put(b, new boolean[b.preds.size()]);
+		}
+
+		Object value(Operand o)
+		{
+			if (o instanceof Const)
+			{
+				Object v = ((Const) o).value();
+				return v != null ? v : BOTTOM;
+			}
+
+			Var v = (Var) o;
+			if (v.def == null)
+				return BOTTOM;	// an argument, or undefined
+			return values.get(v);
+		}
+
+		void set(Var v, Object val)
+		{
+			if (val == null)
+				return;
+
+			Object old = values.get(v);
+			if (old == BOTTOM || (old != null && old.equals(val)))
+				return;
+
+			// Values only go down: unknown, then a constant, then BOTTOM.
+			values.put(v, old == null ? val : BOTTOM);
+			varWork.push(v);
+		}
+
+		void markEdge(Block from, Block to)
+		{
+			boolean[] flags = edges.get(to);
+			boolean changed = false;
+			for (int j = 0; j < to.preds.size(); j++)
+			{
+				if (to.preds.get(j) == from && !flags[j])
+				{
+					flags[j] = true;
+					changed = true;
+				}
+			}
+			if (changed)
+				blockWork.push(to);
+		}
+
+		void run(IR1Cfg cfg)
+		{
+			reached.add(cfg.entry());
+			visitBlock(cfg.entry());
+
+			while (!blockWork.isEmpty() || !varWork.isEmpty())
+			{
+				while (!blockWork.isEmpty())
+				{
+					Block b = blockWork.pop();
+					if (reached.add(b))
+					{
+						visitBlock(b);
+					}
+					else
+					{
+						for (Stmt phi : b.phis)
+							visit(phi);
+					}
+				}
+
+				while (!varWork.isEmpty())
+				{
+					List<Stmt> list = uses.get(varWork.pop());
+					if (list == null)
+						continue;
+					for (Stmt s : list)
+					{
+						if (reached.contains(s.block))
+							visit(s);
+					}
+				}
+			}
+		}
+
+		void visitBlock(Block b)
+		{
+			for (Stmt phi : b.phis)
+				visit(phi);
+			for (Stmt s : b.stmts)
+				visit(s);
+			if (!b.endsIn(Kind.CJUMP))
+			{
+				for (Block s : b.succs)
+					markEdge(b, s);
+			}
+		}
+
+		void visit(Stmt s)
+		{
+			switch (s.kind)
+			{
+				case PHI:
+					boolean[] flags = edges.get(s.block);
+					Object val = null;
+					for (int j = 0; j < s.args.length; j++)
+					{
+						if (!flags[j])
+							continue;
+						Object a = value(s.args[j]);
+						if (a == null)
+							continue;
+						if (val == null)
+							val = a;
+						else if (!val.equals(a))
+							val = BOTTOM;
+					}
+					set(s.dst, val);
+					break;
+
+				case MOVE:
+					set(s.dst, value(s.args[0]));
+					break;
+
+				case BINOP:
+				case UNOP:
+					set(s.dst, fold(s));
+					break;
+
+				case LOAD:
+				case CALL:
+					if (s.dst != null)
+						set(s.dst, BOTTOM);
+					break;
+
+				case CJUMP:
+					Object cond = fold(s);
+					if (cond == BOTTOM)
+					{
+						markEdge(s.block, s.block.succs.get(0));
+						markEdge(s.block, s.block.succs.get(1));
+					}
+					else if (cond != null)
+					{
+						markEdge(s.block, s.block.succs.get((Boolean) cond ? 0 : 1));
+					}
+					break;
+
+				default:
+					break;
+			}
+		}
+
+		// The value of a BINOP, UNOP or CJUMP's comparison.
+		//
+		Object fold(Stmt s)
+		{
+			Object a = value(s.args[0]);
+			Object b = s.args.length > 1 ? value(s.args[1]) : null;
+
+			if (a == BOTTOM || b == BOTTOM)
+				return BOTTOM;
+			if (a == null || (s.args.length > 1 && b == null))
+				return null;
+
+			Object r = s.kind == Kind.UNOP ? IR1Opt.fold((IR1.UOP) s.op, a) : IR1Opt.fold((IR1.BOP) s.op, a, b);
+			return r != null ? r : BOTTOM;
+		}
+	}
+
+	// a op b on constants, as IR1Interp computes it; null if that would
+	// fail (or is not a plain int or bool operation).
+	//
+	public static Object fold(IR1.BOP op, Object a, Object b)
+	{
+		if (a instanceof Integer && b instanceof Integer)
+		{
+			int x = (Integer) a, y = (Integer) b;
+
+			if (op == IR1.AOP.ADD)
+				return x + y;
+			if (op == IR1.AOP.SUB)
+				return x - y;
+			if (op == IR1.AOP.MUL)
+				return x * y;
+			if (op == IR1.AOP.DIV)
+				return y != 0 ? (Object) (x / y) : null;
+			if (op instanceof IR1.ROP)
+				return compare((IR1.ROP) op, Integer.compare(x, y));
+		}
+		else if (a instanceof Boolean && b instanceof Boolean)
+		{
+			boolean x = (Boolean) a, y = (Boolean) b;
+
+			if (op == IR1.AOP.AND)
+				return x && y;
+			if (op == IR1.AOP.OR)
+				return x || y;
+			if (op == IR1.ROP.EQ)
+				return x == y;
+			if (op == IR1.ROP.NE)
+				return x != y;
+		}
+		return null;
+	}
+
+	public static Object fold(IR1.UOP op, Object a)
+	{
+		if (op == IR1.UOP.NEG && a instanceof Integer)
+			return -(Integer) a;
+		if (op == IR1.UOP.NOT && a instanceof Boolean)
+			return !(Boolean) a;
+		return null;
+	}
+
+	static Boolean compare(IR1.ROP op, int c)
+	{
+		switch (op)
+		{
+			case EQ:
+				return c == 0;
+			case NE:
+				return c != 0;
+			case LT:
+				return c < 0;
+			case LE:
+				return c <= 0;
+			case GT:
+				return c > 0;
+			default:
+				return c >= 0;
+		}
+	}
+
+	void sccp(IR1Cfg cfg, Stats st)
+	{
+		Sccp sccp = new Sccp(cfg);
+		sccp.run(cfg);
+
+		int folded = 0, branches = 0;
+		for (Block b : cfg.blocks)
+		{
+			if (!sccp.reached.contains(b))
+				continue;
+
+			for (Stmt s : b.stmts)
+			{
+				// Constant operands; an address's base stays a variable
+				// (CodeGen wants a register there).
+				int first = s.kind == Kind.LOAD || s.kind == Kind.STORE ? 1 : 0;
+				for (int i = first; i < s.args.length; i++)
+				{
+					Object v = sccp.value(s.args[i]);
+					if (s.args[i] instanceof Var && v != null && v != BOTTOM)
+						s.args[i] = Const.of(v);
+				}
+
+				// A constant result is a move of the constant; dce()
+				// removes it if nothing reads the variable any more.
+				if (s.dst != null && (s.kind == Kind.BINOP || s.kind == Kind.UNOP))
+				{
+					Object v = sccp.values.get(s.dst);
+					if (v != null && v != BOTTOM)
+					{
+						s.kind = Kind.MOVE;
+						s.op = null;
+						s.args = new Operand[] { Const.of(v) };
+						folded++;
+					}
+				}
+			}
+
+			for (Stmt phi : b.phis)
+			{
+				for (int j = 0; j < phi.args.length; j++)
+				{
+					Object v = sccp.value(phi.args[j]);
+					if (phi.args[j] instanceof Var && v != null && v != BOTTOM)
+						phi.args[j] = Const.of(v);
+				}
+			}
+
+			// A branch that only goes one way
+			if (b.endsIn(Kind.CJUMP))
+			{
+				Object cond = sccp.fold(b.last());
+				if (cond instanceof Boolean)
+				{
+					int dead = (Boolean) cond ? 1 : 0;
+					Block other = b.succs.get(dead);
+					IR1Cfg.removePred(other, other.preds.indexOf(b));
+					b.succs.remove(dead);
+					b.stmts.remove(b.stmts.size() - 1);
+					branches++;
+				}
+			}
+		}
+
+		st.add("constants", folded);
+		st.add("branches", branches);
+		st.add("blocks", cfg.removeUnreachable());
+	}
+
+	// -----------------------------------------------------------------
+	// Copy propagation
+	// -----------------------------------------------------------------
+	//
+
+	void copies(IR1Cfg cfg, Stats st)
+	{
+		// Each removed copy's source, not resolved. A version that maps
+		// to a constant keeps its MOVE, which dce() removes unless an
+		// address's base still reads it (CodeGen wants a register there).
+		Map<Var, Operand> copyOf = new HashMap<Var, Operand>();
+		int removed = 0;
+		boolean changed = true;
+
+		while (changed)
+		{
+			changed = false;
+			for (Block b : cfg.blocks)
+			{
+				for (Iterator<Stmt> it = b.phis.iterator(); it.hasNext();)
+				{
+					Stmt phi = it.next();
+					Operand first = null, same = null;
+					boolean one = true;
+					for (Operand a : phi.args)
+					{
+						Operand r = resolve(a, copyOf);
+						if (r == phi.dst)
+							continue;
+						if (same == null)
+						{
+							first = a;
+							same = r;
+						}
+						else if (!sameOperand(same, r))
+						{
+							one = false;
+						}
+					}
+
+					// (A phi with no other operand is only reached from
+					// itself; it is dead, and dce() removes it.)
+					if (!one || same == null)
+						continue;
+
+					it.remove();
+					if (same instanceof Const)
+					{
+						phi.kind = Kind.MOVE;
+						phi.args = new Operand[] { same };
+						b.stmts.add(0, phi);
+						copyOf.put(phi.dst, same);
+					}
+					else
+					{
+						copyOf.put(phi.dst, first);
+					}
+					removed++;
+					changed = true;
+				}
+
+				for (Iterator<Stmt> it = b.stmts.iterator(); it.hasNext();)
+				{
+					Stmt s = it.next();
+					if (s.kind != Kind.MOVE || copyOf.containsKey(s.dst))
+						continue;
+
+					copyOf.put(s.dst, s.args[0]);
+					if (s.args[0] instanceof Var)
+					{
+						it.remove();
+						removed++;
+					}
+					changed = true;
+				}
+			}
+		}
+
+		for (Stmt s : cfg.allStmts())
+		{
+			int first = s.kind == Kind.LOAD || s.kind == Kind.STORE ? 1 : 0;
+			for (int i = 0; i < s.args.length; i++)
+			{
+				if (i < first)
+					s.args[i] = resolveVar(s.args[i], copyOf);
+				else
+					s.args[i] = resolve(s.args[i], copyOf);
+			}
+		}
+
+		st.add("copies", removed);
+	}
+
+	static Operand resolve(Operand o, Map<Var, Operand> copyOf)
+	{
+		while (o instanceof Var && copyOf.containsKey(o))
+			o = copyOf.get(o);
+		return o;
+	}
+
+	// As resolve(), but stops at the last variable.
+	//
+	static Operand resolveVar(Operand o, Map<Var, Operand> copyOf)
+	{
+		while (o instanceof Var && copyOf.get(o) instanceof Var)
+			o = copyOf.get(o);
+		return o;
+	}
+
+	static boolean sameOperand(Operand a, Operand b)
+	{
+		return a == b || (a instanceof Const && ((Const) a).same(b));
+	}
+
+	// -----------------------------------------------------------------
+	// Global value numbering
+	// -----------------------------------------------------------------
+	//
+	// The dominator tree is walked with a scoped table from expressions
+	// to the version that first computed them. In SSA form an operand
+	// names one value wherever it appears, so an expression seen in a
+	// dominating block has the same value here, and the repeat becomes
+	// a MOVE of the earlier version (copies() then removes it).
+	//
+	// Loads are kept in a table of their own, since memory changes
+	// without any version changing. A block only inherits its
+	// dominator's loads when that is its one predecessor (otherwise a
+	// store could come in on another path). Two addresses are only
+	// known to differ when they have the same base value and different
+	// offsets (t2 = a + 4; [t2] writes 4[a]), so a store forgets every
+	// load but those; a call forgets them all.
+	//
+
+	// Per block on the walk: the expressions it added, or NOT_YET
+	static final List<List<Object>> NOT_YET = new ArrayList<List<Object>>();
+
+	void gvn(IR1Cfg cfg, Stats st)
+	{
+		cfg.dominators();
+
+		Map<List<Object>, Var> exprs = new HashMap<List<Object>, Var>();
+		Map<Var, Var> leader = new HashMap<Var, Var>();
+		Map<Block, Map<List<Object>, Var>> loadsOut = new HashMap<Block, Map<List<Object>, Var>>();
+		int removed = 0;
+
+		ArrayDeque<Block> blocks = new ArrayDeque<Block>();
+		ArrayDeque<List<List<Object>>> added = new ArrayDeque<List<List<Object>>>();
+		blocks.push(cfg.entry());
+		added.push(NOT_YET);
+
+		while (!blocks.isEmpty())
+		{
+			Block b = blocks.pop();
+			List<List<Object>> done = added.pop();
+
+			if (done != NOT_YET)
+			{
+				// b's subtree is finished; its expressions go out of scope.
+				for (List<Object> key : done)
+					exprs.remove(key);
+				continue;
+			}
+
+			done = new ArrayList<List<Object>>();
+			Map<List<Object>, Var> loads = new HashMap<List<Object>, Var>();
+			if (b.preds.size() == 1 && b.preds.get(0) == b.idom)
+				loads.putAll(loadsOut.get(b.idom));
+
+			for (Stmt s : b.stmts)
+			{
+				if (s.kind == Kind.STORE)
+				{
+					Object base = value(s.args[0], leader);
+					loads.keySet().removeIf(key -> !key.get(2).equals(base) || key.get(1).equals(s.offset));
+					continue;
+				}
+				if (s.kind == Kind.CALL)
+				{
+					loads.clear();
+					continue;
+				}
+				if (s.kind != Kind.BINOP && s.kind != Kind.UNOP && s.kind != Kind.LOAD)
+					continue;
+
+				List<Object> key = key(s, leader);
+				Map<List<Object>, Var> table = s.kind == Kind.LOAD ? loads : exprs;
+				Var earlier = table.get(key);
+
+				if (earlier != null)
+				{
+					s.kind = Kind.MOVE;
+					s.op = null;
+					s.args = new Operand[] { earlier };
+					leader.put(s.dst, earlier);
+					removed++;
+				}
+				else
+				{
+					table.put(key, s.dst);
+					if (table == exprs)
+						done.add(key);
+				}
+			}
+			loadsOut.put(b, loads);
+
+			blocks.push(b);
+			added.push(done);
+			for (Block c : b.children)
+			{
+				blocks.push(c);
+				added.push(NOT_YET);
+			}
+		}
+
+		st.add("redundant", removed);
+	}
+
+	// What s computes, as a table key: its kind and operator (or offset)
+	// and its operands' values, in a fixed order for a commutative
+	// operator.
+	//
+	static List<Object> key(Stmt s, Map<Var, Var> leader)
+	{
+		List<Object> key = new ArrayList<Object>();
+		key.add(s.kind == Kind.LOAD ? (Object) "load" : s.op);
+		if (s.kind == Kind.LOAD)
+			key.add(s.offset);
+
+		Object[] vals = new Object[s.args.length];
+		for (int i = 0; i < vals.length; i++)
+			vals[i] = value(s.args[i], leader);
+
+		if (vals.length == 2 && commutes(s.op) && vals[0].hashCode() > vals[1].hashCode())
+		{
+			Object t = vals[0];
+			vals[0] = vals[1];
+			vals[1] = t;
+		}
+		for (Object v : vals)
+			key.add(v);
+		return key;
+	}
+
+	// An operand's value in a key: its leader's version, or the literal
+	static Object value(Operand a, Map<Var, Var> leader)
+	{
+		if (a instanceof Var)
+		{
+			Var l = leader.get(a);
+			return l != null ? l : a;
+		}
+		return ((Const) a).lit.toString();
+	}
+
+	static boolean commutes(Object op)
+	{
+		return op == IR1.AOP.ADD || op == IR1.AOP.MUL || op == IR1.AOP.AND || op == IR1.AOP.OR || op == IR1.ROP.EQ
+				|| op == IR1.ROP.NE;
+	}
+
+	// -----------------------------------------------------------------
+	// Loops
+	// -----------------------------------------------------------------
+	//
+
+	void loops(IR1Cfg cfg, Stats st)
+	{
+		IR1Loops loops = new IR1Loops(cfg);
+		loops.run();
+		st.add("hoisted", loops.hoisted);
+		st.add("reduced", loops.reduced);
+	}
+
+	// -----------------------------------------------------------------
+	// Negative constants
+	// -----------------------------------------------------------------
+	//
+	// x + -c becomes x - c (and x - -c, x + c), dst = -c a Unop, and any
+	// other negative operand is computed into a new Temp just before its
+	// Stmt. The graph is out of SSA form.
+	//
+
+	void negatives(IR1Cfg cfg)
+	{
+		for (Block b : cfg.blocks)
+		{
+			for (int k = 0; k < b.stmts.size(); k++)
+			{
+				Stmt s = b.stmts.get(k);
+				for (int i = 0; i < s.args.length; i++)
+				{
+					Integer c = negative(s.args[i]);
+					if (c == null)
+						continue;
+
+					if (c != Integer.MIN_VALUE && s.kind == Kind.BINOP && i == 1
+							&& (s.op == IR1.AOP.ADD || s.op == IR1.AOP.SUB))
+					{
+						s.op = s.op == IR1.AOP.ADD ? IR1.AOP.SUB : IR1.AOP.ADD;
+						s.args[1] = Const.of(-c);
+					}
+					else if (c != Integer.MIN_VALUE && s.kind == Kind.MOVE)
+					{
+						s.kind = Kind.UNOP;
+						s.op = IR1.UOP.NEG;
+						s.args[0] = Const.of(-c);
+					}
+					else
+					{
+						// -c, or 0 - MAX_VALUE - 1 for MIN_VALUE
+						Var t = cfg.newTemp();
+						Stmt first = c != Integer.MIN_VALUE ? new Stmt(Kind.UNOP, IR1.UOP.NEG, t, Const.of(-c))
+								: new Stmt(Kind.BINOP, IR1.AOP.SUB, t, Const.of(0), Const.of(Integer.MAX_VALUE));
+						first.block = b;
+						b.stmts.add(k++, first);
+						if (c == Integer.MIN_VALUE)
+						{
+							Stmt second = new Stmt(Kind.BINOP, IR1.AOP.SUB, t, t, Const.of(1));
+							second.block = b;
+							b.stmts.add(k++, second);
+						}
+						s.args[i] = t;
+					}
+				}
+			}
+		}
+	}
+
+	static Integer negative(Operand o)
+	{
+		if (!(o instanceof Const) || !(((Const) o).value() instanceof Integer))
+			return null;
+		int c = (Integer) ((Const) o).value();
+		return c < 0 ? c : null;
+	}
+
+	// -----------------------------------------------------------------
+	// Dead code elimination
+	// -----------------------------------------------------------------
+	//
+
+	void dce(IR1Cfg cfg, Stats st)
+	{
+		Set<Stmt> live = new HashSet<Stmt>();
+		ArrayDeque<Stmt> work = new ArrayDeque<Stmt>();
+
+		for (Stmt s : cfg.allStmts())
+		{
+			if (!s.isPure())
+			{
+				live.add(s);
+				work.push(s);
+			}
+		}
+
+		while (!work.isEmpty())
+		{
+			for (Operand a : work.pop().args)
+			{
+				if (a instanceof Var)
+				{
+					Stmt def = ((Var) a).def;
+					if (def != null && live.add(def))
+						work.push(def);
+				}
+			}
+		}
+
+		int removed = 0;
+		for (Block b : cfg.blocks)
+		{
+			removed += removeDead(b.phis, live);
+			removed += removeDead(b.stmts, live);
+		}
+		st.add("dead", removed);
+	}
+
+	static int removeDead(List<Stmt> stmts, Set<Stmt> live)
+	{
+		int removed = 0;
+		for (Iterator<Stmt> it = stmts.iterator(); it.hasNext();)
+		{
+			if (!live.contains(it.next()))
+			{
+				it.remove();
+				removed++;
+			}
+		}
+		return removed;
+	}
+}
@@ -0,0 +1,547 @@
+//
+// Conversion of an IR1Cfg into and out of SSA form.
+// Assignment by Ian Aldrighetti
+//
+// build() follows Cytron et al.: phis for a variable go on the iterated
+// dominance frontier of the blocks that assign it (only for variables
+// that are live across a block boundary), then a walk of the dominator
+// tree gives every assignment a new version. Version 0 of each variable
+// is its value on entry: the argument for a parameter, and undefined
+// for anything else.
+//
+// destroy() puts the phis back as copies. After copy propagation two
+// versions of one variable can be live at once, so they cannot all be
+// given the variable's own name:
+//
+// 1. Edges from a CJUMP into blocks with phis are split, so each phi's
+// copies have a block of their own to go in.
+// 2. Liveness is computed over the versions, and a version shares its
+// variable's name only if it does not interfere with another version
+// that has it (version 0 always does). The others get new Temps.
+// 3. Each predecessor of a block with phis gets the phis' copies at its
+// end, ordered as a parallel copy (a cycle goes through a new Temp).
+//
+package ir1;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ir1.IR1Cfg.Block;
+import ir1.IR1Cfg.Kind;
+import ir1.IR1Cfg.Operand;
+import ir1.IR1Cfg.Stmt;
+import ir1.IR1Cfg.Var;
+
+public class IR1Ssa
+{
+	// -----------------------------------------------------------------
+	// Into SSA form
+	// -----------------------------------------------------------------
+	//
+
+	public static void build(IR1Cfg cfg)
+	{
+		cfg.removeUnreachable();
+		cfg.dominators();
+		placePhis(cfg);
+		rename(cfg);
+	}
+
+	static void placePhis(IR1Cfg cfg)
+	{
+		// The variables read in some block before it assigns them, and
+		// the blocks that assign each variable
+		Set<Var> global = new HashSet<Var>();
+		Map<Var, List<Block>> defSites = new HashMap<Var, List<Block>>();
+
+		for (Block b : cfg.blocks)
+		{
+			Set<Var> killed = new HashSet<Var>();
+			for (Stmt s : b.stmts)
+			{
+				for (Operand a : s.args)
+				{
+					if (a instanceof Var && !killed.contains(a))
+						global.add((Var) a);
+				}
+				if (s.dst != null && killed.add(s.dst))
+				{
+					List<Block> sites = defSites.get(s.dst);
+					if (sites == null)
+					{
+						sites = new ArrayList<Block>();
+						defSites.put(s.dst, sites);
+					}
+					sites.add(b);
+				}
+			}
+		}
+
+		for (Var v : global)
+		{
+			List<Block> sites = defSites.get(v);
+			if (sites == null)
+				continue;
+
+			Set<Block> hasPhi = new HashSet<Block>();
+			Set<Block> queued = new HashSet<Block>(sites);
+			ArrayDeque<Block> work = new ArrayDeque<Block>(sites);
+			while (!work.isEmpty())
+			{
+				for (Block d : work.pop().frontier)
+				{
+					if (!hasPhi.add(d))
+						continue;
+
+					Operand[] args = new Operand[d.preds.size()];
+					for (int i = 0; i < args.length; i++)
+						args[i] = v;
+					Stmt phi = new Stmt(Kind.PHI, null, v, args);
+					phi.block = d;
+					d.phis.add(phi);
+
+					if (queued.add(d))
+						work.push(d);
+				}
+			}
+		}
+	}
+
+	// Gives every assignment a new version, walking the dominator tree
+	// with an explicit stack (a long function has a deep tree).
+	//
+	static void rename(IR1Cfg cfg)
+	{
+		Map<Var, ArrayDeque<Var>> current = new HashMap<Var, ArrayDeque<Var>>();
+		Map<Var, Integer> versions = new HashMap<Var, Integer>();
+
+		for (Var v : cfg.vars.values())
+		{
+			ArrayDeque<Var> stack = new ArrayDeque<Var>();
+			stack.push(new Var(v, 0));
+			current.put(v, stack);
+			versions.put(v, 0);
+		}
+
+		// Per block on the walk: the variables it pushed a version of,
+		// or NOT_YET before it is renamed
+		ArrayDeque<Block> blocks = new ArrayDeque<Block>();
+		ArrayDeque<List<Var>> pushed = new ArrayDeque<List<Var>>();
+		blocks.push(cfg.entry());
+		pushed.push(NOT_YET);
+
+		while (!blocks.isEmpty())
+		{
+			Block b = blocks.pop();
+			List<Var> done = pushed.pop();
+
+			if (done != NOT_YET)
+			{
+				// All of b's children have been renamed.
+				for (Var v : done)
+					current.get(v).pop();
+				continue;
+			}
+
+			done = new ArrayList<Var>();
+			for (Stmt phi : b.phis)
+				phi.dst = define(phi.dst, phi, current, versions, done);
+			for (Stmt s : b.stmts)
+			{
+				for (int i = 0; i < s.args.length; i++)
+				{
+					if (s.args[i] instanceof Var)
+						s.args[i] = current.get(s.args[i]).peek();
+				}
+				if (s.dst != null)
+					s.dst = define(s.dst, s, current, versions, done);
+			}
+
+			Set<Block> seen = new HashSet<Block>();
+			for (Block succ : b.succs)
+			{
+				if (!seen.add(succ))
+					continue;
+				for (int j = 0; j < succ.preds.size(); j++)
+				{
+					if (succ.preds.get(j) != b)
+						continue;
+					for (Stmt phi : succ.phis)
+						phi.args[j] = current.get(((Var) phi.args[j]).orig).peek();
+				}
+			}
+
+			blocks.push(b);
+			pushed.push(done);
+			for (Block c : b.children)
+			{
+				blocks.push(c);
+				pushed.push(NOT_YET);
+			}
+		}
+	}
+
+	static final List<Var> NOT_YET = new ArrayList<Var>();
+
+	static Var define(Var v, Stmt def, Map<Var, ArrayDeque<Var>> current, Map<Var, Integer> versions, List<Var> done)
+	{
+		int version = versions.get(v) + 1;
+		versions.put(v, version);
+
+		Var nv = new Var(v, version);
+		nv.def = def;
+		current.get(v).push(nv);
+		done.add(v);
+		return nv;
+	}
+
+	// -----------------------------------------------------------------
+	// Out of SSA form
+	// -----------------------------------------------------------------
+	//
+
+	public static void destroy(IR1Cfg cfg)
+	{
+		splitCriticalEdges(cfg);
+
+		List<Var> all = number(cfg);
+		BitSet[] liveOut = liveOut(cfg, all.size());
+		Map<Var, Var> names = names(cfg, all, liveOut);
+
+		for (Block b : cfg.blocks)
+		{
+			for (Stmt s : b.phis)
+				rewrite(s, names);
+			for (Stmt s : b.stmts)
+				rewrite(s, names);
+		}
+
+		for (Block b : cfg.blocks)
+		{
+			if (b.phis.isEmpty())
+				continue;
+
+			for (int j = 0; j < b.preds.size(); j++)
+			{
+				Map<Var, Operand> copies = new LinkedHashMap<Var, Operand>();
+				for (Stmt phi : b.phis)
+				{
+					if (phi.args[j] != phi.dst)
+						copies.put(phi.dst, phi.args[j]);
+				}
+				Block p = b.preds.get(j);
+				sequentialize(cfg, copies, p);
+			}
+			b.phis.clear();
+		}
+	}
+
+	static void splitCriticalEdges(IR1Cfg cfg)
+	{
+		for (Block b : new ArrayList<Block>(cfg.blocks))
+		{
+			if (b.succs.size() < 2)
+				continue;
+
+			for (int i = 0; i < b.succs.size(); i++)
+			{
+				Block s = b.succs.get(i);
+				if (!s.phis.isEmpty())
+				{
+					Block mid = cfg.splitEdge(b, i);
+
+					// Keep the fall-through edge falling through.
+					if (i == 1)
+					{
+						cfg.blocks.remove(mid);
+						cfg.blocks.add(cfg.blocks.indexOf(b) + 1, mid);
+					}
+				}
+			}
+		}
+	}
+
+	// Gives every version that appears in the code an id; returns them
+	// by id.
+	//
+	static List<Var> number(IR1Cfg cfg)
+	{
+		List<Var> all = new ArrayList<Var>();
+		Set<Var> seen = new HashSet<Var>();
+		for (Stmt s : cfg.allStmts())
+		{
+			if (s.dst != null && seen.add(s.dst))
+				all.add(s.dst);
+			for (Operand a : s.args)
+			{
+				if (a instanceof Var && seen.add((Var) a))
+					all.add((Var) a);
+			}
+		}
+		for (int i = 0; i < all.size(); i++)
+			all.get(i).id = i;
+		return all;
+	}
+
+	// The versions live at the end of each block (by index in
+	// cfg.blocks). A phi's operand is live at the end of the
+	// predecessor it comes from, and its result from the top of its
+	// block.
+	//
+	static BitSet[] liveOut(IR1Cfg cfg, int size)
+	{
+		int n = cfg.blocks.size();
+		Map<Block, Integer> index = new HashMap<Block, Integer>();
+		for (int i = 0; i < n; i++)
+			index.put(cfg.blocks.get(i), i);
+
+		BitSet[] use = new BitSet[n];
+		BitSet[] def = new BitSet[n];
+		BitSet[] phiUse = new BitSet[n];	// operands of successors' phis
+		for (int i = 0; i < n; i++)
+		{
+			Block b = cfg.blocks.get(i);
+			use[i] = new BitSet(size);
+			def[i] = new BitSet(size);
+			phiUse[i] = new BitSet(size);
+
+			for (Stmt phi : b.phis)
+				def[i].set(phi.dst.id);
+			for (Stmt s : b.stmts)
+			{
+				for (Operand a : s.args)
+				{
+					if (a instanceof Var && !def[i].get(((Var) a).id))
+						use[i].set(((Var) a).id);
+				}
+				if (s.dst != null)
+					def[i].set(s.dst.id);
+			}
+		}
+		for (Block b : cfg.blocks)
+		{
+			for (int j = 0; j < b.preds.size(); j++)
+			{
+				for (Stmt phi : b.phis)
+				{
+					if (phi.args[j] instanceof Var)
+						phiUse[index.get(b.preds.get(j))].set(((Var) phi.args[j]).id);
+				}
+			}
+		}
+
+		BitSet[] in = new BitSet[n];
+		BitSet[] out = new BitSet[n];
+		for (int i = 0; i < n; i++)
+		{
+			in[i] = new BitSet(size);
+			out[i] = new BitSet(size);
+		}
+
+		boolean changed = true;
+		while (changed)
+		{
+			changed = false;
+			for (int i = n - 1; i >= 0; i--)
+			{
+				Block b = cfg.blocks.get(i);
+				BitSet o = (BitSet) phiUse[i].clone();
+				for (Block s : b.succs)
+					o.or(in[index.get(s)]);
+
+				BitSet x = (BitSet) o.clone();
+				x.andNot(def[i]);
+				x.or(use[i]);
+
+				if (!o.equals(out[i]) || !x.equals(in[i]))
+				{
+					out[i] = o;
+					in[i] = x;
+					changed = true;
+				}
+			}
+		}
+		return out;
+	}
+
+	// The name each version ends up with: its variable, or a new Temp.
+	//
+	static Map<Var, Var> names(IR1Cfg cfg, List<Var> all, BitSet[] liveOut)
+	{
+		Map<Var, List<Var>> versions = new HashMap<Var, List<Var>>();
+		for (Var v : all)
+		{
+			List<Var> list = versions.get(v.orig);
+			if (list == null)
+			{
+				list = new ArrayList<Var>();
+				versions.put(v.orig, list);
+			}
+			list.add(v);
+		}
+
+		// Interference between versions of the same variable, found by
+		// walking each block backwards from its live-out set
+		Map<Var, Set<Var>> interferes = new HashMap<Var, Set<Var>>();
+		for (int i = 0; i < cfg.blocks.size(); i++)
+		{
+			Block b = cfg.blocks.get(i);
+			BitSet live = (BitSet) liveOut[i].clone();
+
+			for (int k = b.stmts.size() - 1; k >= 0; k--)
+			{
+				Stmt s = b.stmts.get(k);
+				if (s.dst != null)
+				{
+					live.clear(s.dst.id);
+					interfere(s.dst, live, versions, interferes);
+				}
+				for (Operand a : s.args)
+				{
+					if (a instanceof Var)
+						live.set(((Var) a).id);
+				}
+			}
+
+			// The phis all assign at the top of the block, at once.
+			for (Stmt phi : b.phis)
+				live.set(phi.dst.id);
+			for (Stmt phi : b.phis)
+			{
+				live.clear(phi.dst.id);
+				interfere(phi.dst, live, versions, interferes);
+				live.set(phi.dst.id);
+			}
+		}
+
+		Map<Var, Var> names = new HashMap<Var, Var>();
+		for (Map.Entry<Var, List<Var>> me : versions.entrySet())
+		{
+			Var orig = me.getKey();
+			List<Var> list = me.getValue();
+			list.sort((a, b) -> Integer.compare(a.version, b.version));
+
+			List<Var> sharing = new ArrayList<Var>();
+			for (Var v : list)
+			{
+				boolean free = true;
+				Set<Var> conflicts = interferes.get(v);
+				if (conflicts != null && v.version != 0)
+				{
+					for (Var w : sharing)
+					{
+						if (conflicts.contains(w))
+						{
+							free = false;
+							break;
+						}
+					}
+				}
+
+				if (free)
+				{
+					sharing.add(v);
+					names.put(v, orig);
+				}
+				else
+				{
+					names.put(v, cfg.newTemp());
+				}
+			}
+		}
+		return names;
+	}
+
+	// Records that v, assigned where the versions in 'live' are live,
+	// interferes with those of them that belong to the same variable.
+	//
+	static void interfere(Var v, BitSet live, Map<Var, List<Var>> versions, Map<Var, Set<Var>> interferes)
+	{
+		for (Var w : versions.get(v.orig))
+		{
+			if (w != v && live.get(w.id))
+			{
+				edge(v, w, interferes);
+				edge(w, v, interferes);
+			}
+		}
+	}
+
+	static void edge(Var a, Var b, Map<Var, Set<Var>> interferes)
+	{
+		Set<Var> set = interferes.get(a);
+		if (set == null)
+		{
+			set = new HashSet<Var>();
+			interferes.put(a, set);
+		}
+		set.add(b);
+	}
+
+	static void rewrite(Stmt s, Map<Var, Var> names)
+	{
+		if (s.dst != null)
+			s.dst = names.get(s.dst);
+		for (int i = 0; i < s.args.length; i++)
+		{
+			if (s.args[i] instanceof Var)
+				s.args[i] = names.get(s.args[i]);
+		}
+	}
+
+	// Appends the copies dst = src, which must happen at once, to the
+	// end of block p as a sequence of moves.
+	//
+	static void sequentialize(IR1Cfg cfg, Map<Var, Operand> copies, Block p)
+	{
+		List<Stmt> moves = new ArrayList<Stmt>();
+
+		while (!copies.isEmpty())
+		{
+			// A copy whose destination no other copy still reads
+			Var ready = null;
+			for (Var dst : copies.keySet())
+			{
+				if (!copies.containsValue(dst))
+				{
+					ready = dst;
+					break;
+				}
+			}
+
+			if (ready != null)
+			{
+				moves.add(move(ready, copies.remove(ready), p));
+				continue;
+			}
+
+			// Only cycles are left: save one destination's value, and
+			// read it from there.
+			Var dst = copies.keySet().iterator().next();
+			Var saved = cfg.newTemp();
+			moves.add(move(saved, dst, p));
+			for (Map.Entry<Var, Operand> me : copies.entrySet())
+			{
+				if (me.getValue() == dst)
+					me.setValue(saved);
+			}
+		}
+
+		// (p has one successor, so it does not end in a CJUMP.)
+		p.stmts.addAll(moves);
+	}
+
+	static Stmt move(Var dst, Operand src, Block b)
+	{
+		Stmt s = new Stmt(Kind.MOVE, null, dst, src);
+		s.block = b;
+		return s;
+	}
+}
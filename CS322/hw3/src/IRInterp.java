@@ -0,0 +1,833 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//
+// Interpreter for the IR code produced by IRGen, with inline caches for
+// indirect calls.
+//
+// Homework assignment completed by Ian Aldrighetti <aldrig@pdx.edu>
+//
+// Usage:
+//
+//   java IRInterp [-icstats] file.ir
+//
+// It reads the same text format as IRInterp.jar and runs it the same
+// way. A method call in this IR loads the class descriptor out of the
+// object, loads the method's label out of the descriptor, and calls it
+// indirectly ("call * t3(...)"). A label is only a name, so finding the
+// function behind it is a lookup by name. Each call site resolves its
+// target once instead:
+//
+// - a direct call ("call _f(...)") binds its function (or builtin) the
+// first time it runs
+// - an indirect call keeps an inline cache of the last few labels it
+// has seen and their functions; a label in the cache is a compare, not
+// a lookup. A site that sees more than POLYMORPHIC_LIMIT distinct
+// labels is megamorphic, and looks every label up.
+//
+// -icstats prints, on exit, how the indirect call sites behaved.
+//
+import ir.IR;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class IRInterp
+{
+
+	static class IntException extends Exception
+	{
+		private static final long serialVersionUID = 1L;
+
+		public IntException(String msg)
+		{
+			super(msg);
+		}
+	}
+
+	// ------------------------------------------------------------------------------
+	// Values
+	// -------
+	// A value is a long: the tag in the upper 32 bits, the payload in the
+	// lower 32. Pointers are ints (byte addresses); a label is the index
+	// of its name in 'labels'; a string is the index of its text in
+	// 'strings'.
+	//
+	static final int UND_TAG = 0;
+	static final int INT_TAG = 1;
+	static final int BOOL_TAG = 2;
+	static final int STR_TAG = 3;
+	static final int LABEL_TAG = 4;
+
+	static final long UNDEF = 0L;
+
+	static long value(int tag, int payload)
+	{
+		return ((long) tag << 32) | (payload & 0xFFFFFFFFL);
+	}
+
+	static int tag(long v)
+	{
+		return (int) (v >>> 32);
+	}
+
+	static int payload(long v)
+	{
+		return (int) v;
+	}
+
+	static long intVal(int i)
+	{
+		return value(INT_TAG, i);
+	}
+
+	static long boolVal(boolean b)
+	{
+		return value(BOOL_TAG, b ? 1 : 0);
+	}
+
+	// ------------------------------------------------------------------------------
+	// Program state
+	// --------------
+	//
+	static List<String> strings = new ArrayList<String>();
+
+	// Every global label named in the program, and its index
+	static List<String> labels = new ArrayList<String>();
+	static Map<String, Integer> labelIndex = new HashMap<String, Integer>();
+
+	// Functions by name, and the address of each data record by name
+	static Map<String, CompiledFunc> funcMap = new HashMap<String, CompiledFunc>();
+	static Map<String, Integer> dataMap = new HashMap<String, Integer>();
+
+	// Memory: data records first, then the heap. Addresses are byte
+	// addresses, but 'memory' holds one value per word: the value at
+	// address a is memory[a / WORD]. Allocations are word-aligned, so
+	// pointers and most fields sit on a word boundary; IRGen packs
+	// smaller fields (an int at offset 12, a bool at 13), and those are
+	// kept in 'unaligned' by address instead. Address 0 is never
+	// allocated, so it can serve as null.
+	static final int WORD = IR.Type.PTR.size;
+	static final int WORD_SHIFT = Integer.numberOfTrailingZeros(WORD);
+	static long[] memory = new long[1024];
+	static Map<Integer, Long> unaligned = new HashMap<Integer, Long>();
+	static int brk = WORD;
+
+	static List<CallSite> indirectSites = new ArrayList<CallSite>();
+	static PrintStream out;
+
+	static long label(String name)
+	{
+		Integer index = labelIndex.get(name);
+		if (index == null)
+		{
+			index = labels.size();
+			labels.add(name);
+			labelIndex.put(name, index);
+		}
+		return value(LABEL_TAG, index);
+	}
+
+	static int alloc(int bytes) throws Exception
+	{
+		if (bytes < 0)
+		{
+			throw new IntException("Negative allocation size: " + bytes);
+		}
+
+		int addr = brk;
+		// Keep every allocation word-aligned
+		int size = Math.max(WORD, (bytes + WORD - 1) & -WORD);
+		if ((long) brk + size > Integer.MAX_VALUE)
+		{
+			throw new IntException("Out of memory");
+		}
+		brk += size;
+		int words = brk >> WORD_SHIFT;
+		if (words > memory.length)
+		{
+			memory = Arrays.copyOf(memory, Math.max(words, memory.length * 2));
+		}
+		Arrays.fill(memory, addr >> WORD_SHIFT, words, UNDEF);
+		return addr;
+	}
+
+	static long load(int addr)
+	{
+		if ((addr & (WORD - 1)) == 0)
+			return memory[addr >> WORD_SHIFT];
+		Long v = unaligned.get(addr);
+		return v == null ? UNDEF : v;
+	}
+
+	static void store(int addr, long v)
+	{
+		if ((addr & (WORD - 1)) == 0)
+			memory[addr >> WORD_SHIFT] = v;
+		else
+			unaligned.put(addr, v);
+	}
+
+	static int address(long base, int offset) throws Exception
+	{
+		if (tag(base) != INT_TAG)
+		{
+			throw new IntException("Address base is not a pointer: " + show(base));
+		}
+		int addr = payload(base) + offset;
+		if (addr <= 0 || addr >= brk)
+		{
+			throw new IntException("Address out of bounds: " + addr);
+		}
+		return addr;
+	}
+
+	// ------------------------------------------------------------------------------
+	// Call sites
+	// -----------
+	//
+	static final int POLYMORPHIC_LIMIT = 4;
+
+	static final int NOT_BUILTIN = 0;
+	static final int MALLOC = 1;
+	static final int PRINT_INT = 2;
+	static final int PRINT_BOOL = 3;
+	static final int PRINT_STR = 4;
+
+	static class CallSite
+	{
+		final IR.Call call;
+		final int[] args; // operands
+		final int rdst; // slot, or -1
+
+		// Direct calls: the bound function or builtin
+		CompiledFunc direct;
+		int builtin = NOT_BUILTIN;
+
+		// Indirect calls: the target operand, and the inline cache
+		int target;
+		long[] keys;
+		CompiledFunc[] funcs;
+		int size;
+		boolean megamorphic;
+		long hits, misses;
+
+		CallSite(IR.Call call, int[] args, int rdst)
+		{
+			this.call = call;
+			this.args = args;
+			this.rdst = rdst;
+		}
+
+		// The function a loaded label refers to.
+		//
+		CompiledFunc dispatch(long fptr) throws Exception
+		{
+			for (int i = 0; i < size; i++)
+			{
+				if (keys[i] == fptr)
+				{
+					hits++;
+					return funcs[i];
+				}
+			}
+
+			misses++;
+			CompiledFunc f = lookup(fptr);
+			if (size < POLYMORPHIC_LIMIT)
+			{
+				keys[size] = fptr;
+				funcs[size] = f;
+				size++;
+			}
+			else
+			{
+				megamorphic = true;
+			}
+			return f;
+		}
+	}
+
+	// The slow path: find a label's function by name.
+	//
+	static CompiledFunc lookup(long fptr) throws Exception
+	{
+		if (tag(fptr) != LABEL_TAG)
+		{
+			throw new IntException("Indirect call target is not a label: " + show(fptr));
+		}
+		String name = labels.get(payload(fptr));
+		CompiledFunc f = funcMap.get(name);
+		if (f == null)
+		{
+			throw new IntException("Call to undefined function: _" + name);
+		}
+		return f;
+	}
+
+	static void reportCallSites(PrintStream err)
+	{
+		int mono = 0, poly = 0, mega = 0, unused = 0;
+		long hits = 0, misses = 0;
+		for (CallSite s : indirectSites)
+		{
+			if (s.megamorphic)
+				mega++;
+			else if (s.size > 1)
+				poly++;
+			else if (s.size == 1)
+				mono++;
+			else
+				unused++;
+			hits += s.hits;
+			misses += s.misses;
+		}
+		err.println("inline caches: " + indirectSites.size() + " indirect call sites ("
+				+ mono + " monomorphic, " + poly + " polymorphic, " + mega
+				+ " megamorphic, " + unused + " never run), " + hits + " hits, "
+				+ misses + " misses");
+	}
+
+	// ------------------------------------------------------------------------------
+	// CompiledFunc
+	// -------------
+	// A function with its operands resolved: each Id and Temp gets a slot
+	// in the frame, and each literal or global an entry in 'consts'. An
+	// operand is encoded as an int: a slot if >= 0, else the constant
+	// -1 - index.
+	//
+	static final int BINOP = 0, UNOP = 1, MOVE = 2, LOAD = 3, STORE = 4,
+			CALL = 5, RETURN = 6, CJUMP = 7, JUMP = 8, LABEL = 9;
+
+	static class CompiledFunc
+	{
+		final IR.Func func;
+		final IR.Inst[] code;
+		final int[] kinds;
+		final int[][] ops;
+		final int[] targets; // jump targets
+		final CallSite[] sites;
+		final List<Long> constList = new ArrayList<Long>();
+		final Map<String, Integer> slots = new HashMap<String, Integer>();
+		long[] consts;
+		int frameSize;
+
+		CompiledFunc(IR.Func func) throws Exception
+		{
+			this.func = func;
+			code = func.code;
+			kinds = new int[code.length];
+			ops = new int[code.length][];
+			targets = new int[code.length];
+			sites = new CallSite[code.length];
+
+			for (String p : func.params)
+				slot(p);
+			for (String l : func.locals)
+				slot(l);
+		}
+
+		int slot(String name)
+		{
+			Integer s = slots.get(name);
+			if (s == null)
+			{
+				s = frameSize++;
+				slots.put(name, s);
+			}
+			return s;
+		}
+
+		int constant(long v)
+		{
+			constList.add(v);
+			return -constList.size();
+		}
+
+		int operand(IR.Src n) throws Exception
+		{
+			if (n instanceof IR.Id)
+				return slot(((IR.Id) n).name);
+			if (n instanceof IR.Temp)
+				return slot(n.toString());
+			if (n instanceof IR.IntLit)
+				return constant(intVal(((IR.IntLit) n).i));
+			if (n instanceof IR.BoolLit)
+				return constant(boolVal(((IR.BoolLit) n).b));
+			if (n instanceof IR.StrLit)
+			{
+				strings.add(((IR.StrLit) n).s);
+				return constant(value(STR_TAG, strings.size() - 1));
+			}
+			if (n instanceof IR.Global)
+			{
+				// A data record's label is its address; any other label
+				// names a function.
+				String name = ((IR.Global) n).name;
+				Integer addr = dataMap.get(name);
+				return constant(addr != null ? intVal(addr) : label(name));
+			}
+			throw new IntException("Unknown operand: " + n);
+		}
+
+		int dest(IR.Dest n) throws Exception
+		{
+			return operand((IR.Src) n);
+		}
+
+		// Resolves every operand, label and call site of the function.
+		//
+		void compile() throws Exception
+		{
+			Map<String, Integer> labelPos = new HashMap<String, Integer>();
+			for (int i = 0; i < code.length; i++)
+			{
+				if (code[i] instanceof IR.LabelDec)
+					labelPos.put(((IR.LabelDec) code[i]).lab.name, i);
+			}
+
+			for (int i = 0; i < code.length; i++)
+			{
+				IR.Inst n = code[i];
+				if (n instanceof IR.Binop)
+				{
+					IR.Binop b = (IR.Binop) n;
+					kinds[i] = BINOP;
+					ops[i] = new int[] { dest(b.dst), operand(b.src1), operand(b.src2) };
+				}
+				else if (n instanceof IR.Unop)
+				{
+					IR.Unop u = (IR.Unop) n;
+					kinds[i] = UNOP;
+					ops[i] = new int[] { dest(u.dst), operand(u.src) };
+				}
+				else if (n instanceof IR.Move)
+				{
+					IR.Move m = (IR.Move) n;
+					kinds[i] = MOVE;
+					ops[i] = new int[] { dest(m.dst), operand(m.src) };
+				}
+				else if (n instanceof IR.Load)
+				{
+					IR.Load l = (IR.Load) n;
+					kinds[i] = LOAD;
+					ops[i] = new int[] { dest(l.dst), operand(l.addr.base), l.addr.offset };
+				}
+				else if (n instanceof IR.Store)
+				{
+					IR.Store s = (IR.Store) n;
+					kinds[i] = STORE;
+					ops[i] = new int[] { operand(s.addr.base), s.addr.offset, operand(s.src) };
+				}
+				else if (n instanceof IR.Call)
+				{
+					kinds[i] = CALL;
+					sites[i] = callSite((IR.Call) n);
+				}
+				else if (n instanceof IR.Return)
+				{
+					IR.Return r = (IR.Return) n;
+					kinds[i] = RETURN;
+					ops[i] = r.val == null ? null : new int[] { operand(r.val) };
+				}
+				else if (n instanceof IR.CJump)
+				{
+					IR.CJump c = (IR.CJump) n;
+					kinds[i] = CJUMP;
+					ops[i] = new int[] { operand(c.src1), operand(c.src2) };
+					targets[i] = target(labelPos, c.lab);
+				}
+				else if (n instanceof IR.Jump)
+				{
+					kinds[i] = JUMP;
+					targets[i] = target(labelPos, ((IR.Jump) n).lab);
+				}
+				else if (n instanceof IR.LabelDec)
+				{
+					kinds[i] = LABEL;
+				}
+				else
+				{
+					throw new IntException("Unknown instruction: " + n);
+				}
+			}
+
+			consts = new long[constList.size()];
+			for (int k = 0; k < consts.length; k++)
+				consts[k] = constList.get(k);
+		}
+
+		int target(Map<String, Integer> labelPos, IR.Label lab) throws Exception
+		{
+			Integer pos = labelPos.get(lab.name);
+			if (pos == null)
+				throw new IntException("Undefined label " + lab.name + " in _" + func.name);
+			return pos;
+		}
+
+		CallSite callSite(IR.Call n) throws Exception
+		{
+			int[] args = new int[n.args.length];
+			for (int a = 0; a < args.length; a++)
+				args[a] = operand(n.args[a]);
+			CallSite site = new CallSite(n, args, n.rdst == null ? -1 : dest(n.rdst));
+
+			if (n.ind)
+			{
+				site.target = operand((IR.Src) n.tgt);
+				site.keys = new long[POLYMORPHIC_LIMIT];
+				site.funcs = new CompiledFunc[POLYMORPHIC_LIMIT];
+				indirectSites.add(site);
+			}
+			else if (!(n.tgt instanceof IR.Global))
+			{
+				throw new IntException("Direct call to a non-global: " + n.tgt);
+			}
+			return site;
+		}
+	}
+
+	// ------------------------------------------------------------------------------
+	// Loading
+	// --------
+	//
+	static void load(IR.Program p) throws Exception
+	{
+		// Data records first, so globals naming them resolve to addresses
+		for (IR.Data d : p.data)
+		{
+			int addr = alloc(Math.max(d.size, d.items.length * IR.Type.PTR.size));
+			dataMap.put(d.name.name, addr);
+		}
+		for (IR.Data d : p.data)
+		{
+			int addr = dataMap.get(d.name.name);
+			for (int i = 0; i < d.items.length; i++)
+				store(addr + i * WORD, label(d.items[i].name));
+		}
+
+		List<CompiledFunc> funcs = new ArrayList<CompiledFunc>();
+		for (IR.Func f : p.funcs)
+		{
+			CompiledFunc cf = new CompiledFunc(f);
+			funcMap.put(f.name, cf);
+			funcs.add(cf);
+		}
+		for (CompiledFunc cf : funcs)
+			cf.compile();
+	}
+
+	// ------------------------------------------------------------------------------
+	// Execution
+	// ----------
+	//
+	static long call(CompiledFunc cf, long[] args) throws Exception
+	{
+		if (args.length != cf.func.params.length)
+		{
+			throw new IntException("_" + cf.func.name + " expects " + cf.func.params.length
+					+ " arguments, got " + args.length);
+		}
+
+		long[] frame = new long[cf.frameSize];
+		System.arraycopy(args, 0, frame, 0, args.length);
+		long[] consts = cf.consts;
+		int[] kinds = cf.kinds;
+		int[][] ops = cf.ops;
+
+		int pc = 0;
+		while (pc < kinds.length)
+		{
+			int[] o = ops[pc];
+			switch (kinds[pc])
+			{
+				case BINOP:
+					frame[o[0]] = binop(((IR.Binop) cf.code[pc]).op,
+							o[1] >= 0 ? frame[o[1]] : consts[-1 - o[1]],
+							o[2] >= 0 ? frame[o[2]] : consts[-1 - o[2]]);
+					break;
+				case UNOP:
+					frame[o[0]] = unop(((IR.Unop) cf.code[pc]).op,
+							o[1] >= 0 ? frame[o[1]] : consts[-1 - o[1]]);
+					break;
+				case MOVE:
+					frame[o[0]] = o[1] >= 0 ? frame[o[1]] : consts[-1 - o[1]];
+					break;
+				case LOAD:
+					frame[o[0]] = load(address(o[1] >= 0 ? frame[o[1]] : consts[-1 - o[1]], o[2]));
+					break;
+				case STORE:
+					store(address(o[0] >= 0 ? frame[o[0]] : consts[-1 - o[0]], o[1]),
+							o[2] >= 0 ? frame[o[2]] : consts[-1 - o[2]]);
+					break;
+				case CALL:
+					execute(cf.sites[pc], frame, consts);
+					break;
+				case RETURN:
+					return o == null ? UNDEF : o[0] >= 0 ? frame[o[0]] : consts[-1 - o[0]];
+				case CJUMP:
+					if (compare(((IR.CJump) cf.code[pc]).op,
+							o[0] >= 0 ? frame[o[0]] : consts[-1 - o[0]],
+							o[1] >= 0 ? frame[o[1]] : consts[-1 - o[1]]))
+					{
+						pc = cf.targets[pc];
+						continue;
+					}
+					break;
+				case JUMP:
+					pc = cf.targets[pc];
+					continue;
+				default:
+					break;
+			}
+			pc++;
+		}
+		return UNDEF;
+	}
+
+	// Call ---
+	// CallTgt tgt;
+	// boolean ind;
+	// Src[] args;
+	// Dest rdst;
+	//
+	static void execute(CallSite site, long[] frame, long[] consts) throws Exception
+	{
+		int[] a = site.args;
+		long[] args = new long[a.length];
+		for (int i = 0; i < a.length; i++)
+			args[i] = a[i] >= 0 ? frame[a[i]] : consts[-1 - a[i]];
+
+		CompiledFunc f;
+		if (site.keys != null)
+		{
+			int t = site.target;
+			f = site.dispatch(t >= 0 ? frame[t] : consts[-1 - t]);
+		}
+		else
+		{
+			if (site.direct == null && site.builtin == NOT_BUILTIN)
+				bind(site);
+			if (site.builtin != NOT_BUILTIN)
+			{
+				long r = builtin(site, args);
+				if (site.rdst >= 0)
+					frame[site.rdst] = r;
+				return;
+			}
+			f = site.direct;
+		}
+
+		long r = call(f, args);
+		if (site.rdst >= 0)
+			frame[site.rdst] = r;
+	}
+
+	// Binds a direct call to its function, the first time it runs.
+	//
+	static void bind(CallSite site) throws Exception
+	{
+		String name = ((IR.Global) site.call.tgt).name;
+		if (name.equals("malloc"))
+			site.builtin = MALLOC;
+		else if (name.equals("printInt"))
+			site.builtin = PRINT_INT;
+		else if (name.equals("printBool"))
+			site.builtin = PRINT_BOOL;
+		else if (name.equals("printStr"))
+			site.builtin = PRINT_STR;
+		else
+		{
+			site.direct = funcMap.get(name);
+			if (site.direct == null)
+				throw new IntException("Call to undefined function: _" + name);
+		}
+	}
+
+	static long builtin(CallSite site, long[] args) throws Exception
+	{
+		if (site.builtin == PRINT_STR && args.length == 0)
+		{
+			out.println();
+			return UNDEF;
+		}
+		if (args.length != 1)
+		{
+			throw new IntException(site.call.tgt + " expects 1 argument, got " + args.length);
+		}
+
+		long v = args[0];
+		switch (site.builtin)
+		{
+			case MALLOC:
+				if (tag(v) != INT_TAG)
+					throw new IntException("_malloc expects an int: " + show(v));
+				return intVal(alloc(payload(v)));
+			case PRINT_INT:
+			case PRINT_BOOL:
+			case PRINT_STR:
+				out.println(show(v));
+				return UNDEF;
+		}
+		throw new IntException("Unknown builtin: " + site.call.tgt);
+	}
+
+	// ------------------------------------------------------------------------------
+	// Operations on values
+	// ---------------------
+	//
+	static String show(long v)
+	{
+		switch (tag(v))
+		{
+			case INT_TAG:
+				return "" + payload(v);
+			case BOOL_TAG:
+				return "" + (payload(v) != 0);
+			case STR_TAG:
+				return strings.get(payload(v));
+			case LABEL_TAG:
+				return "_" + labels.get(payload(v));
+			default:
+				return "UndVal";
+		}
+	}
+
+	static long binop(IR.BOP op, long lhs, long rhs) throws Exception
+	{
+		if (op instanceof IR.ROP)
+			return boolVal(compare((IR.ROP) op, lhs, rhs));
+
+		IR.AOP aop = (IR.AOP) op;
+		if (aop == IR.AOP.AND || aop == IR.AOP.OR)
+		{
+			if (tag(lhs) != BOOL_TAG || tag(rhs) != BOOL_TAG)
+				throw new IntException("Operator " + aop + " expects bools: " + show(lhs) + ", " + show(rhs));
+			return aop == IR.AOP.AND ? value(BOOL_TAG, payload(lhs) & payload(rhs))
+					: value(BOOL_TAG, payload(lhs) | payload(rhs));
+		}
+
+		if (tag(lhs) != INT_TAG || tag(rhs) != INT_TAG)
+			throw new IntException("Operator " + aop + " expects ints: " + show(lhs) + ", " + show(rhs));
+		int i1 = payload(lhs), i2 = payload(rhs);
+		switch (aop)
+		{
+			case ADD:
+				return intVal(i1 + i2);
+			case SUB:
+				return intVal(i1 - i2);
+			case MUL:
+				return intVal(i1 * i2);
+			case DIV:
+				if (i2 == 0)
+					throw new IntException("Division by zero");
+				return intVal(i1 / i2);
+			default:
+				throw new IntException("Unknown operator: " + aop);
+		}
+	}
+
+	static boolean compare(IR.ROP op, long lhs, long rhs) throws Exception
+	{
+		if (tag(lhs) != tag(rhs))
+			throw new IntException("Operands of " + op + " differ in type: " + show(lhs) + ", " + show(rhs));
+
+		int c;
+		if (tag(lhs) == STR_TAG)
+			c = show(lhs).compareTo(show(rhs));
+		else if (tag(lhs) == INT_TAG)
+			c = Integer.compare(payload(lhs), payload(rhs));
+		else if (op == IR.ROP.EQ || op == IR.ROP.NE)
+			c = lhs == rhs ? 0 : 1;
+		else
+			throw new IntException("Operator " + op + " cannot compare " + show(lhs) + ", " + show(rhs));
+
+		switch (op)
+		{
+			case EQ:
+				return c == 0;
+			case NE:
+				return c != 0;
+			case LT:
+				return c < 0;
+			case LE:
+				return c <= 0;
+			case GT:
+				return c > 0;
+			default:
+				return c >= 0;
+		}
+	}
+
+	static long unop(IR.UOP op, long v) throws Exception
+	{
+		if (op == IR.UOP.NEG && tag(v) == INT_TAG)
+			return intVal(-payload(v));
+		if (op == IR.UOP.NOT && tag(v) == BOOL_TAG)
+			return boolVal(payload(v) == 0);
+		throw new IntException("Operator " + op + " cannot apply to " + show(v));
+	}
+
+	// ------------------------------------------------------------------------------
+	// The Main Routine
+	// -----------------
+	//
+	public static void main(String[] args) throws Exception
+	{
+		boolean icStats = false;
+		String fileName = null;
+		for (String arg : args)
+		{
+			if (arg.equals("-icstats"))
+				icStats = true;
+			else if (arg.startsWith("-") || fileName != null)
+			{
+				System.out.println("Unknown option: " + arg);
+				return;
+			}
+			else
+				fileName = arg;
+		}
+
+		if (fileName == null)
+		{
+			System.out.println("You must provide an input file name.");
+			return;
+		}
+
+		BufferedReader reader = new BufferedReader(new FileReader(fileName));
+		IR.Program p;
+		try
+		{
+			p = new IRReader(reader).program();
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)), false);
+		try
+		{
+			load(p);
+			CompiledFunc main = funcMap.get("main");
+			if (main == null)
+				throw new IntException("No _main function");
+			call(main, new long[0]);
+		}
+		finally
+		{
+			out.flush();
+			if (icStats)
+				reportCallSites(System.err);
+		}
+	}
+}
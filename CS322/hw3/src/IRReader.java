@@ -0,0 +1,422 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//
+// Reader for the text form of the IR (what IR.Program.toString() prints),
+// for IRInterp.
+//
+// Homework assignment completed by Ian Aldrighetti <aldrig@pdx.edu>
+//
+// The format is line-based: a "data" line per data record, and per
+// function a header line, an optional line of locals, and one line per
+// instruction between braces. Lines starting with '#' are comments.
+//
+import ir.IR;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class IRReader
+{
+
+	static class ReadException extends Exception
+	{
+		private static final long serialVersionUID = 1L;
+
+		public ReadException(String msg)
+		{
+			super(msg);
+		}
+	}
+
+	static final Map<String, IR.BOP> BOPS = new HashMap<String, IR.BOP>();
+	static
+	{
+		for (IR.AOP op : IR.AOP.values())
+			BOPS.put(op.toString(), op);
+		for (IR.ROP op : IR.ROP.values())
+			BOPS.put(op.toString(), op);
+	}
+
+	final BufferedReader reader;
+	int lineNum = 0;
+
+	// The tokens of the current line, and the position in them
+	List<String> toks;
+	int pos;
+
+	IRReader(BufferedReader reader)
+	{
+		this.reader = reader;
+	}
+
+	// Program ---
+	// Data[] data;
+	// Func[] funcs;
+	//
+	IR.Program program() throws Exception
+	{
+		List<IR.Data> data = new ArrayList<IR.Data>();
+		List<IR.Func> funcs = new ArrayList<IR.Func>();
+
+		while (nextLine())
+		{
+			if (peek("data"))
+				data.add(data());
+			else
+				funcs.add(func());
+		}
+		return new IR.Program(data, funcs);
+	}
+
+	// "data" Global "(" "sz" "=" IntLit ")" ":" [Global {"," Global}]
+	//
+	IR.Data data() throws Exception
+	{
+		expect("data");
+		IR.Global name = global(next());
+		expect("(");
+		expect("sz");
+		expect("=");
+		int size = Integer.parseInt(next());
+		expect(")");
+		expect(":");
+
+		List<IR.Global> items = new ArrayList<IR.Global>();
+		while (!atEnd())
+		{
+			items.add(global(next()));
+			if (!atEnd())
+				expect(",");
+		}
+		return new IR.Data(name, size, items);
+	}
+
+	// Global "(" [Id {"," Id}] ")" ["(" [Id {"," Id}] ")"] "{" {Inst} "}"
+	//
+	IR.Func func() throws Exception
+	{
+		String name = global(next()).name;
+		List<String> params = names();
+		endLine();
+
+		List<String> locals = new ArrayList<String>();
+		if (!nextLine())
+			throw error("Unexpected end of file");
+		if (peek("("))
+		{
+			locals = names();
+			endLine();
+			if (!nextLine())
+				throw error("Unexpected end of file");
+		}
+		expect("{");
+		endLine();
+
+		List<IR.Inst> code = new ArrayList<IR.Inst>();
+		while (true)
+		{
+			if (!nextLine())
+				throw error("Unexpected end of file in _" + name);
+			if (peek("}"))
+				break;
+			code.add(inst());
+			endLine();
+		}
+		return new IR.Func(name, params, locals, code);
+	}
+
+	List<String> names() throws Exception
+	{
+		List<String> names = new ArrayList<String>();
+		expect("(");
+		while (!peek(")"))
+		{
+			names.add(next());
+			if (!peek(")"))
+				expect(",");
+		}
+		expect(")");
+		return names;
+	}
+
+	// ------------------------------------------------------------------------------
+	// Instructions
+	// -------------
+	//
+	IR.Inst inst() throws Exception
+	{
+		if (toks.size() == 2 && toks.get(1).equals(":"))
+		{
+			IR.Label lab = new IR.Label(next());
+			expect(":");
+			return new IR.LabelDec(lab);
+		}
+
+		if (peek("goto"))
+		{
+			next();
+			return new IR.Jump(new IR.Label(next()));
+		}
+
+		if (peek("if"))
+		{
+			next();
+			IR.Src src1 = src();
+			IR.BOP op = BOPS.get(next());
+			if (!(op instanceof IR.ROP))
+				throw error("Expected a relational operator");
+			IR.Src src2 = src();
+			expect("goto");
+			return new IR.CJump((IR.ROP) op, src1, src2, new IR.Label(next()));
+		}
+
+		if (peek("return"))
+		{
+			next();
+			return atEnd() ? new IR.Return() : new IR.Return(src());
+		}
+
+		if (peek("call"))
+			return call(null);
+
+		// Store: Addr Type "=" Src
+		if (toks.contains("["))
+		{
+			int bracket = toks.indexOf("[");
+			int equals = toks.indexOf("=");
+			if (bracket < equals)
+			{
+				IR.Addr addr = addr();
+				IR.Type type = type();
+				expect("=");
+				return new IR.Store(type, addr, src());
+			}
+		}
+
+		IR.Dest dst = dest();
+		expect("=");
+
+		if (peek("call"))
+			return call(dst);
+
+		if (toks.contains("["))
+		{
+			IR.Addr addr = addr();
+			return new IR.Load(type(), dst, addr);
+		}
+
+		if (peek("!") || (peek("-") && pos + 2 == toks.size()))
+		{
+			IR.UOP op = next().equals("!") ? IR.UOP.NOT : IR.UOP.NEG;
+			return new IR.Unop(op, dst, src());
+		}
+
+		IR.Src src1 = src();
+		if (atEnd())
+			return new IR.Move(dst, src1);
+
+		IR.BOP op = BOPS.get(next());
+		if (op == null)
+			throw error("Expected an operator");
+		return new IR.Binop(op, dst, src1, src());
+	}
+
+	// "call" ["*"] CallTgt "(" [Src {"," Src}] ")"
+	//
+	IR.Call call(IR.Dest rdst) throws Exception
+	{
+		expect("call");
+		boolean ind = peek("*");
+		if (ind)
+			next();
+		IR.CallTgt tgt = (IR.CallTgt) src();
+
+		List<IR.Src> args = new ArrayList<IR.Src>();
+		expect("(");
+		while (!peek(")"))
+		{
+			args.add(src());
+			if (!peek(")"))
+				expect(",");
+		}
+		expect(")");
+		return new IR.Call(tgt, ind, args, rdst);
+	}
+
+	// [IntLit] "[" Src "]"
+	//
+	IR.Addr addr() throws Exception
+	{
+		int offset = 0;
+		if (!peek("["))
+			offset = integer();
+		expect("[");
+		IR.Src base = src();
+		expect("]");
+		return new IR.Addr(base, offset);
+	}
+
+	// ":" ("I" | "B" | "P")
+	//
+	IR.Type type() throws Exception
+	{
+		expect(":");
+		String t = next();
+		for (IR.Type type : IR.Type.values())
+		{
+			if (type.toString().equals(":" + t))
+				return type;
+		}
+		throw error("Unknown type :" + t);
+	}
+
+	IR.Dest dest() throws Exception
+	{
+		IR.Src s = src();
+		if (!(s instanceof IR.Dest))
+			throw error("Cannot assign to " + s);
+		return (IR.Dest) s;
+	}
+
+	// Temps are t<n>; globals start with '_'.
+	//
+	IR.Src src() throws Exception
+	{
+		if (peek("-"))
+			return new IR.IntLit(integer());
+
+		String t = next();
+		if (t.startsWith("\""))
+			return new IR.StrLit(t.substring(1, t.length() - 1));
+		if (t.equals("true"))
+			return IR.TRUE;
+		if (t.equals("false"))
+			return IR.FALSE;
+		if (t.startsWith("_"))
+			return global(t);
+		if (Character.isDigit(t.charAt(0)))
+			return new IR.IntLit(Integer.parseInt(t));
+		if (t.matches("t[0-9]+"))
+			return new IR.Temp(Integer.parseInt(t.substring(1)));
+		if (Character.isLetter(t.charAt(0)))
+			return new IR.Id(t);
+		throw error("Unexpected " + t);
+	}
+
+	IR.Global global(String t) throws Exception
+	{
+		if (!t.startsWith("_"))
+			throw error("Expected a global label, got " + t);
+		return new IR.Global(t.substring(1));
+	}
+
+	int integer() throws Exception
+	{
+		boolean negative = peek("-");
+		if (negative)
+			next();
+		int i = Integer.parseInt(next());
+		return negative ? -i : i;
+	}
+
+	// ------------------------------------------------------------------------------
+	// Tokens
+	// -------
+	//
+
+	// Reads the next line that has any tokens; false at end of file.
+	//
+	boolean nextLine() throws IOException
+	{
+		String line;
+		while ((line = reader.readLine()) != null)
+		{
+			lineNum++;
+			if (line.trim().startsWith("#"))
+				continue;
+			toks = tokenize(line);
+			pos = 0;
+			if (!toks.isEmpty())
+				return true;
+		}
+		return false;
+	}
+
+	static List<String> tokenize(String line)
+	{
+		List<String> toks = new ArrayList<String>();
+		int i = 0;
+		while (i < line.length())
+		{
+			char c = line.charAt(i);
+			if (Character.isWhitespace(c))
+			{
+				i++;
+			}
+			else if (c == '"')
+			{
+				int end = line.indexOf('"', i + 1);
+				end = end < 0 ? line.length() : end + 1;
+				toks.add(line.substring(i, end));
+				i = end;
+			}
+			else if (Character.isLetterOrDigit(c) || c == '_')
+			{
+				int start = i;
+				while (i < line.length() && (Character.isLetterOrDigit(line.charAt(i)) || line.charAt(i) == '_'))
+					i++;
+				toks.add(line.substring(start, i));
+			}
+			else if (i + 1 < line.length() && BOPS.containsKey(line.substring(i, i + 2)))
+			{
+				toks.add(line.substring(i, i + 2));
+				i += 2;
+			}
+			else
+			{
+				toks.add(String.valueOf(c));
+				i++;
+			}
+		}
+		return toks;
+	}
+
+	boolean atEnd()
+	{
+		return pos == toks.size();
+	}
+
+	boolean peek(String t)
+	{
+		return pos < toks.size() && toks.get(pos).equals(t);
+	}
+
+	String next() throws ReadException
+	{
+		if (atEnd())
+			throw error("Unexpected end of line");
+		return toks.get(pos++);
+	}
+
+	void expect(String t) throws ReadException
+	{
+		String got = next();
+		if (!got.equals(t))
+			throw error("Expected " + t + ", got " + got);
+	}
+
+	void endLine() throws ReadException
+	{
+		if (!atEnd())
+			throw error("Unexpected " + toks.get(pos));
+	}
+
+	ReadException error(String msg)
+	{
+		return new ReadException("Line " + lineNum + ": " + msg);
+	}
+}
@@ -0,0 +1,112 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//
+// Buffered assembly output.
+//
+// Homework 4 completed by Ian Aldrighetti <aldrig@pdx.edu>
+//
+// The X86 emit routines and CodeGen append to one StringBuilder, which
+// is reused for the whole program; operands append their own text to
+// it (X86.Operand.appendTo) instead of building a String each time.
+// flush() encodes what has accumulated into a reusable ByteBuffer and
+// writes it to the channel in one go; CodeGen calls it once per
+// function. Without a channel, the text just stays in memory (for
+// tests, say), and toString() returns it.
+//
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+
+class AsmWriter {
+
+  private final StringBuilder buf = new StringBuilder(1 << 16);
+  private final WritableByteChannel channel;  // null: in memory
+  private final boolean closeChannel;         // false for stdout
+  private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder();
+  private ByteBuffer bytes = ByteBuffer.allocate(0);
+
+  // In memory
+  AsmWriter() {
+    this(null, false);
+  }
+
+  AsmWriter(WritableByteChannel channel, boolean closeChannel) {
+    this.channel = channel;
+    this.closeChannel = closeChannel;
+  }
+
+  static AsmWriter toStdout() {
+    return new AsmWriter(new FileOutputStream(FileDescriptor.out).getChannel(), false);
+  }
+
+  static AsmWriter toFile(String name) throws IOException {
+    return new AsmWriter(new FileOutputStream(name).getChannel(), true);
+  }
+
+  // APPENDING
+
+  AsmWriter print(String s) {
+    buf.append(s);
+    return this;
+  }
+
+  AsmWriter print(char c) {
+    buf.append(c);
+    return this;
+  }
+
+  AsmWriter print(int i) {
+    buf.append(i);
+    return this;
+  }
+
+  AsmWriter print(Object o) {
+    buf.append(o);
+    return this;
+  }
+
+  AsmWriter print(X86.Operand rand) {
+    rand.appendTo(buf);
+    return this;
+  }
+
+  AsmWriter println(String s) {
+    buf.append(s).append('\n');
+    return this;
+  }
+
+  // WRITING
+
+  // Write out what has accumulated (nothing to do in memory).
+  void flush() throws IOException {
+    if (channel == null || buf.length() == 0)
+      return;
+    int need = (int) Math.ceil(buf.length() * encoder.maxBytesPerChar());
+    if (bytes.capacity() < need)
+      bytes = ByteBuffer.allocate(Math.max(need, 2 * bytes.capacity()));
+    encoder.reset();
+    CoderResult r = encoder.encode(CharBuffer.wrap(buf), bytes, true);
+    if (r.isError())
+      r.throwException();
+    encoder.flush(bytes);
+    bytes.flip();
+    while (bytes.hasRemaining())
+      channel.write(bytes);
+    bytes.clear();
+    buf.setLength(0);
+  }
+
+  void close() throws IOException {
+    flush();
+    if (closeChannel)
+      channel.close();
+  }
+
+  // The text so far (all of it, in memory)
+  public String toString() {
+    return buf.toString();
+  }
+
+}
@@ -0,0 +1,332 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//
+// Bit-vector liveness analysis on IR1 program.
+//
+// Homework 4 completed by Ian Aldrighetti <aldrig@pdx.edu>
+//
+// Computes the same liveOut sets and live intervals as Liveness (same
+// instruction numbering and successors, so RegAlloc gets the same
+// answer), but:
+// - every Id and Temp gets a dense number, and a set of them is a
+//   long[] with one bit per number;
+// - use/def are summarized once per basic block (gen/kill), and only
+//   blocks are iterated: a worklist seeded in postorder, where a block
+//   whose live-in set grows puts its predecessors back on the list;
+// - the per-instruction sets are filled in by one backward pass over
+//   each block at the end.
+//
+
+import java.util.*;
+import ir1.*;
+
+class BitLiveness {
+
+  // The function's Ids and Temps, by number
+  final List<IR1.Dest> rands = new ArrayList<IR1.Dest>();
+  final Map<IR1.Dest,Integer> numbers = new HashMap<IR1.Dest,Integer>();
+
+  final IR1.Func func;
+  final int n;          // instructions, numbered 1..n as in Liveness
+  int words;            // longs per set
+
+  // Per instruction: its operands used and defined
+  int[][] used, defined;
+
+  // Basic blocks: first and last instruction, successors, predecessors
+  int[] first, last;
+  int[][] succs, preds;
+  int blockCount;
+
+  // Per instruction: its liveOut set; liveOut[0] is liveIn of the first
+  long[][] liveOut;
+
+  BitLiveness(IR1.Func func) {
+    this.func = func;
+    this.n = func.code.length;
+    number();
+    blocks();
+    solve();
+  }
+
+  // Liveness.calculateLiveness, as RegSets.
+  static Liveness.RegSet[] calculateLiveness(IR1.Func func) {
+    BitLiveness bl = new BitLiveness(func);
+    Liveness.RegSet[] sets = new Liveness.RegSet[bl.n+1];
+    for (int i = 0; i <= bl.n; i++) {
+      sets[i] = new Liveness.RegSet();
+      for (int v = nextBit(bl.liveOut[i], 0); v >= 0; v = nextBit(bl.liveOut[i], v+1))
+        sets[i].add(bl.rands.get(v));
+    }
+    return sets;
+  }
+
+  // Liveness.calculateLiveIntervals, without building the sets.
+  static Map<IR1.Dest,Liveness.Interval> calculateLiveIntervals(IR1.Func func) {
+    BitLiveness bl = new BitLiveness(func);
+    int[] start = new int[bl.rands.size()];
+    int[] end = new int[bl.rands.size()];
+    Arrays.fill(start, -1);
+    for (int i = 0; i <= bl.n; i++) {
+      for (int v = nextBit(bl.liveOut[i], 0); v >= 0; v = nextBit(bl.liveOut[i], v+1)) {
+        if (start[v] < 0)
+          start[v] = i;
+        end[v] = i;
+      }
+    }
+    Map<IR1.Dest,Liveness.Interval> liveIntervals = new HashMap<IR1.Dest,Liveness.Interval>();
+    for (int v = 0; v < start.length; v++) {
+      if (start[v] >= 0)
+        liveIntervals.put(bl.rands.get(v), new Liveness.Interval(start[v], end[v]));
+    }
+    return liveIntervals;
+  }
+
+  // Live ranges and use positions of each Id and Temp that is live
+  // somewhere. (The parameters are set on entry, which is not a use.)
+  static Map<IR1.Dest,Liveness.Lifetime> calculateLifetimes(IR1.Func func) {
+    BitLiveness bl = new BitLiveness(func);
+    Liveness.Lifetime[] lifetimes = new Liveness.Lifetime[bl.rands.size()];
+    for (int i = 0; i <= bl.n; i++) {
+      for (int v = nextBit(bl.liveOut[i], 0); v >= 0; v = nextBit(bl.liveOut[i], v+1)) {
+        if (lifetimes[v] == null)
+          lifetimes[v] = new Liveness.Lifetime();
+        lifetimes[v].add(i);
+      }
+    }
+    for (int i = 1; i <= bl.n; i++) {
+      Liveness.RegSet used = new Liveness.RegSet();
+      Liveness.RegSet defined = new Liveness.RegSet();
+      Liveness.calculate(func.code[i-1], used, defined);
+      used.addAll(defined);
+      for (IR1.Dest d : used) {
+        int v = bl.numbers.get(d);
+        if (lifetimes[v] != null)
+          lifetimes[v].uses.add(i);
+      }
+    }
+    Map<IR1.Dest,Liveness.Lifetime> map = new HashMap<IR1.Dest,Liveness.Lifetime>();
+    for (int v = 0; v < lifetimes.length; v++) {
+      if (lifetimes[v] != null)
+        map.put(bl.rands.get(v), lifetimes[v]);
+    }
+    return map;
+  }
+
+  // Whether d is live out of instruction i (0 for the function's
+  // entry, where the parameters are set).
+  boolean isLiveOut(int i, IR1.Dest d) {
+    Integer v = numbers.get(d);
+    return v != null && (liveOut[i][v >>> 6] & (1L << v)) != 0;
+  }
+
+  // NUMBERING
+
+  void number() {
+    used = new int[n+1][];
+    defined = new int[n+1][];
+    for (int i = 1; i <= n; i++) {
+      Liveness.RegSet u = new Liveness.RegSet();
+      Liveness.RegSet d = new Liveness.RegSet();
+      Liveness.calculate(func.code[i-1], u, d);
+      used[i] = numbers(u);
+      defined[i] = numbers(d);
+    }
+    words = (rands.size() + 63) / 64;
+  }
+
+  int[] numbers(Liveness.RegSet set) {
+    int[] r = new int[set.size()];
+    int k = 0;
+    for (IR1.Dest d : set) {
+      Integer v = numbers.get(d);
+      if (v == null) {
+        v = rands.size();
+        numbers.put(d, v);
+        rands.add(d);
+      }
+      r[k++] = v;
+    }
+    return r;
+  }
+
+  // BLOCKS
+
+  // A block starts at instruction 1, at each label, and after each
+  // jump. (As in Liveness, a Return falls through to the next
+  // instruction, and the last instruction has no successors.)
+  void blocks() {
+    Liveness.IndexList[] instSuccs = Liveness.calculateSuccessors(func);
+    boolean[] leader = new boolean[n+2];
+    leader[1] = true;
+    for (int i = 1; i <= n; i++) {
+      IR1.Inst inst = func.code[i-1];
+      if (inst instanceof IR1.LabelDec)
+        leader[i] = true;
+      if (inst instanceof IR1.CJump || inst instanceof IR1.Jump)
+        leader[i+1] = true;
+    }
+
+    int[] blockOf = new int[n+1];
+    first = new int[n+1];
+    last = new int[n+1];
+    blockCount = 0;
+    for (int i = 1; i <= n; i++) {
+      if (leader[i])
+        first[blockCount++] = i;
+      blockOf[i] = blockCount-1;
+      last[blockCount-1] = i;
+    }
+
+    succs = new int[blockCount][];
+    List<List<Integer>> predLists = new ArrayList<List<Integer>>();
+    for (int b = 0; b < blockCount; b++)
+      predLists.add(new ArrayList<Integer>());
+    for (int b = 0; b < blockCount; b++) {
+      Liveness.IndexList s = instSuccs[last[b]];
+      succs[b] = new int[s.size()];
+      for (int k = 0; k < s.size(); k++) {
+        succs[b][k] = blockOf[s.get(k)];
+        predLists.get(succs[b][k]).add(b);
+      }
+    }
+    preds = new int[blockCount][];
+    for (int b = 0; b < blockCount; b++) {
+      List<Integer> p = predLists.get(b);
+      preds[b] = new int[p.size()];
+      for (int k = 0; k < p.size(); k++)
+        preds[b][k] = p.get(k);
+    }
+  }
+
+  // Blocks in postorder from the first one, then any it cannot reach.
+  int[] postorder() {
+    int[] order = new int[blockCount];
+    int count = 0;
+    boolean[] seen = new boolean[blockCount];
+    int[] stack = new int[blockCount];
+    int[] next = new int[blockCount];
+    for (int root = 0; root < blockCount; root++) {
+      if (seen[root])
+        continue;
+      int sp = 0;
+      stack[sp] = root;
+      next[sp++] = 0;
+      seen[root] = true;
+      while (sp > 0) {
+        int b = stack[sp-1];
+        if (next[sp-1] < succs[b].length) {
+          int s = succs[b][next[sp-1]++];
+          if (!seen[s]) {
+            seen[s] = true;
+            stack[sp] = s;
+            next[sp++] = 0;
+          }
+        } else {
+          order[count++] = b;
+          sp--;
+        }
+      }
+    }
+    return order;
+  }
+
+  // SOLVING
+
+  void solve() {
+    // gen/kill of each block, from its instructions backwards
+    long[][] gen = new long[blockCount][words];
+    long[][] kill = new long[blockCount][words];
+    for (int b = 0; b < blockCount; b++) {
+      for (int i = last[b]; i >= first[b]; i--) {
+        for (int v : defined[i]) {
+          clear(gen[b], v);
+          set(kill[b], v);
+        }
+        for (int v : used[i])
+          set(gen[b], v);
+      }
+    }
+
+    long[][] in = new long[blockCount][words];
+    long[][] out = new long[blockCount][words];
+    long[] tmp = new long[words];
+
+    // A backward problem converges fastest visiting successors first,
+    // i.e. in postorder (reverse postorder of the reversed graph).
+    int[] order = postorder();
+    ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+    boolean[] queued = new boolean[blockCount];
+    for (int b : order) {
+      work.add(b);
+      queued[b] = true;
+    }
+
+    while (!work.isEmpty()) {
+      int b = work.poll();
+      queued[b] = false;
+
+      Arrays.fill(out[b], 0L);
+      for (int s : succs[b])
+        or(out[b], in[s]);
+
+      // in = gen | (out & ~kill)
+      for (int w = 0; w < words; w++)
+        tmp[w] = gen[b][w] | (out[b][w] & ~kill[b][w]);
+      if (!Arrays.equals(tmp, in[b])) {
+        System.arraycopy(tmp, 0, in[b], 0, words);
+        for (int p : preds[b]) {
+          if (!queued[p]) {
+            work.add(p);
+            queued[p] = true;
+          }
+        }
+      }
+    }
+
+    // Per instruction, backwards through each block
+    liveOut = new long[n+1][];
+    for (int b = 0; b < blockCount; b++) {
+      long[] live = out[b].clone();
+      for (int i = last[b]; i >= first[b]; i--) {
+        liveOut[i] = live.clone();
+        for (int v : defined[i])
+          clear(live, v);
+        for (int v : used[i])
+          set(live, v);
+      }
+    }
+    liveOut[0] = n > 0 ? in[0].clone() : new long[words];
+  }
+
+  // BIT SETS
+
+  static void set(long[] s, int v) {
+    s[v >>> 6] |= 1L << v;
+  }
+
+  static void clear(long[] s, int v) {
+    s[v >>> 6] &= ~(1L << v);
+  }
+
+  static void or(long[] s, long[] t) {
+    for (int w = 0; w < s.length; w++)
+      s[w] |= t[w];
+  }
+
+  // The first bit at or after v that is set, or -1.
+  static int nextBit(long[] s, int v) {
+    int w = v >>> 6;
+    if (w >= s.length)
+      return -1;
+    long word = s[w] & (-1L << v);
+    while (true) {
+      if (word != 0)
+        return w * 64 + Long.numberOfTrailingZeros(word);
+      if (++w == s.length)
+        return -1;
+      word = s[w];
+    }
+  }
+
+}
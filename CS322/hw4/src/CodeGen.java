@@ -29,13 +29,43 @@ class CodeGen
 	@SuppressWarnings ("static-access")
 	public static void main(String[] args) throws Exception
 	{
-		if (args.length == 1)
+		int arg = 0;
+		String outFile = null;
+		while (arg < args.length - 1)
 		{
-			FileInputStream stream = new FileInputStream(args[0]);
+			if (args[arg].equals("-color"))
+			{
+				graphColoring = true;
+			}
+			else if (args[arg].equals("-o") && arg + 2 < args.length)
+			{
+				outFile = args[++arg];
+			}
+			else
+			{
+				break;
+			}
+			
+			arg++;
+		}
+		
+		if (args.length == arg + 1)
+		{
+			FileInputStream stream = new FileInputStream(args[arg]);
 			IR1.Program p = new ir1Parser(stream).Program();
 			stream.close();
 			// IR1.indexed = true;
-			gen(p);
+			
+			// The assembly goes to stdout, or to the file given with -o.
+			X86.out = outFile != null ? AsmWriter.toFile(outFile) : AsmWriter.toStdout();
+			try
+			{
+				gen(p);
+			}
+			finally
+			{
+				X86.out.close();
+			}
 		}
 		else
 		{
@@ -53,10 +83,16 @@ class CodeGen
 										// indexed by position
 	static final X86.Reg tempReg1 = X86.R10; // scratch registers - need to
 	static final X86.Reg tempReg2 = X86.R11; // in sync with RegAlloc
+	static boolean graphColoring = false; // ColorAlloc instead of
+											// RegAlloc.linearScan (-color)
 	
 	// Per-function globals
 	//
 	static Map<IR1.Dest, X86.Reg> regMap; // register mapping
+	static Map<IR1.Dest, Integer> spillSlots; // stack slots of spilled
+												// Ids and Temps
+	static BitLiveness liveness; // to find dead instructions
+	static int instIndex; // of the instruction (from 1, as in Liveness)
 	static int frameSize; // in bytes
 	static String fnName; // function's name
 	
@@ -70,6 +106,7 @@ class CodeGen
 	// Guideline:
 	// - generate code for each function
 	// - emit any accumulated string literals
+	// (X86.out is written out after each function, and at the end)
 	//
 	public static void gen(IR1.Program n) throws Exception
 	{
@@ -85,6 +122,7 @@ class CodeGen
 			X86.emitString(s);
 			i++;
 		}
+		X86.out.flush();
 	}
 	
 	// Func ---
@@ -95,16 +133,20 @@ class CodeGen
 	//
 	// Guideline:
 	// - call reg-alloc routine to assign registers to all Ids and Temps
+	// (linear scan, or graph coloring with -color)
 	// - emit the function header
 	// - save any callee-save registers on the stack
-	// - make space for the local frame --- use the following calculation:
-	// "if ((calleeSaveSize % 16) == 0)
+	// - make space for the local frame (8 bytes per spill slot) --- use
+	// the following calculation:
+	// "if (((calleeSaveSize + frameSize) % 16) == 0)
 	// frameSize += 8;"
 	// where 'calleeSaveSize' represents the total size (in bytes) of
 	// all saved callee-registers
 	// - move the incoming actual arguments to their assigned locations
+	// . spilled ones are stored first, before any register is moved
 	// . simply fail if function has more than 6 args
-	// . call X86's parallelMove routine to emit code
+	// . call X86's parallelMove routine to emit code (a param's reg may
+	// be another param's argument reg)
 	// - emit code for the body
 	//
 	// Note: The restoring of the saved registers is carried out in the
@@ -113,14 +155,22 @@ class CodeGen
 	static void gen(IR1.Func n) throws Exception
 	{
 		fnName = n.name;
-		System.out.print("\t\t\t  # " + n.header());
+		X86.out.print("\t\t\t  # ").print(n.header());
 		
 		// call reg-alloc routine to assign registers to all Ids and Temps
-		regMap = RegAlloc.linearScan(n);
+		spillSlots = new HashMap<IR1.Dest, Integer>();
+		if (graphColoring)
+		{
+			regMap = ColorAlloc.allocate(n, spillSlots);
+		}
+		else
+		{
+			regMap = RegAlloc.linearScan(n, spillSlots);
+		}
 		List<X86.Reg> calleeSaveAllocated = new ArrayList<X86.Reg>();
 		for (Map.Entry<IR1.Dest, X86.Reg> me : regMap.entrySet())
 		{
-			System.out.print("\t\t\t  # " + me.getKey() + "\t" + me.getValue() + "\n");
+			X86.out.print("\t\t\t  # ").print(me.getKey()).print('\t').print(me.getValue()).print('\n');
 			
 			if (Arrays.asList(X86.calleeSaveRegs).contains(me.getValue()))
 			{
@@ -128,10 +178,29 @@ class CodeGen
 			}
 		}
 		
+		int slotCount = 0;
+		int splitCount = 0;
+		for (Map.Entry<IR1.Dest, Integer> me : spillSlots.entrySet())
+		{
+			if (regMap.containsKey(me.getKey()))
+			{
+				X86.out.print("\t\t\t  # ").print(me.getKey()).print('\t').print(saveSlot(me.getKey())).print(" across calls\n");
+				splitCount++;
+			}
+			else
+			{
+				X86.out.print("\t\t\t  # ").print(me.getKey()).print('\t').print(spillSlot(me.getKey())).print('\n');
+			}
+			slotCount = Math.max(slotCount, me.getValue() + 1);
+		}
+		X86.out.print("\t\t\t  # ").print(spillSlots.size() - splitCount).print(" spills, ").print(splitCount).print(" splits, ").print(slotCount).print(" slots\n");
+		liveness = new BitLiveness(n);
+		frameSize = slotCount * 8;
+		
 		// TODO things
 		
-		System.out.println("\t.p2align 4,0x90");
-		System.out.println("\t.globl _" + fnName);
+		X86.emit0(".p2align 4,0x90");
+		X86.out.print("\t.globl _").print(fnName).print('\n');
 		
 		X86.emitGLabel(new X86.GLabel("_" + fnName));
 		
@@ -148,7 +217,7 @@ class CodeGen
 			calleeSaveSize += 8;
 		}
 		
-		if ((calleeSaveSize % 16) == 0)
+		if (((calleeSaveSize + frameSize) % 16) == 0)
 		{
 			frameSize += 8;
 		}
@@ -158,40 +227,71 @@ class CodeGen
 			X86.emit2(getX86Op(IR1.AOP.SUB), new X86.Imm(frameSize), X86.RSP);
 		}
 		
-		// Now we need to move the parameters into here...
-		int index = 0;
-		for (String param : n.params)
+		// A self tail call jumps back to here, with the new arguments in
+		// the argument registers.
+		if (hasSelfTailCall(n))
 		{
-			if (index >= X86.argRegs.length)
+			X86.emitLabel(entryLabel());
+		}
+		
+		if (n.params.length > X86.argRegs.length)
+		{
+			throw new GenException("gen(IR1.Func): Too many arguments (>6).");
+		}
+		
+		// The spilled parameters go to their slots while the argument
+		// registers still hold them all...
+		for (int i = 0; i < n.params.length; i++)
+		{
+			if (isLiveOnEntry(n, n.params[i]))
 			{
-				throw new GenException("gen(IR1.Func): Too many arguments (>6).");
+				gen_spill(new IR1.Id(n.params[i]), X86.argRegs[i]);
 			}
+		}
+		
+		// Now we need to move the parameters into here...
+		List<X86.Reg> srcs = new ArrayList<X86.Reg>();
+		List<X86.Reg> dsts = new ArrayList<X86.Reg>();
+		for (int i = 0; i < n.params.length; i++)
+		{
+			X86.Reg destReg = regMap.get(new IR1.Id(n.params[i]));
 			
-			IR1.Dest p = new IR1.Id(param);
-			X86.Reg destReg = regMap.get(p);
-			X86.Reg srcReg = X86.argRegs[index++];
-			
-			if (destReg == null)
+			if (destReg == null || !isLiveOnEntry(n, n.params[i]))
 			{
 				continue;
 			}
 			
-			X86.emitMov(srcReg.s, srcReg, destReg);
+			srcs.add(X86.argRegs[i]);
+			dsts.add(destReg);
 		}
+		X86.parallelMove(srcs.size(), srcs.toArray(new X86.Reg[0]), dsts.toArray(new X86.Reg[0]), tempReg1);
 		
-		for (IR1.Inst inst : n.code)
+		for (int i = 0; i < n.code.length; i++)
 		{
-			gen(inst);
+			instIndex = i + 1;
+			
+			if (isTailCall(n, i))
+			{
+				gen_tail((IR1.Call) n.code[i], n);
+				
+				// The Return after it is never reached.
+				i++;
+				continue;
+			}
+			
+			gen(n.code[i]);
 		}
 		
 		frameSize -= frameSize;
+		
+		X86.out.flush();
 	}
 	
 	// INSTRUCTIONS
 	
 	static void gen(IR1.Inst n) throws Exception
 	{
-		System.out.print("\t\t\t  # " + n);
+		X86.out.print("\t\t\t  # ").print(n);
 		if (n instanceof IR1.Binop)
 			gen((IR1.Binop) n);
 		else if (n instanceof IR1.Unop)
@@ -217,8 +317,10 @@ class CodeGen
 	}
 	
 	// For Binop, Unop, Move, and Load nodes:
-	// - If dst is not assigned a register, it means that the
-	// instruction is dead; just return
+	// - If dst is not assigned a register or stack slot, or is not live
+	// after the instruction, the instruction is dead; just return
+	// . (the register of an Id or Temp may belong to another one where
+	// it is not live, so a dead instruction must not write it)
 	//
 	
 	// Binop ---
@@ -237,8 +339,8 @@ class CodeGen
 	// - generate code for the Binop
 	//
 	// * For DIV:
-	// The RegAlloc module guaranteeds that no caller-save register
-	// (including RAX, RDX) is allocated across a DIV. (It also
+	// The RegAlloc module guaranteeds that nothing live across a DIV
+	// is allocated to RAX or RDX. (It also
 	// preferenced the left operand and result to RAX.) But it is
 	// still possible that the right operand is in RAX or RDX.
 	// - if so, generate a "mov" to move it to a tempReg
@@ -253,7 +355,7 @@ class CodeGen
 	static void gen(IR1.Binop n) throws Exception
 	{
 		// It's dead!
-		if (regMap.get(n.dst) == null)
+		if (isDead(n.dst))
 		{
 			return;
 		}
@@ -273,12 +375,23 @@ class CodeGen
 			}
 			
 			rhs = gen_source(n.src2, rhsTempReg);
+			
+			// The divisor must be out of the way before the dividend is
+			// put in RAX.
+			if (isA(n.op, IR1.AOP.DIV) && (rhs.equals(X86.RAX) || rhs.equals(X86.RDX)))
+			{
+				X86.emitMov(rhs.s, rhs, tempReg1);
+				
+				rhs = tempReg1;
+			}
+			
 			lhs = gen_source(n.src1, isA(n.op, IR1.AOP.DIV) ? X86.RAX : lhsTempReg);
 		}
 
 		if (isA(n.op, IR1.AOP.ADD, IR1.AOP.SUB, IR1.AOP.MUL, IR1.AOP.ADD, IR1.AOP.OR))
 		{
-			X86.Reg dest = regMap.get(n.dst);
+			// (A spilled result is built in lhs's temp register.)
+			X86.Reg dest = gen_dest(n.dst, tempReg2);
 			
 			// If the rhs is within the destination, move it out.
 			if (rhs.equals(dest))
@@ -292,29 +405,29 @@ class CodeGen
 			
 			String op = getX86Op(n.op);
 			X86.emit2(op, rhs, dest);
+			gen_spill(n.dst, dest);
 			
 			return;
 		}
 		else if (isA(n.op, IR1.AOP.DIV))
 		{
-			if (rhs.equals(X86.RAX) || rhs.equals(X86.RDX))
+			if (!lhs.equals(X86.RAX))
 			{
-				X86.emitMov(rhs.s, rhs, tempReg2);
-				
-				rhs = tempReg2;
+				X86.emitMov(lhs.s, lhs, X86.RAX);
 			}
 			
 			X86.emit0("cqto");
 			X86.emit1("idivq", rhs);
 			
-			X86.Reg dest = regMap.get(n.dst);
+			X86.Reg dest = gen_dest(n.dst, X86.RAX);
 			X86.emitMov(dest.s, X86.RAX, dest);
+			gen_spill(n.dst, dest);
 			
 			return;
 		}
 		else if (isA(n.op, IR1.ROP.EQ, IR1.ROP.GE, IR1.ROP.GT, IR1.ROP.LE, IR1.ROP.LT, IR1.ROP.LT, IR1.ROP.NE))
 		{
-			X86.Reg dest = regMap.get(n.dst);
+			X86.Reg dest = gen_dest(n.dst, tempReg1);
 			
 			rhs = gen_source(n.src1, tempReg1);
 			lhs = gen_source(n.src2, tempReg2);
@@ -322,6 +435,7 @@ class CodeGen
 			X86.emit2("cmpq", lhs, rhs);
 			X86.emit1("set" + getRelationalIndicator((IR1.ROP) n.op), X86.resize_reg(X86.Size.B, dest));
 			X86.emit2("movzbq", X86.resize_reg(X86.Size.B, dest), dest);
+			gen_spill(n.dst, dest);
 			
 			return;
 		}
@@ -399,17 +513,18 @@ class CodeGen
 	//
 	static void gen(IR1.Unop n) throws Exception
 	{
-		if (regMap.get(n.dst) == null)
+		if (isDead(n.dst))
 		{
 			return;
 		}
 		
 		X86.Reg src = gen_source(n.src, tempReg1);
-		X86.Reg dest = regMap.get(n.dst);
+		X86.Reg dest = gen_dest(n.dst, tempReg1);
 		
 		X86.emitMov(dest.s, src, dest);
 		
 		X86.emit1((n.op == IR1.UOP.NOT ? "not" : "neg") + dest.s, dest);
+		gen_spill(n.dst, dest);
 	}
 	
 	// Move ---
@@ -423,22 +538,17 @@ class CodeGen
 	static void gen(IR1.Move n) throws Exception
 	{
 		// It's dead!
-		if (regMap.get(n.dst) == null)
+		if (isDead(n.dst))
 		{
 			return;
 		}
 		
-		X86.Reg dest = regMap.get(n.dst) != null ? regMap.get(n.dst) : tempReg1;
+		X86.Reg dest = gen_dest(n.dst, tempReg1);
 		
 		X86.Reg src = gen_source(n.src, dest);
 		
-		// If source and destination are the same, no need to make a move.
-		if (src.equals(dest))
-		{
-			return;
-		}
-		
 		X86.emitMov(dest.s, src, dest);
+		gen_spill(n.dst, dest);
 	}
 	
 	// Load ---
@@ -454,16 +564,17 @@ class CodeGen
 	static void gen(IR1.Load n) throws Exception
 	{
 		// It's dead!
-		if (regMap.get(n.dst) == null)
+		if (isDead(n.dst))
 		{
 			return;
 		}
 		
 		X86.Operand addr = gen_addr(n.addr, tempReg1);
-		X86.Reg dest = regMap.get(n.dst);
+		X86.Reg dest = gen_dest(n.dst, tempReg1);
 
 		// TODO THis may not work...
 		X86.emit2("movslq", addr, dest);
+		gen_spill(n.dst, dest);
 		//X86.emitMov(dest.s, addr, dest);	
 	}
 	
@@ -544,12 +655,15 @@ class CodeGen
 	//
 	// Guideline:
 	// - count args; if there are more than 6 args, just fail
-	// - move arguments into the argument regs
+	// - move arguments into the argument regs (gen_args())
 	// . first call X86's parallelMove() to move registered args
-	// . then generate "mov" to move immediate args
+	// . then generate "mov" to move immediate and spilled args
 	// - emit a "call" with a global label (i.e. "_" preceding func's name)
 	// - if return value is expected, emit a "mov" to move result from
 	// rax to target reg
+	// - values the RegAlloc module split at calls (caller-save register
+	// and a stack slot) that are live across this one are stored to
+	// their slot before it and loaded back after
 	//
 	static void gen(IR1.Call n) throws Exception
 	{
@@ -558,40 +672,126 @@ class CodeGen
 			throw new GenException("gen(IR1.Call): Too many arguments (>6).");
 		}
 		
-		//%rdi, %rsi, %rdx, %rcx, %r8, %r9.
-		X86.Reg[] params = { X86.RDI, X86.RSI, X86.RDX, X86.RCX, X86.R8, X86.R9 };
-		
-		int i = 0;
-		for (IR1.Src arg : n.args)
+		List<IR1.Dest> saved = new ArrayList<IR1.Dest>();
+		for (IR1.Dest d : spillSlots.keySet())
 		{
-			X86.Reg reg = gen_source(arg, params[i]);
-			
-			// If they're equal, no need to move them again.
-			if (reg.equals(params[i]))
+			if (saveSlot(d) != null && !d.equals(n.rdst) && liveness.isLiveOut(instIndex, d))
 			{
-				i++;
-				continue;
+				X86.emitMov(X86.Size.Q, regMap.get(d), saveSlot(d));
+				saved.add(d);
 			}
-			
-			X86.emitMov(reg.s, reg, params[i++]);
 		}
 		
-		X86.emit1("call", new X86.GLabel("_" + n.name));
+		gen_args(n);
 		
-		X86.Reg dest = regMap.get(n.rdst);
+		X86.emit1("call", new X86.GLabel("_" + n.name));
 		
-		if (dest == null)
+		if (n.rdst != null && !isDead(n.rdst))
 		{
-			return;
+			X86.Reg dest = gen_dest(n.rdst, X86.RAX);
+			X86.emitMov(dest.s, X86.RAX, dest);
+			gen_spill(n.rdst, dest);
 		}
 		
-		X86.emitMov(dest.s, X86.RAX, dest);
+		for (IR1.Dest d : saved)
+		{
+			X86.emitMov(X86.Size.Q, saveSlot(d), regMap.get(d));
+		}
 		
 		//X86.Reg src = gen_source(n.src, dest);
 		
 		//X86.emitMov(X86.Size.Q, src, dest);
 	}
 	
+	// Tail calls ---
+	//
+	// A Call whose result the next instruction returns (a tail call)
+	// does not need a frame of its own:
+	// - the arguments are moved into the argument registers, with
+	// X86.parallelMove() for the ones in registers (they may be each
+	// other's sources) and then the literals;
+	// - a call to this same function jumps back to just after its
+	// prologue (entryLabel()), so the frame is reused;
+	// - a call to any other function pops this frame and the saved
+	// registers, as Return does, and jumps to the callee's entry, which
+	// then returns straight to our caller.
+	//
+	static boolean isTailCall(IR1.Func f, int i)
+	{
+		if (!(f.code[i] instanceof IR1.Call) || i + 1 >= f.code.length || !(f.code[i + 1] instanceof IR1.Return))
+		{
+			return false;
+		}
+		
+		IR1.Call call = (IR1.Call) f.code[i];
+		IR1.Return ret = (IR1.Return) f.code[i + 1];
+		
+		return call.rdst != null && call.rdst.equals(ret.val) && call.args.length <= X86.argRegs.length;
+	}
+	
+	static boolean hasSelfTailCall(IR1.Func f)
+	{
+		for (int i = 0; i < f.code.length; i++)
+		{
+			if (isTailCall(f, i) && ((IR1.Call) f.code[i]).name.equals(f.name))
+			{
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	static X86.Label entryLabel()
+	{
+		// (IR1 labels become fnName_label, and have no leading "_".)
+		return new X86.Label(fnName + "__entry");
+	}
+	
+	static void gen_tail(IR1.Call n, IR1.Func f) throws Exception
+	{
+		X86.out.print("\t\t\t  # tail ").print(n);
+		
+		gen_args(n);
+		
+		if (n.name.equals(f.name))
+		{
+			X86.emit1("jmp", entryLabel());
+			return;
+		}
+		
+		gen_epilogue();
+		X86.emit1("jmp", new X86.GLabel("_" + n.name));
+	}
+	
+	// Moves a call's arguments into the argument registers: the ones in
+	// registers with X86.parallelMove() (they may be each other's
+	// sources), then the literals and spilled ones, which only need
+	// their own argument register.
+	//
+	static void gen_args(IR1.Call n) throws Exception
+	{
+		List<X86.Reg> srcs = new ArrayList<X86.Reg>();
+		List<X86.Reg> dsts = new ArrayList<X86.Reg>();
+		for (int i = 0; i < n.args.length; i++)
+		{
+			if (isAssignedAReg(n.args[i]) && regMap.get((IR1.Dest) n.args[i]) != null)
+			{
+				srcs.add(regMap.get((IR1.Dest) n.args[i]));
+				dsts.add(X86.argRegs[i]);
+			}
+		}
+		X86.parallelMove(srcs.size(), srcs.toArray(new X86.Reg[0]), dsts.toArray(new X86.Reg[0]), tempReg1);
+		
+		for (int i = 0; i < n.args.length; i++)
+		{
+			if (!isAssignedAReg(n.args[i]) || regMap.get((IR1.Dest) n.args[i]) == null)
+			{
+				gen_source(n.args[i], X86.argRegs[i]);
+			}
+		}
+	}
+	
 	// Return ---
 	// Src val;
 	//
@@ -615,6 +815,14 @@ class CodeGen
 			}
 		}
 		
+		gen_epilogue();
+		X86.emit0("ret");
+	}
+	
+	// Pops the frame and restores the saved callee-save registers.
+	//
+	static void gen_epilogue()
+	{
 		if (frameSize > 0)
 		{
 			X86.emit2("addq", new X86.Imm(frameSize), X86.RSP);
@@ -642,8 +850,6 @@ class CodeGen
 			
 			X86.emit1("popq", reg);
 		}
-		
-		X86.emit0("ret");
 	}
 	
 	static List<X86.Reg> getCalleeSaveRegisters()
@@ -663,11 +869,13 @@ class CodeGen
 	// Src -> Id | Temp | IntLit | BoolLit | StrLit
 	//
 	// Return the Src's value in a register. Use the temp register
-	// for the literal nodes.
+	// for the literal nodes and spilled Ids and Temps.
 	//
 	// Guideline:
 	// * Id and Temp:
 	// - get their assigned reg from regMap and return it
+	// - if spilled, emit a "mov" to load it from its stack slot to the
+	// temp reg and return the reg
 	// * IntLit:
 	// - emit code to move the value to the temp reg and return the reg
 	// * BoolLit:
@@ -684,6 +892,13 @@ class CodeGen
 		{
 			IR1.Dest dest = (IR1.Dest) n;
 			
+			if (regMap.get(dest) == null && spillSlots.containsKey(dest))
+			{
+				X86.emitMov(X86.Size.Q, spillSlot(dest), temp);
+				
+				return temp;
+			}
+			
 			return regMap.get(dest);
 		}
 		else if (isA(n, Type.Int))
@@ -765,6 +980,65 @@ class CodeGen
 		throw new GenException("Unable to determine the type of: " + src.getClass().getCanonicalName());
 	}
 	
+	// Dest -> Id | Temp
+	//
+	// A spilled Id or Temp has no register, so an instruction that sets
+	// one builds the value in the temp register given to gen_dest(),
+	// and gen_spill() then stores it to the stack slot.
+	//
+	static X86.Reg gen_dest(IR1.Dest n, X86.Reg temp)
+	{
+		X86.Reg reg = regMap.get(n);
+		
+		return reg != null ? reg : temp;
+	}
+	
+	static void gen_spill(IR1.Dest n, X86.Reg reg)
+	{
+		X86.Mem slot = spillSlot(n);
+		
+		if (slot != null)
+		{
+			X86.emitMov(X86.Size.Q, reg, slot);
+		}
+	}
+	
+	// The stack slot of a spilled Id or Temp, or null. The slots are at
+	// the bottom of the frame, which does not move in the function body.
+	//
+	static X86.Mem spillSlot(IR1.Dest n)
+	{
+		Integer slot = regMap.get(n) == null ? spillSlots.get(n) : null;
+		
+		return slot != null ? new X86.Mem(X86.RSP, slot * 8) : null;
+	}
+	
+	// The stack slot an Id or Temp that has a register is saved to
+	// around calls, or null.
+	//
+	static X86.Mem saveSlot(IR1.Dest n)
+	{
+		Integer slot = regMap.get(n) != null ? spillSlots.get(n) : null;
+		
+		return slot != null ? new X86.Mem(X86.RSP, slot * 8) : null;
+	}
+	
+	// Dead if it has neither a register nor a stack slot, or is not live
+	// after the current instruction.
+	//
+	static boolean isDead(IR1.Dest n)
+	{
+		return (regMap.get(n) == null && !spillSlots.containsKey(n)) || !liveness.isLiveOut(instIndex, n);
+	}
+	
+	// A parameter is live on entry if it may be used before it is set
+	// (Liveness takes the parameters to be set at entry point 0).
+	//
+	static boolean isLiveOnEntry(IR1.Func f, String param) throws Exception
+	{
+		return liveness.isLiveOut(0, new IR1.Id(param));
+	}
+	
 	// Addr ---
 	// Src base;
 	// int offset;
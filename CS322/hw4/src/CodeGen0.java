@@ -19,7 +19,11 @@ class CodeGen0 {
       IR1.Program p = new ir1Parser(stream).Program();
       stream.close();
       // IR1.indexed = true;
-      gen(p);
+      try {
+	gen(p);
+      } finally {
+	X86.out.close();
+      }
     } else {
       System.out.println("You must provide an input file name.");
     }
@@ -93,12 +97,12 @@ class CodeGen0 {
   //
   static void gen(IR1.Func n) throws Exception { 
     fnName = n.name;
-    System.out.print("\t\t\t  # " + n.header());
+    X86.out.print("\t\t\t  # " + n.header());
 
     // call reg-alloc routine to assign registers to all Ids and Temps
     regMap = RegAlloc.linearScan(n);  
     for (Map.Entry<IR1.Dest,X86.Reg> me: regMap.entrySet()) 
-      System.out.print("\t\t\t  # " + me.getKey() + "\t" + me.getValue() + "\n");
+      X86.out.print("\t\t\t  # " + me.getKey() + "\t" + me.getValue() + "\n");
 
     // ... need code ...
 
@@ -107,7 +111,7 @@ class CodeGen0 {
   // INSTRUCTIONS
 
   static void gen(IR1.Inst n) throws Exception {
-    System.out.print("\t\t\t  # " + n);
+    X86.out.print("\t\t\t  # " + n);
     if (n instanceof IR1.Binop) 	gen((IR1.Binop) n);
     else if (n instanceof IR1.Unop) 	gen((IR1.Unop) n);
     else if (n instanceof IR1.Move) 	gen((IR1.Move) n);
@@ -0,0 +1,514 @@
+// This is supporting software for CS322 Compilers and Language Design II
+// Copyright (c) Portland State University
+//
+// IR1->X86-64 register allocation by graph coloring.
+//
+// Homework 4 completed by Ian Aldrighetti <aldrig@pdx.edu>
+//
+// Iterated register coalescing, after George and Appel, "Iterated
+// Register Coalescing" (TOPLAS 18(3), 1996). An alternative to
+// RegAlloc.linearScan, with the same contract, so CodeGen can use
+// either (java CodeGen -color prog.ir selects this one):
+// - Ids and Temps that interfere (one is live where the other is set)
+//   get different registers, so a value may share a register with
+//   one that lives in its holes, which an interval cannot;
+// - a Move between two of them, and each RegAlloc.preferences hint
+//   (a "move" from the preferred register), is coalesced when that
+//   cannot make the graph uncolorable;
+// - a value live across a Call interferes with every caller-save
+//   register, and one live across a DIV with RAX and RDX;
+// - a node that cannot be colored is spilled, to a stack slot shared
+//   with spilled nodes it does not interfere with. CodeGen reaches
+//   spilled values through its temp registers, so the program does not
+//   need to be rewritten and colored again.
+//
+
+import java.util.*;
+import ir1.*;
+
+class ColorAlloc {
+
+  // Registers that can be assigned, caller-save first (as in
+  // linearScan, a callee-save register costs a push and pop)
+  static final X86.Reg[] colors = {
+    X86.RAX, X86.RCX, X86.RDX, X86.RSI, X86.RDI, X86.R8, X86.R9,
+    X86.RBX, X86.RBP, X86.R12, X86.R13, X86.R14, X86.R15 };
+  static final int K = colors.length;
+
+  // Node numbers: 0..15 are the registers (precolored), by X86.Reg.r;
+  // Id or Temp number v in BitLiveness is node REGS + v
+  static final int REGS = X86.allRegs.length;
+
+  // Move states
+  static final int WORKLIST = 0, ACTIVE = 1, COALESCED = 2,
+    CONSTRAINED = 3, FROZEN = 4;
+
+  final IR1.Func func;
+  final BitLiveness live;
+  final int nodeCount;
+
+  // Interference graph
+  final Set<Long> adjSet = new HashSet<Long>();
+  final List<List<Integer>> adjList = new ArrayList<List<Integer>>();
+  final int[] degree;
+
+  // Moves: from moveSrc to moveDst, and the moves of each node
+  final List<Integer> moveSrc = new ArrayList<Integer>();
+  final List<Integer> moveDst = new ArrayList<Integer>();
+  final List<Integer> moveState = new ArrayList<Integer>();
+  final List<List<Integer>> moveList = new ArrayList<List<Integer>>();
+
+  // Worklists
+  final Set<Integer> simplifyWorklist = new LinkedHashSet<Integer>();
+  final Set<Integer> freezeWorklist = new LinkedHashSet<Integer>();
+  final Set<Integer> spillWorklist = new LinkedHashSet<Integer>();
+  final Set<Integer> worklistMoves = new LinkedHashSet<Integer>();
+  final Set<Integer> activeMoves = new LinkedHashSet<Integer>();
+  final ArrayDeque<Integer> selectStack = new ArrayDeque<Integer>();
+
+  // Per node
+  final boolean[] present;      // live somewhere (others are dead)
+  final boolean[] onStack, coalesced, spilled;
+  final int[] alias, color;
+  final double[] cost;          // of spilling it
+
+  ColorAlloc(IR1.Func func) {
+    this.func = func;
+    this.live = new BitLiveness(func);
+    this.nodeCount = REGS + live.rands.size();
+    degree = new int[nodeCount];
+    present = new boolean[nodeCount];
+    onStack = new boolean[nodeCount];
+    coalesced = new boolean[nodeCount];
+    spilled = new boolean[nodeCount];
+    alias = new int[nodeCount];
+    color = new int[nodeCount];
+    cost = new double[nodeCount];
+    for (int u = 0; u < nodeCount; u++) {
+      adjList.add(new ArrayList<Integer>());
+      moveList.add(new ArrayList<Integer>());
+      alias[u] = u;
+      color[u] = u < REGS ? u : -1;
+      if (u < REGS)
+	degree[u] = Integer.MAX_VALUE / 2;
+    }
+  }
+
+  // Allocate IR1.Ids and IR1.Temps to X86.Regs; see
+  // RegAlloc.linearScan(IR1.Func, Map) for what is returned.
+  //
+  static Map<IR1.Dest,X86.Reg> allocate(IR1.Func func,
+					Map<IR1.Dest,Integer> spillSlots)
+    throws Exception {
+    ColorAlloc ca = new ColorAlloc(func);
+    ca.build(RegAlloc.preferences(func));
+    ca.makeWorklist();
+    while (true) {
+      if (!ca.simplifyWorklist.isEmpty())
+	ca.simplify();
+      else if (!ca.worklistMoves.isEmpty())
+	ca.coalesce();
+      else if (!ca.freezeWorklist.isEmpty())
+	ca.freeze();
+      else if (!ca.spillWorklist.isEmpty())
+	ca.selectSpill();
+      else
+	break;
+    }
+    ca.assignColors();
+
+    Map<IR1.Dest,X86.Reg> regMap = new HashMap<IR1.Dest,X86.Reg>();
+    int[] slot = ca.assignSlots();
+    for (int u = REGS; u < ca.nodeCount; u++) {
+      if (!ca.present[u])
+	continue;
+      IR1.Dest t = ca.live.rands.get(u - REGS);
+      int a = ca.getAlias(u);
+      if (ca.spilled[a])
+	spillSlots.put(t, slot[a]);
+      else
+	regMap.put(t, X86.allRegs[ca.color[a]]);
+    }
+    return regMap;
+  }
+
+  static boolean isPrecolored(int u) {
+    return u < REGS;
+  }
+
+  // BUILDING THE GRAPH
+
+  void build(Map<IR1.Dest,X86.Reg> preference) {
+    int n = live.n;
+    for (int i = 0; i <= n; i++) {
+      long[] out = live.liveOut[i];
+      for (int v = BitLiveness.nextBit(out, 0); v >= 0; v = BitLiveness.nextBit(out, v+1))
+	present[REGS + v] = true;
+    }
+
+    // On entry the live parameters are set at once, along with
+    // anything live in that was never set
+    List<Integer> entry = new ArrayList<Integer>();
+    long[] in = live.liveOut[0];
+    for (int v = BitLiveness.nextBit(in, 0); v >= 0; v = BitLiveness.nextBit(in, v+1))
+      entry.add(REGS + v);
+    for (int a = 0; a < entry.size(); a++)
+      for (int b = a+1; b < entry.size(); b++)
+	addEdge(entry.get(a), entry.get(b));
+
+    int[] depth = RegAlloc.loopDepths(func);
+    for (int i = 1; i <= n; i++) {
+      IR1.Inst inst = func.code[i-1];
+      long[] out = live.liveOut[i];
+
+      // the source of a Move may share the destination's register
+      int moveFrom = -1;
+      if (inst instanceof IR1.Move && ((IR1.Move) inst).src instanceof IR1.Dest) {
+	Integer v = live.numbers.get((IR1.Dest) ((IR1.Move) inst).src);
+	Integer d = live.numbers.get(((IR1.Move) inst).dst);
+	if (v != null && d != null && present[REGS + v] && present[REGS + d]) {
+	  moveFrom = REGS + v;
+	  addMove(moveFrom, REGS + d);
+	}
+      }
+
+      for (int d : live.defined[i]) {
+	if (!present[REGS + d])
+	  continue;
+	for (int v = BitLiveness.nextBit(out, 0); v >= 0; v = BitLiveness.nextBit(out, v+1))
+	  if (REGS + v != moveFrom)
+	    addEdge(REGS + v, REGS + d);
+      }
+
+      // what a call or a division clobbers, for everything live across
+      // it (its result is set after)
+      X86.Reg[] clobbered = null;
+      IR1.Dest result = null;
+      if (inst instanceof IR1.Call) {
+	clobbered = colorsOf(X86.callerSaveRegs);
+	result = ((IR1.Call) inst).rdst;
+      } else if (inst instanceof IR1.Binop && ((IR1.Binop) inst).op == IR1.AOP.DIV) {
+	clobbered = new X86.Reg[] { X86.RAX, X86.RDX };
+	result = ((IR1.Binop) inst).dst;
+      }
+      if (clobbered != null) {
+	Integer r = result != null ? live.numbers.get(result) : null;
+	for (int v = BitLiveness.nextBit(out, 0); v >= 0; v = BitLiveness.nextBit(out, v+1)) {
+	  if (r != null && v == r)
+	    continue;
+	  for (X86.Reg reg : clobbered)
+	    addEdge(REGS + v, reg.r);
+	}
+      }
+
+      double weight = Math.pow(10, Math.min(depth[i], 6));
+      for (int v : live.used[i])
+	cost[REGS + v] += weight;
+      for (int v : live.defined[i])
+	cost[REGS + v] += weight;
+    }
+
+    for (Map.Entry<IR1.Dest,X86.Reg> me : preference.entrySet()) {
+      Integer v = live.numbers.get(me.getKey());
+      if (v != null && present[REGS + v])
+	addMove(me.getValue().r, REGS + v);
+    }
+  }
+
+  // The registers in regs that can be assigned
+  static X86.Reg[] colorsOf(X86.Reg[] regs) {
+    List<X86.Reg> r = new ArrayList<X86.Reg>();
+    for (X86.Reg reg : regs)
+      if (Arrays.asList(colors).contains(reg))
+	r.add(reg);
+    return r.toArray(new X86.Reg[0]);
+  }
+
+  void addEdge(int u, int v) {
+    if (u == v || adjSet.contains(key(u, v)))
+      return;
+    adjSet.add(key(u, v));
+    adjSet.add(key(v, u));
+    if (!isPrecolored(u)) {
+      adjList.get(u).add(v);
+      degree[u]++;
+    }
+    if (!isPrecolored(v)) {
+      adjList.get(v).add(u);
+      degree[v]++;
+    }
+  }
+
+  long key(int u, int v) {
+    return (long) u * nodeCount + v;
+  }
+
+  void addMove(int src, int dst) {
+    int m = moveSrc.size();
+    moveSrc.add(src);
+    moveDst.add(dst);
+    moveState.add(WORKLIST);
+    moveList.get(src).add(m);
+    moveList.get(dst).add(m);
+    worklistMoves.add(m);
+  }
+
+  void makeWorklist() {
+    for (int u = REGS; u < nodeCount; u++) {
+      if (!present[u])
+	continue;
+      if (degree[u] >= K)
+	spillWorklist.add(u);
+      else if (moveRelated(u))
+	freezeWorklist.add(u);
+      else
+	simplifyWorklist.add(u);
+    }
+  }
+
+  List<Integer> adjacent(int u) {
+    List<Integer> r = new ArrayList<Integer>();
+    for (int v : adjList.get(u))
+      if (!onStack[v] && !coalesced[v])
+	r.add(v);
+    return r;
+  }
+
+  List<Integer> nodeMoves(int u) {
+    List<Integer> r = new ArrayList<Integer>();
+    for (int m : moveList.get(u)) {
+      int state = moveState.get(m);
+      if (state == ACTIVE || state == WORKLIST)
+	r.add(m);
+    }
+    return r;
+  }
+
+  boolean moveRelated(int u) {
+    return !nodeMoves(u).isEmpty();
+  }
+
+  // SIMPLIFY, COALESCE, FREEZE, SPILL
+
+  void simplify() {
+    int u = pop(simplifyWorklist);
+    selectStack.push(u);
+    onStack[u] = true;
+    for (int v : adjacent(u))
+      decrementDegree(v);
+  }
+
+  void decrementDegree(int u) {
+    if (isPrecolored(u))
+      return;
+    int d = degree[u]--;
+    if (d == K) {
+      List<Integer> nodes = adjacent(u);
+      nodes.add(u);
+      enableMoves(nodes);
+      spillWorklist.remove(u);
+      if (moveRelated(u))
+	freezeWorklist.add(u);
+      else
+	simplifyWorklist.add(u);
+    }
+  }
+
+  void enableMoves(List<Integer> nodes) {
+    for (int u : nodes) {
+      for (int m : nodeMoves(u)) {
+	if (moveState.get(m) == ACTIVE) {
+	  activeMoves.remove(m);
+	  moveState.set(m, WORKLIST);
+	  worklistMoves.add(m);
+	}
+      }
+    }
+  }
+
+  void coalesce() {
+    int m = pop(worklistMoves);
+    int x = getAlias(moveSrc.get(m));
+    int y = getAlias(moveDst.get(m));
+    int u = x, v = y;
+    if (isPrecolored(y)) {
+      u = y;
+      v = x;
+    }
+    if (u == v) {
+      moveState.set(m, COALESCED);
+      addWorkList(u);
+    } else if (isPrecolored(v) || adjSet.contains(key(u, v))) {
+      moveState.set(m, CONSTRAINED);
+      addWorkList(u);
+      addWorkList(v);
+    } else if (isPrecolored(u) ? allOk(adjacent(v), u)
+	       : conservative(adjacent(u), adjacent(v))) {
+      moveState.set(m, COALESCED);
+      combine(u, v);
+      addWorkList(u);
+    } else {
+      moveState.set(m, ACTIVE);
+      activeMoves.add(m);
+    }
+  }
+
+  void addWorkList(int u) {
+    if (!isPrecolored(u) && !moveRelated(u) && degree[u] < K) {
+      freezeWorklist.remove(u);
+      simplifyWorklist.add(u);
+    }
+  }
+
+  // George's test, for coalescing with a register
+  boolean allOk(List<Integer> nodes, int r) {
+    for (int t : nodes)
+      if (!(degree[t] < K || isPrecolored(t) || adjSet.contains(key(t, r))))
+	return false;
+    return true;
+  }
+
+  // Briggs's test
+  boolean conservative(List<Integer> a, List<Integer> b) {
+    Set<Integer> nodes = new HashSet<Integer>(a);
+    nodes.addAll(b);
+    int k = 0;
+    for (int u : nodes)
+      if (degree[u] >= K)
+	k++;
+    return k < K;
+  }
+
+  int getAlias(int u) {
+    while (coalesced[u])
+      u = alias[u];
+    return u;
+  }
+
+  void combine(int u, int v) {
+    if (!freezeWorklist.remove(v))
+      spillWorklist.remove(v);
+    coalesced[v] = true;
+    alias[v] = u;
+    moveList.get(u).addAll(moveList.get(v));
+    cost[u] += cost[v];
+    enableMoves(Collections.singletonList(v));
+    for (int t : adjacent(v)) {
+      addEdge(t, u);
+      decrementDegree(t);
+    }
+    if (degree[u] >= K && freezeWorklist.remove(u))
+      spillWorklist.add(u);
+  }
+
+  void freeze() {
+    int u = pop(freezeWorklist);
+    simplifyWorklist.add(u);
+    freezeMoves(u);
+  }
+
+  void freezeMoves(int u) {
+    for (int m : nodeMoves(u)) {
+      int x = moveSrc.get(m), y = moveDst.get(m);
+      int v = getAlias(y) == getAlias(u) ? getAlias(x) : getAlias(y);
+      activeMoves.remove(m);
+      worklistMoves.remove(m);
+      moveState.set(m, FROZEN);
+      if (!isPrecolored(v) && nodeMoves(v).isEmpty() && degree[v] < K) {
+	freezeWorklist.remove(v);
+	simplifyWorklist.add(v);
+      }
+    }
+  }
+
+  // Spill the node that is cheapest for how much it constrains others
+  void selectSpill() {
+    int best = -1;
+    for (int u : spillWorklist)
+      if (best < 0 || cost[u] / degree[u] < cost[best] / degree[best])
+	best = u;
+    spillWorklist.remove(best);
+    simplifyWorklist.add(best);
+    freezeMoves(best);
+  }
+
+  static int pop(Set<Integer> set) {
+    Iterator<Integer> it = set.iterator();
+    int u = it.next();
+    it.remove();
+    return u;
+  }
+
+  // COLORING
+
+  void assignColors() {
+    while (!selectStack.isEmpty()) {
+      int u = selectStack.pop();
+      onStack[u] = false;
+      boolean[] taken = new boolean[REGS];
+      for (int w : adjList.get(u)) {
+	int a = getAlias(w);
+	if (color[a] >= 0)
+	  taken[color[a]] = true;
+      }
+      // a register it was to be coalesced with, if it is free
+      int c = -1;
+      for (int m : moveList.get(u)) {
+	int other = getAlias(moveSrc.get(m)) == u ? getAlias(moveDst.get(m))
+	  : getAlias(moveSrc.get(m));
+	if (color[other] >= 0 && !taken[color[other]]) {
+	  c = color[other];
+	  break;
+	}
+      }
+      for (int k = 0; c < 0 && k < K; k++)
+	if (!taken[colors[k].r])
+	  c = colors[k].r;
+      if (c < 0)
+	spilled[u] = true;
+      else
+	color[u] = c;
+    }
+  }
+
+  // A stack slot for each spilled node, shared with spilled nodes it
+  // does not interfere with. (An edge to a node coalesced after it was
+  // simplified is only on the other node's list, so the conflicts are
+  // gathered both ways first.)
+  int[] assignSlots() {
+    Map<Integer,Set<Integer>> conflicts = new HashMap<Integer,Set<Integer>>();
+    for (int u = REGS; u < nodeCount; u++) {
+      int a = getAlias(u);
+      if (!present[u] || !spilled[a])
+	continue;
+      for (int w : adjList.get(u)) {
+	int b = getAlias(w);
+	if (b == a || !spilled[b])
+	  continue;
+	if (!conflicts.containsKey(a))
+	  conflicts.put(a, new HashSet<Integer>());
+	if (!conflicts.containsKey(b))
+	  conflicts.put(b, new HashSet<Integer>());
+	conflicts.get(a).add(b);
+	conflicts.get(b).add(a);
+      }
+    }
+    int[] slot = new int[nodeCount];
+    Arrays.fill(slot, -1);
+    for (int u = REGS; u < nodeCount; u++) {
+      if (!spilled[u] || coalesced[u])
+	continue;
+      Set<Integer> taken = new HashSet<Integer>();
+      if (conflicts.containsKey(u))
+	for (int w : conflicts.get(u))
+	  if (slot[w] >= 0)
+	    taken.add(slot[w]);
+      int s = 0;
+      while (taken.contains(s))
+	s++;
+      slot[u] = s;
+    }
+    return slot;
+  }
+
+}
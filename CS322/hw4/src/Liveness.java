@@ -66,19 +66,23 @@ class Liveness {
 	labelMap.put(((IR1.LabelDec) c).lab.name, i);
     }
     IndexList[] allSuccs = new IndexList[func.code.length+1]; 
-    for (int i = 1; i < func.code.length; i++) { // there's always a label at the end
+    for (int i = 1; i <= func.code.length; i++) {
+      // the last instruction falls through to nothing (the generator
+      // ends a function with a label, but optimized code may end with
+      // a jump back into it)
+      boolean last = i == func.code.length;
       IR1.Inst inst = func.code[i-1];
       IndexList succs = new IndexList();
       if (inst instanceof IR1.CJump) {
 	succs.add(labelMap.get(((IR1.CJump) inst).lab.name));
-	succs.add(i+1);      // safe because there's always a label at the end
+	if (!last)
+	  succs.add(i+1);
       } else if (inst instanceof IR1.Jump) 
 	succs.add(labelMap.get(((IR1.Jump) inst).lab.name));
-      else
+      else if (!last)
 	succs.add(i+1);      
       allSuccs[i] = succs;
     }
-    allSuccs[func.code.length] = new IndexList();
     return allSuccs;
   }
 
@@ -99,8 +103,9 @@ class Liveness {
       final int i0 = i;
       calculate(inst, used[i0], defined[i0]);
     }
-    for (String var : func.params)
-      defined[1].add(new IR1.Id(var));
+    // (The parameters are set on entry, before instruction 1, so one
+    // used before it is set is live there, in liveOut[0]. Counting them
+    // as set by instruction 1 would kill them on a jump back to it.)
 
     // Now solve dataflow equations to calculate
     // set of operands that are live out of each Inst
@@ -201,6 +206,62 @@ class Liveness {
     }
   }
 
+  // The points where an operand is live, as sorted, disjoint ranges
+  // (the gaps between them are its lifetime holes), and the
+  // instructions that use or set it, in order
+  static class Lifetime {
+    final List<Interval> ranges = new ArrayList<Interval>();
+    final List<Integer> uses = new ArrayList<Integer>();
+
+    int start() { return ranges.get(0).start; }
+    int end() { return ranges.get(ranges.size()-1).end; }
+
+    // add point i, after any points already added
+    void add(int i) {
+      Interval last = ranges.isEmpty() ? null : ranges.get(ranges.size()-1);
+      if (last != null && last.end == i-1)
+	last.end = i;
+      else
+	ranges.add(new Interval(i,i));
+    }
+
+    boolean covers(int i) {
+      for (Interval r: ranges) {
+	if (i < r.start)
+	  return false;
+	if (i <= r.end)
+	  return true;
+      }
+      return false;
+    }
+
+    boolean intersects(Lifetime other) {
+      int j = 0, k = 0;
+      while (j < ranges.size() && k < other.ranges.size()) {
+	Interval a = ranges.get(j), b = other.ranges.get(k);
+	if (a.end < b.start)
+	  j++;
+	else if (b.end < a.start)
+	  k++;
+	else
+	  return true;
+      }
+      return false;
+    }
+
+    // the first use at or after i (MAX_VALUE if none)
+    int nextUse(int i) {
+      for (int u: uses)
+	if (u >= i)
+	  return u;
+      return Integer.MAX_VALUE;
+    }
+
+    public String toString() {
+      return ranges + " uses " + uses;
+    }
+  }
+
   // calculate live interval for each operand in function
   static Map<IR1.Dest,Interval> calculateLiveIntervals(IR1.Func func) {
     Map<IR1.Dest,Interval> liveIntervals = new HashMap<IR1.Dest,Interval>();  
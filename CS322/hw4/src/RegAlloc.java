@@ -20,28 +20,313 @@ public class RegAlloc {
   static final X86.Reg tempReg2 = X86.R11;
 
   // Allocate IR1.Ids and IR1.Temps to X86.Regs using the linear scan
-  // algorithm.
+  // algorithm, without spilling.
+  // - Fails if the registers run out.
+  //
+  static Map<IR1.Dest,X86.Reg> linearScan(IR1.Func func) throws Exception {
+    Map<IR1.Dest,Integer> spillSlots = new HashMap<IR1.Dest,Integer>();
+    Map<IR1.Dest,X86.Reg> regMap = linearScan(func, spillSlots);
+    if (!regMap.keySet().containsAll(spillSlots.keySet()))
+      throw new RegAllocException("Oops: out of registers");
+    return regMap;
+  }
+
+  // Allocate IR1.Ids and IR1.Temps to X86.Regs using the linear scan
+  // algorithm, over lifetimes with holes (Liveness.Lifetime).
   // - If an Id or Temp is determined to be dead (e.g. a unsed param), 
   //   then no register will be assigned to it.
+  // - Ids and Temps whose lifetimes do not intersect may share a
+  //   register, even when one lies within the span of the other.
+  // - An Id or Temp live across calls may still get a caller-save
+  //   register, when that is cheaper than a callee-save one: it is
+  //   then split at the calls, i.e. it is entered in spillSlots as
+  //   well, and is saved to that slot around each call it is live
+  //   across.
+  // - If registers run out, an Id or Temp is spilled instead: it gets
+  //   no register, and is entered in spillSlots with the number of its
+  //   8-byte stack slot (slots are numbered from 0, and Ids and Temps
+  //   whose lifetimes do not overlap may share one).
   // 
-  static Map<IR1.Dest,X86.Reg> linearScan(IR1.Func func) throws Exception {
+  static Map<IR1.Dest,X86.Reg> linearScan(IR1.Func func, 
+					  Map<IR1.Dest,Integer> spillSlots) 
+    throws Exception {
 
     // register mappings (to be returned to caller)
     Map<IR1.Dest,X86.Reg> regMap = new HashMap<IR1.Dest,X86.Reg>();
 
     // desired register mappings (used in the routine)
-    Map<IR1.Dest,X86.Reg> preference = new HashMap<IR1.Dest,X86.Reg>();
+    Map<IR1.Dest,X86.Reg> preference = preferences(func);
 
     // liveness information for Temps and Ids 
-    Map<IR1.Dest,Liveness.Interval> liveIntervals
-      = Liveness.calculateLiveIntervals(func);
-    int liveCount = liveIntervals.size();
+    BitLiveness live = new BitLiveness(func);
+    Map<IR1.Dest,Liveness.Lifetime> lifetimes
+      = BitLiveness.calculateLifetimes(func);
+    int liveCount = lifetimes.size();
+
+    // What each value is live across: the cost of saving it around
+    // calls (10 per loop level), and whether it is live across a DIV
+    //
+    int[] depth = loopDepths(func);
+    Map<IR1.Dest,Integer> callCost = new HashMap<IR1.Dest,Integer>();
+    Set<IR1.Dest> acrossDiv = new HashSet<IR1.Dest>();
+    for (int i = 1; i <= func.code.length; i++) {
+      IR1.Inst c = func.code[i-1];
+      IR1.Dest result;
+      if (c instanceof IR1.Call)
+	result = ((IR1.Call) c).rdst;
+      else if (c instanceof IR1.Binop && ((IR1.Binop) c).op == IR1.AOP.DIV)
+	result = ((IR1.Binop) c).dst;
+      else
+	continue;
+      long[] out = live.liveOut[i];
+      for (int v = BitLiveness.nextBit(out, 0); v >= 0; v = BitLiveness.nextBit(out, v+1)) {
+	IR1.Dest t = live.rands.get(v);
+	if (t.equals(result))
+	  continue;
+	if (c instanceof IR1.Call) {
+	  Integer cost = callCost.get(t);
+	  callCost.put(t, (cost == null ? 0 : cost) + weight(depth[i]));
+	} else
+	  acrossDiv.add(t);
+      }
+    }
+
+    // Linear Scan Allocation
+    //-------------------------------------------------------------------
+    // Lifetimes are taken in order of their start. At each start,
+    // those already allocated are active (they cover this point),
+    // inactive (this point is in one of their holes), or done with.
+    // A register is free for the new lifetime if no active one has it
+    // and no inactive one that has it intersects the new one.
+    // If none is free, either the new one or the active one whose
+    // next use is furthest away is spilled.
+
+    // Prepare an array of assignable registers
+    //
+    boolean[] assignable = new boolean[X86.allRegs.length];
+    for (int i = 0; i < assignable.length; i++)
+      assignable[i] = true;
+    assignable[X86.RSP.r] = false;
+    assignable[tempReg1.r] = false;
+    assignable[tempReg2.r] = false;
+
+    // Callee-save registers already in use (they cost nothing more)
+    //
+    boolean[] used = new boolean[X86.allRegs.length];
+      
+    // Build two parallel lists describing lifetimes sorted by start
+    // point
+    //
+    List<Integer> liveStarts = new ArrayList<Integer>(liveCount);
+    List<IR1.Dest> liveValues = new ArrayList<IR1.Dest>(liveCount);   
+    for (Map.Entry<IR1.Dest,Liveness.Lifetime> me: lifetimes.entrySet()) {
+      IR1.Dest t = me.getKey();
+      Liveness.Lifetime n = me.getValue();
+      int ip = insertionPoint(liveStarts, n.start());
+      liveStarts.add(ip, n.start());
+      liveValues.add(ip, t);
+    }
+    
+    // Active and inactive lifetimes that have a register
+    //
+    List<IR1.Dest> active = new ArrayList<IR1.Dest>(liveCount); 
+    List<IR1.Dest> inactive = new ArrayList<IR1.Dest>(liveCount); 
+
+    // Spill slots, with the last end point of the lifetimes in each
+    //
+    List<Integer> slotEnds = new ArrayList<Integer>();
+
+    Iterator<Integer> it = liveStarts.iterator();
+    Iterator<IR1.Dest> pt = liveValues.iterator();
+    while (it.hasNext() && pt.hasNext()) {
+      int start = it.next();
+      IR1.Dest t = pt.next();
+      Liveness.Lifetime n = lifetimes.get(t);
+
+      // retire, deactivate and reactivate
+      for (Iterator<IR1.Dest> jt = active.iterator(); jt.hasNext(); ) {
+	IR1.Dest s = jt.next();
+	Liveness.Lifetime m = lifetimes.get(s);
+	if (m.end() < start)
+	  jt.remove();
+	else if (!m.covers(start)) {
+	  jt.remove();
+	  inactive.add(s);
+	}
+      }
+      for (Iterator<IR1.Dest> jt = inactive.iterator(); jt.hasNext(); ) {
+	IR1.Dest s = jt.next();
+	Liveness.Lifetime m = lifetimes.get(s);
+	if (m.end() < start)
+	  jt.remove();
+	else if (m.covers(start)) {
+	  jt.remove();
+	  active.add(s);
+	}
+      }
+
+      // which registers may hold it, and which are free
+      boolean[] free = new boolean[X86.allRegs.length];
+      for (int r = 0; r < free.length; r++)
+	free[r] = assignable[r];
+      if (acrossDiv.contains(t)) {
+	free[X86.RAX.r] = false;
+	free[X86.RDX.r] = false;
+      }
+      boolean[] allowed = free.clone();
+      for (IR1.Dest s: active)
+	free[regMap.get(s).r] = false;
+      for (IR1.Dest s: inactive)
+	if (lifetimes.get(s).intersects(n))
+	  free[regMap.get(s).r] = false;
+
+      // try to find a register
+      X86.Reg treg = null;
+      X86.Reg preg = preference.get(t);
+      Integer cost = callCost.get(t);
+      if (cost != null) {
+	// live across calls: a callee-save reg that is already saved,
+	// or, depending on how often it would have to be saved around
+	// the calls, a fresh callee-save reg or a split caller-save one
+	treg = pickMarked(free, used, X86.calleeSaveRegs);
+	if (treg == null && cost <= 1) {
+	  treg = pick(free, preg, X86.callerSaveRegs);
+	  if (treg == null)
+	    treg = pick(free, null, X86.calleeSaveRegs);
+	} else if (treg == null) {
+	  treg = pick(free, null, X86.calleeSaveRegs);
+	  if (treg == null)
+	    treg = pick(free, preg, X86.callerSaveRegs);
+	}
+      } else {
+	// try first for a preference register (always caller-save),
+	// then any caller-save reg, then a callee-save one (one already
+	// saved first)
+	treg = pick(free, preg, X86.callerSaveRegs);
+	if (treg == null)
+	  treg = pickMarked(free, used, X86.calleeSaveRegs);
+	if (treg == null)
+	  treg = pick(free, null, X86.calleeSaveRegs);
+      }
+
+      if (treg == null) {
+	// couldn't find a register; take one from the active lifetime
+	// whose next use is furthest away, if that is further than
+	// this one's first use (and nothing inactive stands in the way)
+	IR1.Dest victim = null;
+	int victimUse = n.nextUse(start);
+	for (IR1.Dest s: active) {
+	  X86.Reg reg = regMap.get(s);
+	  if (!allowed[reg.r] || !isFreeOf(reg, inactive, n, regMap, lifetimes))
+	    continue;
+	  int use = lifetimes.get(s).nextUse(start);
+	  if (use > victimUse || 
+	      (victim != null && use == victimUse && 
+	       lifetimes.get(s).end() > lifetimes.get(victim).end())) {
+	    victim = s;
+	    victimUse = use;
+	  }
+	}
+	if (victim == null) {
+	  // otherwise spill this one
+	  spill(t, n, spillSlots, slotEnds);
+	  continue;
+	}
+	treg = regMap.remove(victim);
+	active.remove(victim);
+	if (!spillSlots.containsKey(victim))
+	  spill(victim, lifetimes.get(victim), spillSlots, slotEnds);
+      }
+
+      // found a register; record it (and a slot, if it is to be saved
+      // around calls)
+      if (cost != null && !isCalleeSave(treg))
+	spill(t, n, spillSlots, slotEnds);
+      used[treg.r] = true;
+      active.add(t);
+      regMap.put(t, treg);
+    }
+    // return the register mappings
+    return regMap;
+  }
+
+  // The first of regs that is free, trying the preferred one first
+  //
+  private static X86.Reg pick(boolean[] free, X86.Reg pref, X86.Reg[] regs) {
+    if (pref != null && free[pref.r])
+      for (X86.Reg reg: regs)
+	if (reg.equals(pref))
+	  return reg;
+    for (X86.Reg reg: regs) 
+      if (free[reg.r])
+	return reg;
+    return null;
+  }
+
+  // The first of regs that is free and marked
+  //
+  private static X86.Reg pickMarked(boolean[] free, boolean[] marked, X86.Reg[] regs) {
+    for (X86.Reg reg: regs) 
+      if (free[reg.r] && marked[reg.r])
+	return reg;
+    return null;
+  }
+
+  // True if no inactive lifetime in reg intersects n
+  //
+  private static boolean isFreeOf(X86.Reg reg, List<IR1.Dest> inactive,
+				  Liveness.Lifetime n, 
+				  Map<IR1.Dest,X86.Reg> regMap,
+				  Map<IR1.Dest,Liveness.Lifetime> lifetimes) {
+    for (IR1.Dest s: inactive)
+      if (regMap.get(s).equals(reg) && lifetimes.get(s).intersects(n))
+	return false;
+    return true;
+  }
+
+  // Weight of an instruction at loop depth d: 10^d (capped)
+  //
+  private static int weight(int d) {
+    int w = 1;
+    for (int k = 0; k < d && w < 1000000; k++)
+      w *= 10;
+    return w;
+  }
+
+  // How many loops each instruction is in, taking a loop to be the
+  // code from a label to a jump back to it
+  //
+  static int[] loopDepths(IR1.Func func) {
+    int n = func.code.length;
+    Map<String,Integer> labels = new HashMap<String,Integer>();
+    for (int i = 1; i <= n; i++)
+      if (func.code[i-1] instanceof IR1.LabelDec)
+	labels.put(((IR1.LabelDec) func.code[i-1]).lab.name, i);
+    int[] depth = new int[n+1];
+    for (int i = 1; i <= n; i++) {
+      IR1.Inst inst = func.code[i-1];
+      String target = null;
+      if (inst instanceof IR1.Jump)
+	target = ((IR1.Jump) inst).lab.name;
+      else if (inst instanceof IR1.CJump)
+	target = ((IR1.CJump) inst).lab.name;
+      Integer j = target != null ? labels.get(target) : null;
+      if (j != null && j <= i)
+	for (int k = j; k <= i; k++)
+	  depth[k]++;
+    }
+    return depth;
+  }
+
+  // Desired register mappings for IR1.Ids and IR1.Temps
+  //
+  static Map<IR1.Dest,X86.Reg> preferences(IR1.Func func) throws Exception {
 
     // Computing preferences
     //-------------------------------------------------------------------
     // Preferences are not binding. In particular, ranges that span a
-    // call will never end up in a caller-save register, but we don't
-    // worry about that now.
+    // call end up in a caller-save register only if they are split at
+    // the call, but we don't worry about that now.
     //
     // Note: all preference registers should be caller-save (otherwise
     // they're ignored)
@@ -53,6 +338,7 @@ public class RegAlloc {
     if (paramCount > X86.argRegs.length) {
       throw new RegAllocException("Func has too many args: " + paramCount);
     }
+    Map<IR1.Dest,X86.Reg> preference = new HashMap<IR1.Dest,X86.Reg>();
     for (int i = 0; i < paramCount; i++)  
       preference.put(new IR1.Id(func.params[i]), X86.argRegs[i]); 
 		     
@@ -84,112 +370,28 @@ public class RegAlloc {
 	}
       }
     }
-
-    // Linear Scan Allocation
-    //-------------------------------------------------------------------
-    // Keep track of available registers.
-    // Does not handle spilling (If registers run out, simply leave Id 
-    // or Temp unassigned.
-
-    // Prepare an array of assignable registers
-    //
-    boolean[] regAvailable = new boolean[X86.allRegs.length];
-    for (int i = 0; i < regAvailable.length; i++)
-      regAvailable[i] = true;
-    regAvailable[X86.RSP.r] = false;
-    regAvailable[tempReg1.r] = false;
-    regAvailable[tempReg2.r] = false;
-      
-    // Build two parallel lists describing live intervals sorted by
-    // start point
-    //
-    List<Integer> liveStarts = new ArrayList<Integer>(liveCount);
-    List<IR1.Dest> liveValues = new ArrayList<IR1.Dest>(liveCount);   
-    for (Map.Entry<IR1.Dest,Liveness.Interval> me: liveIntervals.entrySet()) {
-      IR1.Dest t = me.getKey();
-      Liveness.Interval n = me.getValue();
-      int ip = insertionPoint(liveStarts, n.start);
-      liveStarts.add(ip, n.start);
-      liveValues.add(ip, t);
-    }
-    
-    // Active intervals are maintained as two parallel lists, sorted
-    // by end point
-    //
-    List<Integer> activeEnds = new ArrayList<Integer>(liveCount); 
-    List<X86.Reg> activeRegs = new ArrayList<X86.Reg>(liveCount); 
-    Iterator<Integer> it = liveStarts.iterator();
-    Iterator<IR1.Dest> pt = liveValues.iterator();
-    while (it.hasNext() && pt.hasNext()) {
-      int start = it.next();
-      IR1.Dest t = pt.next();
-    expire: {
-	Iterator<Integer> jt = activeEnds.iterator();
-	Iterator<X86.Reg> kt = activeRegs.iterator(); 
-	while (jt.hasNext() && kt.hasNext()) {
-	  int end = jt.next();
-	  if (end >= start)
-	    break expire;
-	  X86.Reg reg = kt.next();
-	  jt.remove();
-	  kt.remove();
-	  regAvailable[reg.r] = true;
-	}
-      }
-      // try to find a register
-      X86.Reg treg = null;
-    find: {
-	Liveness.Interval n = liveIntervals.get(t);
-	if (intervalContainsCall(func, n)) {
-	  // insist on a callee-save reg (ignoring any preference)
-	  for (X86.Reg reg: X86.calleeSaveRegs) 
-	    if (regAvailable[reg.r]) {
-	      treg = reg;
-	      break find;
-	    }
-	} else {
-	  // try first for a preference register (always caller-save)
-	  X86.Reg preg = preference.get(t);
-	  if (preg !=null && regAvailable[preg.r]) {
-	    treg = preg;
-	    break find;
-	  }
-	  // try for arbitrary caller-save reg
-	  for (X86.Reg reg: X86.callerSaveRegs) 
-	    if (regAvailable[reg.r]) {
-	      treg = reg;
-	      break find;
-	    }
-	  // otherwise, try a callee-save 
-	  for (X86.Reg reg: X86.calleeSaveRegs) 
-	    if (regAvailable[reg.r]) {
-	      treg = reg;
-	      break find;
-	    }
-	}
-	// couldn't find a register
-	throw new RegAllocException("Oops: out of registers");
-      }
-      // found a register; record it
-      regAvailable[treg.r] = false;
-      int end = liveIntervals.get(t).end;
-      int ip = insertionPoint(activeEnds, end);
-      activeEnds.add(ip, end);
-      activeRegs.add(ip, treg);
-      regMap.put(t, treg);
-    }
-    // return the register mappings
-    return regMap;
+    return preference;
   }
 
-  // Return true if specified interval includes an IR instruction
-  // that will cause an X86.call (or invoke an X86.divide)
+  // Give a spilled (or split) Id or Temp a stack slot: the first one
+  // whose lifetimes all end before this one starts, or a new one
   //
-  private static boolean intervalContainsCall(IR1.Func func, Liveness.Interval n) {
-    for (int i = n.start+1; i <= n.end; i++)
-      if (func.code[i-1] instanceof IR1.Call ||
-	  (func.code[i-1] instanceof IR1.Binop && 
-	   ((IR1.Binop) func.code[i-1]).op == IR1.AOP.DIV))
+  private static void spill(IR1.Dest t, Liveness.Lifetime n, 
+			    Map<IR1.Dest,Integer> spillSlots,
+			    List<Integer> slotEnds) {
+    int slot = 0;
+    while (slot < slotEnds.size() && slotEnds.get(slot) >= n.start())
+      slot++;
+    if (slot == slotEnds.size())
+      slotEnds.add(n.end());
+    else
+      slotEnds.set(slot, Math.max(slotEnds.get(slot), n.end()));
+    spillSlots.put(t, slot);
+  }
+
+  private static boolean isCalleeSave(X86.Reg reg) {
+    for (X86.Reg r: X86.calleeSaveRegs)
+      if (r.equals(reg))
 	return true;
     return false;
   }
@@ -47,14 +47,26 @@ class X86 {
     B("b",1), L("l",4), Q("q",8);
     final String suffix;
     final int bytes;
-    Size(String suffix, int bytes) { this.suffix=suffix; this.bytes=bytes; }
+    final String mov;   // "mov" + suffix
+    Size(String suffix, int bytes) { 
+      this.suffix=suffix; this.bytes=bytes; this.mov="mov"+suffix; 
+    }
     public String toString() { return suffix; }
   }
 
   // Operands
   //------------------------------------------------------------------------
  
-  static abstract class Operand {}
+  static abstract class Operand {
+    // Append the operand's text to sb (as the emit routines do)
+    abstract void appendTo(StringBuilder sb);
+
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      appendTo(sb);
+      return sb.toString();
+    }
+  }
 
   // Computed memory address
   //
@@ -70,10 +82,18 @@ class X86 {
     Mem(Reg base, int offset) {
       this.base=base; this.index=null; this.offset=offset; this.scale=1;
     }
-    public String toString() {
-      return (offset != 0 ? offset : "") + "(" + base + 
-	(index != null ? ("," + index + 
-	  (scale != 1 ? ("," + scale) : "")) : "") + ")";
+    void appendTo(StringBuilder sb) {
+      if (offset != 0)
+	sb.append(offset);
+      sb.append('(');
+      base.appendTo(sb);
+      if (index != null) {
+	sb.append(',');
+	index.appendTo(sb);
+	if (scale != 1)
+	  sb.append(',').append(scale);
+      }
+      sb.append(')');
     }
     public boolean equals(Object obj) {
       return obj instanceof Mem && 
@@ -90,7 +110,7 @@ class X86 {
 
     Reg(int r) { this.r=r; this.s=Size.Q; }
     Reg(int r, Size s) { this.r=r; this.s=s; }
-    public String toString() { return regName[s.ordinal()][r]; }
+    void appendTo(StringBuilder sb) { sb.append(regName[s.ordinal()][r]); }
 
     public boolean equals(Object obj) {
       return obj instanceof Reg && r == ((Reg) obj).r && s == ((Reg) obj).s;  
@@ -103,7 +123,7 @@ class X86 {
     int i;
 
     Imm(int i) { this.i=i; }
-    public String toString() { return "$" + i; }
+    void appendTo(StringBuilder sb) { sb.append('$').append(i); }
 
     public boolean equals(Object obj) {
       return obj instanceof Imm && i == ((Imm) obj).i;
@@ -116,7 +136,7 @@ class X86 {
     String s;
   
     AddrName(String s) { this.s=s; }
-    public String toString() { return s + "(%rip)"; }
+    void appendTo(StringBuilder sb) { sb.append(s).append("(%rip)"); }
 
     public boolean equals(Object obj) {
       return obj instanceof AddrName && s == ((AddrName) obj).s;
@@ -129,7 +149,7 @@ class X86 {
     String s;
 
     GLabel(String s) { this.s=s; }
-    public String toString() { return s; }
+    void appendTo(StringBuilder sb) { sb.append(s); }
 
     public boolean equals(Object obj) {
       return obj instanceof GLabel && s == ((GLabel) obj).s;
@@ -142,7 +162,7 @@ class X86 {
     String s;
 
     Label(String s) { this.s=s; }
-    public String toString() { return s; }
+    void appendTo(StringBuilder sb) { sb.append(s); }
 
     public boolean equals(Object obj) {
       return obj instanceof Label && s == ((Label) obj).s;
@@ -151,39 +171,44 @@ class X86 {
 
   // Code-Emitting Routines
   //------------------------------------------------------------------------
+  // Everything goes to out, which is only written when flushed (see
+  // AsmWriter)
+
+  static AsmWriter out = AsmWriter.toStdout();
  
   static void emit(String s) {
-    System.out.println(s);
+    out.println(s);
   }
 
   static void emit0(String op) {
-    System.out.print("\t" + op + "\n");
+    out.print('\t').print(op).print('\n');
   }
 
   static void emit1(String op, Operand rand1) {
-    System.out.print("\t" + op + " " + rand1 + "\n");
+    out.print('\t').print(op).print(' ').print(rand1).print('\n');
   }
 
   static void emit2(String op, Operand rand1, Operand rand2) {
-    System.out.print("\t" + op + " " + rand1 + "," + rand2 + "\n");
+    out.print('\t').print(op).print(' ').print(rand1).print(',')
+      .print(rand2).print('\n');
   }
 
   static void emitLabel(Label lab) {
-    System.out.print(lab + ":\n");
+    out.print(lab).print(":\n");
   }
 
   static void emitGLabel(GLabel lab) {
-    System.out.print(lab + ":\n");
+    out.print(lab).print(":\n");
   }
 
   static void emitString(String s) {
-    System.out.print("\t.asciz \"" + s + "\"\n");
+    out.print("\t.asciz \"").print(s).print("\"\n");
   }
     
   // emit mov just when necessary
   static void emitMov(Size size, Operand from, Operand to) {
     if (!from.equals(to))  {
-      emit2("mov" + size, from, to);
+      emit2(size.mov, from, to);
     }
   }
 